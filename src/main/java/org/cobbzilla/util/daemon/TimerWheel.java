@@ -0,0 +1,165 @@
+package org.cobbzilla.util.daemon;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: one thread that runs delayed tasks for any number of timers, to the nearest tick.
+ * Scheduling and cancelling are O(1), so it suits timers that are rescheduled or cancelled far more often
+ * than they expire, such as debouncing.
+ *
+ * The wheel thread only keeps time. Expired tasks are run on an executor, so a slow task does not delay other timers.
+ */
+@Slf4j
+public class TimerWheel implements Closeable {
+
+    public static final long DEFAULT_TICK_MILLIS = 50;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static class Shared {
+        static final TimerWheel INSTANCE = new TimerWheel("TimerWheel.shared", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE,
+                Executors.newCachedThreadPool(new DaemonThreadFactory("TimerWheel.shared")));
+    }
+
+    /** @return a process-wide wheel, created on first use */
+    public static TimerWheel shared () { return Shared.INSTANCE; }
+
+    @Getter private final long tickMillis;
+    private final Queue<Timeout>[] buckets;
+    private final int mask;
+    private final ExecutorService executor;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startTime = System.nanoTime();
+    private volatile boolean done = false;
+
+    /**
+     * @param name name of the wheel thread
+     * @param tickMillis the resolution of the wheel. Tasks run at most one tick late.
+     * @param wheelSize number of buckets, rounded up to a power of two. Timers further away than tickMillis * wheelSize go around the wheel more than once.
+     * @param executor runs expired tasks
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel (String name, long tickMillis, int wheelSize, ExecutorService executor) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis must be positive");
+        final int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.buckets = new Queue[size];
+        for (int i=0; i<size; i++) buckets[i] = new ArrayDeque<>();
+        this.mask = size - 1;
+        this.executor = executor;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param task what to run
+     * @param delayMillis how long to wait before running it
+     * @return a Timeout that can be used to cancel the task
+     */
+    public Timeout schedule (Runnable task, long delayMillis) {
+        if (done) throw new IllegalStateException("schedule: wheel is closed");
+        final Timeout timeout = new Timeout(task, elapsedMillis() + Math.max(0, delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    @Override public void close () {
+        done = true;
+        LockSupport.unpark(thread);
+    }
+
+    private long elapsedMillis () { return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime); }
+
+    private void run () {
+        long tick = 0;
+        while (!done) {
+            final long wakeAt = (tick + 1) * tickMillis;
+            long sleep;
+            while ((sleep = wakeAt - elapsedMillis()) > 0 && !done) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+            }
+            if (done) break;
+            tick++;
+            transferAdded(tick);
+            expire(buckets[(int) (tick & mask)]);
+        }
+    }
+
+    private void transferAdded (long currentTick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+            // never schedule into a tick that has already passed
+            final long deadlineTick = Math.max(currentTick, (timeout.deadline + tickMillis - 1) / tickMillis);
+            timeout.rounds = (deadlineTick - currentTick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire (Queue<Timeout> bucket) {
+        for (Iterator<Timeout> iter = bucket.iterator(); iter.hasNext(); ) {
+            final Timeout timeout = iter.next();
+            if (timeout.isCancelled()) {
+                iter.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                iter.remove();
+                if (timeout.expire()) {
+                    try {
+                        executor.execute(timeout::runTask);
+                    } catch (Exception e) {
+                        log.error("expire: error submitting task: "+e, e);
+                    }
+                }
+            }
+        }
+    }
+
+    public static class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long rounds; // only accessed by the wheel thread
+
+        private Timeout (Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /** @return true if the task was cancelled, false if it already ran (or is running) or was already cancelled */
+        public boolean cancel () { return state.compareAndSet(PENDING, CANCELLED); }
+
+        public boolean isCancelled () { return state.get() == CANCELLED; }
+        public boolean isExpired () { return state.get() == EXPIRED; }
+
+        private boolean expire () { return state.compareAndSet(PENDING, EXPIRED); }
+
+        private void runTask () {
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("runTask: "+e, e);
+            }
+        }
+    }
+
+}
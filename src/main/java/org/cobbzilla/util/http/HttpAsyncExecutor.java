@@ -0,0 +1,261 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.collection.CaseInsensitiveStringSet;
+import org.cobbzilla.util.collection.NameAndValue;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.string.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+import static org.cobbzilla.util.http.HttpStatusCodes.NO_CONTENT;
+import static org.cobbzilla.util.http.HttpUtil.DEFAULT_CONNECT_TIMEOUT;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+
+/**
+ * Executes HttpRequestBeans asynchronously using the JDK's non-blocking HttpClient.
+ * No thread is held while a request is in flight. The number of in-flight requests to any one
+ * host (scheme + host + port) is bounded; requests beyond the limit are queued and started as earlier ones complete.
+ */
+@Slf4j
+public class HttpAsyncExecutor {
+
+    public static final int DEFAULT_MAX_PER_HOST = 20;
+    public static final long DEFAULT_REQUEST_TIMEOUT = MINUTES.toMillis(5);
+
+    // these are set by the JDK client itself, and it refuses to let us set them
+    private static final Set<String> RESTRICTED_HEADERS = new CaseInsensitiveStringSet();
+    static {
+        RESTRICTED_HEADERS.addAll(Arrays.asList("Connection", "Content-Length", "Expect", "Host", "Upgrade"));
+    }
+
+    private static final HttpAsyncExecutor DEFAULT = new HttpAsyncExecutor();
+    public static HttpAsyncExecutor defaultExecutor () { return DEFAULT; }
+
+    @Getter private final int maxPerHost;
+    @Getter private final long requestTimeout;
+    private final HttpClient client;
+    // for requests with a stream body, which cannot be sent twice, so redirects that resend the body are not followed
+    private final HttpClient streamClient;
+    private final ExecutorService readPool;
+    private final Map<String, HostQueue> hosts = new ConcurrentHashMap<>();
+
+    public HttpAsyncExecutor () { this(DEFAULT_MAX_PER_HOST); }
+
+    public HttpAsyncExecutor (int maxPerHost) { this(maxPerHost, DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT); }
+
+    public HttpAsyncExecutor (int maxPerHost, long connectTimeout, long requestTimeout) {
+        this.maxPerHost = maxPerHost <= 0 ? 1 : maxPerHost;
+        this.requestTimeout = requestTimeout;
+        this.readPool = Executors.newCachedThreadPool(new DaemonThreadFactory(getClass().getSimpleName()));
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(readPool)
+                .build();
+        this.streamClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(readPool)
+                .build();
+    }
+
+    /**
+     * @param request the request to send
+     * @return a future that completes with the response. The future completes exceptionally if the request could not be sent.
+     */
+    public CompletableFuture<HttpResponseBean> execute (HttpRequestBean request) {
+        final HostQueue queue = hosts.computeIfAbsent(hostKey(request), k -> new HostQueue());
+        return queue.submit(() -> send(request));
+    }
+
+    /**
+     * Send all requests, calling the handler for each one as its response arrives (in completion order, not request order).
+     * @param requests the requests to send
+     * @param handler called with each request and its response, or with the error if the request failed
+     * @return a future that completes when every request has completed and its handler has been called
+     */
+    public CompletableFuture<Void> executeAll (Collection<HttpRequestBean> requests, HttpAsyncResultHandler handler) {
+        final CompletableFuture<?>[] futures = new CompletableFuture[requests.size()];
+        int i = 0;
+        for (HttpRequestBean request : requests) {
+            futures[i++] = execute(request).handle((response, e) -> {
+                try {
+                    handler.handle(request, response, e);
+                } catch (Exception handlerEx) {
+                    log.warn("executeAll: handler error for "+request+": "+shortError(handlerEx));
+                }
+                return null;
+            });
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Send all requests and collect the responses.
+     * @param requests the requests to send
+     * @return a future that completes with a map of each request to its response, in the same order as the requests.
+     * If a request failed, its response is null.
+     */
+    public CompletableFuture<Map<HttpRequestBean, HttpResponseBean>> executeAll (Collection<HttpRequestBean> requests) {
+        final Map<HttpRequestBean, HttpResponseBean> results = new LinkedHashMap<>();
+        for (HttpRequestBean request : requests) results.put(request, null);
+        return executeAll(requests, (request, response, e) -> {
+            if (e != null) {
+                log.warn("executeAll: "+request+" failed: "+shortError(e));
+            } else {
+                synchronized (results) { results.put(request, response); }
+            }
+        }).thenApply(v -> results);
+    }
+
+    private String hostKey(HttpRequestBean request) {
+        final URI uri = URI.create(request.getUri());
+        return uri.getScheme()+"://"+uri.getHost()+":"+uri.getPort();
+    }
+
+    private CompletableFuture<HttpResponseBean> send (HttpRequestBean request) {
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUri()))
+                .timeout(Duration.ofMillis(requestTimeout))
+                .method(request.getMethod(), bodyPublisher(request));
+
+        if (request.hasHeaders()) {
+            for (NameAndValue header : request.getHeaders()) {
+                if (RESTRICTED_HEADERS.contains(header.getName())) continue;
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        if (request.hasAuth()) {
+            if (request.getAuthType() != HttpAuthType.basic) {
+                return CompletableFuture.failedFuture(new UnsupportedOperationException("send: unsupported authType: "+request.getAuthType()));
+            }
+            final String creds = request.getAuthUsername()+":"+request.getAuthPassword();
+            builder.header(AUTHORIZATION, "Basic "+Base64.encodeBytes(creds.getBytes(UTF8cs)));
+        }
+
+        // a 3xx response to a request with a stream body is returned to the caller rather than followed
+        final HttpClient client = request.hasStream() ? streamClient : this.client;
+        if (request.streamResponseEntity() || request.hasResponseSpillThreshold()) {
+            // reading the stream blocks, so do it on our pool and not on the client's selector thread
+            return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofInputStream())
+                    .thenApplyAsync(response -> toResponseBean(request, response, response.body()), readPool);
+        }
+        return client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> toResponseBean(request, response, empty(response.body()) ? null : new ByteArrayInputStream(response.body())));
+    }
+
+    private HttpRequest.BodyPublisher bodyPublisher(HttpRequestBean request) {
+        if (request.hasStream()) {
+            // the client asks for the body again if it retries the request. the stream has been read by then,
+            // so fail the retry instead of sending an empty or truncated body
+            final AtomicBoolean sent = new AtomicBoolean(false);
+            final HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+                if (!sent.getAndSet(true)) return request.getEntityInputStream();
+                return new InputStream() {
+                    @Override public int read () throws IOException {
+                        throw new IOException("bodyPublisher: request body stream cannot be sent twice: "+request.getUri());
+                    }
+                };
+            });
+            return request.hasContentLength()
+                    ? HttpRequest.BodyPublishers.fromPublisher(publisher, request.getContentLength())
+                    : publisher;
+        }
+        if (request.hasData()) return HttpRequest.BodyPublishers.ofString(request.getEntity(), UTF8cs);
+        return HttpRequest.BodyPublishers.noBody();
+    }
+
+    private HttpResponseBean toResponseBean(HttpRequestBean request, HttpResponse<?> response, InputStream body) {
+        final HttpResponseBean bean = new HttpResponseBean()
+                .setStatus(response.statusCode())
+                .setHttpHeaders(response.headers().map());
+        if (body == null || response.statusCode() == NO_CONTENT) return bean;
+        try {
+            final InputStream content = HttpUtil.decodeEntity(request, bean, body);
+            if (request.streamResponseEntity()) return bean.setEntityStream(content);
+            try (InputStream in = content) {
+                return HttpUtil.readEntity(request, bean, in);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("toResponseBean: error reading response entity: "+e, e);
+        }
+    }
+
+    private class HostQueue {
+
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger active = new AtomicInteger(0);
+        // set while this thread is in drain. a task that completes inline releases its slot without draining again,
+        // so a long queue of requests that fail at once cannot recurse once per request
+        private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+        public <T> CompletableFuture<T> submit (Supplier<CompletableFuture<T>> task) {
+            final CompletableFuture<T> result = new CompletableFuture<>();
+            pending.add(() -> {
+                final CompletableFuture<T> future;
+                try {
+                    future = task.get();
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                    release();
+                    return;
+                }
+                future.whenComplete((value, e) -> {
+                    release();
+                    if (e != null) result.completeExceptionally(e);
+                    else result.complete(value);
+                });
+            });
+            drain();
+            return result;
+        }
+
+        private void release () {
+            active.decrementAndGet();
+            drain();
+        }
+
+        private void drain () {
+            if (draining.get()) return; // the loop further up this thread's stack will start the next task
+            draining.set(true);
+            try {
+                drainPending();
+            } finally {
+                draining.remove();
+            }
+        }
+
+        private void drainPending () {
+            while (!pending.isEmpty()) {
+                final int count = active.get();
+                if (count >= maxPerHost) return;
+                if (!active.compareAndSet(count, count+1)) continue;
+                final Runnable next = pending.poll();
+                if (next == null) {
+                    // someone else took it; give back our slot and check again
+                    active.decrementAndGet();
+                    continue;
+                }
+                next.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+package org.cobbzilla.util.http;
+
+public interface HttpAsyncResultHandler {
+
+    /**
+     * Called when an asynchronous request completes
+     * @param request the request that was sent
+     * @param response the response, or null if the request failed
+     * @param error the error, or null if the request succeeded
+     */
+    void handle (HttpRequestBean request, HttpResponseBean response, Throwable error);
+
+}
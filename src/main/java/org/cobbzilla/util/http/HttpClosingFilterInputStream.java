@@ -5,6 +5,7 @@ import org.apache.http.impl.client.CloseableHttpClient;
 
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class HttpClosingFilterInputStream extends FilterInputStream {
 
@@ -12,7 +13,11 @@ public class HttpClosingFilterInputStream extends FilterInputStream {
 
     public HttpClosingFilterInputStream(CloseableHttpClient httpClient,
                                         CloseableHttpResponse response) throws IOException {
-        super(response.getEntity().getContent());
+        this(httpClient, response.getEntity().getContent());
+    }
+
+    public HttpClosingFilterInputStream(CloseableHttpClient httpClient, InputStream in) {
+        super(in);
         this.httpClient = httpClient;
     }
 
@@ -4,39 +4,28 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.nixxcode.jvmbrotli.common.BrotliLoader;
 import com.nixxcode.jvmbrotli.dec.BrotliInputStream;
 import com.nixxcode.jvmbrotli.enc.BrotliOutputStream;
-import lombok.AllArgsConstructor;
-import org.apache.commons.compress.compressors.deflate.DeflateCompressorInputStream;
-import org.apache.commons.compress.compressors.deflate.DeflateCompressorOutputStream;
-import org.apache.commons.compress.compressors.deflate.DeflateParameters;
-import org.apache.commons.io.IOUtils;
-import org.cobbzilla.util.io.FilterInputStreamViaOutputStream;
+import com.nixxcode.jvmbrotli.enc.Encoder;
+import lombok.Getter;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.cobbzilla.util.io.*;
 import org.cobbzilla.util.system.Bytes;
 
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 
-@AllArgsConstructor
 public enum HttpContentEncodingType {
 
-    identity (BufferedInputStream::new, BufferedOutputStream::new, BufferedOutputStream.class),
+    identity ((in, bufsiz) -> new BufferedInputStream(in, bufsiz), (out, level) -> new BufferedOutputStream(out), Constants.NO_LEVEL),
 
-    gzip (GZIPInputStream::new, GZIPOutputStream::new, GZIPOutputStream.class),
+    gzip (PooledGZIPInputStream::new, PooledGZIPOutputStream::new, Deflater.DEFAULT_COMPRESSION),
 
-    deflate ((in, bufsiz) -> new DeflateCompressorInputStream(in, Constants.DEFLATE_PARAMETERS),
-             out -> new DeflateCompressorOutputStream(out, Constants.DEFLATE_PARAMETERS),
-             in -> new FilterInputStreamViaOutputStream(in, out -> {
-                 try {
-                     return new DeflateCompressorOutputStream(out, Constants.DEFLATE_PARAMETERS);
-                 } catch (IOException e) {
-                     return die("deflate.FilterInputStreamViaOutputStream: "+e, e);
-                 }
-             })),
+    deflate (PooledInflaterInputStream::new, PooledDeflaterOutputStream::new, Constants.DEFLATE_LEVEL),
 
-    br (HttpContentEncodingType::wrapBrotliInput, BrotliOutputStream::new, BrotliOutputStream.class),
-    bro (HttpContentEncodingType::wrapBrotliInput, BrotliOutputStream::new, BrotliOutputStream.class);
+    br (HttpContentEncodingType::wrapBrotliInput, HttpContentEncodingType::wrapBrotliOutput, Constants.NO_LEVEL),
+    bro (HttpContentEncodingType::wrapBrotliInput, HttpContentEncodingType::wrapBrotliOutput, Constants.NO_LEVEL);
 
     public static final int DEFAULT_IN_BUFSIZ = (int) (8 * Bytes.KB);
 
@@ -49,10 +38,9 @@ public enum HttpContentEncodingType {
     }
 
     public byte[] encode(byte[] data, int size) throws IOException {
-        final ByteArrayInputStream in = new ByteArrayInputStream(data);
         final ByteArrayOutputStream output = new ByteArrayOutputStream(size);
         try (final OutputStream out = wrapOutput(output)) {
-            IOUtils.copyLarge(in, out);
+            out.write(data);
         }
         return output.toByteArray();
     }
@@ -64,33 +52,59 @@ public enum HttpContentEncodingType {
     public byte[] decode(byte[] data, int size) throws IOException {
         final ByteArrayOutputStream output = new ByteArrayOutputStream(size);
         try (final InputStream input = wrapInput(new ByteArrayInputStream(data))) {
-            IOUtils.copyLarge(input, output);
+            StreamUtil.copyLarge(input, output);
         }
         return output.toByteArray();
     }
 
+    /**
+     * Encode a stream without holding the payload in memory. Neither stream is closed.
+     * @return the number of unencoded bytes read from in
+     */
+    public long encode(InputStream in, OutputStream out) throws IOException { return encode(in, out, defaultLevel); }
+
+    public long encode(InputStream in, OutputStream out, int level) throws IOException {
+        try (final OutputStream encoded = wrapOutput(new CloseShieldOutputStream(out), level)) {
+            return StreamUtil.copyLarge(in, encoded);
+        }
+    }
+
+    /**
+     * Decode a stream without holding the payload in memory. Neither stream is closed.
+     * @return the number of decoded bytes written to out
+     */
+    public long decode(InputStream in, OutputStream out) throws IOException {
+        try (final InputStream decoded = wrapInput(new CloseShieldInputStream(in))) {
+            return StreamUtil.copyLarge(decoded, out);
+        }
+    }
+
     public interface HttpContentEncodingInputWrapper {
         InputStream wrap(InputStream in, int bufsiz) throws IOException;
     }
 
     public interface HttpContentEncodingOutputWrapper {
-        OutputStream wrap(OutputStream out) throws IOException;
+        OutputStream wrap(OutputStream out, int level) throws IOException;
     }
 
+    /**
+     * @deprecated no longer used here: wrapInputAsOutput builds its stream from wrapOutput. Kept for callers that implement it.
+     */
+    @Deprecated
     public interface HttpContentEncodingInputAsOutputWrapper {
         FilterInputStreamViaOutputStream wrap(InputStream in) throws IOException;
     }
 
     private final HttpContentEncodingInputWrapper inputWrapper;
     private final HttpContentEncodingOutputWrapper outputWrapper;
-    private final HttpContentEncodingInputAsOutputWrapper inputAsOutputWrapper;
+    @Getter private final int defaultLevel;
 
     HttpContentEncodingType (HttpContentEncodingInputWrapper inWrap,
                              HttpContentEncodingOutputWrapper outWrap,
-                             Class<? extends OutputStream> inAsOutClass) {
+                             int defaultLevel) {
         this.inputWrapper = inWrap;
         this.outputWrapper = outWrap;
-        this.inputAsOutputWrapper = in -> new FilterInputStreamViaOutputStream(in, inAsOutClass);
+        this.defaultLevel = defaultLevel;
     }
 
     @JsonCreator public static HttpContentEncodingType fromString (String v) { return valueOf(v.toLowerCase()); }
@@ -101,18 +115,37 @@ public enum HttpContentEncodingType {
         return brIn;
     }
 
+    private static OutputStream wrapBrotliOutput(OutputStream out, int quality) throws IOException {
+        return quality == Constants.NO_LEVEL
+                ? new BrotliOutputStream(out)
+                : new BrotliOutputStream(out, new Encoder.Parameters().setQuality(quality));
+    }
+
     public InputStream wrapInput(InputStream in) throws IOException { return inputWrapper.wrap(in, DEFAULT_IN_BUFSIZ); }
     public InputStream wrapInput(InputStream in, int bufsiz) throws IOException { return inputWrapper.wrap(in, bufsiz); }
 
-    public OutputStream wrapOutput(OutputStream out) throws IOException { return outputWrapper.wrap(out); }
-
-    public FilterInputStreamViaOutputStream wrapInputAsOutput(InputStream in) throws IOException { return inputAsOutputWrapper.wrap(in); }
+    public OutputStream wrapOutput(OutputStream out) throws IOException { return outputWrapper.wrap(out, defaultLevel); }
+
+    /**
+     * @param out the stream to write encoded data to
+     * @param level the compression level: 0-9 for gzip and deflate, 0-11 (quality) for brotli. Ignored for identity.
+     * @return a stream that encodes data written to it
+     */
+    public OutputStream wrapOutput(OutputStream out, int level) throws IOException { return outputWrapper.wrap(out, level); }
+
+    public FilterInputStreamViaOutputStream wrapInputAsOutput(InputStream in) {
+        return new FilterInputStreamViaOutputStream(in, out -> {
+            try {
+                return wrapOutput(out);
+            } catch (IOException e) {
+                return die("wrapInputAsOutput: "+e, e);
+            }
+        });
+    }
 
     private static class Constants {
-        public static DeflateParameters DEFLATE_PARAMETERS = new DeflateParameters();
-        static {
-            DEFLATE_PARAMETERS.setCompressionLevel(7);
-        }
+        public static final int NO_LEVEL = -1;
+        public static final int DEFLATE_LEVEL = 7;
     }
 
 }
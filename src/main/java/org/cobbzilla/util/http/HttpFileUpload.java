@@ -0,0 +1,141 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static com.google.common.net.HttpHeaders.CONTENT_DISPOSITION;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+import static org.cobbzilla.util.http.HttpContentTypes.MULTIPART_FORM_DATA;
+import static org.cobbzilla.util.http.HttpMethods.POST;
+import static org.cobbzilla.util.http.HttpUtil.DEFAULT_CONNECT_TIMEOUT;
+import static org.cobbzilla.util.http.HttpUtil.addHeaders;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.CRLF;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.cobbzilla.util.system.Bytes.MB;
+
+/**
+ * Uploads a file, either as the raw request body or as a single-part multipart/form-data body.
+ * Because the file size is known, the request is sent with an exact Content-Length (fixed-length streaming mode)
+ * rather than chunked encoding. The file is read through its FileChannel in large chunks, and an optional
+ * callback is notified after each chunk.
+ */
+@Slf4j @Accessors(chain=true)
+public class HttpFileUpload {
+
+    public static final int DEFAULT_CHUNK_SIZE = (int) MB;
+    public static final String DEFAULT_FIELD_NAME = "file";
+
+    @Getter @Setter private String url;
+    @Getter @Setter private String method = POST;
+    @Getter @Setter private File file;
+    @Getter @Setter private boolean multipart = true;
+    @Getter @Setter private String fieldName = DEFAULT_FIELD_NAME;
+    @Getter @Setter private String filename;
+    @Getter @Setter private String contentType;
+    @Getter @Setter private Map<String, String> headers;
+    @Getter @Setter private int chunkSize = DEFAULT_CHUNK_SIZE;
+    @Getter @Setter private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    @Getter @Setter private HttpUploadProgressCallback progress;
+    @Getter @Setter private boolean discardResponseEntity = false;
+
+    public HttpFileUpload (String url, File file) {
+        this.url = url;
+        this.file = file;
+    }
+
+    public String filename () { return !empty(filename) ? filename : file.getName(); }
+    public String contentType () { return !empty(contentType) ? contentType : HttpContentTypes.contentType(filename()); }
+
+    public HttpResponseBean upload () throws IOException {
+        if (!file.isFile()) return die("upload: not a file: "+abs(file));
+        final long fileSize = file.length();
+
+        final byte[] preamble;
+        final byte[] epilogue;
+        final String boundary = multipart ? hexnow()+"_"+Long.toHexString(RANDOM.nextLong()) : null;
+        if (multipart) {
+            preamble = new StringBuilder()
+                    .append("--").append(boundary).append(CRLF)
+                    .append(CONTENT_DISPOSITION).append(": form-data; name=\"").append(fieldName).append("\"; filename=\"").append(filename()).append("\"").append(CRLF)
+                    .append(CONTENT_TYPE).append(": ").append(contentType()).append(CRLF)
+                    .append(CRLF)
+                    .toString().getBytes(UTF8cs);
+            epilogue = (CRLF + "--" + boundary + "--" + CRLF).getBytes(UTF8cs);
+        } else {
+            preamble = new byte[0];
+            epilogue = new byte[0];
+        }
+        final long total = preamble.length + fileSize + epilogue.length;
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout((int) connectTimeout);
+            connection.setRequestMethod(method);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(total);
+            if (headers != null) addHeaders(connection, headers);
+            connection.setRequestProperty(CONTENT_TYPE, multipart ? MULTIPART_FORM_DATA+"; boundary="+boundary : contentType());
+
+            try (OutputStream out = connection.getOutputStream();
+                 FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                out.write(preamble);
+                long sent = preamble.length;
+                if (progress != null) progress.progress(sent, total);
+
+                // HttpURLConnection only gives us an OutputStream, so there is no socket channel to transferTo.
+                // Reading into a large heap buffer is the fewest copies we can make on this path.
+                final byte[] buf = new byte[chunkSize];
+                final ByteBuffer buffer = ByteBuffer.wrap(buf);
+                long position = 0;
+                while (position < fileSize) {
+                    buffer.clear();
+                    final int read = channel.read(buffer, position);
+                    if (read == -1) break;
+                    out.write(buf, 0, read);
+                    position += read;
+                    sent += read;
+                    if (progress != null) progress.progress(sent, total);
+                }
+                if (position != fileSize) throw new IOException("upload: file changed size during upload: "+abs(file));
+
+                out.write(epilogue);
+                sent += epilogue.length;
+                if (progress != null) progress.progress(sent, total);
+            }
+
+            final HttpResponseBean response = new HttpResponseBean()
+                    .setStatus(connection.getResponseCode())
+                    .setHttpHeaders(connection.getHeaderFields());
+            if (!discardResponseEntity) {
+                InputStream in;
+                try {
+                    in = connection.getInputStream();
+                } catch (IOException e) {
+                    in = connection.getErrorStream();
+                }
+                if (in != null) {
+                    try (InputStream entity = in) {
+                        response.setEntity(entity);
+                    }
+                }
+            }
+            return response;
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.http.HttpHeaders.HOST;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+
+/**
+ * Checks HTTP endpoints from inside the JVM, replacing the curl subprocess formerly used by HttpUtil.isOk.
+ * Probes share a pooled connection manager and run on a fixed pool. Retries are timed by a single scheduler thread
+ * with exponential backoff, so a target that is waiting to retry does not hold a thread, and blocking probes
+ * cannot make the timer late.
+ */
+@Slf4j
+public class HttpHealthChecker implements Closeable {
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final long DEFAULT_TIMEOUT = SECONDS.toMillis(10);
+
+    private static final HttpHealthChecker DEFAULT = new HttpHealthChecker(DEFAULT_THREADS, true);
+    public static HttpHealthChecker defaultChecker () { return DEFAULT; }
+
+    @Getter private final boolean insecure;
+    private final CloseableHttpClient client;
+    private final ExecutorService probes;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param threads the number of probes that can be in progress at once
+     * @param insecure if true, TLS certificates and hostnames are not verified. This is what you want when
+     *                 probing by IP address with a Host header, since the certificate will not match the IP.
+     */
+    public HttpHealthChecker (int threads, boolean insecure) {
+        this.insecure = insecure;
+        final PoolingHttpClientConnectionManager cm = insecure
+                ? new PoolingHttpClientConnectionManager(insecureRegistry())
+                : new PoolingHttpClientConnectionManager();
+        cm.setMaxTotal(DEFAULT_MAX_CONNECTIONS);
+        cm.setDefaultMaxPerRoute(threads);
+        this.client = HttpClients.custom().setConnectionManager(cm).build();
+
+        // probes block for up to their timeout, so they get their own pool. the scheduler only hands them to it
+        this.probes = fixedPool(threads, getClass().getSimpleName());
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(getClass().getSimpleName()+"-scheduler"));
+        timer.setRemoveOnCancelPolicy(true);
+        this.scheduler = timer;
+    }
+
+    private static Registry<ConnectionSocketFactory> insecureRegistry() {
+        try {
+            final SSLContext ssl = SSLContexts.custom().loadTrustMaterial((KeyStore) null, (chain, authType) -> true).build();
+            return RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", new SSLConnectionSocketFactory(ssl, NoopHostnameVerifier.INSTANCE))
+                    .build();
+        } catch (Exception e) {
+            return die("insecureRegistry: "+e, e);
+        }
+    }
+
+    /**
+     * Probe a target once, on the calling thread.
+     * @return true if the target responded with a 2xx status (after following redirects)
+     */
+    public boolean isOk (String url, String host) { return probe(new Target(url, host)); }
+
+    /**
+     * Probe a target, retrying with exponential backoff until it succeeds or maxTries is reached.
+     * @return a future that completes with true as soon as a probe succeeds, or false if every try failed
+     */
+    public CompletableFuture<Boolean> check (Target target) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        schedule(target, 0, 0, target.getSleepUnit(), result);
+        return result;
+    }
+
+    public CompletableFuture<Boolean> check (String url, String host, int maxTries, long sleepUnit) {
+        return check(new Target(url, host).setMaxTries(maxTries).setSleepUnit(sleepUnit));
+    }
+
+    /**
+     * Check all targets concurrently
+     * @return a future that completes when every target has been resolved, with the result for each target
+     */
+    public CompletableFuture<Map<Target, Boolean>> checkAll (Collection<Target> targets) {
+        final Map<Target, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        for (Target target : targets) futures.put(target, check(target));
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            final Map<Target, Boolean> results = new LinkedHashMap<>();
+            for (Map.Entry<Target, CompletableFuture<Boolean>> e : futures.entrySet()) results.put(e.getKey(), e.getValue().join());
+            return results;
+        });
+    }
+
+    private void schedule (Target target, int attempt, long delay, long nextDelay, CompletableFuture<Boolean> result) {
+        try {
+            scheduler.schedule(() -> submit(target, attempt, nextDelay, result), delay, MILLISECONDS);
+        } catch (Exception e) {
+            // scheduler was shut down
+            log.warn("schedule: error scheduling probe of "+target+": "+shortError(e));
+            result.complete(false);
+        }
+    }
+
+    private void submit (Target target, int attempt, long nextDelay, CompletableFuture<Boolean> result) {
+        try {
+            probes.execute(() -> {
+                if (result.isDone()) return;
+                if (probe(target)) {
+                    result.complete(true);
+                } else if (attempt+1 >= target.getMaxTries()) {
+                    result.complete(false);
+                } else {
+                    schedule(target, attempt+1, nextDelay, nextDelay*2, result);
+                }
+            });
+        } catch (Exception e) {
+            // probe pool was shut down
+            log.warn("submit: error submitting probe of "+target+": "+shortError(e));
+            result.complete(false);
+        }
+    }
+
+    private boolean probe (Target target) {
+        final HttpGet get = new HttpGet(target.getUrl());
+        if (!empty(target.getHost())) get.setHeader(HOST, target.getHost());
+        final int timeout = (int) target.getTimeout();
+        get.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .build());
+        try (CloseableHttpResponse response = client.execute(get)) {
+            // consume the entity so the connection goes back to the pool
+            EntityUtils.consume(response.getEntity());
+            return HttpStatusCodes.is2xx(response.getStatusLine().getStatusCode());
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) log.debug("probe: error fetching "+target+": "+shortError(e));
+            return false;
+        }
+    }
+
+    @Override public void close () throws IOException {
+        scheduler.shutdownNow();
+        probes.shutdownNow();
+        client.close();
+    }
+
+    @NoArgsConstructor @Accessors(chain=true)
+    public static class Target {
+
+        public static final int DEFAULT_MAX_TRIES = 1;
+        public static final long DEFAULT_SLEEP_UNIT = SECONDS.toMillis(1);
+
+        public Target (String url, String host) {
+            this.url = url;
+            this.host = host;
+        }
+
+        @Getter @Setter private String url;
+        // if set, sent as the Host header, for example when url refers to the server by IP address
+        @Getter @Setter private String host;
+        @Getter @Setter private long timeout = DEFAULT_TIMEOUT;
+        @Getter @Setter private int maxTries = DEFAULT_MAX_TRIES;
+        // the delay before the first retry; each later retry waits twice as long as the previous one
+        @Getter @Setter private long sleepUnit = DEFAULT_SLEEP_UNIT;
+
+        @Override public String toString() { return url+(empty(host) ? "" : " (Host: "+host+")"); }
+    }
+
+}
@@ -22,6 +22,14 @@ public class HttpMeta {
 
     @Getter @Setter private String etag;
     public boolean hasEtag () { return etag != null; }
+    // weak etags (W/"...") may not be used for If-Range
+    public boolean hasStrongEtag () { return hasEtag() && !etag.startsWith("W/"); }
+
+    @Getter @Setter private Long contentLength;
+    public boolean hasContentLength () { return contentLength != null && contentLength >= 0; }
+
+    @Getter @Setter private Boolean acceptRanges;
+    public boolean acceptRanges () { return acceptRanges != null && acceptRanges; }
 
     public boolean shouldRefresh(File file) {
         if (file == null) return true;
@@ -0,0 +1,284 @@
+package org.cobbzilla.util.http;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.apache.http.HttpHeaders.IF_RANGE;
+import static org.apache.http.HttpHeaders.RANGE;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.shortError;
+import static org.cobbzilla.util.http.HttpStatusCodes.OK;
+import static org.cobbzilla.util.http.HttpStatusCodes.PARTIAL_CONTENT;
+import static org.cobbzilla.util.http.HttpUtil.*;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.json.JsonUtil.fromJsonOrDie;
+import static org.cobbzilla.util.json.JsonUtil.json;
+import static org.cobbzilla.util.security.ShaUtil.sha256_file;
+import static org.cobbzilla.util.system.Bytes.KB;
+import static org.cobbzilla.util.system.Bytes.MB;
+import static org.cobbzilla.util.system.Sleep.sleep;
+
+/**
+ * Downloads a URL by splitting it into byte ranges and fetching the ranges concurrently.
+ * Each range is written directly to its position in a preallocated file. Progress is checkpointed to a
+ * state file next to the destination, so an interrupted download resumes each range from its last good offset,
+ * provided the ETag, Last-Modified and length of the remote resource have not changed.
+ *
+ * Range requests carry an If-Range header only when the server sent a strong ETag, since servers must ignore weak
+ * ones there. If the HEAD request fails, or the server answers a range request with the whole resource, the file is
+ * downloaded as a single stream instead, with the same headers and connect timeout.
+ */
+@Slf4j @Accessors(chain=true)
+public class HttpRangeDownloader {
+
+    public static final int DEFAULT_PARTS = 4;
+    public static final long DEFAULT_MIN_PART_SIZE = 8 * MB;
+    public static final int DEFAULT_BUFFER_SIZE = (int) (256 * KB);
+    public static final long CHECKPOINT_INTERVAL = 16 * MB;
+    public static final String STATE_SUFFIX = ".ranges.json";
+
+    @Getter @Setter private String url;
+    @Getter @Setter private File file;
+    @Getter @Setter private int parts = DEFAULT_PARTS;
+    @Getter @Setter private long minPartSize = DEFAULT_MIN_PART_SIZE;
+    @Getter @Setter private int bufferSize = DEFAULT_BUFFER_SIZE;
+    @Getter private int retries = DEFAULT_RETRIES;
+    @Getter @Setter private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    @Getter @Setter private Map<String, String> headers;
+
+    // optional verification of the downloaded file
+    @Getter @Setter private Long expectedLength;
+    @Getter @Setter private String sha256;
+
+    public HttpRangeDownloader (String url, File file) {
+        this.url = url;
+        this.file = file;
+    }
+
+    /** @param retries the number of attempts at each range, at least 1 */
+    public HttpRangeDownloader setRetries (int retries) {
+        if (retries < 1) throw new IllegalArgumentException("setRetries: must be at least 1: "+retries);
+        this.retries = retries;
+        return this;
+    }
+
+    public File getStateFile () { return new File(abs(file)+STATE_SUFFIX); }
+
+    public File download () throws IOException {
+        final HttpRequestBean head = new HttpRequestBean(url);
+        if (headers != null) for (Map.Entry<String, String> h : headers.entrySet()) head.setHeader(h.getKey(), h.getValue());
+        final HttpMeta meta = getHeadMetadataOrNull(head);
+
+        if (meta == null || !meta.hasContentLength() || !meta.acceptRanges() || meta.getContentLength() < 2 * minPartSize) {
+            if (log.isDebugEnabled()) log.debug("download: ranges not supported or not worthwhile for "+url+", using url2file");
+            return singleStream();
+        }
+
+        final long length = meta.getContentLength();
+        if (expectedLength != null && expectedLength != length) {
+            return die("download: expected length "+expectedLength+" but server reported "+length+" for "+url);
+        }
+
+        final File stateFile = getStateFile();
+        final RangeState state = initState(stateFile, meta, length);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != length) raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+            final ExecutorService pool = fixedPool(state.getRanges().size(), getClass().getSimpleName());
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (Range range : state.getRanges()) {
+                    if (range.done()) continue;
+                    futures.add(pool.submit(() -> { downloadRange(channel, meta, range, state, stateFile); return null; }));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        throw new IOException("download: "+shortError(cause), cause);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("download: interrupted");
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+                checkpoint(channel, state, stateFile);
+            }
+        } catch (RangesRefusedException e) {
+            log.warn("download: "+e.getMessage()+", downloading "+url+" as a single stream");
+            if (!stateFile.delete()) log.warn("download: error deleting state file: "+abs(stateFile));
+            return singleStream();
+        }
+
+        verify(file);
+        if (!stateFile.delete()) log.warn("download: error deleting state file: "+abs(stateFile));
+        return file;
+    }
+
+    private File singleStream() throws IOException { return verify(url2file(url, file, retries, headers, connectTimeout)); }
+
+    private RangeState initState(File stateFile, HttpMeta meta, long length) {
+        if (stateFile.exists() && file.exists() && file.length() == length) {
+            try {
+                final RangeState saved = fromJsonOrDie(stateFile, RangeState.class);
+                if (saved.getLength() == length
+                        && Objects.equals(saved.getEtag(), meta.getEtag())
+                        && Objects.equals(saved.getLastModified(), meta.getLastModified())) {
+                    log.info("initState: resuming download of "+url+" into "+abs(file));
+                    return saved;
+                }
+            } catch (Exception e) {
+                log.warn("initState: error reading "+abs(stateFile)+", starting over: "+shortError(e));
+            }
+        }
+        final int count = (int) Math.max(1, Math.min(parts, length / minPartSize));
+        final long partSize = length / count;
+        final List<Range> ranges = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            final long start = i * partSize;
+            final long end = i == count-1 ? length-1 : start + partSize - 1;
+            ranges.add(new Range(start, end, start));
+        }
+        return new RangeState(meta.getEtag(), meta.getLastModified(), length, ranges);
+    }
+
+    private void downloadRange(FileChannel channel, HttpMeta meta, Range range, RangeState state, File stateFile) throws IOException {
+        IOException lastException = null;
+        long sleep = 100;
+        for (int i=0; i<retries; i++) {
+            try {
+                fetchRange(channel, meta, range, state, stateFile);
+                return;
+            } catch (RangesRefusedException e) {
+                throw e; // retrying will not help
+            } catch (IOException e) {
+                lastException = e;
+                sleep(sleep, "downloadRange: waiting to resume range "+range+" after IOException: "+e);
+                sleep *= 5;
+            }
+        }
+        throw lastException;
+    }
+
+    private void fetchRange(FileChannel channel, HttpMeta meta, Range range, RangeState state, File stateFile) throws IOException {
+        if (range.done()) return;
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout((int) connectTimeout);
+            if (headers != null) addHeaders(connection, headers);
+            connection.setRequestProperty(RANGE, "bytes="+range.getPosition()+"-"+range.getEnd());
+            if (meta.hasStrongEtag()) connection.setRequestProperty(IF_RANGE, meta.getEtag());
+
+            // 200 means the server ignored our range, or the resource changed (If-Range failed)
+            final int status = connection.getResponseCode();
+            if (status == OK) throw new RangesRefusedException("server sent the whole resource for range "+range);
+            if (status != PARTIAL_CONTENT) throw new IOException("fetchRange: expected HTTP "+PARTIAL_CONTENT+" for range "+range+" but got "+status);
+
+            try (InputStream in = connection.getInputStream()) {
+                final byte[] buf = new byte[bufferSize];
+                final ByteBuffer buffer = ByteBuffer.wrap(buf);
+                long sinceCheckpoint = 0;
+                int read;
+                while (!range.done() && (read = in.read(buf, 0, (int) Math.min(buf.length, range.remaining()))) != -1) {
+                    buffer.clear();
+                    buffer.limit(read);
+                    long position = range.getPosition();
+                    while (buffer.hasRemaining()) position += channel.write(buffer, position);
+                    range.setPosition(position);
+
+                    sinceCheckpoint += read;
+                    if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                        checkpoint(channel, state, stateFile);
+                        sinceCheckpoint = 0;
+                    }
+                }
+            }
+            if (!range.done()) throw new IOException("fetchRange: stream ended before range was complete: "+range);
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void checkpoint(FileChannel channel, RangeState state, File stateFile) {
+        synchronized (state) {
+            try {
+                // data must be on disk before we record that it is. other threads keep writing while we force,
+                // so record the positions as they were before the force, not after
+                final List<Range> ranges = new ArrayList<>(state.getRanges().size());
+                for (Range r : state.getRanges()) ranges.add(new Range(r.getStart(), r.getEnd(), r.getPosition()));
+                final RangeState snapshot = new RangeState(state.getEtag(), state.getLastModified(), state.getLength(), ranges);
+                if (channel.isOpen()) channel.force(false);
+
+                // write a temp file and rename it, so a crash mid-write cannot leave a truncated state file
+                final File temp = new File(abs(stateFile)+".tmp");
+                try (Writer w = new FileWriter(temp)) {
+                    w.write(json(snapshot));
+                }
+                Files.move(temp.toPath(), stateFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("checkpoint: error writing "+abs(stateFile)+": "+shortError(e));
+            }
+        }
+    }
+
+    private File verify(File f) {
+        if (expectedLength != null && f.length() != expectedLength) {
+            return die("verify: expected length "+expectedLength+" but downloaded "+f.length()+" bytes: "+abs(f));
+        }
+        if (sha256 != null) {
+            final String actual = sha256_file(f);
+            if (!actual.equalsIgnoreCase(sha256)) return die("verify: expected sha256 "+sha256+" but got "+actual+": "+abs(f));
+        }
+        return f;
+    }
+
+    private static class RangesRefusedException extends IOException {
+        RangesRefusedException (String message) { super(message); }
+    }
+
+    @NoArgsConstructor @AllArgsConstructor
+    public static class RangeState {
+        @Getter @Setter private String etag;
+        @Getter @Setter private Long lastModified;
+        @Getter @Setter private long length;
+        @Getter @Setter private List<Range> ranges;
+    }
+
+    @NoArgsConstructor @AllArgsConstructor
+    public static class Range {
+        @Getter @Setter private long start;
+        @Getter @Setter private long end; // inclusive
+        @Getter @Setter private volatile long position;
+
+        public boolean done () { return position > end; }
+        public long remaining () { return end - position + 1; }
+
+        @Override public String toString() { return start+"-"+end+"@"+position; }
+    }
+
+}
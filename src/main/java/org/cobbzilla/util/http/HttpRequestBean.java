@@ -47,6 +47,23 @@ public class HttpRequestBean {
     @Getter @Setter private Boolean discardResponseEntity;
     public boolean discardResponseEntity () { return discardResponseEntity != null && discardResponseEntity; }
 
+    // if true, the response entity is not read: HttpResponseBean.getEntityStream returns the live stream,
+    // and the caller must close it (or the HttpResponseBean) to release the connection
+    @Getter @Setter private Boolean streamResponseEntity;
+    public boolean streamResponseEntity () { return streamResponseEntity != null && streamResponseEntity; }
+
+    // if set, response entities larger than this many bytes are written to a temp file instead of held in memory
+    @Getter @Setter private Long responseSpillThreshold;
+    public boolean hasResponseSpillThreshold () { return responseSpillThreshold != null && responseSpillThreshold >= 0; }
+
+    // if true, a response entity with a Content-Encoding header is decoded with the matching HttpContentEncodingType
+    @Getter @Setter private Boolean decodeResponseEntity;
+    public boolean decodeResponseEntity () { return decodeResponseEntity != null && decodeResponseEntity; }
+
+    // if set, GET responses are served from and stored in this cache, revalidated with conditional requests
+    @JsonIgnore @Getter @Setter private HttpResponseCache responseCache;
+    public boolean hasResponseCache () { return responseCache != null; }
+
     public HttpRequestBean(HttpRequestBean request) { copy(this, request); }
 
     public boolean hasData () { return entity != null; }
@@ -13,23 +13,40 @@ import org.cobbzilla.util.collection.NameAndValue;
 import org.cobbzilla.util.json.JsonUtil;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
 
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.deleteOrDie;
 import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static org.cobbzilla.util.io.FileUtil.temp;
+import static org.cobbzilla.util.io.FileUtil.toBytes;
+import static org.cobbzilla.util.io.StreamUtil.DEFAULT_BUFFER_SIZE;
+import static org.cobbzilla.util.io.StreamUtil.copyNbytes;
 import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
 @Slf4j @Accessors(chain=true) @ToString(of={"status", "headers"})
-public class HttpResponseBean {
+public class HttpResponseBean implements Closeable {
 
     public static final HttpResponseBean OK = new HttpResponseBean().setStatus(HttpStatusCodes.OK);
 
     @Getter @Setter private int status;
     @Getter @Setter private List<NameAndValue> headers;
-    @JsonIgnore @Getter private byte[] entity;
+    @JsonIgnore private byte[] entity;
+
+    // when the entity was larger than the spill threshold, it lives here instead of in the entity byte array
+    @JsonIgnore @Getter private File entityFile;
+    public boolean hasEntityFile () { return entityFile != null; }
+
+    // when the request asked for a streaming response, the live stream (still attached to the connection) lives here
+    @JsonIgnore private InputStream entityStream;
+    public boolean hasEntityStream () { return entityStream != null; }
+
     @Getter @Setter private long contentLength;
     @Getter @Setter private String contentType;
 
@@ -59,6 +76,14 @@ public class HttpResponseBean {
         headers.add(new NameAndValue(name, value));
     }
 
+    /** Remove every value of a header. Removing Content-Length makes the content length unknown (-1) */
+    public HttpResponseBean removeHeader(String name) {
+        if (headers != null) headers.removeIf(h -> h.getName().equalsIgnoreCase(name));
+        if (name.equalsIgnoreCase(CONTENT_TYPE)) setContentType(null);
+        else if (name.equalsIgnoreCase(CONTENT_LENGTH)) setContentLength(-1);
+        return this;
+    }
+
     public HttpResponseBean setEntityBytes(byte[] bytes) { this.entity = bytes; return this; }
 
     public HttpResponseBean setEntity (InputStream entity) {
@@ -70,10 +95,100 @@ public class HttpResponseBean {
         }
     }
 
-    public boolean hasEntity () { return !empty(entity); }
+    /**
+     * Read the entity, keeping at most spillThreshold bytes in memory.
+     * If the stream has more data than that, the entire entity is written to a temp file instead.
+     * @param entity the stream to read. It is not closed by this method.
+     * @param spillThreshold the maximum number of bytes to hold in memory
+     * @return this
+     */
+    public HttpResponseBean setEntity (InputStream entity, long spillThreshold) {
+        if (entity == null) return setEntity(null);
+        try {
+            // read one byte past the threshold to tell whether the entity is larger than it
+            final long limit = spillThreshold == Long.MAX_VALUE ? spillThreshold : spillThreshold+1;
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(limit, DEFAULT_BUFFER_SIZE));
+            final long count = copyNbytes(entity, buffer, limit);
+            if (count <= spillThreshold) {
+                this.entity = buffer.toByteArray();
+                return this;
+            }
+            final File spill = temp("httpResponse-", ".entity");
+            try (OutputStream out = new FileOutputStream(spill)) {
+                buffer.writeTo(out);
+                IOUtils.copyLarge(entity, out);
+            } catch (IOException e) {
+                deleteOrDie(spill);
+                throw e;
+            }
+            this.entity = null;
+            this.entityFile = spill;
+            return this;
+
+        } catch (IOException e) {
+            return die("setEntity: error reading stream: " + e, e);
+        }
+    }
+
+    public HttpResponseBean setEntityStream (InputStream in) { this.entityStream = in; return this; }
+
+    /**
+     * @return the entity as a stream. If the response is streaming, this is the stream attached to the connection,
+     * and the caller must close it to release the connection. Otherwise the stream reads from the spill file or
+     * from the in-memory entity.
+     */
+    @JsonIgnore public InputStream getEntityStream () {
+        if (entityStream != null) return entityStream;
+        if (entityFile != null) {
+            try {
+                return new FileInputStream(entityFile);
+            } catch (IOException e) {
+                return die("getEntityStream: error opening "+abs(entityFile)+": "+e, e);
+            }
+        }
+        return entity == null ? null : new ByteArrayInputStream(entity);
+    }
+
+    /**
+     * @return the entity as a byte array. For streaming responses, this consumes the stream.
+     * For spilled responses, the spill file is read into memory: prefer getEntityStream or toFile for large responses.
+     */
+    @JsonIgnore public byte[] getEntity () {
+        if (entity != null) return entity;
+        try {
+            if (entityStream != null) {
+                try (InputStream in = entityStream) {
+                    entity = IOUtils.toByteArray(in);
+                }
+                entityStream = null;
+                return entity;
+            }
+            return entityFile == null ? null : toBytes(entityFile);
+        } catch (IOException e) {
+            return die("getEntity: error reading entity: "+e, e);
+        }
+    }
+
+    public boolean hasEntity () { return !empty(entity) || entityFile != null || entityStream != null; }
+
+    @Override public void close () {
+        if (entityStream != null) {
+            try {
+                entityStream.close();
+            } catch (IOException e) {
+                log.warn("close: error closing entityStream: "+e);
+            }
+            entityStream = null;
+        }
+        if (entityFile != null) {
+            if (!entityFile.delete()) log.warn("close: error deleting entityFile: "+abs(entityFile));
+            entityFile = null;
+        }
+    }
 
     public String getEntityString () {
         try {
+            final byte[] entity = getEntity();
             return entity == null ? null : new String(entity, UTF8cs);
         } catch (Exception e) {
             log.warn("getEntityString: error parsing bytes: "+e);
@@ -82,7 +197,7 @@ public class HttpResponseBean {
     }
 
     public <T> T getEntity (Class<T> clazz) {
-        return entity == null ? null : JsonUtil.fromJsonOrDie(getEntityString(), clazz);
+        return !hasEntity() ? null : JsonUtil.fromJsonOrDie(getEntityString(), clazz);
     }
 
     public Collection<String> getHeaderValues (String name) {
@@ -120,8 +235,20 @@ public class HttpResponseBean {
     public File toFile(File file) {
         if (!isOk()) return die("unexpected HTTP response: "+this);
         if (!file.getParentFile().exists()) mkdirOrDie(file.getParentFile());
-        try (OutputStream out = new FileOutputStream(file)) {
-            IOUtils.copyLarge(new ByteArrayInputStream(getEntity()), out);
+        if (entityFile != null) {
+            try {
+                // the spill file becomes the destination file, which is no longer ours to delete on close
+                Files.move(entityFile.toPath(), file.toPath(), REPLACE_EXISTING);
+                entityFile = null;
+                return file;
+            } catch (IOException e) {
+                log.warn("toFile: error moving spill file, will copy instead: "+e);
+            }
+        }
+        try (InputStream in = getEntityStream();
+             OutputStream out = new FileOutputStream(file)) {
+            entityStream = null;
+            if (in != null) IOUtils.copyLarge(in, out);
             return file;
         } catch (Exception e) {
             return die("toFile: "+e, e);
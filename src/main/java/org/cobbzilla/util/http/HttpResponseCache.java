@@ -0,0 +1,262 @@
+package org.cobbzilla.util.http;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.HttpClient;
+import org.cobbzilla.util.collection.NameAndValue;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.apache.http.HttpHeaders.*;
+import static org.cobbzilla.util.daemon.ZillaRuntime.*;
+import static org.cobbzilla.util.http.HttpMethods.GET;
+import static org.cobbzilla.util.http.HttpStatusCodes.NOT_MODIFIED;
+import static org.cobbzilla.util.http.HttpStatusCodes.OK;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.io.FileUtil.deleteOrDie;
+import static org.cobbzilla.util.io.FileUtil.mkdirOrDie;
+import static org.cobbzilla.util.security.ShaUtil.sha256_hex;
+
+/**
+ * An opt-in, size-bounded cache for GET responses. Set it on an HttpRequestBean via setResponseCache.
+ *
+ * Response bodies are stored as files in the cache directory; validators (ETag, Last-Modified) and expiration
+ * times are kept in memory. A cached response that is still fresh according to its Cache-Control max-age
+ * is returned without any request. Otherwise the request is sent with If-None-Match/If-Modified-Since, and
+ * a 304 response is answered from the cache. When the total size of cached bodies exceeds maxBytes,
+ * the least-recently-used entries are evicted.
+ *
+ * The cache key is the request URI, and one response is kept per URI. A response with a Vary header is cached
+ * along with the values the request had for the headers it names. A later request with different values is a
+ * miss, and its response replaces the cached one. Responses with Vary: * are not cached.
+ */
+@Slf4j
+public class HttpResponseCache {
+
+    public static final String CACHE_FILE_SUFFIX = ".cached";
+
+    @Getter private final File dir;
+    @Getter private final long maxBytes;
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    public HttpResponseCache (File dir, long maxBytes) {
+        this.dir = mkdirOrDie(dir);
+        this.maxBytes = maxBytes;
+        // metadata is only held in memory, so any bodies left over from a previous process are useless
+        final File[] stale = dir.listFiles((d, name) -> name.endsWith(CACHE_FILE_SUFFIX));
+        if (stale != null) for (File f : stale) if (!f.delete()) log.warn("HttpResponseCache: error deleting stale file: "+abs(f));
+    }
+
+    public synchronized long getTotalBytes () { return totalBytes; }
+    public synchronized int size () { return entries.size(); }
+
+    public boolean isCacheable (HttpRequestBean request) {
+        return request.getMethod().equals(GET) && !request.hasStream() && !request.streamResponseEntity();
+    }
+
+    public HttpResponseBean getResponse (HttpRequestBean request, HttpClient client) throws IOException {
+        if (!isCacheable(request)) return HttpUtil.getResponse(uncached(request), client);
+
+        final String key = request.getUri();
+        CacheEntry cached = get(key);
+        if (cached != null && !cached.matches(request)) cached = null; // a different variant, see Vary
+        if (cached != null && cached.isFresh()) {
+            final HttpResponseBean response = fromCache(request, cached);
+            if (response != null) return response;
+        }
+
+        final HttpRequestBean conditional = uncached(request);
+        if (cached != null) {
+            if (cached.getEtag() != null) conditional.setHeader(IF_NONE_MATCH, cached.getEtag());
+            if (cached.getLastModified() != null) conditional.setHeader(IF_MODIFIED_SINCE, cached.getLastModified());
+        }
+
+        final HttpResponseBean response = HttpUtil.getResponse(conditional, client);
+        if (response.getStatus() == NOT_MODIFIED && cached != null) {
+            cached.setExpires(expires(response));
+            final HttpResponseBean fromCache = fromCache(request, cached);
+            if (fromCache != null) return fromCache;
+            // cached body disappeared, fetch it again without validators
+            return HttpUtil.getResponse(uncached(request), client);
+        }
+
+        if (response.getStatus() == OK) store(key, request, response);
+        return response;
+    }
+
+    private HttpRequestBean uncached (HttpRequestBean request) {
+        final HttpRequestBean copy = new HttpRequestBean(request).setResponseCache(null);
+        copy.setHeaders(request.hasHeaders() ? new ArrayList<>(request.getHeaders()) : new ArrayList<>());
+        return copy;
+    }
+
+    private synchronized CacheEntry get (String key) { return entries.get(key); }
+
+    private HttpResponseBean fromCache (HttpRequestBean request, CacheEntry cached) {
+        final HttpResponseBean response = new HttpResponseBean().setStatus(OK);
+        for (NameAndValue header : cached.getHeaders()) response.addHeader(header.getName(), header.getValue());
+        try (InputStream in = new FileInputStream(cached.getFile())) {
+            return HttpUtil.readEntity(request, response, in);
+        } catch (IOException e) {
+            log.warn("fromCache: error reading cached entity for "+cached.getUri()+", removing: "+shortError(e));
+            remove(cached.getUri(), cached);
+            return null;
+        }
+    }
+
+    private void store (String key, HttpRequestBean request, HttpResponseBean response) {
+        if (hasCacheControl(response, "no-store")) return;
+        final Map<String, String> varied = varied(request, response);
+        if (varied == null) return; // Vary: *
+        final String etag = response.getFirstHeaderValue(ETAG);
+        final String lastModified = response.getFirstHeaderValue(LAST_MODIFIED);
+        final long expires = expires(response);
+        if (etag == null && lastModified == null && expires <= now()) return; // nothing to revalidate with, and already stale
+
+        final File file = new File(dir, sha256_hex(key)+"_"+hexnow()+"_"+Long.toHexString(RANDOM.nextLong())+CACHE_FILE_SUFFIX);
+        try {
+            final File temp = new File(abs(file)+".tmp");
+            if (response.hasEntityFile()) {
+                Files.copy(response.getEntityFile().toPath(), temp.toPath(), REPLACE_EXISTING);
+            } else {
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    final byte[] entity = response.getEntity();
+                    if (entity != null) out.write(entity);
+                }
+            }
+            if (temp.length() > maxBytes) {
+                deleteOrDie(temp);
+                return;
+            }
+            Files.move(temp.toPath(), file.toPath(), ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("store: error caching entity for "+key+": "+shortError(e));
+            return;
+        }
+
+        final List<NameAndValue> headers = response.getHeaders() == null ? new ArrayList<>() : new ArrayList<>(response.getHeaders());
+        final CacheEntry entry = new CacheEntry(key, etag, lastModified, headers, varied, file, file.length(), expires);
+        synchronized (this) {
+            final CacheEntry previous = entries.put(key, entry);
+            totalBytes += entry.getSize();
+            if (previous != null) evicted(previous);
+            final Iterator<CacheEntry> iter = entries.values().iterator();
+            while (totalBytes > maxBytes && iter.hasNext()) {
+                final CacheEntry eldest = iter.next();
+                if (eldest == entry) continue;
+                iter.remove();
+                evicted(eldest);
+            }
+        }
+    }
+
+    private synchronized void remove (String key, CacheEntry entry) {
+        if (entries.remove(key, entry)) evicted(entry);
+    }
+
+    // caller must hold the lock
+    private void evicted (CacheEntry entry) {
+        totalBytes -= entry.getSize();
+        if (!entry.getFile().delete()) log.warn("evicted: error deleting "+abs(entry.getFile()));
+    }
+
+    public synchronized void clear () {
+        for (CacheEntry entry : entries.values()) evicted(entry);
+        entries.clear();
+    }
+
+    private static boolean hasCacheControl (HttpResponseBean response, String directive) {
+        for (String value : response.getHeaderValues(CACHE_CONTROL)) {
+            for (String part : value.split(",")) {
+                if (part.trim().equalsIgnoreCase(directive)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the request's value (or null) for each header named by the response's Vary header,
+     * or null if the response varies on more than request headers (Vary: *)
+     */
+    private static Map<String, String> varied (HttpRequestBean request, HttpResponseBean response) {
+        final Map<String, String> varied = new HashMap<>();
+        for (String value : response.getHeaderValues(VARY)) {
+            for (String part : value.split(",")) {
+                final String name = part.trim().toLowerCase();
+                if (name.isEmpty()) continue;
+                if (name.equals("*")) return null;
+                varied.put(name, requestHeader(request, name));
+            }
+        }
+        return varied;
+    }
+
+    // every value the request has for a header, joined with commas, or null if it has none
+    private static String requestHeader (HttpRequestBean request, String name) {
+        if (!request.hasHeaders()) return null;
+        StringBuilder b = null;
+        for (NameAndValue header : request.getHeaders()) {
+            if (!header.getName().equalsIgnoreCase(name)) continue;
+            b = b == null ? new StringBuilder(header.getValue()) : b.append(", ").append(header.getValue());
+        }
+        return b == null ? null : b.toString();
+    }
+
+    private static long expires (HttpResponseBean response) {
+        if (hasCacheControl(response, "no-cache")) return 0;
+        for (String value : response.getHeaderValues(CACHE_CONTROL)) {
+            for (String part : value.split(",")) {
+                final String directive = part.trim().toLowerCase();
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now() + 1000L * Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        log.warn("expires: invalid "+CACHE_CONTROL+": "+value);
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static class CacheEntry {
+        @Getter private final String uri;
+        @Getter private final String etag;
+        @Getter private final String lastModified;
+        @Getter private final List<NameAndValue> headers;
+        // the request header values the response varies on, by lowercase header name
+        @Getter private final Map<String, String> varied;
+        @Getter private final File file;
+        @Getter private final long size;
+        @Getter private volatile long expires;
+
+        CacheEntry (String uri, String etag, String lastModified, List<NameAndValue> headers, Map<String, String> varied,
+                    File file, long size, long expires) {
+            this.uri = uri;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.varied = varied;
+            this.file = file;
+            this.size = size;
+            this.expires = expires;
+        }
+
+        public void setExpires (long expires) { this.expires = expires; }
+        public boolean isFresh () { return now() < expires; }
+
+        public boolean matches (HttpRequestBean request) {
+            for (Map.Entry<String, String> header : varied.entrySet()) {
+                if (!Objects.equals(header.getValue(), requestHeader(request, header.getKey()))) return false;
+            }
+            return true;
+        }
+    }
+
+}
@@ -9,7 +9,9 @@ public class HttpStatusCodes {
     public static final int ACCEPTED = 202;
     public static final int NON_AUTHORITATIVE_INFO = 203;
     public static final int NO_CONTENT = 204;
+    public static final int PARTIAL_CONTENT = 206;
     public static final int FOUND = 302;
+    public static final int NOT_MODIFIED = 304;
     public static final int UNAUTHORIZED = 401;
     public static final int FORBIDDEN = 403;
     public static final int NOT_FOUND = 404;
@@ -27,7 +29,9 @@ public class HttpStatusCodes {
     public static final String SC_ACCEPTED = "202";
     public static final String SC_NON_AUTHORITATIVE_INFO = "203";
     public static final String SC_NO_CONTENT = "204";
+    public static final String SC_PARTIAL_CONTENT = "206";
     public static final String SC_FOUND = "302";
+    public static final String SC_NOT_MODIFIED = "304";
     public static final String SC_UNAUTHORIZED = "401";
     public static final String SC_FORBIDDEN = "403";
     public static final String SC_NOT_FOUND = "404";
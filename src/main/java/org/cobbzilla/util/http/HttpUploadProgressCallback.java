@@ -0,0 +1,12 @@
+package org.cobbzilla.util.http;
+
+public interface HttpUploadProgressCallback {
+
+    /**
+     * Called after each chunk of an upload has been written
+     * @param sent the number of body bytes written so far
+     * @param total the total number of body bytes that will be written
+     */
+    void progress (long sent, long total);
+
+}
@@ -2,7 +2,6 @@ package org.cobbzilla.util.http;
 
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.http.Header;
@@ -22,20 +21,19 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 import org.cobbzilla.util.collection.NameAndValue;
+import org.cobbzilla.util.io.StreamUtil;
+import org.cobbzilla.util.string.QueryStringCodec;
 import org.cobbzilla.util.string.StringUtil;
-import org.cobbzilla.util.system.CommandResult;
-import org.cobbzilla.util.system.CommandShell;
-import org.cobbzilla.util.system.Sleep;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static com.google.common.net.HttpHeaders.CONTENT_DISPOSITION;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -67,16 +65,16 @@ public class HttpUtil {
         return queryParams(url, StringUtil.UTF8);
     }
 
-    // from: http://stackoverflow.com/a/13592567
     public static Map<String, String> queryParams(URL url, String encoding) throws UnsupportedEncodingException {
-        final Map<String, String> query_pairs = new LinkedHashMap<>();
-        final String query = url.getQuery();
-        final String[] pairs = query.split("&");
-        for (String pair : pairs) {
-            final int idx = pair.indexOf("=");
-            query_pairs.put(URLDecoder.decode(pair.substring(0, idx), encoding), URLDecoder.decode(pair.substring(idx + 1), encoding));
+        final Charset charset;
+        try {
+            charset = Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(encoding);
         }
-        return query_pairs;
+        final Map<String, String> params = new LinkedHashMap<>();
+        QueryStringCodec.parseRaw(url.getQuery(), charset, params::put);
+        return params;
     }
 
     public static InputStream getUrlInputStream(String url) throws IOException { return get(url); }
@@ -140,7 +138,7 @@ public class HttpUtil {
 
                 } else {
                     upload = urlConnection.getOutputStream();
-                    IOUtils.copyLarge(data, upload);
+                    StreamUtil.copyLarge(data, upload);
                 }
             } finally {
                 if (upload != null) upload.close();
@@ -179,6 +177,28 @@ public class HttpUtil {
         return responseBean;
     }
 
+    /**
+     * Upload a file as multipart/form-data with an exact Content-Length, reading the file in large chunks.
+     * See HttpFileUpload for more options, including raw (non-multipart) bodies and chunk size.
+     * @param url the URL to upload to
+     * @param method the HTTP method, usually POST or PUT
+     * @param file the file to upload
+     * @param headers additional request headers, may be null
+     * @param progress called after each chunk is written, may be null
+     * @return the response
+     */
+    public static HttpResponseBean uploadFile (String url,
+                                               String method,
+                                               File file,
+                                               Map<String, String> headers,
+                                               HttpUploadProgressCallback progress) throws IOException {
+        return new HttpFileUpload(url, file)
+                .setMethod(method)
+                .setHeaders(headers)
+                .setProgress(progress)
+                .upload();
+    }
+
     public static final int DEFAULT_RETRIES = 3;
 
     public static File url2file (String url) throws IOException {
@@ -191,12 +211,15 @@ public class HttpUtil {
         return url2file(url, file, DEFAULT_RETRIES);
     }
     public static File url2file (String url, File file, int retries) throws IOException {
+        return url2file(url, file, retries, null, DEFAULT_CONNECT_TIMEOUT);
+    }
+    public static File url2file (String url, File file, int retries, Map<String, String> headers, Long connectTimeout) throws IOException {
         if (file == null) file = File.createTempFile("url2file-", getFileExt((url)), getDefaultTempDir());
         IOException lastException = null;
         long sleep = 100;
         for (int i=0; i<retries; i++) {
             try {
-                @Cleanup final InputStream in = get(url);
+                @Cleanup final InputStream in = get(url, headers, null, connectTimeout);
                 @Cleanup final OutputStream out = new FileOutputStream(file);
                 IOUtils.copy(in, out);
                 lastException = null;
@@ -211,6 +234,18 @@ public class HttpUtil {
         return file;
     }
 
+    /**
+     * Download a URL using several concurrent HTTP range requests. Falls back to url2file if the server
+     * does not support ranges. See HttpRangeDownloader for resume and verification options.
+     * @param url the URL to download
+     * @param file the destination file
+     * @param parts the maximum number of concurrent range requests
+     * @return the file
+     */
+    public static File url2fileParallel (String url, File file, int parts) throws IOException {
+        return new HttpRangeDownloader(url, file).setParts(parts).download();
+    }
+
     public static String url2string (String url) throws IOException {
         @Cleanup final InputStream in = get(url);
         final ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -227,13 +262,33 @@ public class HttpUtil {
 
     public static HttpResponseBean getResponse(HttpRequestBean requestBean) throws IOException {
         final HttpClientBuilder clientBuilder = requestBean.initClientBuilder(HttpClients.custom());
-        @Cleanup final CloseableHttpClient client = clientBuilder.build();
-        return getResponse(requestBean, client);
+        if (!requestBean.streamResponseEntity()) {
+            @Cleanup final CloseableHttpClient client = clientBuilder.build();
+            return getResponse(requestBean, client);
+        }
+
+        // streaming response: the client must stay open until the caller closes the entity stream
+        final CloseableHttpClient client = clientBuilder.build();
+        try {
+            final HttpResponseBean response = getResponse(requestBean, client);
+            if (response.hasEntityStream()) {
+                return response.setEntityStream(new HttpClosingFilterInputStream(client, response.getEntityStream()));
+            }
+            client.close();
+            return response;
+
+        } catch (IOException | RuntimeException e) {
+            client.close();
+            throw e;
+        }
     }
 
     public static HttpResponseBean getResponse(HttpRequestBean requestBean, HttpClient client) throws IOException {
 
         if (requestBean.hasStream()) return getStreamResponse(requestBean);
+        if (requestBean.hasResponseCache() && requestBean.getResponseCache().isCacheable(requestBean)) {
+            return requestBean.getResponseCache().getResponse(requestBean, client);
+        }
 
         final HttpResponseBean bean = new HttpResponseBean();
 
@@ -258,13 +313,62 @@ public class HttpUtil {
             if (contentType != null) {
                 bean.setContentType(contentType.getValue());
             }
-            @Cleanup final InputStream content = response.getEntity().getContent();
-            bean.setEntity(content);
+            final InputStream content = decodeEntity(requestBean, bean, response.getEntity().getContent());
+            if (requestBean.streamResponseEntity()) {
+                bean.setEntityStream(content);
+            } else {
+                try (InputStream in = content) {
+                    readEntity(requestBean, bean, in);
+                }
+            }
         }
 
         return bean;
     }
 
+    static HttpResponseBean readEntity(HttpRequestBean request, HttpResponseBean response, InputStream in) {
+        return request.hasResponseSpillThreshold()
+                ? response.setEntity(in, request.getResponseSpillThreshold())
+                : response.setEntity(in);
+    }
+
+    static InputStream decodeEntity(HttpRequestBean request, HttpResponseBean response, InputStream in) throws IOException {
+        if (!request.decodeResponseEntity()) return in;
+        final String encoding = response.getFirstHeaderValue(CONTENT_ENCODING);
+        if (empty(encoding)) return in;
+        final HttpContentEncodingType type;
+        try {
+            type = HttpContentEncodingType.fromString(encoding.trim());
+        } catch (IllegalArgumentException e) {
+            log.warn("decodeEntity: unsupported "+CONTENT_ENCODING+" ("+encoding+"), returning entity as-is");
+            return in;
+        }
+        if (type == HttpContentEncodingType.identity) return in;
+        // the headers describe the encoded entity, and would be wrong for the decoded one
+        response.removeHeader(CONTENT_ENCODING).removeHeader(CONTENT_LENGTH);
+        return type.wrapInput(in);
+    }
+
+    /**
+     * Send a request without blocking the calling thread.
+     * Requests are executed by the default HttpAsyncExecutor, which bounds the number of concurrent requests per host.
+     * @param requestBean the request to send
+     * @return a future that completes with the response
+     */
+    public static CompletableFuture<HttpResponseBean> getResponseAsync(HttpRequestBean requestBean) {
+        return HttpAsyncExecutor.defaultExecutor().execute(requestBean);
+    }
+
+    /**
+     * Send many requests without blocking the calling thread.
+     * @param requests the requests to send
+     * @param handler called for each request as it completes
+     * @return a future that completes after all requests have completed
+     */
+    public static CompletableFuture<Void> getResponsesAsync(Collection<HttpRequestBean> requests, HttpAsyncResultHandler handler) {
+        return HttpAsyncExecutor.defaultExecutor().executeAll(requests, handler);
+    }
+
     public static HttpResponseBean getStreamResponse(HttpRequestBean request) {
         if (!request.hasStream()) return die("getStreamResponse: request stream was not set");
         try {
@@ -282,13 +386,13 @@ public class HttpUtil {
             }
 
             @Cleanup final OutputStream output = connection.getOutputStream();
-            @Cleanup final PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, Charset.defaultCharset()), true);
+            @Cleanup final PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, UTF8cs), true);
             writer.append("--").append(boundary).append(CRLF);
             final String filename = request.getEntity();
             addStreamHeader(writer, CONTENT_DISPOSITION, "form-data; name=\"file\"; filename=\""+ filename +"\"");
             addStreamHeader(writer, CONTENT_TYPE, contentType(filename));
             writer.append(CRLF).flush();
-            IOUtils.copy(request.getEntityInputStream(), output);
+            StreamUtil.copyLarge(request.getEntityInputStream(), output);
             output.flush();
             writer.append(CRLF);
             writer.append("--").append(boundary).append("--").append(CRLF).flush();
@@ -298,9 +402,9 @@ public class HttpUtil {
                     .setHttpHeaders(connection.getHeaderFields());
             if (!request.discardResponseEntity()) {
                 try {
-                    response.setEntity(connection.getInputStream());
+                    readEntity(request, response, connection.getInputStream());
                 } catch (IOException ioe) {
-                    response.setEntity(connection.getErrorStream());
+                    readEntity(request, response, connection.getErrorStream());
                 }
             }
             return response;
@@ -402,41 +506,37 @@ public class HttpUtil {
             log.warn("isOK: invalid hostname, returning false: "+host);
             return false;
         }
-        final CommandLine command = new CommandLine("curl")
-                .addArgument("--insecure") // since we are requested via the IP address, the cert will not match
-                .addArgument("--header").addArgument("Host: " + host) // pass FQDN via Host header
-                .addArgument("--silent")
-                .addArgument("--location")                              // follow redirects
-                .addArgument("--write-out").addArgument("%{http_code}") // just print status code
-                .addArgument("--output").addArgument("/dev/null")       // and ignore data
-                .addArgument(url);
-        try {
-            final CommandResult result = CommandShell.exec(command);
-            final String statusCode = result.getStdout();
-            return result.isZeroExitStatus() && statusCode != null && statusCode.trim().startsWith("2");
-
-        } catch (IOException e) {
-            log.warn("isOk: Error fetching " + url + " with Host header=" + host + ": " + e);
-            return false;
-        }
+        // since we may be requesting via the IP address, the default checker does not verify certificates
+        return HttpHealthChecker.defaultChecker().isOk(url, host);
     }
 
     public static boolean isOk(String url, String host, int maxTries, long sleepUnit) {
-        long sleep = sleepUnit;
-        for (int i = 0; i < maxTries; i++) {
-            if (i > 0) {
-                Sleep.sleep(sleep);
-                sleep *= 2;
-            }
-            if (isOk(url, host)) return true;
+        if (!isHostname(host)) {
+            log.warn("isOK: invalid hostname, returning false: "+host);
+            return false;
         }
-        return false;
+        return HttpHealthChecker.defaultChecker().check(url, host, maxTries, sleepUnit).join();
     }
 
     public static HttpMeta getHeadMetadata(HttpRequestBean request) throws IOException {
         final HttpResponseBean headResponse = HttpUtil.getResponse(new HttpRequestBean(request).setMethod(HEAD));
         if (!headResponse.isOk()) return die("HTTP HEAD response was not 200: "+headResponse);
+        return toHttpMeta(request, headResponse);
+    }
+
+    /**
+     * @return metadata from a HEAD request, or null if the response was not 200 (some servers do not allow HEAD)
+     */
+    public static HttpMeta getHeadMetadataOrNull(HttpRequestBean request) throws IOException {
+        final HttpResponseBean headResponse = HttpUtil.getResponse(new HttpRequestBean(request).setMethod(HEAD));
+        if (!headResponse.isOk()) {
+            if (log.isDebugEnabled()) log.debug("getHeadMetadataOrNull: HTTP HEAD response was not 200: "+headResponse);
+            return null;
+        }
+        return toHttpMeta(request, headResponse);
+    }
 
+    private static HttpMeta toHttpMeta(HttpRequestBean request, HttpResponseBean headResponse) {
         final HttpMeta meta = new HttpMeta(request.getUri());
 
         final String lastModString = headResponse.getFirstHeaderValue(LAST_MODIFIED);
@@ -445,6 +545,12 @@ public class HttpUtil {
         final String etag = headResponse.getFirstHeaderValue(ETAG);
         if (etag != null) meta.setEtag(etag);
 
+        final String contentLength = headResponse.getFirstHeaderValue(CONTENT_LENGTH);
+        if (!empty(contentLength)) meta.setContentLength(Long.parseLong(contentLength.trim()));
+
+        final String acceptRanges = headResponse.getFirstHeaderValue(ACCEPT_RANGES);
+        meta.setAcceptRanges(acceptRanges != null && acceptRanges.trim().equalsIgnoreCase("bytes"));
+
         return meta;
     }
 
@@ -542,14 +648,11 @@ public class HttpUtil {
         if (qPos != -1) {
             final Map<String, String> params = URIUtil.queryParams(url);
             if (!params.isEmpty()) {
-                final StringBuilder b = new StringBuilder();
+                final StringBuilder b = new StringBuilder(url.length()).append(url, 0, qPos+1);
                 for (Map.Entry<String, String> param : params.entrySet()) {
-                    if (!isBlockedParam(param.getKey())) {
-                        if (b.length() > 0) b.append("&");
-                        b.append(param.getKey()).append("=").append(urlEncode(param.getValue()));
-                    }
+                    if (!isBlockedParam(param.getKey())) QueryStringCodec.append(b, param.getKey(), param.getValue());
                 }
-                url = url.substring(0, qPos+1) + b.toString();
+                url = b.toString();
             }
         }
         return url;
@@ -2,6 +2,7 @@ package org.cobbzilla.util.http;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.string.QueryStringCodec;
 
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -9,7 +10,6 @@ import java.util.*;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
-import static org.cobbzilla.util.string.StringUtil.urlDecode;
 
 @Slf4j
 public class URIUtil {
@@ -87,33 +87,16 @@ public class URIUtil {
         return !empty(uriString) && toUri(uriString).getHost().equals(host);
     }
 
-    // adapted from https://stackoverflow.com/a/13592567/1251543
-    public static Map<String, String> queryParams(String query) {
-        if (empty(query) || empty(query.trim()) || query.trim().equals("?")) return Collections.emptyMap();
-        if (query.contains("?")) query = query.substring(query.indexOf("?")+1);
-        if (empty(query)) return Collections.emptyMap();
-        final Map<String, String> query_pairs = new LinkedHashMap<>();
-        final String[] pairs = query.split("&");
-        for (String pair : pairs) {
-            final int idx = pair.indexOf("=");
-            final String key = idx > 0 ? urlDecode(pair.substring(0, idx)) : pair;
-            final String value = idx > 0 && pair.length() > idx + 1 ? urlDecode(pair.substring(idx + 1)) : null;
-            query_pairs.put(key, value);
-        }
-        return query_pairs;
-    }
+    /**
+     * @param query a query string, or a full URL
+     * @return the query parameters in order. If a name occurs more than once, the last value wins
+     */
+    public static Map<String, String> queryParams(String query) { return QueryStringCodec.parse(query); }
 
-    // adapted from https://stackoverflow.com/a/13592567/1251543
-    public static Map<String, List<String>> queryMultiParams(String query) {
-        final Map<String, List<String>> query_pairs = new LinkedHashMap<>();
-        final String[] pairs = query.split("&");
-        for (String pair : pairs) {
-            final int idx = pair.indexOf("=");
-            final String key = idx > 0 ? urlDecode(pair.substring(0, idx)) : pair;
-            final String value = idx > 0 && pair.length() > idx + 1 ? urlDecode(pair.substring(idx + 1)) : null;
-            query_pairs.computeIfAbsent(key, k -> new LinkedList<>()).add(value);
-        }
-        return query_pairs;
-    }
+    /**
+     * @param query a query string, or a full URL
+     * @return the query parameters in order, with every value for each name
+     */
+    public static Map<String, List<String>> queryMultiParams(String query) { return QueryStringCodec.parseMulti(query); }
 
 }
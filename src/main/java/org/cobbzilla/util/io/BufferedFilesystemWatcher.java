@@ -3,7 +3,7 @@ package org.cobbzilla.util.io;
 import lombok.Getter;
 import lombok.ToString;
 import org.cobbzilla.util.collection.InspectCollection;
-import org.cobbzilla.util.system.Sleep;
+import org.cobbzilla.util.daemon.TimerWheel;
 
 import java.io.Closeable;
 import java.io.File;
@@ -16,13 +16,13 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
-import static org.cobbzilla.util.daemon.ZillaRuntime.terminate;
-import static org.cobbzilla.util.io.FileUtil.abs;
 
 /**
  * Sometimes you just want to know that something changed, and you don't really care what.
  * Extend this class and override the "fire" method. You will receive one callback when
  * your timeout elapses, or if the buffer of events exceeds maxEvents.
+ *
+ * Flushes are scheduled on the shared TimerWheel, and fire is called on one of its executor threads.
  */
 @ToString(callSuper=true, of={"timeout", "maxEvents"})
 public abstract class BufferedFilesystemWatcher extends FilesystemWatcher implements Closeable {
@@ -30,10 +30,14 @@ public abstract class BufferedFilesystemWatcher extends FilesystemWatcher implem
     @Getter private final long timeout;
     @Getter private final int maxEvents;
 
-    private final Thread monitor;
-    private long lastFlush;
+    private volatile long lastFlush;
     private final Queue<WatchEvent<?>> buffer = new ConcurrentLinkedQueue<>();
-    private BfsMonitor bfsMonitor;
+
+    // guards scheduled. fire is serialized separately by flushLock, so a slow fire never blocks event dispatch
+    private final Object scheduleLock = new Object();
+    private final Object flushLock = new Object();
+    private TimerWheel.Timeout scheduled;
+    private boolean scheduledNow;
 
     /**
      * Called when some changes have occurred.
@@ -46,10 +50,6 @@ public abstract class BufferedFilesystemWatcher extends FilesystemWatcher implem
 
     public BufferedFilesystemWatcher(Path path, long timeout, int maxEvents) {
         super(path);
-        bfsMonitor = new BfsMonitor();
-        monitor = new Thread(bfsMonitor, "bfs-monitor("+abs(path)+")");
-        monitor.setDaemon(true);
-        monitor.start();
         this.timeout = timeout;
         this.maxEvents = maxEvents;
     }
@@ -58,49 +58,58 @@ public abstract class BufferedFilesystemWatcher extends FilesystemWatcher implem
         this(path.toPath(), timeout, maxEvents);
     }
 
+    protected TimerWheel getTimerWheel() { return TimerWheel.shared(); }
+
     @Override public void close() throws IOException {
-        if (monitor != null) {
-            bfsMonitor.alive = false;
-            terminate(monitor, 2000);
+        synchronized (scheduleLock) {
+            if (scheduled != null) scheduled.cancel();
+            scheduled = null;
         }
         super.close();
     }
 
-    private boolean beenTooLong() { return now() - lastFlush > timeout; }
     private boolean bufferTooBig() { return InspectCollection.isLargerThan(buffer, maxEvents); }
 
-    private boolean shouldFlush() { return bufferTooBig() || (!buffer.isEmpty() && beenTooLong()); }
-
-    @Override protected void handleEvent(WatchEvent<?> event) { buffer.add(event); }
+    @Override protected void handleEvent(WatchEvent<?> event) {
+        buffer.add(event);
+        schedule();
+    }
 
-    private class BfsMonitor implements Runnable {
-        public volatile boolean alive = false;
-        @Override public void run() {
-            alive = true;
-            while (alive) {
-                Sleep.sleep(timeout / 10);
-                if (shouldFlush()) flush();
+    private void schedule() {
+        synchronized (scheduleLock) {
+            if (buffer.isEmpty()) return;
+            if (bufferTooBig()) {
+                if (scheduledNow) return;
+                if (scheduled != null) scheduled.cancel();
+                scheduledNow = true;
+                scheduled = getTimerWheel().schedule(this::flush, 0);
+
+            } else if (scheduled == null) {
+                scheduledNow = false;
+                scheduled = getTimerWheel().schedule(this::flush, lastFlush + timeout - now());
             }
         }
     }
 
-    private synchronized void flush() {
-        // sanity check that we have not flushed recently
-        if (!shouldFlush()) return;
-
-        // nothing to flush?
-        if (buffer.isEmpty()) return;
-
-        final List<WatchEvent<?>> events = new ArrayList<>(buffer.size());
-        while (!buffer.isEmpty()) {
-            events.add(buffer.poll());
-            if (events.size() > maxEvents) {
-                fire(events);
-                events.clear();
+    private void flush() {
+        synchronized (scheduleLock) {
+            scheduled = null;
+            scheduledNow = false;
+        }
+        synchronized (flushLock) {
+            if (buffer.isEmpty()) return;
+            // events that arrive while firing are scheduled for the next timeout, measured from now
+            lastFlush = now();
+            final List<WatchEvent<?>> events = new ArrayList<>(buffer.size());
+            while (!buffer.isEmpty()) {
+                events.add(buffer.poll());
+                if (events.size() > maxEvents) {
+                    fire(events);
+                    events.clear();
+                }
             }
+            if (!events.isEmpty()) fire(events);
         }
-        if (!events.isEmpty()) fire(events);
-        lastFlush = now();
     }
 
 }
@@ -0,0 +1,123 @@
+package org.cobbzilla.util.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the classes a class file refers to by reading its constant pool, without loading the class.
+ *
+ * The result is deliberately generous: besides the class constants, it includes every class named in a
+ * descriptor or generic signature, and any string constant that looks like a class name (for Class.forName and friends).
+ * Names are in internal form (com/example/Foo). Callers should ignore names that are not classes they know about.
+ */
+public class ClassReferenceParser {
+
+    public static final int CLASS_MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+    /**
+     * @param classBytes the contents of a .class file
+     * @return the internal names of classes it may refer to
+     * @throws IOException if classBytes is not a valid class file
+     */
+    public static Set<String> references (byte[] classBytes) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classBytes));
+        if (in.readInt() != CLASS_MAGIC) throw new IOException("references: not a class file");
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        final int count = in.readUnsignedShort();
+        final String[] utf8 = new String[count];
+        final int[] classNames = new int[count];
+        int numClasses = 0;
+        for (int i = 1; i < count; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_Utf8:
+                    utf8[i] = in.readUTF();
+                    break;
+                case CONSTANT_Class:
+                    classNames[numClasses++] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_String: case CONSTANT_MethodType: case CONSTANT_Module: case CONSTANT_Package:
+                    in.skipBytes(2);
+                    break;
+                case CONSTANT_MethodHandle:
+                    in.skipBytes(3);
+                    break;
+                case CONSTANT_Integer: case CONSTANT_Float: case CONSTANT_Fieldref: case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref: case CONSTANT_NameAndType: case CONSTANT_Dynamic: case CONSTANT_InvokeDynamic:
+                    in.skipBytes(4);
+                    break;
+                case CONSTANT_Long: case CONSTANT_Double:
+                    // 8-byte constants take two slots
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("references: unknown constant pool tag "+tag+" at index "+i);
+            }
+        }
+
+        final Set<String> refs = new HashSet<>();
+        for (int i = 0; i < numClasses; i++) {
+            final String name = utf8[classNames[i]];
+            if (name == null) continue;
+            if (name.startsWith("[")) {
+                addDescriptorNames(name, refs);
+            } else {
+                refs.add(name);
+            }
+        }
+        // descriptors, signatures, annotation types and string constants are all Utf8 entries
+        for (String s : utf8) {
+            if (s == null) continue;
+            addDescriptorNames(s, refs);
+            if (looksLikeClassName(s)) refs.add(s.replace('.', '/'));
+        }
+        return refs;
+    }
+
+    // finds each Lcom/example/Foo; (or Lcom/example/Foo<...) in a descriptor or signature
+    private static void addDescriptorNames (String s, Set<String> refs) {
+        int i = s.indexOf('L');
+        while (i != -1) {
+            int end = i + 1;
+            while (end < s.length() && (Character.isJavaIdentifierPart(s.charAt(end)) || s.charAt(end) == '/')) end++;
+            if (end > i + 1 && end < s.length() && (s.charAt(end) == ';' || s.charAt(end) == '<')) {
+                refs.add(s.substring(i + 1, end));
+            }
+            i = s.indexOf('L', i + 1);
+        }
+    }
+
+    private static boolean looksLikeClassName (String s) {
+        if (s.indexOf('.') <= 0 || s.endsWith(".")) return false;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != '.' && !Character.isJavaIdentifierPart(c)) return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.cobbzilla.util.io;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+
+/**
+ * Bounded pools of Deflater and Inflater instances. Each instance holds native zlib state; reusing them
+ * (after reset) avoids allocating that state per stream and leaving it for the GC to clean up.
+ * Deflaters are pooled separately for each compression level and wrapping mode.
+ */
+public class CompressionPool {
+
+    public static final int MAX_POOLED = Math.max(4, 2 * processorCount());
+
+    private static final Map<Integer, BlockingQueue<Deflater>> deflaters = new ConcurrentHashMap<>();
+    private static final Map<Boolean, BlockingQueue<Inflater>> inflaters = new ConcurrentHashMap<>();
+
+    private static int deflaterKey(int level, boolean nowrap) { return 2 * (level + 1) + (nowrap ? 1 : 0); }
+
+    private static BlockingQueue<Deflater> deflaterQueue(int level, boolean nowrap) {
+        return deflaters.computeIfAbsent(deflaterKey(level, nowrap), k -> new ArrayBlockingQueue<>(MAX_POOLED));
+    }
+
+    private static BlockingQueue<Inflater> inflaterQueue(boolean nowrap) {
+        return inflaters.computeIfAbsent(nowrap, k -> new ArrayBlockingQueue<>(MAX_POOLED));
+    }
+
+    /**
+     * @param level the compression level, from Deflater.NO_COMPRESSION to Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION
+     * @param nowrap if true, produce raw deflate data (no zlib header or checksum), as used within gzip
+     * @return a Deflater from the pool, or a new one if the pool is empty. Return it with release when done.
+     */
+    public static Deflater deflater(int level, boolean nowrap) {
+        final Deflater d = deflaterQueue(level, nowrap).poll();
+        return d != null ? d : new Deflater(level, nowrap);
+    }
+
+    public static void release(Deflater d, int level, boolean nowrap) {
+        if (d == null) return;
+        d.reset();
+        if (!deflaterQueue(level, nowrap).offer(d)) d.end();
+    }
+
+    /**
+     * @param nowrap if true, expect raw deflate data (no zlib header or checksum), as used within gzip
+     * @return an Inflater from the pool, or a new one if the pool is empty. Return it with release when done.
+     */
+    public static Inflater inflater(boolean nowrap) {
+        final Inflater i = inflaterQueue(nowrap).poll();
+        return i != null ? i : new Inflater(nowrap);
+    }
+
+    public static void release(Inflater i, boolean nowrap) {
+        if (i == null) return;
+        i.reset();
+        if (!inflaterQueue(nowrap).offer(i)) i.end();
+    }
+
+}
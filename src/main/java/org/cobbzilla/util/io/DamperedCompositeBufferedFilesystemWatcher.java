@@ -1,59 +1,39 @@
 package org.cobbzilla.util.io;
 
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.TimerWheel;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-import static org.cobbzilla.util.system.Sleep.nap;
-
+/**
+ * Calls uber_fire once activity has stopped: each batch of events restarts a countdown of damper milliseconds,
+ * and uber_fire is called with all the events buffered when a countdown completes.
+ * The countdown is a TimerWheel timer, so no thread waits while nothing is happening.
+ */
 @Slf4j
 public abstract class DamperedCompositeBufferedFilesystemWatcher extends CompositeBufferedFilesystemWatcher {
 
     private final AtomicLong damper = new AtomicLong(0);
-    private final AtomicReference<Thread> damperThread = new AtomicReference<>();
     private final AtomicReference<List<WatchEvent<?>>> buffer = new AtomicReference<>();
+    private TimerWheel.Timeout countdown;
+    private long activity = 0; // incremented by each fire, so a countdown that expires as more activity arrives can tell it is stale
 
     protected void init(long damperDuration, int maxEvents) {
-
         this.damper.set(damperDuration);
         this.buffer.set(new ArrayList<WatchEvent<?>>(maxEvents*10));
-
-        this.damperThread.set(new Thread(new Runnable() {
-            @Override public void run() {
-                log.debug(status()+" starting, sleeping for a while until there is some activity");
-                //noinspection InfiniteLoopStatement
-                while (true) {
-                    if (!nap(TimeUnit.HOURS.toMillis(4), "waiting for filesystem watcher trigger to fire")) {
-                        // we were interrupted. sleep for the damper time
-                        while (!nap(damper.get())) {
-                            // there was more activity, go back to sleep
-                            log.debug(status()+" more activity while napping for damper, trying again");
-                        }
-                        // we successfully napped without being interrupted! fire the big trigger
-                        log.debug(status()+": napped successfully, calling fire");
-                        List<WatchEvent<?>> events;
-                        synchronized (buffer) {
-                            events = new ArrayList<>(buffer.get());
-                            buffer.get().clear();
-                        }
-                        uber_fire(events);
-                    }
-                    log.debug(status()+" just fired, going back to sleep for a while until there is some more activity");
-                }
-            }
-        }));
-        damperThread.get().setDaemon(true);
-        damperThread.get().start();
+        log.debug(status()+" starting, waiting until there is some activity");
     }
 
+    protected TimerWheel getTimerWheel() { return TimerWheel.shared(); }
+
     protected String status() { synchronized (buffer) { return "[" + buffer.get().size() + " events]"; } }
 
     /**
@@ -66,10 +46,33 @@ public abstract class DamperedCompositeBufferedFilesystemWatcher extends Composi
         log.debug(status()+": fire adding "+events.size()+" events...");
         synchronized (buffer) {
             buffer.get().addAll(events);
+            // there was more activity, start the countdown again
+            if (countdown != null && countdown.cancel()) log.debug(status()+" more activity during damper, trying again");
+            final long current = ++activity;
+            countdown = getTimerWheel().schedule(() -> damped(current), damper.get());
         }
-        synchronized (damperThread.get()) {
-            damperThread.get().interrupt();
+    }
+
+    private void damped(long expectedActivity) {
+        final List<WatchEvent<?>> events;
+        synchronized (buffer) {
+            if (activity != expectedActivity) return;
+            // the damper completed without more activity! fire the big trigger
+            log.debug(status()+": damper completed, calling fire");
+            events = new ArrayList<>(buffer.get());
+            buffer.get().clear();
+            countdown = null;
+        }
+        if (!events.isEmpty()) uber_fire(events);
+        log.debug(status()+" just fired, waiting until there is some more activity");
+    }
+
+    @Override public void close() throws IOException {
+        synchronized (buffer) {
+            if (countdown != null) countdown.cancel();
+            countdown = null;
         }
+        super.close();
     }
 
     public DamperedCompositeBufferedFilesystemWatcher(long timeout, int maxEvents, long damper) {
@@ -1,6 +1,7 @@
 package org.cobbzilla.util.io;
 
 import lombok.Cleanup;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.poi.openxml4j.util.ZipSecureFile;
 
@@ -22,8 +23,13 @@ public class Decompressors {
             return Tarball.unroll(infile);
         } else if (isZipFile(infile.getName())) {
             final TempDir tempDir = new TempDir();
-            extract(infile, tempDir);
-            return tempDir;
+            try {
+                extractParallel(infile, tempDir);
+                return tempDir;
+            } catch (Exception e) {
+                FileUtils.deleteDirectory(tempDir);
+                throw e;
+            }
         } else {
             return die("unroll: unsupported file: "+infile);
         }
@@ -82,4 +88,26 @@ public class Decompressors {
             extractFile(zip.getInputStream(entry), outdir, name);
         }
     }
+
+    /**
+     * Extract zipfile to outdir, inflating entries concurrently. See ParallelZipExtractor for more options.
+     * @param zipfile Input .zip file
+     * @param outdir Output directory
+     * @return the number of files extracted
+     */
+    public static int extractParallel(File zipfile, File outdir) throws IOException {
+        return new ParallelZipExtractor(zipfile, outdir).extract();
+    }
+
+    /**
+     * Extract only the entries of zipfile whose names match a glob, inflating them concurrently.
+     * Entries that do not match are never read.
+     * @param zipfile Input .zip file
+     * @param outdir Output directory
+     * @param include a glob, for example "**.xml" or "lib/*.jar"
+     * @return the number of files extracted
+     */
+    public static int extract(File zipfile, File outdir, String include) throws IOException {
+        return new ParallelZipExtractor(zipfile, outdir).setInclude(include).extract();
+    }
 }
@@ -8,9 +8,12 @@ import org.apache.commons.io.IOUtils;
 import org.cobbzilla.util.string.Base64;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -209,19 +212,32 @@ public class FileUtil {
 
     public static String toString (File f) throws IOException {
         if (f == null || !f.exists()) return null;
-        final StringWriter writer = new StringWriter();
-        try (Reader r = new FileReader(f)) {
-            IOUtils.copy(r, writer);
-        }
-        return writer.toString();
+        // same charset as FileReader
+        return new String(toBytes(f), Charset.defaultCharset());
     }
 
+    /**
+     * Read a whole file into an array sized from the file's length, without an intermediate buffer.
+     * Files that report no length (like those in /proc) or that grow while being read are still read completely.
+     */
     public static byte[] toBytes (File f) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try (InputStream in = new FileInputStream(f)) {
+        try (FileInputStream in = new FileInputStream(f)) {
+            final long size = in.getChannel().size();
+            if (size > Integer.MAX_VALUE) throw new IOException("toBytes: file too large ("+size+" bytes): "+abs(f));
+            final byte[] bytes = new byte[(int) size];
+            int len = 0;
+            int n;
+            while (len < bytes.length && (n = in.read(bytes, len, bytes.length - len)) != -1) len += n;
+            if (len < bytes.length) return Arrays.copyOf(bytes, len);
+
+            final int next = in.read();
+            if (next == -1) return bytes;
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + StreamUtil.DEFAULT_BUFFER_SIZE);
+            out.write(bytes);
+            out.write(next);
             IOUtils.copy(in, out);
+            return out.toByteArray();
         }
-        return out.toByteArray();
     }
 
     public static Properties toPropertiesOrDie (String f) {
@@ -329,7 +345,7 @@ public class FileUtil {
 
     public static File toFile(File file, InputStream in) throws IOException {
         try (OutputStream out = new FileOutputStream(file)) {
-            IOUtils.copyLarge(in, out);
+            StreamUtil.copyLarge(in, out);
         }
         return file;
     }
@@ -525,7 +541,14 @@ public class FileUtil {
                     die("Error creating parent dir: " + abs(to.getParentFile()));
                 }
             }
-            FileUtils.copyFile(from, to);
+            if (abs(from).equals(abs(to))) die("copyFile: source and destination are the same: "+abs(from));
+            try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // the kernel copies the bytes (copy_file_range or sendfile on Linux)
+                final long copied = StreamUtil.transfer(in, out);
+                if (copied != from.length()) die("copyFile: copied "+copied+" of "+from.length()+" bytes from "+abs(from));
+            }
+            if (!to.setLastModified(from.lastModified())) log.warn("copyFile: error setting lastModified on "+abs(to));
         } catch (IOException e) {
             die("copyFile: "+e, e);
         }
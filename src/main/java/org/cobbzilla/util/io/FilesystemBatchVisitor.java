@@ -0,0 +1,12 @@
+package org.cobbzilla.util.io;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Receives files from a FilesystemWalker in batches, rather than one call per file.
+ * Batches never span directories, and may be called concurrently from different walker threads.
+ */
+public interface FilesystemBatchVisitor {
+    void visit(List<File> files);
+}
@@ -1,6 +1,5 @@
 package org.cobbzilla.util.io;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
@@ -10,32 +9,46 @@ import org.cobbzilla.util.string.StringUtil;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-
-import static org.cobbzilla.util.daemon.Await.awaitAll;
-import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static org.cobbzilla.util.io.FileUtil.abs;
-import static org.cobbzilla.util.io.FileUtil.isSymlink;
-import static org.cobbzilla.util.system.Sleep.sleep;
 import static org.cobbzilla.util.time.TimeUtil.parseDuration;
 
+/**
+ * Walks directory trees in parallel on a ForkJoinPool, with one task per directory. Each task lists its
+ * directory with a DirectoryStream, visits its files, and forks a task for each subdirectory; idle threads
+ * steal subdirectory tasks from busy ones.
+ *
+ * Paths matching an exclude PathMatcher are pruned before their attributes are read; a pruned directory is not descended into.
+ * Visitors may be called concurrently from several threads. Exceptions thrown by visitors are collected
+ * into the AwaitResult and do not stop the walk.
+ */
 @Accessors(chain=true) @Slf4j
 public class FilesystemWalker {
 
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
     @Getter private final List<File> dirs = new ArrayList<>();
     @Getter private final List<FilesystemVisitor> visitors = new ArrayList<>();
+    @Getter private final List<FilesystemBatchVisitor> batchVisitors = new ArrayList<>();
     @Getter @Setter private boolean includeSymlinks = true;
     @Getter @Setter private boolean visitDirs = false;
     @Getter @Setter private int threads = 5;
-    @Getter @Setter private int size = 1_000_000;
+    @Getter @Setter private int size = 1_000_000; // no longer used: the walker no longer keeps a Future per file
     @Getter @Setter private long timeout = TimeUnit.MINUTES.toMillis(15);
     @Getter @Setter private FileFilter filter;
-    @Getter @Setter private long sleepTime = TimeUnit.SECONDS.toMillis(5);
+    @Getter @Setter private long sleepTime = TimeUnit.SECONDS.toMillis(5); // no longer used: walk no longer polls
+    @Getter @Setter private int batchSize = DEFAULT_BATCH_SIZE;
+
+    // files and directories whose paths match are skipped without being stat'ed
+    @Getter @Setter private PathMatcher exclude;
+    // if set, only files whose paths match are visited. All directories that are not excluded are still walked.
+    @Getter @Setter private PathMatcher include;
 
     public boolean hasFilter () { return filter != null; }
 
@@ -43,70 +56,183 @@ public class FilesystemWalker {
     public FilesystemWalker withDirs (List<File> dirs) { this.dirs.addAll(dirs); return this; }
     public FilesystemWalker withDirs (File[] dirs) { this.dirs.addAll(Arrays.asList(dirs)); return this; }
     public FilesystemWalker withVisitor (FilesystemVisitor visitor) { visitors.add(visitor); return this; }
+    public FilesystemWalker withBatchVisitor (FilesystemBatchVisitor visitor) { batchVisitors.add(visitor); return this; }
     public FilesystemWalker withTimeoutDuration (String duration) { setTimeout(parseDuration(duration)); return this; }
 
-    @Getter(lazy=true) private final ExecutorService pool = fixedPool(getThreads(), "FilesystemWalker.pool");
-    @Getter(lazy=true) private final List<Future<?>> futures = new ArrayList<>(getSize());
+    /** @param glob paths matching this glob (see FileSystem.getPathMatcher) are pruned */
+    public FilesystemWalker withExcludeGlob (String glob) { return setExclude(FileSystems.getDefault().getPathMatcher("glob:"+glob)); }
+
+    /** @param glob only files whose paths match this glob (see FileSystem.getPathMatcher) are visited */
+    public FilesystemWalker withIncludeGlob (String glob) { return setInclude(FileSystems.getDefault().getPathMatcher("glob:"+glob)); }
+
+    private final Queue<Exception> failures = new ConcurrentLinkedQueue<>();
+    // file keys of the roots and of every directory reached through a symlink, so a symlink loop is walked only once
+    private final Set<Object> walkedDirs = ConcurrentHashMap.newKeySet();
 
+    /**
+     * Walk all dirs, waiting up to timeout for the walk to complete
+     * @return the result. Failures contain any exceptions thrown by visitors or while listing directories.
+     */
     public AwaitResult walk() {
-        for (File dir : dirs) fileJob(dir);
-
-        // wait for number of futures to stop increasing
-        do {
-            final int lastNumFutures = numFutures();
-            awaitFutures();
-            if (numFutures() == lastNumFutures) break;
-            sleep(getSleepTime());
-        } while (true);
-        return awaitFutures();
+        final CompletableFuture<AwaitResult> future = walkAsync();
+        try {
+            return future.get(getTimeout(), TimeUnit.MILLISECONDS);
+
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            final AwaitResult result = new AwaitResult();
+            result.timeout(Collections.singletonList(future));
+            log.warn("walk: timed out after "+getTimeout()+" ms");
+            return result;
+
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            final AwaitResult result = new AwaitResult();
+            result.fail(future, e);
+            return result;
+
+        } catch (ExecutionException e) {
+            final AwaitResult result = new AwaitResult();
+            result.fail(future, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            return result;
+        }
     }
 
-    private AwaitResult awaitFutures() {
-        final AwaitResult result = awaitAll(getFutures(), getTimeout());
-        if (!result.allSucceeded()) log.warn(StringUtil.toString(result.getFailures().values(), "\n---------"));
+    /**
+     * Start walking all dirs
+     * @return a future that completes when every directory has been walked and every visitor called.
+     * Cancelling the future stops the walk.
+     */
+    public CompletableFuture<AwaitResult> walkAsync() {
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, getThreads()));
+        final CompletableFuture<AwaitResult> result = new CompletableFuture<>();
+        failures.clear();
+        walkedDirs.clear();
+        pool.execute(new RecursiveAction() {
+            @Override protected void compute() {
+                try {
+                    final List<ForkJoinTask<?>> roots = new ArrayList<>();
+                    final List<File> batch = new ArrayList<>();
+                    for (File dir : dirs) {
+                        final Path path = dir.toPath();
+                        final BasicFileAttributes attrs = attributes(path);
+                        if (attrs == null) continue;
+                        if (attrs.isDirectory()) {
+                            if (attrs.fileKey() != null) walkedDirs.add(attrs.fileKey());
+                            if (visitDirs) visit(dir, batch);
+                            roots.add(new DirectoryTask(path).fork());
+                        } else if (attrs.isRegularFile()) {
+                            visit(dir, batch);
+                        }
+                    }
+                    flush(batch);
+                    for (int i=roots.size()-1; i>=0; i--) roots.get(i).join();
+
+                    final AwaitResult awaitResult = new AwaitResult();
+                    for (Exception e : failures) awaitResult.fail(CompletableFuture.failedFuture(e), e);
+                    if (!awaitResult.allSucceeded()) log.warn(StringUtil.toString(awaitResult.getFailures().values(), "\n---------"));
+                    result.complete(awaitResult);
+
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        });
+        result.whenComplete((r, e) -> { if (result.isCancelled()) pool.shutdownNow(); });
         return result;
     }
 
-    private int numFutures () {
-        final List<Future<?>> futures = getFutures();
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (futures) { return futures.size(); }
+    private BasicFileAttributes attributes(Path path) {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+            if (!attrs.isSymbolicLink()) return attrs;
+            if (!includeSymlinks) return null;
+
+            final BasicFileAttributes target = Files.readAttributes(path, BasicFileAttributes.class);
+            // a symlinked directory could lead back to one of its parents, so only walk it once
+            if (target.isDirectory() && target.fileKey() != null && !walkedDirs.add(target.fileKey())) return null;
+            return target;
+
+        } catch (NoSuchFileException e) {
+            if (log.isDebugEnabled()) log.debug("attributes: skipping broken symlink or removed file: "+path);
+            return null;
+        } catch (IOException e) {
+            failures.add(e);
+            return null;
+        }
     }
 
-    private boolean fileJob(File f) {
-        final List<Future<?>> futures = getFutures();
-        final Future<?> future = getPool().submit(new FsWalker(f));
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (futures) { return futures.add(future); }
+    private boolean excluded(Path path) { return exclude != null && exclude.matches(path); }
+    private boolean included(Path path) { return include == null || include.matches(path); }
+
+    private void visit(File file, List<File> batch) {
+        for (FilesystemVisitor visitor : visitors) {
+            try {
+                visitor.visit(file);
+            } catch (Exception e) {
+                failures.add(e);
+            }
+        }
+        if (!batchVisitors.isEmpty()) {
+            batch.add(file);
+            if (batch.size() >= batchSize) flush(batch);
+        }
     }
 
-    @AllArgsConstructor
-    private class FsWalker implements Runnable {
-        private final File file;
+    private void flush(List<File> batch) {
+        if (batch.isEmpty()) return;
+        final List<File> files = new ArrayList<>(batch);
+        batch.clear();
+        for (FilesystemBatchVisitor visitor : batchVisitors) {
+            try {
+                visitor.visit(files);
+            } catch (Exception e) {
+                failures.add(e);
+            }
+        }
+    }
 
-        @Override public void run() {
-            if (isSymlink(file) && !includeSymlinks) return;
+    private class DirectoryTask extends RecursiveAction {
 
-            if (file.isFile()) {
-                // visit the file
-                visit();
+        private final Path dir;
 
-            } else if (file.isDirectory()) {
-                // should we visit directory entries?
-                if (visitDirs) visit();
+        DirectoryTask (Path dir) { this.dir = dir; }
 
-                // should we filter directory entries?
-                final File[] files = hasFilter() ? file.listFiles(filter) : file.listFiles();
+        @Override protected void compute() {
+            final List<DirectoryTask> subdirs = new ArrayList<>();
+            final List<File> batch = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path path : entries) {
+                    if (excluded(path)) continue;
+                    final BasicFileAttributes attrs = attributes(path);
+                    if (attrs == null) continue;
 
-                // walk each entry in the directory
-                if (files != null) for (File f : files) fileJob(f);
+                    final File file = path.toFile();
+                    if (hasFilter() && !filter.accept(file)) continue;
 
-            } else {
-                log.warn("unexpected file: neither file nor directory, skipping: "+abs(file));
+                    if (attrs.isDirectory()) {
+                        if (visitDirs) visit(file, batch);
+                        final DirectoryTask task = new DirectoryTask(path);
+                        task.fork();
+                        subdirs.add(task);
+
+                    } else if (attrs.isRegularFile()) {
+                        if (included(path)) visit(file, batch);
+
+                    } else {
+                        log.warn("unexpected file: neither file nor directory, skipping: "+abs(file));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                failures.add(e instanceof DirectoryIteratorException ? ((DirectoryIteratorException) e).getCause() : (Exception) e);
             }
+            flush(batch);
 
+            // join in reverse order of forking, so this thread runs its own most recent tasks unless they were stolen
+            for (int i=subdirs.size()-1; i>=0; i--) subdirs.get(i).join();
         }
-
-        private void visit() { for (FilesystemVisitor visitor : getVisitors()) visitor.visit(file); }
     }
+
 }
@@ -1,43 +1,51 @@
 package org.cobbzilla.util.io;
 
-import lombok.Cleanup;
 import lombok.Getter;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.util.system.Sleep;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-import static org.cobbzilla.util.daemon.ZillaRuntime.terminate;
 import static org.cobbzilla.util.io.FileUtil.abs;
 
+/**
+ * Watches a directory for changes. Watchers do not have their own threads: all watchers share the
+ * process-wide WatchMultiplexer, and handleEvent is called on its dispatch thread, so it should return quickly.
+ */
 @Slf4j @ToString(of={"path", "done"})
 public class FilesystemWatcher implements Runnable, Closeable {
 
     public static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
 
-    private final Thread thread = new Thread(this);
     private final AtomicBoolean done = new AtomicBoolean(false);
     @Getter private final Path path;
+    private WatchMultiplexer.Registration registration;
+    private volatile boolean logNotExists = true;
 
     public FilesystemWatcher(File path) { this.path = path.toPath(); }
     public FilesystemWatcher(Path path) { this.path = path; }
 
+    protected WatchMultiplexer getMultiplexer() { return WatchMultiplexer.instance(); }
+
     public synchronized void start () {
         done.set(false);
-        thread.setDaemon(true);
-        thread.start();
+        if (registration == null) registration = getMultiplexer().register(path, listener);
     }
 
     public synchronized void stop () {
         done.set(true);
-        terminate(thread, STOP_TIMEOUT);
+        if (registration != null) {
+            registration.close();
+            registration = null;
+        }
+        notifyAll();
     }
 
     @Override public void close() throws IOException { stop(); }
@@ -93,64 +101,56 @@ public class FilesystemWatcher implements Runnable, Closeable {
     protected long getSleepWhileNotExists() { return 10_000; }
 
     /**
-     * If null is returned, the watcher will terminate on any unexpected Exception
-     * @return how long to sleep after some other unknown Exception (besides InterruptedException) occurs.
+     * If null is returned, the watcher will stop trying if the watch cannot be created for any other reason
+     * @return how long to wait before retrying to create the watch, after some other unknown Exception occurs.
      */
     protected Integer getSleepAfterUnexpectedError() { return 10_000; }
 
+    /**
+     * Start watching, and block until stop is called.
+     * Calling start is enough to begin receiving events; this is for callers that run a watcher on a thread of their own.
+     */
     @Override public void run() {
-        boolean logNotExists = true;
-        while (!done.get()) {
-            try {
-                log.info("Registering watch service on " + path);
-                @Cleanup final WatchService watchService = path.getFileSystem().newWatchService();
-                path.register(watchService,
-                        StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_MODIFY,
-                        StandardWatchEventKinds.ENTRY_DELETE);
-                logNotExists = true;
-
-                // loop forever to watch directory
-                while (!done.get()) {
-                    final WatchKey watchKey;
-                    watchKey = watchService.take(); // this call is blocking until events are present
-
-                    // poll for file system events on the WatchKey
-                    log.info("Waiting for FS events on " + path);
-                    for (final WatchEvent<?> event : watchKey.pollEvents()) {
-                        log.info("Handling event: " + event.kind().name() + " " + event.context());
-                        handleEvent(event);
-                    }
-
-                    // if the watched directed gets deleted, get out of run method
-                    if (!watchKey.reset()) {
-                        log.warn("watchKey could not be reset, perhaps path (" + path + ") was removed?");
-                        watchKey.cancel();
-                        watchService.close();
-                        break;
-                    }
+        start();
+        synchronized (this) {
+            while (!done.get()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    stop();
+                    die("watch thread interrupted, exiting: " + e, e);
                 }
+            }
+        }
+    }
 
-            } catch (InterruptedException e) {
-                die("watch thread interrupted, exiting: " + e, e);
+    private final WatchMultiplexer.WatchListener listener = new WatchMultiplexer.WatchListener() {
+        @Override public void onEvents(Path dir, List<WatchEvent<?>> events) {
+            for (final WatchEvent<?> event : events) {
+                log.info("Handling event: " + event.kind().name() + " " + event.context());
+                handleEvent(event);
+            }
+        }
+
+        @Override public void onRegistered(Path dir) { logNotExists = true; }
 
-            } catch (NoSuchFileException e) {
+        @Override public Long onRegisterFailed(Path dir, Exception e) {
+            if (done.get()) return null;
+            if (e instanceof NoSuchFileException) {
                 if (logNotExists) {
                     log.warn("watch dir does not exist, waiting for it to exist: " + e);
                     logNotExists = false;
                 }
-                Sleep.sleep(getSleepWhileNotExists(), "waiting for path to exist: " + abs(path));
-
-            } catch (Exception e) {
-                if (getSleepAfterUnexpectedError() != null) {
-                    log.warn("error in watch thread, waiting to re-create the watch: " + e, e);
-                    Sleep.sleep(getSleepAfterUnexpectedError());
-
-                } else {
-                    die("error in watch thread, exiting: " + e, e);
-                }
+                return getSleepWhileNotExists();
+            }
+            final Integer sleep = getSleepAfterUnexpectedError();
+            if (sleep == null) {
+                log.error("error creating watch, giving up: " + e, e);
+                return null;
             }
+            log.warn("error creating watch, waiting to re-create the watch: " + e, e);
+            return sleep.longValue();
         }
-    }
+    };
 
 }
@@ -1,98 +1,100 @@
 package org.cobbzilla.util.io;
 
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
 import org.cobbzilla.util.system.Bytes;
 
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.cobbzilla.util.daemon.ZillaRuntime.*;
 import static org.cobbzilla.util.reflect.ReflectionUtil.closeQuietly;
 import static org.cobbzilla.util.reflect.ReflectionUtil.instantiate;
 
+/**
+ * Turns an OutputStream filter (for example a compressor) into an InputStream filter. A task on a shared pool
+ * reads the input and writes it to the filter, and the filter writes into a RingBufferPipe that this stream reads from.
+ * If reading the input or filtering fails, reads from this stream throw the error once the bytes before it have been read.
+ */
 @Slf4j
-public class FilterInputStreamViaOutputStream extends PipedInputStream implements Runnable {
+public class FilterInputStreamViaOutputStream extends InputStream implements Runnable {
 
-    private static final int DEFAULT_PIPE_BUFFER_SIZE = (int) (64 * Bytes.KB);
-    private static final int DEFAULT_COPY_BUFFER_SIZE = (int) (8 * Bytes.KB);
-    private static final long THREAD_TERMINATE_TIMEOUT = SECONDS.toMillis(10);
+    public static final int DEFAULT_PIPE_BUFFER_SIZE = (int) (64 * Bytes.KB);
+    private static final int DEFAULT_COPY_BUFFER_SIZE = (int) (64 * Bytes.KB);
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(new DaemonThreadFactory(FilterInputStreamViaOutputStream.class.getSimpleName()));
 
     private final InputStream in;
-    private PipedOutputStream pipeOut;
+    private final RingBufferPipe pipe;
+    private final InputStream pipeIn;
     private OutputStream out;
-    private Thread thread;
+    private Future<?> task;
 
     public Class<? extends OutputStream> getOutputStreamClass () { return out == null ? null : out.getClass(); }
 
     public FilterInputStreamViaOutputStream(InputStream in, Class<? extends OutputStream> outStreamClass) {
-        super(DEFAULT_PIPE_BUFFER_SIZE);
+        this(in, outStreamClass, DEFAULT_PIPE_BUFFER_SIZE);
+    }
+
+    public FilterInputStreamViaOutputStream(InputStream in, Class<? extends OutputStream> outStreamClass, int pipeBufferSize) {
         this.in = in;
-        try {
-            this.pipeOut = new PipedOutputStream(this);
-        } catch (Exception e) {
-            die("FilterInputStreamViaOutputStream: error creating pipeOut: "+shortError(e));
-        }
-        this.out = instantiate(outStreamClass, this.pipeOut);
+        this.pipe = new RingBufferPipe(pipeBufferSize);
+        this.pipeIn = pipe.getInput();
+        this.out = instantiate(outStreamClass, pipe.getOutput());
         start();
     }
 
     public FilterInputStreamViaOutputStream(InputStream in, Function<OutputStream, OutputStream> outFactory) {
-        super(DEFAULT_PIPE_BUFFER_SIZE);
+        this(in, outFactory, DEFAULT_PIPE_BUFFER_SIZE);
+    }
+
+    public FilterInputStreamViaOutputStream(InputStream in, Function<OutputStream, OutputStream> outFactory, int pipeBufferSize) {
         this.in = in;
+        this.pipe = new RingBufferPipe(pipeBufferSize);
+        this.pipeIn = pipe.getInput();
         try {
-            this.pipeOut = new PipedOutputStream(this);
-        } catch (Exception e) {
-            die("FilterInputStreamViaOutputStream: error creating pipeOut: "+shortError(e));
-        }
-        try {
-            this.out = outFactory.apply(this.pipeOut);
+            this.out = outFactory.apply(pipe.getOutput());
         } catch (Exception e) {
             die("FilterInputStreamViaOutputStream: error creating out: "+shortError(e));
         }
         start();
     }
 
-    private void start() {
-        this.thread = new Thread(this);
-        this.thread.setName(getClass().getSimpleName()+"/"+System.identityHashCode(this));
-        this.thread.setDaemon(true);
-        this.thread.start();
-    }
+    private void start() { this.task = POOL.submit(this); }
 
     @Override public void run() {
         try {
             final byte[] buf = new byte[DEFAULT_COPY_BUFFER_SIZE];
             int bytesRead;
             while ((bytesRead = in.read(buf)) >= 0) {
-                if (bytesRead > 0) {
-                    out.write(buf, 0, bytesRead);
-                    out.flush();
-                }
+                // no flush: the pipe makes each write visible to the reader, and flushing a compressor would hurt its ratio
+                if (bytesRead > 0) out.write(buf, 0, bytesRead);
             }
+            out.close();
 
-        } catch (IOException e) {
+        } catch (Exception e) {
             final String msg = "run: error copying bytes: " + shortError(e);
             log.error(msg);
-            throw new RuntimeException(msg, e);
+            pipe.fail(e);
 
         } finally {
             closeQuietly(out);
         }
     }
 
+    @Override public int read() throws IOException { return pipeIn.read(); }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException { return pipeIn.read(b, off, len); }
+
+    @Override public int available() throws IOException { return pipeIn.available(); }
+
     @Override public void close() {
-        try {
-            super.close();
-        } catch (Exception e) {
-            log.warn("close: error closing pipeIn: "+shortError(e));
-        }
+        closeQuietly(pipeIn);
         closeQuietly(in);
-        closeQuietly(out);
-        closeQuietly(pipeOut);
-        if (this.thread.isAlive()) {
-            background(() -> terminate(this.thread, THREAD_TERMINATE_TIMEOUT), "FilterInputStreamViaOutputStream.close");
-        }
+        if (task != null && !task.isDone()) task.cancel(true);
     }
 
 }
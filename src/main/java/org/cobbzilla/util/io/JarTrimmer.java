@@ -1,27 +1,32 @@
 package org.cobbzilla.util.io;
 
-import lombok.Cleanup;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.IOUtils;
-import org.cobbzilla.util.reflect.ReflectionUtil;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
-import java.util.function.Function;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.daemon.ZillaRuntime.empty;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
 @Slf4j
 public class JarTrimmer {
 
     public static final String CLASS_SUFFIX = ".class";
+    public static final String SERVICES_PREFIX = "META-INF/services/";
+    public static final String VERSIONS_PREFIX = "META-INF/versions/";
     @Getter private IncludeCount counter = new IncludeCount("");
 
     public static class IncludeCount {
@@ -55,62 +60,148 @@ public class JarTrimmer {
         }
     }
 
+    /**
+     * Write a copy of the jar that omits classes that are not needed.
+     *
+     * The jar's central directory is read once. Entries that are kept are copied still compressed, without
+     * inflating and deflating them again. If the config says to followReferences, the required classes are
+     * roots, and every class they refer to (found by reading constant pools, in parallel) is also required.
+     * In a multi-release jar, the META-INF/versions/N/ copies of a class are kept whenever the class is.
+     */
     public IncludeCount trim (JarTrimmerConfig config) throws Exception {
 
-        final JarFile jar = new JarFile(config.getInJar());
-
-        // walk all class resources in jar file, track location/count of required classes
-        processJar(jar, jarEntry -> {
-            final String name = jarEntry.getName();
-            if (name.endsWith(CLASS_SUFFIX)) {
-                if (config.required(name)) counter.getCounter(toPath(name)).incr();
+        final File temp = FileUtil.temp(".jar");
+        try (ZipFile zip = new ZipFile(config.getInJar())) {
+            final List<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder());
+            final Set<String> reachable = config.isFollowReferences() ? findReachable(zip, entries, config) : null;
+
+            // track location/count of required classes
+            for (ZipArchiveEntry entry : entries) {
+                final String name = entry.getName();
+                if (name.endsWith(CLASS_SUFFIX) && required(config, name, reachable)) counter.getCounter(toPath(name)).incr();
             }
-            return null;
-        });
 
-        // Level 1: any packages that do not contain ANY required classes will not be included in the output jar
-        final File temp = FileUtil.temp(".jar");
-        @Cleanup final JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(temp));
-        final Set<String> dirsCreated = new HashSet<>();
-        processJar(jar, jarEntry -> {
-            final String name = jarEntry.getName();
-            if (shouldInclude(config, name)) {
-                try {
-                    final String dir = name.contains("/") ? toPath(name) : null;
-                    if (dir != null && !dirsCreated.contains(dir)) {
-                        final JarEntry dirEntry = new JarEntry(dir +"/");
-                        dirEntry.setTime(jarEntry.getTime());
-                        jarOut.putNextEntry(dirEntry);
-                        dirsCreated.add(dir);
+            // Level 1: any packages that do not contain ANY required classes will not be included in the output jar
+            try (ZipArchiveOutputStream jarOut = new ZipArchiveOutputStream(temp)) {
+                final Set<String> dirsCreated = new HashSet<>();
+                for (ZipArchiveEntry entry : entries) {
+                    final String name = entry.getName();
+                    if (shouldInclude(config, name, reachable)) {
+                        final String dir = name.contains("/") ? toPath(name) : null;
+                        if (dir != null && !dirsCreated.contains(dir)) {
+                            final ZipArchiveEntry dirEntry = new ZipArchiveEntry(dir + "/");
+                            dirEntry.setTime(entry.getTime());
+                            jarOut.putArchiveEntry(dirEntry);
+                            jarOut.closeArchiveEntry();
+                            dirsCreated.add(dir);
+                        }
+                        jarOut.addRawArchiveEntry(entry, zip.getRawInputStream(entry));
+
+                    } else if (!name.endsWith("/")) {
+                        log.info("omitted: "+ name);
                     }
-                    final JarEntry outEntry = new JarEntry(jarEntry.getName());
-                    ReflectionUtil.copy(outEntry, jarEntry, new String[] {"method", "time", "size", "compressedSize", "crc"});
-                    jarOut.putNextEntry(outEntry);
-                    @Cleanup final InputStream in = jar.getInputStream(jarEntry);
-                    IOUtils.copy(in, jarOut);
-
-                } catch (Exception e) {
-                    return die("processJar: " + e, e);
                 }
-            } else if (!name.endsWith("/")) {
-                log.info("omitted: "+ name);
             }
-            return null;
-        });
+        }
 
         FileUtil.renameOrDie(temp, config.getOutJar());
         return counter;
     }
 
-    private boolean shouldInclude(JarTrimmerConfig config, String name) {
+    private boolean required(JarTrimmerConfig config, String name, Set<String> reachable) {
+        return config.required(name) || (reachable != null && reachable.contains(name));
+    }
+
+    private boolean shouldInclude(JarTrimmerConfig config, String name, Set<String> reachable) {
         if (name.endsWith("/")) return false;
-        if (config.required(name)) return true;
+        if (required(config, name, reachable)) return true;
+        // when following references, a class is only included if it is reachable
+        if (reachable != null && name.endsWith(CLASS_SUFFIX)) return false;
         return counter.getCounter(toPath(name)).getTotalCount() > 0;
     }
 
-    private void processJar (JarFile jar, Function<JarEntry, IncludeCount> func) {
-        final Enumeration<? extends JarEntry> enumeration = jar.entries();
-        while (enumeration.hasMoreElements()) func.apply(enumeration.nextElement());
+    /**
+     * Find every class reachable from the required classes and from classes named in META-INF/services files.
+     * Each class is read and parsed once, by a task on a ForkJoinPool; a task forks one more task for each
+     * newly reached class, so unreachable classes are never read.
+     * @return the entry names of reachable classes
+     */
+    private Set<String> findReachable(ZipFile zip, List<ZipArchiveEntry> entries, JarTrimmerConfig config) throws Exception {
+        // every entry for a class: the class itself, and any versions of it in a multi-release jar
+        final Map<String, List<ZipArchiveEntry>> classes = new HashMap<>();
+        final Set<String> roots = new HashSet<>();
+        for (ZipArchiveEntry entry : entries) {
+            final String name = entry.getName();
+            if (name.endsWith(CLASS_SUFFIX)) {
+                final String baseName = baseName(name);
+                final String internalName = baseName.substring(0, baseName.length() - CLASS_SUFFIX.length());
+                classes.computeIfAbsent(internalName, k -> new ArrayList<>(1)).add(entry);
+                if (config.required(name) || config.required(baseName)) roots.add(internalName);
+
+            } else if (name.startsWith(SERVICES_PREFIX) && !name.endsWith("/")) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    for (String line : IOUtils.readLines(in, UTF8cs)) {
+                        final int comment = line.indexOf('#');
+                        final String impl = (comment == -1 ? line : line.substring(0, comment)).trim();
+                        if (!impl.isEmpty()) roots.add(impl.replace('.', '/'));
+                    }
+                }
+            }
+        }
+
+        final Set<String> reached = ConcurrentHashMap.newKeySet();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final ForkJoinPool pool = new ForkJoinPool(config.getThreads());
+        try {
+            for (String root : roots) {
+                if (classes.containsKey(root) && reached.add(root)) pool.execute(new ClassTask(zip, classes, reached, error, root));
+            }
+            pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (error.get() != null) throw error.get();
+
+        log.info("findReachable: "+reached.size()+" of "+classes.size()+" classes are reachable from "+roots.size()+" roots");
+        final Set<String> names = new HashSet<>();
+        for (String internalName : reached) {
+            for (ZipArchiveEntry entry : classes.get(internalName)) names.add(entry.getName());
+        }
+        return names;
+    }
+
+    // the class a multi-release jar entry is a version of: META-INF/versions/11/com/x/Foo.class is com/x/Foo.class
+    private static String baseName(String name) {
+        if (!name.startsWith(VERSIONS_PREFIX)) return name;
+        final int slash = name.indexOf('/', VERSIONS_PREFIX.length());
+        return slash == -1 ? name : name.substring(slash+1);
+    }
+
+    @AllArgsConstructor
+    private static class ClassTask extends RecursiveAction {
+        private final ZipFile zip;
+        private final Map<String, List<ZipArchiveEntry>> classes;
+        private final Set<String> reached;
+        private final AtomicReference<Exception> error;
+        private final String className;
+
+        @Override protected void compute() {
+            if (error.get() != null) return;
+            try {
+                for (ZipArchiveEntry entry : classes.get(className)) {
+                    final byte[] bytes;
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        bytes = IOUtils.toByteArray(in);
+                    }
+                    for (String ref : ClassReferenceParser.references(bytes)) {
+                        // forked, not joined: the pool runs until there is no more work
+                        if (classes.containsKey(ref) && reached.add(ref)) new ClassTask(zip, classes, reached, error, ref).fork();
+                    }
+                }
+            } catch (Exception e) {
+                error.compareAndSet(null, new IOException("ClassTask: error reading "+className+": "+e, e));
+            }
+        }
     }
 
     private String toPath(String jarEntryName) {
@@ -13,6 +13,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
 import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
 @Accessors(chain=true)
@@ -36,6 +37,11 @@ public class JarTrimmerConfig {
 
     @Getter @Setter private boolean includeRootFiles = true;
     @Getter @Setter private File counterFile = null;
+
+    // if true, classes referred to by required classes (and by META-INF/services files) are also required,
+    // and classes that are not reachable are omitted even from packages that are otherwise included
+    @Getter @Setter private boolean followReferences = false;
+    @Getter @Setter private int threads = processorCount();
     public boolean hasCounterFile () { return counterFile != null; }
 
     public boolean required(String name) {
@@ -0,0 +1,179 @@
+package org.cobbzilla.util.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+import static org.cobbzilla.util.system.Bytes.KB;
+
+/**
+ * Writes a single-member gzip stream, compressing blocks of input concurrently, in the manner of pigz.
+ * Each block is compressed independently with the previous 32KB of input as its dictionary, and ends with a
+ * sync flush so the compressed blocks can simply be concatenated. The output is readable by any gzip decoder.
+ * Compression ratio is very slightly worse than single-threaded gzip at the same level.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = (int) (128 * KB);
+    public static final int DICTIONARY_SIZE = (int) (32 * KB);
+
+    private static final ExecutorService DEFAULT_POOL = fixedPool(processorCount(), ParallelGZIPOutputStream.class.getSimpleName());
+
+    private final ExecutorService pool;
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+
+    private final CRC32 crc = new CRC32();
+    private long totalIn = 0;
+    private byte[] block;
+    private int blockLen = 0;
+    private byte[] dictionary = null;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean finished = false;
+
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException { this(out, Deflater.DEFAULT_COMPRESSION); }
+
+    public ParallelGZIPOutputStream(OutputStream out, int level) throws IOException {
+        this(out, level, DEFAULT_BLOCK_SIZE, DEFAULT_POOL, 2 * processorCount());
+    }
+
+    /**
+     * @param out where to write gzip data
+     * @param level the compression level
+     * @param blockSize bytes of input per block. Must be at least DICTIONARY_SIZE
+     * @param pool the executor that compresses blocks
+     * @param maxPending the most blocks that may be waiting to be written. Writers block when this is reached.
+     */
+    public ParallelGZIPOutputStream(OutputStream out, int level, int blockSize, ExecutorService pool, int maxPending) throws IOException {
+        super(out);
+        if (blockSize < DICTIONARY_SIZE) throw new IllegalArgumentException("blockSize must be at least "+DICTIONARY_SIZE);
+        this.level = level;
+        this.blockSize = blockSize;
+        this.pool = pool;
+        this.maxPending = Math.max(1, maxPending);
+        this.block = new byte[blockSize];
+        out.write(PooledGZIPOutputStream.HEADER);
+    }
+
+    @Override public void write(int b) throws IOException { write(new byte[] {(byte) b}, 0, 1); }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("write: stream already finished");
+        while (len > 0) {
+            final int n = Math.min(len, blockSize - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            off += n;
+            len -= n;
+            if (blockLen == blockSize) submit(false);
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] data = block;
+        final int len = blockLen;
+        final byte[] dict = dictionary;
+        crc.update(data, 0, len);
+        totalIn += len;
+
+        if (len >= DICTIONARY_SIZE) {
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(data, len - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+        }
+        pending.add(pool.submit(() -> compress(data, len, dict, last)));
+        block = last ? null : new byte[blockSize];
+        blockLen = 0;
+
+        while (pending.size() >= maxPending) writeNext();
+    }
+
+    private byte[] compress(byte[] data, int len, byte[] dict, boolean last) {
+        final Deflater deflater = CompressionPool.deflater(level, true);
+        try {
+            if (dict != null) deflater.setDictionary(dict);
+            deflater.setInput(data, 0, len);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(len / 2 + 64);
+            final byte[] buf = new byte[(int) (16 * KB)];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(buf);
+                    compressed.write(buf, 0, n);
+                }
+            } else {
+                int n;
+                do {
+                    n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, n);
+                } while (n == buf.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        } finally {
+            CompressionPool.release(deflater, level, true);
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final Future<byte[]> next = pending.poll();
+        if (next == null) return;
+        try {
+            out.write(next.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("writeNext: interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("writeNext: error compressing block: "+e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Compress any buffered input, write all compressed data and the gzip trailer. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        try {
+            submit(true);
+            while (!pending.isEmpty()) writeNext();
+        } finally {
+            for (Future<byte[]> f : pending) f.cancel(true);
+            pending.clear();
+        }
+        writeInt((int) crc.getValue());
+        writeInt((int) totalIn);
+    }
+
+    @Override public void flush() throws IOException {
+        // only completed blocks can be written; a partial block is compressed when it fills or on finish
+        while (!pending.isEmpty() && pending.peek().isDone()) writeNext();
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    // gzip trailer integers are little-endian
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+}
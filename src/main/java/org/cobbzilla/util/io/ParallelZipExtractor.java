@@ -0,0 +1,173 @@
+package org.cobbzilla.util.io;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.poi.openxml4j.util.ZipSecureFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.*;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.system.Bytes.KB;
+
+/**
+ * Extracts a zip file using its central directory for random access, inflating entries concurrently.
+ * The central directory is read once; entries are then read with positional reads, so each worker
+ * thread streams its own entry and writes it through a FileChannel.
+ *
+ * Zip-bomb protection: entries are read through ZipSecureFile, which enforces a minimum inflate ratio.
+ * In addition, each entry is limited to maxEntrySize, and the total extracted is limited to maxTotalSize.
+ * Both limits are checked against the sizes declared in the central directory before anything is extracted,
+ * and again against the bytes actually inflated, in case the declared sizes are false.
+ */
+@Slf4j @Accessors(chain=true)
+public class ParallelZipExtractor {
+
+    public static final int DEFAULT_BUFFER_SIZE = (int) (64 * KB);
+    public static final long DEFAULT_MAX_TOTAL_SIZE = 0; // unlimited
+
+    @Getter @Setter private File zipfile;
+    @Getter @Setter private File outdir;
+    @Getter @Setter private int threads = processorCount();
+    @Getter @Setter private long maxEntrySize = ZipSecureFile.getMaxEntrySize();
+    @Getter @Setter private long maxTotalSize = DEFAULT_MAX_TOTAL_SIZE;
+    @Getter @Setter private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    // if set, only entries whose names match this glob (see FileSystem.getPathMatcher) are extracted
+    @Getter @Setter private String include;
+
+    public ParallelZipExtractor (File zipfile, File outdir) {
+        this.zipfile = zipfile;
+        this.outdir = outdir;
+    }
+
+    /**
+     * @return the number of files extracted
+     */
+    public int extract () throws IOException {
+        final Path root = outdir.toPath().toAbsolutePath().normalize();
+        final PathMatcher matcher = include == null ? null : FileSystems.getDefault().getPathMatcher("glob:"+include);
+
+        try (ZipSecureFile zip = new ZipSecureFile(zipfile)) {
+            // a name can appear more than once: keep only the last entry in physical order, as a sequential
+            // extraction would, so two workers never write the same target file
+            final Map<String, ZipArchiveEntry> byName = new LinkedHashMap<>();
+            final Enumeration<ZipArchiveEntry> entries = zip.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                final ZipArchiveEntry entry = entries.nextElement();
+                if (byName.remove(entry.getName()) != null) log.warn("extract: duplicate entry "+entry.getName()+" in "+abs(zipfile)+", using the last one");
+                byName.put(entry.getName(), entry);
+            }
+
+            final List<ZipArchiveEntry> files = new ArrayList<>();
+            final Map<ZipArchiveEntry, Path> targets = new HashMap<>();
+            final Set<Path> createdDirs = new HashSet<>();
+            long declaredTotal = 0;
+
+            for (ZipArchiveEntry entry : byName.values()) {
+                final String name = entry.getName();
+                if (matcher != null && !matcher.matches(Paths.get(name))) continue;
+
+                final Path target = root.resolve(name).normalize();
+                if (!target.startsWith(root)) return die("extract: entry "+name+" would be written outside "+abs(outdir)+" in "+abs(zipfile));
+                if (entry.isDirectory()) {
+                    mkdirs(target, createdDirs);
+                    continue;
+                }
+                // a file entry can come before the entry for its directory, or the directory may have no entry at all
+                mkdirs(target.getParent(), createdDirs);
+
+                final long size = entry.getSize();
+                if (size > maxEntrySize) return die("extract: entry "+name+" declares "+size+" bytes, more than maxEntrySize ("+maxEntrySize+") in "+abs(zipfile));
+                if (size > 0) declaredTotal += size;
+                if (maxTotalSize > 0 && declaredTotal > maxTotalSize) return die("extract: entries declare more than maxTotalSize ("+maxTotalSize+") bytes in "+abs(zipfile));
+                files.add(entry);
+                targets.put(entry, target);
+            }
+            if (files.isEmpty()) return 0;
+
+            // largest first, so one big entry does not start last and run alone
+            files.sort((e1, e2) -> Long.compare(e2.getSize(), e1.getSize()));
+
+            final AtomicLong totalWritten = new AtomicLong(0);
+            final ExecutorService pool = fixedPool(Math.min(threads, files.size()), getClass().getSimpleName());
+            try {
+                final List<Future<?>> futures = new ArrayList<>(files.size());
+                for (ZipArchiveEntry entry : files) {
+                    futures.add(pool.submit(() -> { extractEntry(zip, entry, targets.get(entry), totalWritten); return null; }));
+                }
+                for (Future<?> f : futures) {
+                    try {
+                        f.get();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("extract: interrupted extracting "+abs(zipfile));
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof IOException) throw (IOException) cause;
+                        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                        throw new IOException("extract: error extracting "+abs(zipfile)+": "+cause, cause);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            return files.size();
+        }
+    }
+
+    private void extractEntry (ZipSecureFile zip, ZipArchiveEntry entry, Path target, AtomicLong totalWritten) throws IOException {
+        final long declared = entry.getSize();
+        try (InputStream in = zip.getInputStream(entry);
+             FileChannel out = FileChannel.open(target, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            final byte[] buf = new byte[bufferSize];
+            final ByteBuffer buffer = ByteBuffer.wrap(buf);
+            long written = 0;
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                written += read;
+                if (written > maxEntrySize || (declared >= 0 && written > declared)) {
+                    die("extractEntry: entry "+entry.getName()+" inflates to more than its declared size ("+declared+") or maxEntrySize ("+maxEntrySize+") in "+abs(zipfile));
+                }
+                if (maxTotalSize > 0 && totalWritten.addAndGet(read) > maxTotalSize) {
+                    die("extractEntry: extracted more than maxTotalSize ("+maxTotalSize+") bytes from "+abs(zipfile));
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+        }
+        if (entry.getTime() != -1) Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+        final int mode = entry.getUnixMode();
+        if (entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX && (mode & 0777) != 0) {
+            try {
+                Files.setPosixFilePermissions(target, Tarball.permissions(mode));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX filesystem
+            }
+        }
+    }
+
+    private static void mkdirs (Path dir, Set<Path> created) throws IOException {
+        if (dir == null || created.contains(dir)) return;
+        Files.createDirectories(dir);
+        created.add(dir);
+    }
+
+}
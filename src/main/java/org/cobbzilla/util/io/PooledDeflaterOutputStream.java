@@ -0,0 +1,64 @@
+package org.cobbzilla.util.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A DeflaterOutputStream whose Deflater is borrowed from CompressionPool and returned to it on close.
+ * With nowrap=false this writes zlib-wrapped data (HTTP "deflate" encoding); with nowrap=true it writes raw deflate data.
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    public static final int DEFAULT_BUFSIZ = 8192;
+
+    private final int level;
+    private final boolean nowrap;
+    private boolean released = false;
+
+    public PooledDeflaterOutputStream(OutputStream out, int level) { this(out, level, false); }
+
+    public PooledDeflaterOutputStream(OutputStream out, int level, boolean nowrap) {
+        this(out, level, nowrap, DEFAULT_BUFSIZ);
+    }
+
+    public PooledDeflaterOutputStream(OutputStream out, int level, boolean nowrap, int bufsiz) {
+        super(out, CompressionPool.deflater(level, nowrap), bufsiz);
+        this.level = level;
+        this.nowrap = nowrap;
+    }
+
+    // once closed, the Deflater may already be in use by another stream
+    private void ensureOpen() throws IOException { if (released) throw new IOException("Stream closed"); }
+
+    @Override public void write(int b) throws IOException {
+        ensureOpen();
+        super.write(b);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        super.write(b, off, len);
+    }
+
+    @Override public void finish() throws IOException {
+        ensureOpen();
+        super.finish();
+    }
+
+    @Override public void flush() throws IOException {
+        ensureOpen();
+        super.flush();
+    }
+
+    @Override public void close() throws IOException {
+        if (released) return;
+        try {
+            super.close();
+        } finally {
+            released = true;
+            CompressionPool.release(def, level, nowrap);
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.cobbzilla.util.io;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads gzip data like java.util.zip.GZIPInputStream (including concatenated members), but uses a pooled Inflater.
+ */
+public class PooledGZIPInputStream extends PooledInflaterInputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    // header flags
+    private static final int FHCRC    = 2;
+    private static final int FEXTRA   = 4;
+    private static final int FNAME    = 8;
+    private static final int FCOMMENT = 16;
+
+    private final CRC32 crc = new CRC32();
+    private boolean eos = false;
+
+    public PooledGZIPInputStream(InputStream in) throws IOException { this(in, DEFAULT_BUFSIZ); }
+
+    public PooledGZIPInputStream(InputStream in, int bufsiz) throws IOException {
+        super(in, true, bufsiz);
+        try {
+            readHeader(in);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override public int read(byte[] b, int off, int n) throws IOException {
+        if (eos) return -1;
+        final int count = super.read(b, off, n);
+        if (count == -1) {
+            if (readTrailer()) {
+                eos = true;
+            } else {
+                return this.read(b, off, n);
+            }
+        } else {
+            crc.update(b, off, count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of header bytes read
+     */
+    private int readHeader(InputStream input) throws IOException {
+        final CheckedInputStream in = new CheckedInputStream(input, crc);
+        crc.reset();
+        if (readUShort(in) != GZIP_MAGIC) throw new ZipException("Not in GZIP format");
+        if (readUByte(in) != 8) throw new ZipException("Unsupported compression method");
+        final int flags = readUByte(in);
+        skipBytes(in, 6); // modification time, extra flags, operating system
+        int count = 10;
+        if ((flags & FEXTRA) == FEXTRA) {
+            final int extraLen = readUShort(in);
+            skipBytes(in, extraLen);
+            count += extraLen + 2;
+        }
+        if ((flags & FNAME) == FNAME) {
+            do { count++; } while (readUByte(in) != 0);
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            do { count++; } while (readUByte(in) != 0);
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            final int expected = (int) crc.getValue() & 0xffff;
+            if (readUShort(in) != expected) throw new ZipException("Corrupt GZIP header");
+            count += 2;
+        }
+        crc.reset();
+        return count;
+    }
+
+    /**
+     * @return true if this was the last member, false if another gzip member follows
+     */
+    private boolean readTrailer() throws IOException {
+        InputStream input = this.in;
+        final int remaining = inf.getRemaining();
+        if (remaining > 0) {
+            // the inflater already read past the end of the deflate data, the trailer is in our buffer
+            input = new SequenceInputStream(new ByteArrayInputStream(buf, len - remaining, remaining),
+                                            new FilterInputStream(input) { @Override public void close() {} });
+        }
+        if (readUInt(input) != crc.getValue() || readUInt(input) != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        // a header is at least 10 bytes, and the trailer we just read was 8
+        if (this.in.available() > 0 || remaining > 26) {
+            int consumed = 8;
+            try {
+                consumed += readHeader(input);
+            } catch (IOException e) {
+                return true; // trailing garbage, ignore it
+            }
+            inf.reset();
+            if (remaining > consumed) inf.setInput(buf, len - remaining + consumed, remaining - consumed);
+            return false;
+        }
+        return true;
+    }
+
+    private long readUInt(InputStream in) throws IOException {
+        final long s = readUShort(in);
+        return ((long) readUShort(in) << 16) | s;
+    }
+
+    private int readUShort(InputStream in) throws IOException {
+        final int b = readUByte(in);
+        return (readUByte(in) << 8) | b;
+    }
+
+    private int readUByte(InputStream in) throws IOException {
+        final int b = in.read();
+        if (b == -1) throw new EOFException();
+        return b;
+    }
+
+    private void skipBytes(InputStream in, int n) throws IOException {
+        for (int i=0; i<n; i++) readUByte(in);
+    }
+
+}
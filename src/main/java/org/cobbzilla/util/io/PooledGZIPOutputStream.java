@@ -0,0 +1,52 @@
+package org.cobbzilla.util.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Writes gzip data like java.util.zip.GZIPOutputStream, but uses a pooled Deflater at a configurable level.
+ */
+public class PooledGZIPOutputStream extends PooledDeflaterOutputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    static final byte[] HEADER = {
+            (byte) GZIP_MAGIC,        // magic number (short)
+            (byte) (GZIP_MAGIC >> 8), // magic number (short)
+            8,                        // compression method: deflate
+            0,                        // flags
+            0, 0, 0, 0,               // modification time
+            0,                        // extra flags
+            0                         // operating system
+    };
+
+    private final CRC32 crc = new CRC32();
+
+    public PooledGZIPOutputStream(OutputStream out, int level) throws IOException { this(out, level, DEFAULT_BUFSIZ); }
+
+    public PooledGZIPOutputStream(OutputStream out, int level, int bufsiz) throws IOException {
+        super(out, level, true, bufsiz);
+        out.write(HEADER);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    @Override public void finish() throws IOException {
+        if (def.finished()) return;
+        super.finish();
+        writeInt((int) crc.getValue());
+        writeInt(def.getTotalIn());
+    }
+
+    // gzip trailer integers are little-endian
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.cobbzilla.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An InflaterInputStream whose Inflater is borrowed from CompressionPool and returned to it on close.
+ * With nowrap=false this reads zlib-wrapped data (HTTP "deflate" encoding); with nowrap=true it reads raw deflate data.
+ */
+public class PooledInflaterInputStream extends InflaterInputStream {
+
+    public static final int DEFAULT_BUFSIZ = 8192;
+
+    private final boolean nowrap;
+    private boolean released = false;
+
+    public PooledInflaterInputStream(InputStream in) { this(in, false, DEFAULT_BUFSIZ); }
+
+    public PooledInflaterInputStream(InputStream in, int bufsiz) { this(in, false, bufsiz); }
+
+    public PooledInflaterInputStream(InputStream in, boolean nowrap, int bufsiz) {
+        super(in, CompressionPool.inflater(nowrap), bufsiz);
+        this.nowrap = nowrap;
+    }
+
+    @Override public void close() throws IOException {
+        if (released) return;
+        try {
+            super.close();
+        } finally {
+            released = true;
+            CompressionPool.release(inf, nowrap);
+        }
+    }
+
+}
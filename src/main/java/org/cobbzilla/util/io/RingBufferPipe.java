@@ -0,0 +1,164 @@
+package org.cobbzilla.util.io;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.cobbzilla.util.system.Bytes.KB;
+
+/**
+ * A pipe between exactly one writing thread and one reading thread, backed by a ring buffer.
+ * Unlike PipedInputStream/PipedOutputStream there is no monitor and no polling: each side only writes its own
+ * position, and a side that must wait parks until the other side unparks it. Written bytes are visible to the
+ * reader immediately, so flush does nothing.
+ *
+ * The writer ends the stream by closing the output, or by calling fail, in which case the reader gets an
+ * IOException once it has read everything written before the failure. If the reader closes the input,
+ * writes fail with an IOException.
+ */
+public class RingBufferPipe {
+
+    public static final int DEFAULT_CAPACITY = (int) (64 * KB);
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // total bytes written and read. Each is only changed by its own side.
+    private volatile long writePos = 0;
+    private volatile long readPos = 0;
+
+    private volatile boolean writeClosed = false;
+    private volatile boolean readClosed = false;
+    private volatile Throwable error;
+
+    // a side sets its thread here before parking, and the other side unparks it after making progress
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+
+    @Getter private final InputStream input = new Source();
+    @Getter private final OutputStream output = new Sink();
+
+    public RingBufferPipe () { this(DEFAULT_CAPACITY); }
+
+    /** @param capacity size of the buffer, rounded up to a power of two */
+    public RingBufferPipe (int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity () { return buffer.length; }
+
+    /**
+     * End the stream with an error. The reader will get an IOException after reading everything written so far.
+     * @param t the cause
+     */
+    public void fail (Throwable t) {
+        error = t;
+        closeWrite();
+    }
+
+    private void closeWrite () {
+        writeClosed = true;
+        LockSupport.unpark(waitingReader);
+    }
+
+    private void closeRead () {
+        readClosed = true;
+        LockSupport.unpark(waitingWriter);
+    }
+
+    private static void park (Object blocker) throws InterruptedIOException {
+        LockSupport.park(blocker);
+        if (Thread.interrupted()) throw new InterruptedIOException("park: interrupted");
+    }
+
+    private class Sink extends OutputStream {
+
+        @Override public void write (int b) throws IOException { write(new byte[] {(byte) b}, 0, 1); }
+
+        @Override public void write (byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (writeClosed) throw new IOException("write: pipe closed");
+                if (readClosed) throw new IOException("write: pipe closed by reader");
+
+                final long w = writePos;
+                final int free = buffer.length - (int) (w - readPos);
+                if (free == 0) {
+                    waitingWriter = Thread.currentThread();
+                    // check again after publishing waitingWriter, so a read that happened in between is not missed
+                    if (buffer.length - (int) (w - readPos) == 0 && !readClosed) park(this);
+                    waitingWriter = null;
+                    continue;
+                }
+
+                final int n = Math.min(len, free);
+                final int start = (int) (w & mask);
+                final int first = Math.min(n, buffer.length - start);
+                System.arraycopy(b, off, buffer, start, first);
+                if (first < n) System.arraycopy(b, off + first, buffer, 0, n - first);
+                writePos = w + n;
+                off += n;
+                len -= n;
+
+                final Thread reader = waitingReader;
+                if (reader != null) LockSupport.unpark(reader);
+            }
+        }
+
+        @Override public void flush () {}
+
+        @Override public void close () { closeWrite(); }
+    }
+
+    private class Source extends InputStream {
+
+        @Override public int read () throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (readClosed) throw new IOException("read: pipe closed");
+
+                final long r = readPos;
+                final int available = (int) (writePos - r);
+                if (available == 0) {
+                    if (writeClosed) {
+                        // writeClosed is set after the last write, so check for data once more before ending
+                        if (writePos != r) continue;
+                        if (error != null) throw new IOException("read: writer failed: "+error, error);
+                        return -1;
+                    }
+                    waitingReader = Thread.currentThread();
+                    if (writePos == r && !writeClosed) park(this);
+                    waitingReader = null;
+                    continue;
+                }
+
+                final int n = Math.min(len, available);
+                final int start = (int) (r & mask);
+                final int first = Math.min(n, buffer.length - start);
+                System.arraycopy(buffer, start, b, off, first);
+                if (first < n) System.arraycopy(buffer, 0, b, off + first, n - first);
+                readPos = r + n;
+
+                final Thread writer = waitingWriter;
+                if (writer != null) LockSupport.unpark(writer);
+                return n;
+            }
+        }
+
+        @Override public int available () { return (int) (writePos - readPos); }
+
+        @Override public void close () { closeRead(); }
+    }
+
+}
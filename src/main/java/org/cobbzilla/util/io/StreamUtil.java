@@ -11,6 +11,9 @@ import java.io.*;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -166,8 +169,13 @@ public class StreamUtil {
     }
 
     public static long copyLarge(InputStream input, OutputStream output, int bufferSize) throws IOException {
-        byte[] buffer = new byte[bufferSize];
         long count = 0;
+        if (input instanceof FileInputStream && output instanceof FileOutputStream) {
+            // file to file: let the kernel copy. anything transfer cannot see (a file still growing) is copied below
+            final FileChannel in = ((FileInputStream) input).getChannel();
+            if (isSeekable(in)) count = transfer(in, ((FileOutputStream) output).getChannel());
+        }
+        byte[] buffer = new byte[bufferSize];
         int n = 0;
         while (-1 != (n = input.read(buffer))) {
             output.write(buffer, 0, n);
@@ -176,6 +184,45 @@ public class StreamUtil {
         return count;
     }
 
+    /**
+     * Copy a file channel, from its current position to the end of the file, using FileChannel.transferTo.
+     * When out is a FileChannel or a SocketChannel the OS can copy without passing the bytes through
+     * the JVM (copy_file_range or sendfile on Linux). The position of in is moved past the bytes copied.
+     * @return the number of bytes copied
+     */
+    public static long transfer(FileChannel in, WritableByteChannel out) throws IOException {
+        final long start = in.position();
+        final long size = in.size();
+        long pos = start;
+        while (pos < size) {
+            final long n = in.transferTo(pos, size - pos, out);
+            if (n <= 0) break;
+            pos += n;
+        }
+        in.position(pos);
+        return pos - start;
+    }
+
+    // false for pipes and sockets, which have no size or position
+    private static boolean isSeekable(FileChannel channel) {
+        try {
+            channel.position();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a file to a channel, for example a SocketChannel, without reading it into the heap
+     * @return the number of bytes copied
+     */
+    public static long transfer(File file, WritableByteChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return transfer(in, out);
+        }
+    }
+
     /**
      * Copy the first n bytes from input to output
      * @return the number of bytes actually copied (might be less than n if EOF was reached)
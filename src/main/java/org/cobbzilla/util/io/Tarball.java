@@ -6,23 +6,46 @@ import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.FileUtils;
-import org.cobbzilla.util.system.Command;
+import org.apache.commons.io.IOUtils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.io.File.createTempFile;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-import static org.cobbzilla.util.io.FileUtil.abs;
-import static org.cobbzilla.util.system.CommandShell.*;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+import static org.cobbzilla.util.system.Bytes.KB;
+import static org.cobbzilla.util.system.Bytes.MB;
 
 @Slf4j
 public class Tarball {
 
+    public static final int DEFAULT_THREADS = Math.max(2, processorCount());
+
+    // entries up to this size are read into memory and handed to a writer thread; larger ones are written inline
+    public static final long MAX_BUFFERED_ENTRY = 4 * MB;
+    // limit on the total size of entries read but not yet written
+    public static final long MAX_BUFFERED_BYTES = 64 * MB;
+
     /**
      * @param tarball the tarball to unroll. Can be .tar.gz or .tar.bz2
      * @return a File representing the temp directory where the tarball was unrolled
@@ -40,51 +63,185 @@ public class Tarball {
     }
 
     public static void unroll(File tarball, File dir) throws IOException, ArchiveException {
+        unroll(tarball, dir, DEFAULT_THREADS);
+    }
+
+    /**
+     * Unroll a tarball into a directory. Decompression and tar parsing happen on the calling thread, while
+     * file contents are written by a pool of threads. Permissions and modification times are set in-process.
+     * @param tarball the tarball to unroll. Can be .tar.gz or .tar.bz2
+     * @param dir the directory to unroll into
+     * @param threads the number of threads writing files
+     */
+    public static void unroll(File tarball, File dir, int threads) throws IOException, ArchiveException {
 
         final String path = tarball.getAbsolutePath();
-        final FileInputStream fileIn = new FileInputStream(tarball);
+        final InputStream fileIn = new BufferedInputStream(new FileInputStream(tarball), (int) (64 * KB));
         final CompressorInputStream zipIn;
 
         if (path.toLowerCase().endsWith(".gz") || path.toLowerCase().endsWith(".tgz")) {
-            zipIn = new GzipCompressorInputStream(fileIn);
+            zipIn = new GzipCompressorInputStream(fileIn, true);
 
         } else if (path.toLowerCase().endsWith(".bz2")) {
-            zipIn = new BZip2CompressorInputStream(fileIn);
+            zipIn = new BZip2CompressorInputStream(fileIn, true);
 
         } else {
             log.warn("tarball (" + path + ") was not .tar.gz, .tgz, or .tar.bz2, assuming .tar.gz");
-            zipIn = new GzipCompressorInputStream(fileIn);
+            zipIn = new GzipCompressorInputStream(fileIn, true);
         }
 
         @Cleanup final TarArchiveInputStream tarIn
                 = (TarArchiveInputStream) new ArchiveStreamFactory()
                 .createArchiveInputStream("tar", zipIn);
 
-        TarArchiveEntry entry;
-        while ((entry = tarIn.getNextTarEntry()) != null) {
-            String name = entry.getName();
-            if (name.startsWith("./")) name = name.substring(2);
-            if (name.startsWith("/")) name = name.substring(1); // "root"-based files just go into current dir
-            if (name.endsWith("/")) {
-                final String subdirName = name.substring(0, name.length() - 1);
-                final File subdir = new File(dir, subdirName);
-                if (!subdir.exists() && !subdir.mkdirs()) {
-                    die("Error creating directory: " + abs(subdir));
+        final Path root = dir.toPath().toAbsolutePath().normalize();
+        final Set<Path> createdDirs = new HashSet<>();
+        // the latest write to each target. an archive can hold the same path more than once (tar -r), and the
+        // last one must win, so a write waits for any earlier write to the same target before it starts
+        final Map<Path, Future<?>> writes = new LinkedHashMap<>();
+        final List<Map.Entry<Path, TarArchiveEntry>> dirs = new ArrayList<>();
+        final List<Map.Entry<Path, TarArchiveEntry>> links = new ArrayList<>();
+        final List<Map.Entry<Path, TarArchiveEntry>> symlinks = new ArrayList<>();
+        final Semaphore buffered = new Semaphore((int) MAX_BUFFERED_BYTES);
+        final ExecutorService pool = fixedPool(threads, "Tarball.unroll");
+        try {
+            TarArchiveEntry entry;
+            while ((entry = tarIn.getNextTarEntry()) != null) {
+                String name = entry.getName();
+                if (name.startsWith("./")) name = name.substring(2);
+                if (name.startsWith("/")) name = name.substring(1); // "root"-based files just go into current dir
+                if (name.endsWith("/")) name = name.substring(0, name.length() - 1);
+
+                // when "./" gets squashed to "", we skip the entry
+                if (name.trim().length() == 0) continue;
+
+                final Path target = resolve(root, name, path);
+                if (entry.isDirectory()) {
+                    mkdirs(target, createdDirs);
+                    // set directory metadata last: writing files would change the mtime, and the mode might not allow writes
+                    dirs.add(new AbstractMap.SimpleImmutableEntry<>(target, entry));
+                    continue;
+                }
+                mkdirs(target.getParent(), createdDirs);
+
+                // links are created after everything else, so no file is ever written through a symlink
+                if (entry.isSymbolicLink()) {
+                    symlinks.add(new AbstractMap.SimpleImmutableEntry<>(target, entry));
+                    continue;
+                }
+                if (entry.isLink()) {
+                    links.add(new AbstractMap.SimpleImmutableEntry<>(target, entry));
+                    continue;
+                }
+                if (!entry.isFile() || entry.isCharacterDevice() || entry.isBlockDevice() || entry.isFIFO()) {
+                    log.warn("unroll: skipping special file "+entry.getName()+" in tarball "+path);
+                    continue;
                 }
-                continue;
-            }
 
-            // when "./" gets squashed to "", we skip the entry
-            if (name.trim().length() == 0) continue;
+                final Future<?> previous = writes.remove(target);
+                if (previous != null) await(previous, path);
 
-            final File file = new File(dir, name);
-            try (OutputStream out = new FileOutputStream(file)) {
-                if (StreamUtil.copyNbytes(tarIn, out, entry.getSize()) != entry.getSize()) {
-                    die("Expected to copy "+entry.getSize()+ " bytes for "+entry.getName()+" in tarball "+ path);
+                final long size = entry.getSize();
+                if (size > MAX_BUFFERED_ENTRY) {
+                    // too big to hold in memory, write it from this thread
+                    try (OutputStream out = new FileOutputStream(target.toFile())) {
+                        if (StreamUtil.copyNbytes(tarIn, out, size) != size) {
+                            die("Expected to copy "+size+ " bytes for "+entry.getName()+" in tarball "+ path);
+                        }
+                    }
+                    setMetadata(target, entry);
+                    continue;
                 }
+
+                final byte[] data = new byte[(int) size];
+                if (IOUtils.read(tarIn, data) != size) die("Expected to read "+size+ " bytes for "+entry.getName()+" in tarball "+ path);
+                final TarArchiveEntry fileEntry = entry;
+                buffered.acquireUninterruptibly((int) size);
+                writes.put(target, pool.submit(() -> {
+                    try {
+                        Files.write(target, data);
+                        setMetadata(target, fileEntry);
+                        return null;
+                    } finally {
+                        buffered.release((int) size);
+                    }
+                }));
+            }
+            for (Future<?> write : writes.values()) await(write, path);
+
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (Map.Entry<Path, TarArchiveEntry> link : links) {
+            String linkName = link.getValue().getLinkName();
+            if (linkName.startsWith("./")) linkName = linkName.substring(2);
+            if (linkName.startsWith("/")) linkName = linkName.substring(1);
+            final Path linkTarget = resolve(root, linkName, path);
+            Files.deleteIfExists(link.getKey());
+            try {
+                Files.createLink(link.getKey(), linkTarget);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(linkTarget, link.getKey());
             }
-            chmod(file, Integer.toOctalString(entry.getMode()));
         }
+        for (Map.Entry<Path, TarArchiveEntry> link : symlinks) {
+            Files.deleteIfExists(link.getKey());
+            Files.createSymbolicLink(link.getKey(), Paths.get(link.getValue().getLinkName()));
+        }
+
+        // deepest directories first, so a parent's mtime is not changed by setting its children's metadata
+        dirs.sort((d1, d2) -> Integer.compare(d2.getKey().getNameCount(), d1.getKey().getNameCount()));
+        for (Map.Entry<Path, TarArchiveEntry> d : dirs) setMetadata(d.getKey(), d.getValue());
+    }
+
+    private static Path resolve(Path root, String name, String tarball) {
+        final Path target = root.resolve(name).normalize();
+        if (!target.startsWith(root)) return die("unroll: entry "+name+" would be written outside "+root+" in tarball "+tarball);
+        return target;
+    }
+
+    private static void mkdirs(Path dir, Set<Path> created) throws IOException {
+        if (dir == null || created.contains(dir)) return;
+        Files.createDirectories(dir);
+        created.add(dir);
+    }
+
+    private static void await(Future<?> f, String tarball) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("unroll: interrupted extracting "+tarball);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("unroll: error extracting "+tarball+": "+cause, cause);
+        }
+    }
+
+    private static final PosixFilePermission[] PERMISSION_BITS = PosixFilePermission.values(); // OWNER_READ (0400) ... OTHERS_EXECUTE (0001)
+
+    public static Set<PosixFilePermission> permissions(int mode) {
+        final Set<PosixFilePermission> perms = EnumSet.noneOf(PosixFilePermission.class);
+        for (int i=0; i<PERMISSION_BITS.length; i++) {
+            if ((mode & (1 << (PERMISSION_BITS.length - 1 - i))) != 0) perms.add(PERMISSION_BITS[i]);
+        }
+        return perms;
+    }
+
+    public static int mode(Set<PosixFilePermission> perms) {
+        int mode = 0;
+        for (PosixFilePermission p : perms) mode |= 1 << (PERMISSION_BITS.length - 1 - p.ordinal());
+        return mode;
+    }
+
+    private static void setMetadata(Path path, TarArchiveEntry entry) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, permissions(entry.getMode()));
+        } catch (UnsupportedOperationException e) {
+            if (log.isDebugEnabled()) log.debug("setMetadata: not a POSIX filesystem, not setting mode of "+path);
+        }
+        if (entry.getModTime() != null) Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getModTime().getTime()));
     }
 
     /**
@@ -116,27 +273,52 @@ public class Tarball {
     public static File roll (File tarball, File dir, File cwd) throws IOException {
 
         if (cwd == null) cwd = dir;
-        final String dirAbsPath = abs(dir);
-        final String cwdAbsPath = abs(cwd);
-
-        final String dirPath;
-        if (dirAbsPath.equals(cwdAbsPath)) {
-            dirPath = ".";
+        final Path dirPath = dir.toPath().toAbsolutePath().normalize();
+        final Path cwdPath = cwd.toPath().toAbsolutePath().normalize();
+        if (!dirPath.startsWith(cwdPath)) return die("tarball dir is not within cwd");
 
-        } else if (dirAbsPath.startsWith(cwdAbsPath)) {
-            dirPath = cwdAbsPath.substring(dirAbsPath.length());
+        // entries are named like those from "tar czf tarball ." (or "tar czf tarball path/to/dir") run from within cwd
+        final String prefix = dirPath.equals(cwdPath) ? "." : cwdPath.relativize(dirPath).toString();
+        final Path tarballPath = tarball.toPath().toAbsolutePath().normalize();
 
-        } else {
-            return die("tarball dir is not within cwd");
+        final List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dirPath)) {
+            paths = walk.filter(p -> !p.equals(tarballPath)).sorted().collect(Collectors.toList());
         }
 
-        final CommandLine command = new CommandLine("tar")
-                .addArgument("czf")
-                .addArgument(tarball.getAbsolutePath())
-                .addArgument(dirPath);
-
-        okResult(exec(new Command(command).setDir(cwd)));
+        try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(
+                new ParallelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tarball), (int) (256 * KB))))) {
+            tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
 
+            for (Path p : paths) {
+                final String name = p.equals(dirPath) ? prefix : prefix + "/" + dirPath.relativize(p).toString().replace(File.separatorChar, '/');
+                // entries are built by hand: the File-based constructor can add pax headers that older tars warn about
+                final TarArchiveEntry entry;
+                final int type;
+                if (Files.isSymbolicLink(p)) {
+                    entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+                    entry.setLinkName(Files.readSymbolicLink(p).toString());
+                    type = TarArchiveEntry.DEFAULT_FILE_MODE & ~0777;
+                } else if (Files.isDirectory(p)) {
+                    entry = new TarArchiveEntry(name.endsWith("/") ? name : name + "/");
+                    type = TarArchiveEntry.DEFAULT_DIR_MODE & ~0777;
+                } else {
+                    entry = new TarArchiveEntry(name);
+                    entry.setSize(Files.size(p));
+                    type = TarArchiveEntry.DEFAULT_FILE_MODE & ~0777;
+                }
+                entry.setModTime(Files.getLastModifiedTime(p, LinkOption.NOFOLLOW_LINKS).toMillis());
+                try {
+                    entry.setMode(type | mode(Files.getPosixFilePermissions(p, LinkOption.NOFOLLOW_LINKS)));
+                } catch (UnsupportedOperationException e) {
+                    // not a POSIX filesystem, keep the default mode
+                }
+                tarOut.putArchiveEntry(entry);
+                if (!entry.isDirectory() && !entry.isSymbolicLink()) Files.copy(p, tarOut);
+                tarOut.closeArchiveEntry();
+            }
+        }
         return tarball;
     }
 
@@ -1,27 +1,207 @@
 package org.cobbzilla.util.io;
 
 import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.string.StringUtil;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.io.FileUtil.abs;
-import static org.cobbzilla.util.security.ShaUtil.sha256_file;
+import static org.cobbzilla.util.system.Bytes.KB;
 
-@Slf4j
+/**
+ * Finds duplicate files. Visiting a file only records its size; duplicates are found afterwards by findDuplicates,
+ * which narrows the candidates in stages so that most files are never read:
+ * <ol>
+ *     <li>files are grouped by size. A file whose size is unique cannot have a duplicate.</li>
+ *     <li>within each size group, the first and last SAMPLE_SIZE bytes of each file are hashed.</li>
+ *     <li>only files whose samples collide are hashed in full, with SHA-256.</li>
+ * </ol>
+ * Hashing is done in-process, on a pool of threads, and each group of duplicates is reported as soon as it is found.
+ */
+@Slf4j @Accessors(chain=true)
 public class UniqueFileFsWalker implements FilesystemVisitor {
 
-    @Getter private Map<String, Set<String>> hash;
+    public static final int SAMPLE_SIZE = (int) (4 * KB);
+    public static final int READ_BUFFER_SIZE = (int) (64 * KB);
 
-    public UniqueFileFsWalker (int size) { hash = new ConcurrentHashMap<>(size); }
+    public static final String EMPTY_SHA256 = StringUtil.tohex(md().digest());
+
+    public interface DuplicateHandler {
+        /**
+         * Called once for each group of identical files. Calls are never concurrent.
+         * @param hash the SHA-256 of the files, as hex
+         * @param size the size of each file
+         * @param paths the absolute paths of the files, at least two
+         */
+        void duplicates (String hash, long size, List<String> paths) throws Exception;
+    }
+
+    @Getter @Setter private int threads = 5;
+
+    private final Map<Long, Queue<String>> bySize;
+
+    /**
+     * Groups of duplicates, by SHA-256, populated by findDuplicates. Files that have no duplicate are not hashed in full and so do not appear here.
+     */
+    @Getter private final Map<String, Set<String>> hash = new ConcurrentHashMap<>();
+
+    public UniqueFileFsWalker (int size) { bySize = new ConcurrentHashMap<>(size); }
 
     @Override public void visit(File file) {
         final String path = abs(file);
         log.debug(path);
-        hash.computeIfAbsent(sha256_file(file), k -> new HashSet<>()).add(path);
+        bySize.computeIfAbsent(file.length(), k -> new ConcurrentLinkedQueue<>()).add(path);
     }
+
+    /**
+     * Find duplicates among the files visited, and populate getHash
+     * @return the number of groups of duplicates
+     */
+    public int findDuplicates () { return findDuplicates(null); }
+
+    /**
+     * Find duplicates among the files visited, and populate getHash
+     * @param handler if not null, called for each group of duplicates as it is found
+     * @return the number of groups of duplicates
+     */
+    public int findDuplicates (DuplicateHandler handler) {
+        final AtomicInteger count = new AtomicInteger(0);
+        final ExecutorService pool = fixedPool(threads, getClass().getSimpleName());
+        try {
+            final List<CompletableFuture<?>> groups = new ArrayList<>();
+            for (Map.Entry<Long, Queue<String>> entry : bySize.entrySet()) {
+                final long size = entry.getKey();
+                final List<String> paths = new ArrayList<>(entry.getValue());
+                if (paths.size() < 2) continue;
+                if (size == 0) {
+                    found(EMPTY_SHA256, size, paths, handler, count);
+                    continue;
+                }
+                groups.add(hashAll(paths, path -> sampleHash(path, size), pool).thenCompose(bySample -> {
+                    final List<CompletableFuture<?>> full = new ArrayList<>();
+                    for (Map.Entry<String, List<String>> sample : bySample.entrySet()) {
+                        final List<String> candidates = sample.getValue();
+                        if (candidates.size() < 2) continue;
+                        if (size <= 2 * SAMPLE_SIZE) {
+                            // the sample was the whole file, so its hash is the full hash
+                            found(sample.getKey(), size, candidates, handler, count);
+                        } else {
+                            full.add(hashAll(candidates, UniqueFileFsWalker::fullHash, pool).thenAccept(byHash -> {
+                                for (Map.Entry<String, List<String>> dups : byHash.entrySet()) {
+                                    if (dups.getValue().size() > 1) found(dups.getKey(), size, dups.getValue(), handler, count);
+                                }
+                            }));
+                        }
+                    }
+                    return CompletableFuture.allOf(full.toArray(new CompletableFuture[0]));
+                }));
+            }
+            CompletableFuture.allOf(groups.toArray(new CompletableFuture[0])).get();
+
+        } catch (InterruptedException e) {
+            return die("findDuplicates: interrupted");
+        } catch (ExecutionException e) {
+            return die("findDuplicates: "+e.getCause(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return count.get();
+    }
+
+    private synchronized void found (String sha, long size, List<String> paths, DuplicateHandler handler, AtomicInteger count) {
+        hash.computeIfAbsent(sha, k -> new HashSet<>()).addAll(paths);
+        count.incrementAndGet();
+        if (handler != null) {
+            try {
+                handler.duplicates(sha, size, paths);
+            } catch (Exception e) {
+                die("found: handler failed: "+e, e);
+            }
+        }
+    }
+
+    // hash each path on the pool, then group the paths by hash. Paths that cannot be read are left out.
+    private static CompletableFuture<Map<String, List<String>>> hashAll (List<String> paths,
+                                                                         Function<String, String> hasher,
+                                                                         ExecutorService pool) {
+        final List<CompletableFuture<String>> hashes = new ArrayList<>(paths.size());
+        for (String path : paths) hashes.add(CompletableFuture.supplyAsync(() -> hasher.apply(path), pool));
+        return CompletableFuture.allOf(hashes.toArray(new CompletableFuture[0])).thenApply(v -> {
+            final Map<String, List<String>> byHash = new HashMap<>();
+            for (int i=0; i<paths.size(); i++) {
+                final String h = hashes.get(i).join();
+                if (h != null) byHash.computeIfAbsent(h, k -> new ArrayList<>()).add(paths.get(i));
+            }
+            return byHash;
+        });
+    }
+
+    // hash the first and last SAMPLE_SIZE bytes. If the file is no larger than that, the whole file is hashed.
+    private static String sampleHash (String path, long size) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final MessageDigest md = md();
+            if (size <= 2 * SAMPLE_SIZE) {
+                update(md, channel, 0, size);
+            } else {
+                update(md, channel, 0, SAMPLE_SIZE);
+                update(md, channel, size - SAMPLE_SIZE, SAMPLE_SIZE);
+            }
+            return StringUtil.tohex(md.digest());
+
+        } catch (IOException e) {
+            log.warn("sampleHash: skipping "+path+": "+e);
+            return null;
+        }
+    }
+
+    private static String fullHash (String path) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            final MessageDigest md = md();
+            update(md, channel, 0, Long.MAX_VALUE);
+            return StringUtil.tohex(md.digest());
+
+        } catch (IOException e) {
+            log.warn("fullHash: skipping "+path+": "+e);
+            return null;
+        }
+    }
+
+    private static void update (MessageDigest md, FileChannel channel, long position, long len) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, len));
+        while (len > 0) {
+            buffer.clear();
+            if (len < buffer.capacity()) buffer.limit((int) len);
+            final int read = channel.read(buffer, position);
+            if (read == -1) break;
+            position += read;
+            len -= read;
+            buffer.flip();
+            md.update(buffer);
+        }
+    }
+
+    private static MessageDigest md () {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return die("md: SHA-256 not available: "+e, e);
+        }
+    }
+
 }
@@ -0,0 +1,186 @@
+package org.cobbzilla.util.io;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.TimerWheel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Shares one WatchService, and one thread to read it, among any number of watched directories.
+ * Each registration receives the events for its directory. Several registrations for the same directory share one WatchKey.
+ *
+ * If a directory cannot be registered, for example because it does not exist yet, or if it is removed while being
+ * watched, the registration's listener decides whether and when to try again; retries are scheduled on a TimerWheel.
+ *
+ * Listeners are called on the dispatch thread, so they should return quickly.
+ */
+@Slf4j
+public class WatchMultiplexer {
+
+    private static class Shared {
+        static final WatchMultiplexer INSTANCE = new WatchMultiplexer(TimerWheel.shared());
+    }
+
+    /** @return the process-wide multiplexer, created on first use */
+    public static WatchMultiplexer instance () { return Shared.INSTANCE; }
+
+    public interface WatchListener {
+
+        /** Called with each batch of events for the directory */
+        void onEvents (Path dir, List<WatchEvent<?>> events);
+
+        /** Called each time the directory is registered, including after a retry */
+        default void onRegistered (Path dir) {}
+
+        /**
+         * Called when the directory could not be registered, or was removed while being watched
+         * @return how many milliseconds to wait before trying again, or null to stop trying
+         */
+        default Long onRegisterFailed (Path dir, Exception e) { return null; }
+    }
+
+    private final TimerWheel timers;
+    private final Map<FileSystem, WatchService> services = new HashMap<>();
+    private final Map<WatchKey, Set<Registration>> registrations = new ConcurrentHashMap<>();
+    // guards registering and cancelling keys, so a key cannot be cancelled while a new registration is being added to it
+    private final Object lock = new Object();
+
+    public WatchMultiplexer (TimerWheel timers) { this.timers = timers; }
+
+    /**
+     * Start watching a directory
+     * @param dir the directory to watch
+     * @param listener receives events
+     * @return the registration. Close it to stop watching.
+     */
+    public Registration register (Path dir, WatchListener listener) {
+        final Registration registration = new Registration(dir, listener);
+        registration.register();
+        return registration;
+    }
+
+    public int numWatchedDirectories () { return registrations.size(); }
+
+    private WatchService service (FileSystem fs) throws IOException {
+        synchronized (services) {
+            WatchService service = services.get(fs);
+            if (service == null) {
+                service = fs.newWatchService();
+                services.put(fs, service);
+                final WatchService s = service;
+                final Thread thread = new Thread(() -> dispatch(s), getClass().getSimpleName()+".dispatch");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return service;
+        }
+    }
+
+    private void dispatch (WatchService service) {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                log.warn("dispatch: exiting: "+e);
+                return;
+            }
+            final List<WatchEvent<?>> events = key.pollEvents();
+            final Set<Registration> regs = registrations.get(key);
+            if (regs != null) for (Registration r : regs) r.deliver(events);
+
+            if (!key.reset()) {
+                // the directory was removed, or every registration for it was closed
+                final Set<Registration> orphans;
+                synchronized (lock) { orphans = registrations.remove(key); }
+                if (orphans != null) for (Registration r : orphans) r.invalidated();
+            }
+        }
+    }
+
+    private void release (WatchKey key, Registration registration) {
+        synchronized (lock) {
+            final Set<Registration> regs = registrations.get(key);
+            if (regs == null) return;
+            regs.remove(registration);
+            if (regs.isEmpty()) {
+                registrations.remove(key);
+                key.cancel();
+            }
+        }
+    }
+
+    public class Registration implements Closeable {
+
+        @Getter private final Path path;
+        private final WatchListener listener;
+        private WatchKey key;
+        private TimerWheel.Timeout retry;
+        private boolean closed = false;
+
+        private Registration (Path path, WatchListener listener) {
+            this.path = path;
+            this.listener = listener;
+        }
+
+        public synchronized boolean isActive () { return key != null; }
+
+        private synchronized void register () {
+            retry = null;
+            if (closed || key != null) return;
+            try {
+                final WatchService service = service(path.getFileSystem());
+                synchronized (lock) {
+                    // registering a directory that is already registered returns its existing key
+                    final WatchKey k = path.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    registrations.computeIfAbsent(k, x -> ConcurrentHashMap.newKeySet()).add(this);
+                    key = k;
+                }
+                log.info("register: watching "+path);
+                listener.onRegistered(path);
+
+            } catch (Exception e) {
+                retry(e);
+            }
+        }
+
+        private void retry (Exception e) {
+            final Long delay = listener.onRegisterFailed(path, e);
+            if (delay == null) {
+                log.warn("retry: not watching "+path+": "+e);
+            } else {
+                retry = timers.schedule(this::register, delay);
+            }
+        }
+
+        private synchronized void invalidated () {
+            key = null;
+            if (closed) return;
+            log.warn("invalidated: watch on "+path+" is no longer valid, perhaps it was removed?");
+            register();
+        }
+
+        private void deliver (List<WatchEvent<?>> events) {
+            try {
+                listener.onEvents(path, events);
+            } catch (Exception e) {
+                log.error("deliver: listener for "+path+" failed: "+e, e);
+            }
+        }
+
+        @Override public synchronized void close () {
+            closed = true;
+            if (retry != null) retry.cancel();
+            if (key != null) release(key, this);
+            key = null;
+        }
+    }
+
+}
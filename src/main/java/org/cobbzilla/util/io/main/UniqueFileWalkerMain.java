@@ -12,9 +12,7 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.Set;
-
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UniqueFileWalkerMain extends BaseMain<UniqueFileWalkerOptions> {
 
@@ -23,7 +21,7 @@ public class UniqueFileWalkerMain extends BaseMain<UniqueFileWalkerOptions> {
     @Override protected void run() throws Exception {
         final UniqueFileWalkerOptions options = getOptions();
 
-        final UniqueFileFsWalker visitor = new UniqueFileFsWalker(options.getSize());
+        final UniqueFileFsWalker visitor = new UniqueFileFsWalker(options.getSize()).setThreads(options.getThreads());
         final AwaitResult result = new FilesystemWalker()
                 .setSize(options.getSize())
                 .setThreads(options.getThreads())
@@ -41,7 +39,6 @@ public class UniqueFileWalkerMain extends BaseMain<UniqueFileWalkerOptions> {
                 out(">>>>> "+result.getTimeouts().size()+" timeouts");
             }
         }
-        int i=1;
         OutputStream out;
         if (options.hasOutfile()) {
             out = new TeeOutputStream(new FileOutputStream(options.getOutfile()), System.out);
@@ -49,10 +46,12 @@ public class UniqueFileWalkerMain extends BaseMain<UniqueFileWalkerOptions> {
             out = System.out;
         }
         @Cleanup final Writer w = new OutputStreamWriter(out);
-        for (Set<String> dup : visitor.getHash().values().stream().filter(v -> v.size() > 1).collect(toList())) {
-            w.write("\n----- dup#" + (i++) + ": \n");
+        final AtomicInteger i = new AtomicInteger(1);
+        visitor.findDuplicates((hash, size, dup) -> {
+            w.write("\n----- dup#" + i.getAndIncrement() + ": \n");
             w.write(StringUtil.toString(dup, "\n"));
-        }
+            w.flush();
+        });
     }
 
 }
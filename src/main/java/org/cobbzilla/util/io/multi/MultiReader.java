@@ -7,25 +7,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.ArrayList;
-import java.util.List;
 
+/**
+ * Reads a sequence of readers as one reader. Readers may be added while it is being read, from another thread.
+ * A reader that runs out of data waits until another reader is added, or the last reader has been added, or
+ * the underflow handler times out. Adding a reader waits while maxPendingReaders are already waiting to be read.
+ */
 @Slf4j
 public class MultiReader extends Reader {
 
-    private final List<Reader> readers = new ArrayList<>();
     private Reader currentReader;
-    private int readerIndex = 0;
-    private boolean endOfReaders = false;
     @Getter private final MultiUnderflowHandler underflow = new MultiUnderflowHandler();
+    private final PendingQueue<Reader> pending = new PendingQueue<>(underflow);
 
     public MultiReader (Reader r, boolean last) {
-        if (last) {
-            addLastReader(r);
-        } else {
-            addReader(r);
-        }
         currentReader = r;
+        if (last) pending.end();
     }
 
     public MultiReader (Reader r) { this(r, false); }
@@ -34,42 +31,52 @@ public class MultiReader extends Reader {
 
     public MultiReader (InputStream in, boolean last) { this(new InputStreamReader(in), last); }
 
+    public int getMaxPendingReaders () { return pending.getMaxPending(); }
+    public MultiReader setMaxPendingReaders (int max) { pending.setMaxPending(max); return this; }
+
+    public int pendingReaderCount () { return pending.size(); }
+
     public void addReader (Reader r) {
-        if (endOfReaders) {
-            log.warn("addReader: endOfReaders is true, not adding reader");
-        } else {
-            readers.add(r);
-        }
+        if (!pending.add(r, false)) log.warn("addReader: endOfReaders is true or reader is closed, not adding reader");
     }
 
     public void addLastReader (Reader r) {
-        addReader(r);
-        endOfReaders = true;
+        if (!pending.add(r, true)) log.warn("addLastReader: endOfReaders is true or reader is closed, not adding reader");
     }
 
     public void addStream (InputStream in) { addReader(new InputStreamReader(in)); }
 
     public void addLastStream (InputStream in) { addLastReader(new InputStreamReader(in)); }
 
+    // move to the next reader, if there is one yet
+    private boolean nextReader () throws IOException {
+        final Reader next = pending.poll();
+        if (next == null) return false;
+        currentReader.close();
+        currentReader = next;
+        return true;
+    }
+
     @Override public int read(char[] buf, int off, int len) throws IOException {
-        int count = currentReader.read(buf, off, len);
-        if (count == -1) {
-            if (readerIndex == readers.size()-1) {
-                if (endOfReaders) return -1;
-                underflow.handleUnderflow();
-                return 0;
+        while (true) {
+            final int count = currentReader.read(buf, off, len);
+            if (count != -1) {
+                underflow.handleSuccessfulRead();
+                return count;
+            }
+            if (nextReader()) continue;
+            if (pending.isEnded()) {
+                // the last reader may have been added since nextReader looked
+                if (nextReader()) continue;
+                return -1;
             }
-            currentReader.close();
-            readerIndex++;
-            currentReader = readers.get(readerIndex);
-            return read(buf, off, len);
+            underflow.handleUnderflow(pending::hasNextOrEnded);
         }
-        underflow.handleSuccessfulRead();
-        return count;
     }
 
     @Override public void close() throws IOException {
         if (currentReader != null) currentReader.close();
         underflow.close();
+        pending.close();
     }
 }
@@ -8,29 +8,32 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Reads a sequence of streams as one stream. Streams may be added while it is being read, from another thread.
+ * A reader that runs out of data waits until another stream is added, or the last stream has been added, or
+ * the underflow handler times out. Adding a stream waits while maxPendingStreams are already waiting to be read.
+ */
 @Slf4j
 public class MultiStream extends InputStream {
 
+    // the streams read so far and the current stream. Only the reading thread changes this
     private final List<InputStream> streams = new ArrayList<>();
     private InputStream currentStream;
     private int streamIndex = 0;
-    private boolean endOfStreams = false;
 
     private Integer markedStreamIndex = null;
     private int markReadLimit = 0;
 
     @Getter private final MultiUnderflowHandler underflow = new MultiUnderflowHandler();
+    private final PendingQueue<InputStream> pending = new PendingQueue<>(underflow);
 
     public MultiStream (InputStream r, boolean last) { this(r, last, "no-name"); }
 
     public MultiStream (InputStream r, boolean last, String name) {
         underflow.setHandlerName(name);
-        if (last) {
-            addLastStream(r);
-        } else {
-            addStream(r);
-        }
+        streams.add(r);
         currentStream = r;
+        if (last) pending.end();
         if (log.isInfoEnabled()) log.info(logPrefix()+"created with initial stream="+r+", last="+last);
     }
 
@@ -58,81 +61,95 @@ public class MultiStream extends InputStream {
         markedStreamIndex = null;
     }
 
-    public int pendingStreamCount () { return streams.size() - streamIndex; }
+    public int pendingStreamCount () { return streams.size() - streamIndex + pending.size(); }
 
     public MultiStream setUnderflowTimeout(long timeout) { getUnderflow().setUnderflowTimeout(timeout); return this; }
 
+    public int getMaxPendingStreams () { return pending.getMaxPending(); }
+    public MultiStream setMaxPendingStreams (int max) { pending.setMaxPending(max); return this; }
+
     @Override public String toString () {
-        return "MultiStream{name="+underflow.getHandlerName()+", "+streams.size()+" streams, index="+streamIndex+", EOS="+endOfStreams+"}";
+        return "MultiStream{name="+underflow.getHandlerName()+", "+streams.size()+" streams, index="+streamIndex+", pending="+pending.size()+", EOS="+pending.isEnded()+"}";
     }
 
     private String logPrefix () { return this + ": "; }
 
     public void addStream (InputStream in) {
-        if (endOfStreams) {
-            if (log.isWarnEnabled()) log.warn(logPrefix()+"addStream: endOfStreams is true, not adding InputStream");
+        if (!pending.add(in, false)) {
+            if (log.isWarnEnabled()) log.warn(logPrefix()+"addStream: endOfStreams is true or stream is closed, not adding InputStream");
         } else {
-            streams.add(in);
             if (log.isTraceEnabled()) log.trace(logPrefix()+"addStream: added stream ("+in.getClass().getSimpleName()+")");
         }
     }
 
     public void addLastStream (InputStream in) {
-        addStream(in);
-        endOfStreams = true;
-        if (log.isTraceEnabled()) log.trace(logPrefix()+"addLastStream: added last stream ("+in.getClass().getSimpleName()+")");
+        if (!pending.add(in, true)) {
+            if (log.isWarnEnabled()) log.warn(logPrefix()+"addLastStream: endOfStreams is true or stream is closed, not adding InputStream");
+        } else {
+            if (log.isTraceEnabled()) log.trace(logPrefix()+"addLastStream: added last stream ("+in.getClass().getSimpleName()+")");
+        }
     }
 
+    // move to the next stream, if there is one yet
+    private boolean nextStream () throws IOException {
+        final InputStream next;
+        if (streamIndex < streams.size()-1) {
+            // we were reset to an earlier stream
+            next = streams.get(streamIndex+1);
+        } else {
+            next = pending.poll();
+            if (next == null) return false;
+            streams.add(next);
+        }
+        if (markedStreamIndex == null) {
+            currentStream.close();
+        }
+        streamIndex++;
+        currentStream = next;
+        if (markedStreamIndex != null) currentStream.mark(markReadLimit);
+        if (log.isTraceEnabled()) log.trace(logPrefix()+"nextStream: end of stream, advanced to next stream ("+currentStream.getClass().getSimpleName()+")");
+        return true;
+    }
+
+    private boolean canAdvance () { return streamIndex < streams.size()-1 || pending.hasNextOrEnded(); }
+
     @Override public int read() throws IOException {
-        final int val = currentStream.read();
-        if (val == -1) {
-            if (streamIndex == streams.size()-1) {
-                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte): end of all streams? this="+this);
-                if (endOfStreams) return -1;
-                underflow.handleUnderflow();
-                return 0;
+        while (true) {
+            final int val = currentStream.read();
+            if (val != -1) {
+                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte): one byte read");
+                underflow.handleSuccessfulRead();
+                return val;
             }
-            if (markedStreamIndex == null) {
-                currentStream.close();
+            if (nextStream()) continue;
+            if (pending.isEnded()) {
+                // the last stream may have been added since nextStream looked
+                if (nextStream()) continue;
+                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte): end of all streams, this="+this);
+                return -1;
             }
-            streamIndex++;
-            currentStream = streams.get(streamIndex);
-            if (markedStreamIndex != null) currentStream.mark(markReadLimit);
-            if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte): end of all stream, advanced to next stream ("+currentStream.getClass().getSimpleName()+")");
-            return read();
-
-        } else {
-            if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte): one byte read");
+            underflow.handleUnderflow(this::canAdvance);
         }
-        underflow.handleSuccessfulRead();
-        return val;
     }
 
     @Override public int read(byte[] buf, int off, int len) throws IOException {
         if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): trying to read "+len+" bytes");
-        final int count = currentStream.read(buf, off, len);
-        if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): trying to read "+count+" bytes");
-        if (count == -1) {
-            if (streamIndex == streams.size()-1) {
-                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): end of all streams?");
-                if (endOfStreams) return -1;
-                underflow.handleUnderflow();
-                return 0;
+        while (true) {
+            final int count = currentStream.read(buf, off, len);
+            if (count != -1) {
+                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): "+count+" bytes read");
+                underflow.handleSuccessfulRead();
+                return count;
             }
-            if (markedStreamIndex == null) {
-                currentStream.close();
+            if (nextStream()) continue;
+            if (pending.isEnded()) {
+                // the last stream may have been added since nextStream looked
+                if (nextStream()) continue;
+                if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): end of all streams");
+                return -1;
             }
-            streamIndex++;
-            currentStream = streams.get(streamIndex);
-            if (markedStreamIndex != null) currentStream.mark(markReadLimit);
-            if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): end of all stream, advanced to next stream ("+currentStream.getClass().getSimpleName()+")");
-            return read(buf, off, len);
-
-        } else {
-            if (log.isTraceEnabled()) log.trace(logPrefix()+"read(byte[]): "+count+" bytes read");
+            underflow.handleUnderflow(this::canAdvance);
         }
-        underflow.handleSuccessfulRead();
-        return count;
     }
 
     @Override public void close() throws IOException {
@@ -140,6 +157,7 @@ public class MultiStream extends InputStream {
         else if (log.isTraceEnabled()) log.trace(logPrefix()+"close: closing current stream ("+(currentStream == null ? "null" : currentStream.getClass().getSimpleName())+"). name="+underflow.getHandlerName());
         if (currentStream != null) currentStream.close();
         underflow.close();
+        pending.close();
     }
 
 }
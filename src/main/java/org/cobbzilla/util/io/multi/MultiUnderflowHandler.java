@@ -7,13 +7,25 @@ import lombok.extern.slf4j.Slf4j;
 import org.cobbzilla.util.io.regex.MultiUnderflowException;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 import static java.util.UUID.randomUUID;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.cobbzilla.util.daemon.ZillaRuntime.now;
-import static org.cobbzilla.util.system.Sleep.sleep;
 
+/**
+ * Handles a MultiStream or MultiReader running out of data before its last stream has been added.
+ * The reading thread waits on a condition until dataArrived is called, so a newly added stream is read at once.
+ * If no data arrives within underflowTimeout of the first underflow, a MultiUnderflowException is thrown.
+ *
+ * Also keeps metrics: how often and how long readers waited for data, and writers waited for space (backpressure).
+ */
 @Slf4j @Accessors(chain=true)
 public class MultiUnderflowHandler {
 
@@ -28,20 +40,72 @@ public class MultiUnderflowHandler {
 
     @Getter private final String id = randomUUID().toString();
     @Getter @Setter private String handlerName;
-    @Getter private long minUnderflowSleep = 10;
-    public MultiUnderflowHandler setMinUnderflowSleep(long s) { underflowSleep = minUnderflowSleep = s; return this; }
 
+    // no longer used: waiting is driven by dataArrived, not by sleeping. kept for compatibility
+    @Getter @Setter private long minUnderflowSleep = 10;
+
+    // the longest handleUnderflow() waits for dataArrived before returning. handleUnderflow(BooleanSupplier) does not use this
     @Getter @Setter private long maxUnderflowSleep = 500;
 
     @Getter @Setter private long lastRead = 0;
     @Getter @Setter private long firstUnderflow = 0;
     @Getter @Setter private long underflowTimeout = SECONDS.toMillis(60);
-    private long underflowSleep = minUnderflowSleep;
     @Getter private Thread thread;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     public boolean closed () { return closed.get(); }
 
-    public void handleUnderflow() throws IOException {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataArrived = lock.newCondition();
+
+    private final AtomicLong underflowCount = new AtomicLong();
+    private final AtomicLong underflowWaitNanos = new AtomicLong();
+    private final AtomicLong backpressureCount = new AtomicLong();
+    private final AtomicLong backpressureWaitNanos = new AtomicLong();
+
+    /** @return the number of times a reader ran out of data and had to wait */
+    public long getUnderflowCount () { return underflowCount.get(); }
+
+    /** @return total time readers spent waiting for data */
+    public long getUnderflowWaitMillis () { return TimeUnit.NANOSECONDS.toMillis(underflowWaitNanos.get()); }
+
+    /** @return the number of times adding a stream had to wait for the reader to make room */
+    public long getBackpressureCount () { return backpressureCount.get(); }
+
+    /** @return total time spent waiting to add streams */
+    public long getBackpressureWaitMillis () { return TimeUnit.NANOSECONDS.toMillis(backpressureWaitNanos.get()); }
+
+    public void recordBackpressure (long nanos) {
+        backpressureCount.incrementAndGet();
+        backpressureWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Wake any reader waiting in handleUnderflow. Call after adding data.
+     */
+    public void dataArrived () {
+        lock.lock();
+        try {
+            dataArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until dataArrived is called, or maxUnderflowSleep elapses.
+     * @throws MultiUnderflowException if the underflow has lasted longer than underflowTimeout
+     */
+    public void handleUnderflow() throws IOException { await(null); }
+
+    /**
+     * Wait until dataAvailable returns true. It is checked while holding the lock that dataArrived takes,
+     * so data that arrives just before the wait begins is not missed.
+     * @param dataAvailable returns true when the reader can make progress
+     * @throws MultiUnderflowException if the underflow lasts longer than underflowTimeout
+     */
+    public void handleUnderflow(BooleanSupplier dataAvailable) throws IOException { await(dataAvailable); }
+
+    private void await(BooleanSupplier dataAvailable) throws IOException {
         if (thread == null) {
             thread = Thread.currentThread();
             lastRead = now();
@@ -50,14 +114,29 @@ public class MultiUnderflowHandler {
         if (firstUnderflow == 0) {
             if (log.isDebugEnabled()) log.debug(handlerName+": first data underflow");
             firstUnderflow = now();
-        } else if (now() - firstUnderflow > underflowTimeout) {
-            if (log.isErrorEnabled()) log.error(handlerName+": underflow timeout, throwing MultiUnderflowException");
-            throw new MultiUnderflowException(handlerName);
         }
-        if (log.isDebugEnabled()) log.debug(handlerName+": data underflow, sleeping for "+ underflowSleep);
-        sleep(underflowSleep);
-        underflowSleep *= 2;
-        if (underflowSleep > maxUnderflowSleep) underflowSleep = maxUnderflowSleep;
+        underflowCount.incrementAndGet();
+        final long start = System.nanoTime();
+        lock.lock();
+        try {
+            while (dataAvailable == null || !dataAvailable.getAsBoolean()) {
+                if (closed()) throw new IOException(handlerName+": closed while waiting for data");
+                final long remaining = underflowTimeout - (now() - firstUnderflow);
+                if (remaining <= 0) {
+                    if (log.isErrorEnabled()) log.error(handlerName+": underflow timeout, throwing MultiUnderflowException");
+                    throw new MultiUnderflowException(handlerName);
+                }
+                if (log.isDebugEnabled()) log.debug(handlerName+": data underflow, waiting up to "+remaining+" ms");
+                final long wait = dataAvailable == null ? Math.min(remaining, maxUnderflowSleep) : remaining;
+                final boolean signalled = dataArrived.await(wait, TimeUnit.MILLISECONDS);
+                if (dataAvailable == null && (signalled || wait < remaining)) break;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(handlerName+": interrupted while waiting for data");
+        } finally {
+            lock.unlock();
+            underflowWaitNanos.addAndGet(System.nanoTime() - start);
+        }
     }
 
     public void handleSuccessfulRead() {
@@ -67,7 +146,6 @@ public class MultiUnderflowHandler {
             monitor.register(this);
         }
         firstUnderflow = 0;
-        underflowSleep = minUnderflowSleep;
     }
 
     public void close() {
@@ -75,6 +153,7 @@ public class MultiUnderflowHandler {
             closed.set(true);
             if (log.isDebugEnabled()) log.debug(handlerName + ": closing");
             monitor.unregister(this);
+            dataArrived();
         }
     }
 
@@ -0,0 +1,121 @@
+package org.cobbzilla.util.io.multi;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Streams (or readers) added to a MultiStream or MultiReader that it has not started reading yet.
+ * Adding blocks while maxPending are waiting, and wakes a reader waiting in the underflow handler.
+ */
+class PendingQueue<T> {
+
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    private final MultiUnderflowHandler underflow;
+    private final Deque<T> pending = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+    private volatile boolean ended = false;
+
+    PendingQueue (MultiUnderflowHandler underflow) { this.underflow = underflow; }
+
+    int getMaxPending () { return maxPending; }
+
+    void setMaxPending (int max) {
+        if (max <= 0) throw new IllegalArgumentException("maxPending must be positive");
+        lock.lock();
+        try {
+            maxPending = max;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return true once the last item has been added */
+    boolean isEnded () { return ended; }
+
+    /** no more items may be added */
+    void end () {
+        lock.lock();
+        try {
+            ended = true;
+            notFull.signalAll(); // writers waiting for room can give up now
+        } finally {
+            lock.unlock();
+        }
+        underflow.dataArrived();
+    }
+
+    /**
+     * Add an item, waiting while the queue is full
+     * @param item the item
+     * @param last if true, no more items may be added after this one
+     * @return false if the last item was already added or the reader was closed, in which case item is not added.
+     * This is checked again after waiting for room, since either can happen while we wait.
+     */
+    boolean add (T item, boolean last) {
+        lock.lock();
+        try {
+            if (ended || underflow.closed()) return false;
+            if (pending.size() >= maxPending) {
+                final long start = System.nanoTime();
+                while (pending.size() >= maxPending && !ended && !underflow.closed()) notFull.await();
+                underflow.recordBackpressure(System.nanoTime() - start);
+                if (ended || underflow.closed()) return false;
+            }
+            pending.add(item);
+            if (last) {
+                ended = true;
+                notFull.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return die("add: interrupted while waiting for room");
+        } finally {
+            lock.unlock();
+        }
+        underflow.dataArrived();
+        return true;
+    }
+
+    /** @return the next item, or null if there is none yet */
+    T poll () {
+        lock.lock();
+        try {
+            final T next = pending.poll();
+            if (next != null) notFull.signal();
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size () {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return true if a reader that has run out of data can make progress */
+    boolean hasNextOrEnded () { return ended || size() > 0; }
+
+    /** wake any writers waiting for room, after the reader is closed */
+    void close () {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -21,4 +21,15 @@ public class RegexChunkConfig {
     @Getter @Setter private NameAndValue[] chunkProperties;
     public boolean hasChunkProperties () { return chunkProperties != null && chunkProperties.length > 0; }
 
+    // compiled once, not for every chunk. same order as chunkProperties
+    @JsonIgnore @Getter(lazy=true) private final Pattern[] chunkPropertyPatterns = initChunkPropertyPatterns();
+    private Pattern[] initChunkPropertyPatterns() {
+        if (!hasChunkProperties()) return new Pattern[0];
+        final Pattern[] patterns = new Pattern[chunkProperties.length];
+        for (int i = 0; i < chunkProperties.length; i++) {
+            patterns[i] = Pattern.compile(chunkProperties[i].getValue(), Pattern.CASE_INSENSITIVE|Pattern.MULTILINE);
+        }
+        return patterns;
+    }
+
 }
@@ -118,11 +118,12 @@ public class RegexChunkStreamer {
     private void addChunk (RegexChunk chunk) {
         if (chunk.getType() == RegexChunkType.chunk) {
             if (config.hasChunkProperties()) {
-                for (NameAndValue prop : config.getChunkProperties()) {
-                    final Pattern p = Pattern.compile(prop.getValue(), Pattern.CASE_INSENSITIVE|Pattern.MULTILINE);
-                    final Matcher m = p.matcher(chunk.getData());
+                final NameAndValue[] props = config.getChunkProperties();
+                final Pattern[] patterns = config.getChunkPropertyPatterns();
+                for (int i = 0; i < props.length; i++) {
+                    final Matcher m = patterns[i].matcher(chunk.getData());
                     if (m.find()) {
-                        chunk.setProperty(prop.getName(), m.group(1));
+                        chunk.setProperty(props[i].getName(), m.group(1));
                     }
                 }
             }
@@ -4,32 +4,50 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ArrayUtils;
 import org.cobbzilla.util.system.Bytes;
 
 import java.io.*;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.util.concurrent.atomic.AtomicReference;
 
-import static org.apache.commons.lang3.ArrayUtils.addAll;
-import static org.cobbzilla.util.daemon.ZillaRuntime.die;
-import static org.cobbzilla.util.string.StringUtil.EMPTY_CHAR_ARRAY;
 import static org.cobbzilla.util.string.StringUtil.UTF8cs;
 
+/**
+ * Applies a RegexStreamFilter to a stream of chars, in constant memory.
+ *
+ * Input is read into a fixed-capacity CharBuffer, and the filter matches on a view of that buffer, without copying it.
+ * Whatever the filter leaves unprocessed (so a match that spans two reads is still found) is compacted to the front
+ * of the buffer before the next read. At most maxWindow chars are kept this way: if the filter asks to keep more,
+ * the oldest chars are passed through unfiltered. So a match can be up to maxWindow chars long. The first time this
+ * happens a warning is logged, since a longer match would be missed; raise maxWindow if matches can be that long.
+ */
 @Slf4j @Accessors(chain=true)
 public class RegexFilterReader extends BufferedReader {
 
     public static final int DEFAULT_BUFFER_SIZE = (int) (8 * Bytes.KB);
+    public static final int DEFAULT_MAX_WINDOW = (int) (8 * Bytes.KB);
 
+    private final Reader in;
     private final int bufsiz;
     private final RegexStreamFilter filter;
     @Getter @Setter private Integer maxMatches;
     @Getter @Setter private String name; // for debugging/identifying which reader
 
+    // the most unprocessed chars kept between reads. must be set before the first read
+    @Getter @Setter private int maxWindow = DEFAULT_MAX_WINDOW;
+
+    private CharBuffer input;                                   // unfiltered chars, in write mode between fills
+    private final StringBuilder output = new StringBuilder();   // filtered chars not yet read
+    private int outputPos = 0;
+    private int matchCount = 0;
+    private boolean eof = false;
+    private boolean windowOverflowed = false;
+
     public RegexFilterReader(Reader in, RegexStreamFilter filter) { this(in, DEFAULT_BUFFER_SIZE, filter); }
 
     public RegexFilterReader(Reader in, int bufsiz, RegexStreamFilter filter) {
-        super(in, DEFAULT_BUFFER_SIZE);
+        super(in, 1);
+        this.in = in;
         this.bufsiz = bufsiz;
         this.filter = filter;
     }
@@ -41,206 +59,128 @@ public class RegexFilterReader extends BufferedReader {
     }
 
     public RegexFilterReader(InputStream in, Charset charset, int bufsiz, RegexStreamFilter filter) {
-        super(new InputStreamReader(in, charset), bufsiz);
-        this.bufsiz = bufsiz;
-        this.filter = filter;
+        this(new InputStreamReader(in, charset), bufsiz, filter);
     }
 
-    @Getter(lazy=true) private final FilterResponse filterResponse = initFilterResponse();
-    private FilterResponse initFilterResponse() { return new FilterResponse(bufsiz, filter, maxMatches); }
-
     @Override public int read() throws IOException {
-        final char[] c = new char[1];
-        if (read(c, 0, 1) == -1) return -1;
-        return c[0];
+        if (!fill(1)) return -1;
+        return output.charAt(outputPos++);
     }
 
     @Override public int read(char[] cbuf, int off, int len) throws IOException {
-        return fillBuffer(len).read(cbuf, off, len);
+        if (len == 0) return 0;
+        if (!fill(len)) return -1;
+        final int n = Math.min(len, output.length() - outputPos);
+        output.getChars(outputPos, outputPos + n, cbuf, off);
+        outputPos += n;
+        return n;
     }
 
     @Override public String readLine() throws IOException {
-        return fillBuffer(-1).readLine();
-    }
-
-    private FilterResponse fillBuffer(int sz) throws IOException {
-        return fillBuffer(sz, bufsiz);
-    }
-
-    private FilterResponse fillBuffer(int sz, int bz) throws IOException {
-
-        // if the filterResponse still has enough data, we don't need to re-fill
-        final FilterResponse f = getFilterResponse();
-        final int readSize = Math.max(sz, bz);
-        if (f.canRead(readSize)) return f;
-
-        // we need more data
-        final char[] buffer = new char[readSize];
-        int len = 0;
-        boolean eof = false;
-        // fill the buffer with the underlying stream
-        while (len != buffer.length) {
-            final int val = super.read(buffer, len, buffer.length - len);
-            if (val == -1) {
-                eof = true;
-                break;
+        StringBuilder line = null;
+        while (fill(bufsiz)) {
+            if (line == null) line = new StringBuilder();
+            final int newline = output.indexOf("\n", outputPos);
+            if (newline != -1) {
+                line.append(output, outputPos, newline);
+                outputPos = newline + 1;
+                return line.toString();
             }
-            len += val;
+            line.append(output, outputPos, output.length());
+            outputPos = output.length();
         }
+        return line == null ? null : line.toString();
+    }
 
-        // if we read anything, filter the buffer and apply filters
-        if (len > 0) {
-            if (f.addData(buffer, len, eof) == 0) {
-                if (2 * bz < (2 * Bytes.MB)) {
-                    return fillBuffer(2 * bz, 2 * bz);
-                } else {
-                    // we don't want to run out of memory
-                    return die("fillBuffer: is someone DOSing us?");
-                }
-            }
+    @Override public boolean ready() throws IOException { return outputPos < output.length() || (!eof && in.ready()); }
+
+    @Override public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill((int) Math.min(n - skipped, bufsiz))) {
+            final int s = (int) Math.min(n - skipped, output.length() - outputPos);
+            outputPos += s;
+            skipped += s;
         }
-        return f;
+        return skipped;
     }
 
-    private static class FilterResponse {
+    @Override public boolean markSupported() { return false; }
 
-        @Getter @Setter private int bufsiz;
+    @Override public void mark(int readAheadLimit) throws IOException { throw new IOException("mark: not supported"); }
 
-        private int readPos = 0;
-        private boolean eof = false;
-        private final RegexStreamFilter filter;
-        private int matchCount = 0;
-        private Integer maxMatches = null;
+    @Override public void reset() throws IOException { throw new IOException("reset: not supported"); }
 
-        public FilterResponse(int bufsiz, RegexStreamFilter filter, Integer maxMatches) {
-            this.bufsiz = bufsiz;
-            this.filter = filter;
-            this.maxMatches = maxMatches;
-        }
+    @Override public void close() throws IOException {
+        input = null;
+        output.setLength(0);
+        outputPos = 0;
+        in.close();
+    }
 
-        private final AtomicReference<char[]> unprocessed = new AtomicReference<>();
-        private final AtomicReference<char[]> processed = new AtomicReference<>();
-
-        public int addData(char[] b, int len, boolean eof) {
-
-            this.eof = eof;
-
-            if (maxMatches != null && matchCount >= maxMatches) {
-                // no more processing to do. add all unprocessed bytes to processed, and add new bytes to processed
-                synchronized (unprocessed) {
-                    synchronized (processed) {
-                        char[] u = unprocessed.get();
-                        if (u == null) u = EMPTY_CHAR_ARRAY;
-                        char[] p = processed.get();
-                        if (p == null) p = EMPTY_CHAR_ARRAY;
-                        final int newLen = p.length + u.length + len;
-                        final char[] update = new char[newLen];
-                        System.arraycopy(p, 0, update, 0, p.length);
-                        System.arraycopy(u, 0, update, p.length, u.length);
-                        System.arraycopy(b, 0, update, p.length + u.length, len);
-                        processed.set(update);
-                        unprocessed.set(EMPTY_CHAR_ARRAY);
-                        return u.length + len;
-                    }
-                }
-            } else {
-
-                synchronized (unprocessed) {
-                    char[] input = unprocessed.get();
-                    if (input == null) {
-                        input = new char[len];
-                        System.arraycopy(b, 0, input, 0, len);
-                    } else {
-                        char[] new_input = new char[input.length + len];
-                        System.arraycopy(input, 0, new_input, 0, input.length);
-                        System.arraycopy(b, 0, new_input, input.length, len);
-                        input = new_input;
-                    }
-                    unprocessed.set(input);
-
-                    // process buffer with filter, it may leave a remainder
-                    final RegexFilterResult result = filter.apply(new StringBuilder().append(input), eof);
-                    matchCount += result.matchCount;
-
-                    // put unprocessed remainder chars back onto unprocessed array
-                    if (result.remainder > 0) {
-                        final char[] subarray = ArrayUtils.subarray(input, input.length - result.remainder, input.length);
-                        unprocessed.set(subarray);
-                    } else {
-                        unprocessed.set(null);
-                    }
-
-                    // if it produced nothing, but gave us a remainder, return zero now, read more data
-                    if (result.buffer.length() == 0 && !eof) return 0;
-
-                    // remove processed chars from unprocessed array
-                    synchronized (processed) {
-                        final char[] newChars = result.buffer.toString().toCharArray();
-                        if (newChars.length > 0) {
-                            if (processed.get() == null) {
-                                processed.set(newChars);
-                            } else {
-                                processed.set(addAll(processed.get(), newChars));
-                            }
-                        }
-                    }
-                    return result.buffer.length();
+    /**
+     * Read and filter input until there is filtered output to return, or the input ends
+     * @param len how many chars the caller wants
+     * @return false if the input has ended and all output has been read
+     */
+    private boolean fill(int len) throws IOException {
+        while (outputPos == output.length()) {
+            if (eof) return false;
+            output.setLength(0);
+            outputPos = 0;
+            if (input == null) input = CharBuffer.allocate(maxWindow + Math.max(bufsiz, DEFAULT_BUFFER_SIZE));
+
+            // read up to len (or bufsiz) more chars, as much as fits after what was left unprocessed
+            final int target = Math.min(Math.max(len, bufsiz), input.remaining());
+            final char[] chars = input.array();
+            int count = 0;
+            while (count < target) {
+                final int n = in.read(chars, input.position() + count, target - count);
+                if (n == -1) {
+                    eof = true;
+                    break;
                 }
+                count += n;
             }
+            input.position(input.position() + count);
+            input.flip();
+            filter(input);
+            input.compact();
         }
+        return true;
+    }
 
-        public boolean canRead(int sz) {
-            synchronized (processed) {
-                if (processed.get() == null) return false;
-                return eof || readPos + sz < processed.get().length;
-            }
-        }
-
-        public int read(char[] cbuf, int off, int len) {
-            synchronized (processed) {
-                final char[] buf = processed.get();
-
-                // nothing to read
-                if (buf == null || buf.length == 0) {
-                    return eof ? -1 : 0;
-                }
+    private void filter(CharBuffer chars) {
+        final int length = chars.remaining();
+        if (length == 0) return;
 
-                // do we have enough to fill?
-                if (readPos + len < buf.length) {
-                    System.arraycopy(buf, readPos, cbuf, off, len);
-                    readPos += len;
-                    return len;
-                } else {
-                    // are we at EOF? if so, return the last bytes
-                    if (eof) {
-                        // are we really AT eof?
-                        if (readPos == buf.length) return -1;
-                    }
-                    // return what we can, which may be nothing if we have a buffer under-run
-                    final int remainingLen = buf.length - readPos;
-                    System.arraycopy(buf, readPos, cbuf, off, remainingLen);
-                    readPos = buf.length;
-                    return remainingLen;
-                }
-            }
+        if (maxMatches != null && matchCount >= maxMatches) {
+            // no more matching to do, pass everything through
+            output.append(chars.array(), chars.position(), length);
+            chars.position(chars.limit());
+            return;
         }
 
-        public String readLine() {
-            synchronized (processed) {
-                final StringBuilder buf = new StringBuilder(String.valueOf(processed.get()));
-                int newline = buf.indexOf("\n", readPos);
-                final String line;
-                if (newline == -1 || newline == buf.length() - 1) {
-                    line = buf.substring(readPos, buf.length());
-                    readPos = buf.length();
-                } else {
-                    line = buf.substring(readPos, newline);
-                    readPos = newline + 1;
-                }
-                return line;
+        final RegexFilterResult result = filter.apply(chars, eof, output);
+        matchCount += result.matchCount;
+
+        final int remainder = Math.min(result.remainder, length);
+        int processed = length - remainder;
+
+        // the filter may have more to process. if it would keep more than maxWindow, pass the oldest chars through.
+        // at eof nothing more is coming, so pass through whatever it did not process
+        final int window = eof ? 0 : Math.min(maxWindow, chars.capacity() - 1);
+        if (remainder > window) {
+            final int excess = remainder - window;
+            if (!eof && !windowOverflowed) {
+                windowOverflowed = true;
+                log.warn(name+": filter: filter kept more than maxWindow ("+maxWindow+") chars that might still match, passing through "+excess+" unfiltered chars. Matches longer than maxWindow will be missed");
+            } else if (log.isDebugEnabled()) {
+                log.debug(name+": filter: window full, passing through "+excess+" unfiltered chars");
             }
+            output.append(chars.array(), chars.position() + processed, excess);
+            processed += excess;
         }
+        chars.position(chars.position() + processed);
     }
 
 }
-
@@ -13,7 +13,7 @@ import static java.util.regex.Pattern.CASE_INSENSITIVE;
 import static java.util.regex.Pattern.MULTILINE;
 
 @NoArgsConstructor @Accessors(chain=true)
-public class RegexInsertionFilter implements RegexStreamFilter {
+public class RegexInsertionFilter implements RegexStreamFilter, RegexRule {
 
     @Getter @Setter private String pattern;
     @Getter @Setter private int flags = CASE_INSENSITIVE | MULTILINE;
@@ -40,27 +40,32 @@ public class RegexInsertionFilter implements RegexStreamFilter {
         this.before = beforeReplacementNode == null ? "" : beforeReplacementNode.textValue();
     }
 
+    @Override public Pattern rulePattern() { return get_pattern(); }
+
+    @Override public void appendGroupReplacement(CharSequence buffer, int groupStart, int groupEnd, StringBuilder out) {
+        if (before != null) out.append(before);
+        out.append(buffer, groupStart, groupEnd);
+        if (after != null) out.append(after);
+    }
+
     public RegexFilterResult apply(StringBuilder buffer, boolean eof) {
-        final StringBuilder result = new StringBuilder(buffer.length());
+        return apply(buffer, eof, new StringBuilder(buffer.length()));
+    }
+
+    @Override public RegexFilterResult apply(CharSequence buffer, boolean eof, StringBuilder result) {
         int start = 0;
-        final Matcher matcher = get_pattern().matcher(buffer.toString());
+        final Matcher matcher = get_pattern().matcher(buffer);
         int matchCount = 0;
         while (matcher.find(start)) {
 
             // add everything before the first match
-            result.append(buffer.subSequence(start, matcher.start()));
-
-            // add the before stuff
-            if (before != null) result.append(before);
-
-            // add the group match itself
-            result.append(buffer.subSequence(matcher.start(group), matcher.end(group)));
+            result.append(buffer, start, matcher.start());
 
-            // add the after stuff
-            if (after != null) result.append(after);
+            // add the group match, with the before and after stuff
+            appendGroupReplacement(buffer, matcher.start(group), matcher.end(group), result);
 
             // add everything after the group match
-            result.append(buffer.subSequence(matcher.end(group), matcher.end()));
+            result.append(buffer, matcher.end(group), matcher.end());
 
             // advance start pointer and track last match end
             start = matcher.end();
@@ -70,7 +75,7 @@ public class RegexInsertionFilter implements RegexStreamFilter {
 
         if (eof) {
             // we are at the end, include everything else, no remainder
-            result.append(buffer.subSequence(start, buffer.length()));
+            result.append(buffer, start, buffer.length());
             return new RegexFilterResult(result, 0, matchCount);
         }
 
@@ -78,7 +83,7 @@ public class RegexInsertionFilter implements RegexStreamFilter {
         // leave 1k remaining to reprocess, we might see our pattern again.
         final int totalRemainder = buffer.length() - start;
         if (totalRemainder > 1024) {
-            result.append(buffer.subSequence(start, buffer.length()-1024));
+            result.append(buffer, start, buffer.length()-1024);
             return new RegexFilterResult(result, 1024, matchCount);
         } else {
             // leave the entire remainder, we can't be sure
@@ -0,0 +1,187 @@
+package org.cobbzilla.util.io.regex;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An Aho-Corasick automaton over the literal prefixes of a set of patterns.
+ * Scanning text once reports every position where any of the prefixes occurs,
+ * so a pattern only needs to be tried where its prefix was seen.
+ *
+ * Matching ignores ASCII case, so a reported prefix may differ in case from the pattern's;
+ * the pattern itself decides whether it really matches there.
+ */
+class RegexPrefixAutomaton {
+
+    private static final String META = "\\[](){}.*+?^$|";
+    private static final int ASCII = 128;
+
+    private final List<int[]> asciiNext = new ArrayList<>();
+    private final List<Map<Character, Integer>> otherNext = new ArrayList<>();
+    private int[] fail;
+    private int[][] output;
+
+    private final int[] prefixLength;
+    private int maxPrefixLength = 0;
+
+    /**
+     * @param prefixes the literal prefix of each pattern. Empty prefixes are ignored.
+     */
+    RegexPrefixAutomaton (String[] prefixes) {
+        prefixLength = new int[prefixes.length];
+        newNode();
+        final List<List<Integer>> found = new ArrayList<>();
+        found.add(new ArrayList<>());
+        for (int i = 0; i < prefixes.length; i++) {
+            final String prefix = prefixes[i];
+            prefixLength[i] = prefix.length();
+            if (prefix.isEmpty()) continue;
+            maxPrefixLength = Math.max(maxPrefixLength, prefix.length());
+            int node = 0;
+            for (int j = 0; j < prefix.length(); j++) {
+                final char c = fold(prefix.charAt(j));
+                int next = next(node, c);
+                if (next == -1) {
+                    next = newNode();
+                    found.add(new ArrayList<>());
+                    if (c < ASCII) {
+                        asciiNext.get(node)[c] = next;
+                    } else {
+                        otherNext.get(node).put(c, next);
+                    }
+                }
+                node = next;
+            }
+            found.get(node).add(i);
+        }
+        build(found);
+    }
+
+    private int newNode () {
+        final int[] next = new int[ASCII];
+        Arrays.fill(next, -1);
+        asciiNext.add(next);
+        otherNext.add(new HashMap<>());
+        return asciiNext.size() - 1;
+    }
+
+    private int next (int node, char c) {
+        if (c < ASCII) return asciiNext.get(node)[c];
+        final Integer next = otherNext.get(node).get(c);
+        return next == null ? -1 : next;
+    }
+
+    // breadth-first: set failure links, merge outputs along them, and complete the ASCII transitions
+    private void build (List<List<Integer>> found) {
+        final int size = asciiNext.size();
+        fail = new int[size];
+        output = new int[size][];
+        final Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            final int node = queue.poll();
+            final int[] ascii = asciiNext.get(node);
+            final Set<Integer> out = new TreeSet<>(found.get(node));
+            if (node != 0) {
+                for (int r : output[fail[node]]) out.add(r);
+            }
+            output[node] = out.stream().mapToInt(Integer::intValue).toArray();
+
+            for (int c = 0; c < ASCII; c++) {
+                final int child = ascii[c];
+                if (child == -1) {
+                    ascii[c] = node == 0 ? 0 : asciiNext.get(fail[node])[c];
+                } else {
+                    fail[child] = node == 0 ? 0 : asciiNext.get(fail[node])[c];
+                    queue.add(child);
+                }
+            }
+            for (Map.Entry<Character, Integer> e : otherNext.get(node).entrySet()) {
+                final int child = e.getValue();
+                fail[child] = node == 0 ? 0 : step(fail[node], e.getKey());
+                queue.add(child);
+            }
+        }
+    }
+
+    /** @return the state after reading c in state */
+    int step (int state, char c) {
+        c = fold(c);
+        if (c < ASCII) return asciiNext.get(state)[c];
+        while (true) {
+            final Integer next = otherNext.get(state).get(c);
+            if (next != null) return next;
+            if (state == 0) return 0;
+            state = fail[state];
+        }
+    }
+
+    /** @return indexes of the patterns whose prefix ends at the char that led to state, lowest first */
+    int[] matches (int state) { return output[state]; }
+
+    int prefixLength (int pattern) { return prefixLength[pattern]; }
+
+    int maxPrefixLength () { return maxPrefixLength; }
+
+    static char fold (char c) { return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c; }
+
+    /**
+     * Find the literal text that every match of a pattern must begin with.
+     * This is conservative: anything it is not sure about ends the prefix, and alternation anywhere means no prefix.
+     * @param pattern the pattern
+     * @return the prefix, or an empty string if there is none
+     */
+    static String literalPrefix (Pattern pattern) {
+        final int flags = pattern.flags();
+        final String regex = pattern.pattern();
+        if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) return "";
+
+        // with unicode case folding, some non-ASCII chars match ASCII letters
+        final boolean unicodeCase = (flags & Pattern.CASE_INSENSITIVE) != 0
+                && (flags & (Pattern.UNICODE_CASE | Pattern.UNICODE_CHARACTER_CLASS)) != 0;
+
+        final StringBuilder prefix = new StringBuilder();
+        if ((flags & Pattern.LITERAL) != 0) {
+            for (int i = 0; i < regex.length() && !(unicodeCase && Character.isLetter(regex.charAt(i))); i++) {
+                prefix.append(regex.charAt(i));
+            }
+            return prefix.toString();
+        }
+        for (int i = 0; i < regex.length(); i++) {
+            if (regex.charAt(i) == '\\') {
+                i++;
+            } else if (regex.charAt(i) == '|') {
+                return "";
+            }
+        }
+
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                // only escaped punctuation is a plain literal; \s, \Q, \1 and friends are not
+                if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) break;
+                c = regex.charAt(next);
+                next++;
+            } else if (META.indexOf(c) != -1) {
+                break;
+            }
+            if (unicodeCase && Character.isLetter(c)) break;
+            if (next < regex.length()) {
+                final char q = regex.charAt(next);
+                // the char may not appear at all
+                if (q == '?' || q == '*' || q == '{') break;
+                // the char appears at least once, but what follows it is unknown
+                if (q == '+') {
+                    prefix.append(c);
+                    break;
+                }
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+}
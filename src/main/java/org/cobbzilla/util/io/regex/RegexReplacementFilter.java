@@ -9,7 +9,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @NoArgsConstructor
-public class RegexReplacementFilter implements RegexStreamFilter {
+public class RegexReplacementFilter implements RegexStreamFilter, RegexRule {
 
     public static final String DEFAULT_PREFIX_REPLACEMENT_WITH_MATCH = "~~~!!!match!!!~~~";
 
@@ -36,28 +36,37 @@ public class RegexReplacementFilter implements RegexStreamFilter {
         this.replacement = replacementNode == null ? "" : replacementNode.textValue();
     }
 
+    @Override public Pattern rulePattern() { return pattern; }
+
+    @Override public void appendGroupReplacement(CharSequence buffer, int groupStart, int groupEnd, StringBuilder out) {
+        // if the replacement contains prefixReplacementWithMatch, replace with the match
+        if (replacement.contains(prefixReplacementWithMatch)) {
+            out.append(replacement.replace(prefixReplacementWithMatch, buffer.subSequence(groupStart, groupEnd)));
+        } else {
+            out.append(replacement);
+        }
+    }
+
     public RegexFilterResult apply(StringBuilder buffer, boolean eof) {
-        final StringBuilder result = new StringBuilder(buffer.length());
+        return apply(buffer, eof, new StringBuilder(buffer.length()));
+    }
+
+    @Override public RegexFilterResult apply(CharSequence buffer, boolean eof, StringBuilder result) {
         int start = 0;
-        final Matcher matcher = pattern.matcher(buffer.toString());
+        final Matcher matcher = pattern.matcher(buffer);
         int matchCount = 0;
         while (matcher.find(start)) {
             // add everything before the first match
-            result.append(buffer.subSequence(start, matcher.start()));
+            result.append(buffer, start, matcher.start());
 
             // add everything before the group match
-            result.append(buffer.subSequence(matcher.start(), matcher.start(group)));
+            result.append(buffer, matcher.start(), matcher.start(group));
 
-            // if the replacement contains prefixReplacementWithMatch, replace with the match
-            if (replacement.contains(prefixReplacementWithMatch)) {
-                result.append(replacement.replace(prefixReplacementWithMatch, buffer.subSequence(matcher.start(group), matcher.end(group))));
-            } else {
-                // add the replacement
-                result.append(replacement);
-            }
+            // add the replacement
+            appendGroupReplacement(buffer, matcher.start(group), matcher.end(group), result);
 
             // add everything after the group match
-            result.append(buffer.subSequence(matcher.end(group), matcher.end()));
+            result.append(buffer, matcher.end(group), matcher.end());
 
             // advance start pointer and track last match end
             start = matcher.end();
@@ -65,7 +74,7 @@ public class RegexReplacementFilter implements RegexStreamFilter {
             matchCount++;
         }
         if (eof) {
-            result.append(buffer.subSequence(start, buffer.length()));
+            result.append(buffer, start, buffer.length());
             return new RegexFilterResult(result, 0, matchCount);
         }
         return new RegexFilterResult(result, buffer.length() - start, matchCount);
@@ -0,0 +1,24 @@
+package org.cobbzilla.util.io.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * A rule that rewrites the text matched by one group of a pattern.
+ * RegexRuleSetFilter applies any number of these in a single pass.
+ */
+public interface RegexRule {
+
+    Pattern rulePattern();
+
+    int getGroup();
+
+    /**
+     * Append the rewritten group to out
+     * @param buffer the text being filtered
+     * @param groupStart start of the group match in buffer
+     * @param groupEnd end of the group match in buffer
+     * @param out where to append
+     */
+    void appendGroupReplacement(CharSequence buffer, int groupStart, int groupEnd, StringBuilder out);
+
+}
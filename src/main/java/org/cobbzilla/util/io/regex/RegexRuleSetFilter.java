@@ -0,0 +1,194 @@
+package org.cobbzilla.util.io.regex;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+
+/**
+ * Applies many rules in one left-to-right pass, instead of chaining one filter per rule, each of which rescans the buffer.
+ *
+ * The literal prefixes of the rules' patterns are combined into one Aho-Corasick automaton, and a pattern is only
+ * tried where its prefix occurs. Patterns without a literal prefix are searched with their own Matcher.
+ * At each position the earliest match wins; if several rules match at the same position, the first rule added wins.
+ * Where rules do not overlap, the output is the same as applying each rule in turn.
+ *
+ * Configure with JSON like {"rules": [{"type": "insert", "pattern": ...}, {"pattern": ..., "replacement": ...}]}.
+ * Each rule is configured like a RegexInsertionFilter (type "insert") or a RegexReplacementFilter (any other type, the default).
+ */
+@NoArgsConstructor
+public class RegexRuleSetFilter implements RegexStreamFilter {
+
+    public static final String TYPE_INSERT = "insert";
+
+    private final List<RegexRule> rules = new ArrayList<>();
+    private volatile Compiled compiled;
+
+    public RegexRuleSetFilter(RegexRule... rules) { for (RegexRule rule : rules) add(rule); }
+
+    public synchronized RegexRuleSetFilter add(RegexRule rule) {
+        rules.add(rule);
+        compiled = null;
+        return this;
+    }
+
+    public int size() { return rules.size(); }
+
+    @Override public void configure(JsonNode config) {
+        final JsonNode rulesNode = config.get("rules");
+        if (rulesNode == null || !rulesNode.isArray()) die("configure: rules array is required");
+        for (JsonNode ruleNode : rulesNode) {
+            final JsonNode typeNode = ruleNode.get("type");
+            final boolean insert = typeNode != null && typeNode.textValue().equalsIgnoreCase(TYPE_INSERT);
+            final RegexStreamFilter rule = insert ? new RegexInsertionFilter() : new RegexReplacementFilter();
+            rule.configure(ruleNode);
+            add((RegexRule) rule);
+        }
+    }
+
+    private static class Compiled {
+        final RegexRule[] rules;
+        final Pattern[] patterns;
+        final RegexPrefixAutomaton prefixes;
+        final int[] unprefixed;
+
+        Compiled(List<RegexRule> ruleList) {
+            rules = ruleList.toArray(new RegexRule[0]);
+            patterns = new Pattern[rules.length];
+            final String[] literals = new String[rules.length];
+            final List<Integer> noPrefix = new ArrayList<>();
+            for (int i = 0; i < rules.length; i++) {
+                patterns[i] = rules[i].rulePattern();
+                literals[i] = RegexPrefixAutomaton.literalPrefix(patterns[i]);
+                if (literals[i].isEmpty()) noPrefix.add(i);
+            }
+            prefixes = new RegexPrefixAutomaton(literals);
+            unprefixed = noPrefix.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private synchronized Compiled compiled() {
+        if (compiled == null) compiled = new Compiled(rules);
+        return compiled;
+    }
+
+    public RegexFilterResult apply(StringBuilder buffer, boolean eof) {
+        return apply(buffer, eof, new StringBuilder(buffer.length()));
+    }
+
+    @Override public RegexFilterResult apply(CharSequence buffer, boolean eof, StringBuilder result) {
+        final Compiled c = compiled == null ? compiled() : compiled;
+        final RegexPrefixAutomaton prefixes = c.prefixes;
+        final int length = buffer.length();
+
+        final Matcher[] matchers = new Matcher[c.rules.length];
+        for (int i = 0; i < matchers.length; i++) {
+            // transparent bounds let lookbehind see before a candidate, non-anchoring bounds keep ^ from matching there
+            matchers[i] = c.patterns[i].matcher(buffer).useTransparentBounds(true).useAnchoringBounds(false);
+        }
+
+        // where each rule without a prefix next matches: -2 if not searched yet, -1 if it does not match again
+        final int[] nextMatch = new int[c.rules.length];
+        for (int r : c.unprefixed) nextMatch[r] = -2;
+
+        // positions where a prefix was found, ordered by position then rule. each is (start << 32 | rule)
+        final PriorityQueue<Long> candidates = new PriorityQueue<>();
+        final int maxPrefix = prefixes.maxPrefixLength();
+        int scanned = 0;
+        int state = 0;
+
+        int pos = 0;           // where the next match may start
+        int copied = 0;        // chars before this have been added to result
+        int matchCount = 0;
+        while (pos <= length) {
+            // the earliest match of a rule without a prefix. ties go to the first rule
+            int best = -1;
+            int bestStart = Integer.MAX_VALUE;
+            for (int r : c.unprefixed) {
+                if (nextMatch[r] == -2 || (nextMatch[r] >= 0 && nextMatch[r] < pos)) {
+                    nextMatch[r] = matchers[r].find(pos) ? matchers[r].start() : -1;
+                }
+                if (nextMatch[r] >= 0 && nextMatch[r] < bestStart) {
+                    best = r;
+                    bestStart = nextMatch[r];
+                }
+            }
+
+            // a prefix that starts inside the last match can be skipped
+            if (scanned < pos) {
+                scanned = pos;
+                state = 0;
+            }
+
+            // try prefix candidates that come before it
+            while (maxPrefix > 0) {
+                Long head = candidates.peek();
+                while (head != null && (int) (head >>> 32) < pos) {
+                    candidates.poll();
+                    head = candidates.peek();
+                }
+                // scan until no prefix found later can start before the first candidate (or before bestStart)
+                if (scanned < length
+                        && (head == null || (head >>> 32) + maxPrefix > scanned)
+                        && (long) bestStart + maxPrefix > scanned) {
+                    state = prefixes.step(state, buffer.charAt(scanned));
+                    for (int r : prefixes.matches(state)) {
+                        candidates.add(((long) (scanned + 1 - prefixes.prefixLength(r)) << 32) | r);
+                    }
+                    scanned++;
+                    continue;
+                }
+                if (head == null) break;
+                final int start = (int) (head >>> 32);
+                final int r = (int) (long) head;
+                if (start > bestStart || (start == bestStart && r > best)) break;
+                candidates.poll();
+                if (matchers[r].region(start, length).lookingAt()) {
+                    best = r;
+                    bestStart = start;
+                    break;
+                }
+                if (!eof && matchers[r].hitEnd()) {
+                    // this rule might match here once there is more input
+                    best = -1;
+                    break;
+                }
+            }
+            if (best == -1) break;
+
+            // a match that reaches the end of the buffer might be longer with more input: wait for it
+            final Matcher m = matchers[best];
+            if (!eof && m.hitEnd()) break;
+
+            final int end = m.end();
+            final int group = c.rules[best].getGroup();
+            result.append(buffer, copied, bestStart);
+            if (m.start(group) == -1) {
+                // the group did not take part in the match, leave it as it is
+                result.append(buffer, bestStart, end);
+            } else {
+                result.append(buffer, bestStart, m.start(group));
+                c.rules[best].appendGroupReplacement(buffer, m.start(group), m.end(group), result);
+                result.append(buffer, m.end(group), end);
+            }
+            copied = end;
+            matchCount++;
+
+            // after an empty match, move on so it does not match again in the same place
+            pos = end > bestStart ? end : bestStart + 1;
+        }
+
+        if (eof) {
+            result.append(buffer, copied, length);
+            return new RegexFilterResult(result, 0, matchCount);
+        }
+        return new RegexFilterResult(result, length - copied, matchCount);
+    }
+
+}
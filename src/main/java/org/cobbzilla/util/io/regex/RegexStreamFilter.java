@@ -8,4 +8,20 @@ public interface RegexStreamFilter {
 
     RegexFilterResult apply(StringBuilder buffer, boolean eof);
 
+    /**
+     * Filter input without copying it, appending the output to out.
+     * The default implementation copies input into a StringBuilder and calls apply(StringBuilder, boolean);
+     * filters that can match on any CharSequence should override this.
+     * @param input the chars to filter
+     * @param eof true if there is no more input after this
+     * @param out filtered output is appended here
+     * @return the result, whose buffer is out
+     */
+    default RegexFilterResult apply(CharSequence input, boolean eof, StringBuilder out) {
+        final RegexFilterResult result = apply(input instanceof StringBuilder ? (StringBuilder) input : new StringBuilder(input), eof);
+        out.append(result.buffer);
+        result.buffer = out;
+        return result;
+    }
+
 }
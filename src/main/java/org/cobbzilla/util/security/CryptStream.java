@@ -2,21 +2,50 @@ package org.cobbzilla.util.security;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+import static org.cobbzilla.util.security.CryptoUtil.GCM_NONCE_BYTES;
+import static org.cobbzilla.util.security.CryptoUtil.GCM_TAG_BYTES;
+import static org.cobbzilla.util.security.CryptoUtil.MAX_CHUNK_SIZE;
+import static org.cobbzilla.util.security.CryptoUtil.MIN_CHUNK_SIZE;
+import static org.cobbzilla.util.security.CryptoUtil.chunkCipher;
+import static org.cobbzilla.util.security.CryptoUtil.initChunk;
 import static org.cobbzilla.util.security.ShaUtil.sha256;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.cobbzilla.util.system.Bytes.MB;
 
+/**
+ * Encrypts and decrypts streams with AES-GCM.
+ *
+ * wrapRead and wrapWrite seal the whole stream as one GCM message, so the work runs on one core and the
+ * tag is only checked at the very end. The segmented methods instead write a container of independently sealed
+ * segments: they use all cores, hold only a few segments in memory, detect corruption segment by segment,
+ * and any segment of a container in a file can be decrypted on its own with decryptSegment.
+ */
 @AllArgsConstructor
 public class CryptStream {
 
@@ -27,8 +56,21 @@ public class CryptStream {
 
     @Getter(lazy=true) private final SecretKeySpec secretKey = new SecretKeySpec(sha256(password), "AES");
 
+    public static final int DEFAULT_SEGMENT_SIZE = (int) MB;
+    public static final byte[] SEGMENTED_MAGIC = "ZCS1".getBytes(UTF8cs);
+    public static final int SEGMENTED_HEADER_SIZE = SEGMENTED_MAGIC.length + 4 + GCM_NONCE_BYTES;
+
     static { Security.addProvider(new BouncyCastleProvider()); }
 
+    private static final SecureRandom random = new SecureRandom();
+
+    private static class Segments {
+        static final int THREADS = processorCount();
+        static final ExecutorService pool = fixedPool(THREADS, "CryptStream-segments");
+        // segments being worked on, or waiting to be written, per stream
+        static final int MAX_PENDING = 2 * THREADS;
+    }
+
     private static Cipher newCipher() {
         try {
             return Cipher.getInstance("AES/GCM/NoPadding", "BC");
@@ -78,4 +120,178 @@ public class CryptStream {
         return new CipherInputStream(in, getEncryptionCipher(salt, aad));
     }
 
+    public long encryptSegmented(InputStream in, OutputStream out, byte[] salt, String aad) throws IOException {
+        return encryptSegmented(in, out, salt, aad, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Encrypt in to out as a segmented container, sealing segments in parallel.
+     * The container is a header (magic, segment size, random nonce) followed by the segments, each of up to segmentSize
+     * bytes plus a GCM tag. Each segment's nonce is derived from the header nonce and its index, and the header, aad,
+     * index and a last-segment flag are authenticated with it, so segments cannot be reordered, dropped or truncated
+     * without detection. The key is derived from the password and salt.
+     * @return the number of bytes written to out
+     */
+    public long encryptSegmented(InputStream in, OutputStream out, byte[] salt, String aad, int segmentSize) throws IOException {
+        if (segmentSize < MIN_CHUNK_SIZE || segmentSize > MAX_CHUNK_SIZE) return die("encryptSegmented: invalid segmentSize: "+segmentSize);
+        final byte[] nonce = new byte[GCM_NONCE_BYTES];
+        random.nextBytes(nonce);
+        final byte[] header = ByteBuffer.allocate(SEGMENTED_HEADER_SIZE).put(SEGMENTED_MAGIC).putInt(segmentSize).put(nonce).array();
+        out.write(header);
+        return header.length + transformSegments(in, out, Cipher.ENCRYPT_MODE, segmentKey(salt), context(header, aad), nonce,
+                                                  segmentSize, segmentSize + GCM_TAG_BYTES);
+    }
+
+    /**
+     * Decrypt a container written by encryptSegmented, verifying and decrypting segments in parallel.
+     * Segments are written to out in order, each only after it has been verified. If a segment fails verification,
+     * the segments before it have already been written to out, and this method throws.
+     * @return the number of bytes written to out
+     */
+    public long decryptSegmented(InputStream in, OutputStream out, byte[] salt, String aad) throws IOException {
+        final byte[] header = new byte[SEGMENTED_HEADER_SIZE];
+        if (IOUtils.read(in, header) != header.length) return die("decryptSegmented: truncated header");
+        final int segmentSize = segmentSize(header);
+        return transformSegments(in, out, Cipher.DECRYPT_MODE, segmentKey(salt), context(header, aad), nonce(header),
+                                 segmentSize + GCM_TAG_BYTES, segmentSize + GCM_TAG_BYTES);
+    }
+
+    /**
+     * @param channel a container written by encryptSegmented
+     * @return the number of segments in the container
+     */
+    public long segmentCount(FileChannel channel) throws IOException {
+        final long sealedSize = segmentSize(readHeader(channel)) + GCM_TAG_BYTES;
+        return Math.max(1, (channel.size() - SEGMENTED_HEADER_SIZE + sealedSize - 1) / sealedSize);
+    }
+
+    /**
+     * Decrypt one segment of a container, without reading the rest of it.
+     * Segment i holds the plaintext starting at i * the segment size the container was written with.
+     * @param channel a container written by encryptSegmented
+     * @param index which segment to decrypt, from zero to segmentCount - 1
+     * @return the segment's plaintext
+     */
+    public byte[] decryptSegment(FileChannel channel, byte[] salt, String aad, long index) throws IOException {
+        final byte[] header = readHeader(channel);
+        final long sealedSize = segmentSize(header) + GCM_TAG_BYTES;
+        final long count = segmentCount(channel);
+        if (index < 0 || index >= count) return die("decryptSegment: index "+index+" out of range, container has "+count+" segments");
+
+        final long position = SEGMENTED_HEADER_SIZE + index * sealedSize;
+        final int len = (int) Math.min(sealedSize, channel.size() - position);
+        final Segment segment = new Segment(len, len);
+        readFully(channel, ByteBuffer.wrap(segment.input), position);
+        segment.inputLen = len;
+        segment.index = index;
+        segment.last = index == count - 1;
+        transform(segment, Cipher.DECRYPT_MODE, segmentKey(salt), context(header, aad), nonce(header));
+        return Arrays.copyOf(segment.output, segment.outputLen);
+    }
+
+    private SecretKeySpec segmentKey(byte[] salt) {
+        if (salt == null || salt.length == 0) return die("segmentKey: salt is required");
+        final MessageDigest md = HashEngine.newDigest(HashEngine.SHA256);
+        md.update(getSecretKey().getEncoded());
+        md.update(salt);
+        return new SecretKeySpec(md.digest(), "AES");
+    }
+
+    private static byte[] context(byte[] header, String aad) {
+        final byte[] aadBytes = aad.getBytes(UTF8cs);
+        return ByteBuffer.allocate(header.length + aadBytes.length).put(header).put(aadBytes).array();
+    }
+
+    private static int segmentSize(byte[] header) {
+        if (!Arrays.equals(Arrays.copyOf(header, SEGMENTED_MAGIC.length), SEGMENTED_MAGIC)) return die("segmentSize: not a segmented container");
+        final int segmentSize = ByteBuffer.wrap(header).getInt(SEGMENTED_MAGIC.length);
+        if (segmentSize < MIN_CHUNK_SIZE || segmentSize > MAX_CHUNK_SIZE) return die("segmentSize: invalid segmentSize: "+segmentSize);
+        return segmentSize;
+    }
+
+    private static byte[] nonce(byte[] header) {
+        return Arrays.copyOfRange(header, SEGMENTED_MAGIC.length + 4, SEGMENTED_HEADER_SIZE);
+    }
+
+    private static byte[] readHeader(FileChannel channel) throws IOException {
+        final byte[] header = new byte[SEGMENTED_HEADER_SIZE];
+        readFully(channel, ByteBuffer.wrap(header), 0);
+        return header;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            final int read = channel.read(buf, position);
+            if (read == -1) throw new EOFException("readFully: unexpected end of file at "+position);
+            position += read;
+        }
+    }
+
+    private static class Segment {
+        final byte[] input;
+        final byte[] output;
+        int inputLen;
+        int outputLen;
+        long index;
+        boolean last;
+        Segment(int inputSize, int outputSize) { input = new byte[inputSize]; output = new byte[outputSize]; }
+    }
+
+    private static Segment transform(Segment segment, int mode, Key key, byte[] context, byte[] nonce) {
+        final Cipher cipher = chunkCipher();
+        try {
+            initChunk(cipher, mode, key, context, nonce, segment.index, segment.last);
+            segment.outputLen = cipher.doFinal(segment.input, 0, segment.inputLen, segment.output, 0);
+            return segment;
+        } catch (AEADBadTagException e) {
+            return die("transform: segment "+segment.index+" failed verification: "+e, e);
+        } catch (Exception e) {
+            return die("transform: segment "+segment.index+": "+e, e);
+        }
+    }
+
+    // read segments of inputSize from in, transform them on the pool, and write them to out in order
+    private long transformSegments(InputStream in, OutputStream out, int mode, Key key, byte[] context, byte[] nonce,
+                                   int inputSize, int outputSize) throws IOException {
+        final Deque<Segment> free = new ArrayDeque<>();
+        final Deque<Future<Segment>> pending = new ArrayDeque<>();
+        long total = 0;
+        long index = 0;
+        boolean done = false;
+        int next = in.read();
+        try {
+            while (!done || !pending.isEmpty()) {
+                if (!done && pending.size() < Segments.MAX_PENDING && (pending.isEmpty() || !pending.peek().isDone())) {
+                    if (next == -1 && mode == Cipher.DECRYPT_MODE) return die("transformSegments: missing segment "+index);
+                    final Segment segment = free.isEmpty() ? new Segment(inputSize, outputSize) : free.poll();
+                    int len = 0;
+                    if (next != -1) {
+                        segment.input[len++] = (byte) next;
+                        len += IOUtils.read(in, segment.input, len, inputSize - len);
+                        // read ahead to find out whether this is the last segment
+                        next = len == inputSize ? in.read() : -1;
+                    }
+                    segment.inputLen = len;
+                    segment.index = index++;
+                    segment.last = done = next == -1;
+                    pending.add(Segments.pool.submit(() -> transform(segment, mode, key, context, nonce)));
+                    continue;
+                }
+                final Segment segment = pending.poll().get();
+                out.write(segment.output, 0, segment.outputLen);
+                total += segment.outputLen;
+                free.add(segment);
+            }
+            return total;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return die("transformSegments: interrupted");
+        } catch (ExecutionException e) {
+            return die("transformSegments: "+e.getCause().getMessage(), e);
+        } finally {
+            for (Future<Segment> f : pending) f.cancel(true);
+        }
+    }
+
 }
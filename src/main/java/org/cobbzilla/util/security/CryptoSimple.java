@@ -4,9 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.compress.utils.IOUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -33,12 +31,10 @@ public class CryptoSimple implements Crypto {
         return string_decrypt(ciphertext, secretKey);
     }
 
-    // todo - support stream-oriented encryption
     @Override public void encrypt(InputStream in, OutputStream out) {
         if (empty(secretKey)) die("encrypt: key was not initialized");
         try {
-            final byte[] ciphertext = CryptoUtil.encrypt(in, secretKey);
-            IOUtils.copy(new ByteArrayInputStream(ciphertext), out);
+            CryptoUtil.encrypt(in, out, secretKey);
 
         } catch (Exception e) {
             die("encryption failed: "+e, e);
@@ -0,0 +1,255 @@
+package org.cobbzilla.util.security;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.tohex;
+import static org.cobbzilla.util.system.Bytes.KB;
+import static org.cobbzilla.util.system.Bytes.MB;
+
+/**
+ * Hashes bytes, streams and files in the JVM.
+ *
+ * MessageDigest instances are cached: each thread reuses its own for one-shot hashes, and new instances are cloned
+ * from a prototype instead of being looked up through the security providers. Files are read through a FileChannel
+ * into a reusable per-thread heap buffer. Memory mapping is not used: MessageDigest copies a mapped (direct) buffer
+ * through a small array of its own, and measured no faster than this buffer, even for large files.
+ *
+ * An engine has a bounded pool for hashing many files at once (hashFiles), and for treeHash, which hashes the chunks
+ * of one large file in parallel.
+ */
+@Slf4j @Accessors(chain=true)
+public class HashEngine implements Closeable {
+
+    public static final String SHA256 = "SHA-256";
+    public static final String MD5 = "MD5";
+
+    public static final int DEFAULT_BUFFER_SIZE = (int) (256 * KB);
+    public static final long DEFAULT_TREE_CHUNK_SIZE = 64 * MB;
+
+    private static final Map<String, MessageDigest> PROTOTYPES = new ConcurrentHashMap<>();
+    private static final Map<String, ThreadLocal<MessageDigest>> THREAD_DIGESTS = new ConcurrentHashMap<>();
+
+    private static class Shared {
+        static final HashEngine SHA256_ENGINE = new HashEngine(SHA256);
+        static final HashEngine MD5_ENGINE = new HashEngine(MD5);
+    }
+
+    /** @return a process-wide SHA-256 engine */
+    public static HashEngine sha256 () { return Shared.SHA256_ENGINE; }
+
+    /** @return a process-wide MD5 engine */
+    public static HashEngine md5 () { return Shared.MD5_ENGINE; }
+
+    private static MessageDigest getInstance (String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return die("getInstance: "+e, e);
+        }
+    }
+
+    /**
+     * @return a new MessageDigest, which the caller owns
+     */
+    public static MessageDigest newDigest (String algorithm) {
+        final MessageDigest prototype = PROTOTYPES.computeIfAbsent(algorithm, HashEngine::getInstance);
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return getInstance(algorithm);
+        }
+    }
+
+    // the calling thread's digest, reset. it must be finished with before anything else on this thread could hash
+    private static MessageDigest threadDigest (String algorithm) {
+        final MessageDigest md = THREAD_DIGESTS
+                .computeIfAbsent(algorithm, a -> ThreadLocal.withInitial(() -> newDigest(a)))
+                .get();
+        md.reset();
+        return md;
+    }
+
+    public static byte[] hash (String algorithm, byte[] data) { return hash(algorithm, data, 0, data.length); }
+
+    public static byte[] hash (String algorithm, byte[] data, int offset, int len) {
+        final MessageDigest md = threadDigest(algorithm);
+        md.update(data, offset, len);
+        return md.digest();
+    }
+
+    /**
+     * Hash everything remaining in a stream
+     */
+    public static byte[] hash (String algorithm, InputStream in) throws IOException {
+        // not the thread's digest: reading the stream might hash something else on this thread
+        final MessageDigest md = newDigest(algorithm);
+        final byte[] buf = new byte[(int) (64 * KB)];
+        int read;
+        while ((read = in.read(buf)) != -1) md.update(buf, 0, read);
+        return md.digest();
+    }
+
+    @Getter private final String algorithm;
+    @Getter @Setter private int threads = processorCount();
+    @Getter @Setter private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(bufferSize));
+    private ExecutorService pool;
+
+    public HashEngine (String algorithm) {
+        this.algorithm = algorithm;
+        newDigest(algorithm); // fail now if the algorithm is not supported
+    }
+
+    private synchronized ExecutorService pool () {
+        if (pool == null) pool = fixedPool(threads, getClass().getSimpleName()+"-"+algorithm);
+        return pool;
+    }
+
+    public byte[] hash (byte[] data) { return hash(algorithm, data); }
+
+    public byte[] hash (File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            final MessageDigest md = threadDigest(algorithm);
+            // read to the end rather than to size: some files (in /proc, for example) report a size of zero
+            final ByteBuffer buf = buffers.get();
+            buf.clear();
+            while (channel.read(buf) != -1) {
+                md.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            return md.digest();
+        }
+    }
+
+    public String hex (File file) throws IOException { return tohex(hash(file)); }
+
+    public String hexOrDie (File file) {
+        try {
+            return hex(file);
+        } catch (Exception e) {
+            return die("hexOrDie: error hashing "+abs(file)+": "+e, e);
+        }
+    }
+
+    // hash len bytes starting at position. positional reads do not move the channel, so threads can share it
+    private void update (MessageDigest md, FileChannel channel, long position, long len) throws IOException {
+        final ByteBuffer buf = buffers.get();
+        final long end = position + len;
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            final int read = channel.read(buf, position);
+            if (read == -1) throw new EOFException("update: file ended at "+position+", expected "+end+" bytes");
+            md.update(buf.array(), 0, read);
+            position += read;
+        }
+    }
+
+    /**
+     * Hash files concurrently, at most `threads` at a time
+     * @return a future for each file's hash, in the same order as files
+     */
+    public Map<File, CompletableFuture<byte[]>> hashAsync (Collection<File> files) {
+        final Map<File, CompletableFuture<byte[]>> futures = new LinkedHashMap<>();
+        for (File file : files) {
+            futures.put(file, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return hash(file);
+                } catch (IOException e) {
+                    return die("hashAsync: error hashing "+abs(file)+": "+e, e);
+                }
+            }, pool()));
+        }
+        return futures;
+    }
+
+    /**
+     * Hash files concurrently, at most `threads` at a time
+     * @return the hex hash of each file, in the same order as files
+     * @throws IllegalStateException if any file could not be hashed
+     */
+    public Map<File, String> hashFiles (Collection<File> files) {
+        final Map<File, String> hashes = new LinkedHashMap<>();
+        for (Map.Entry<File, CompletableFuture<byte[]>> entry : hashAsync(files).entrySet()) {
+            try {
+                hashes.put(entry.getKey(), tohex(entry.getValue().get()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return die("hashFiles: interrupted");
+            } catch (ExecutionException e) {
+                return die("hashFiles: "+e.getCause(), e);
+            }
+        }
+        return hashes;
+    }
+
+    public byte[] treeHash (File file) throws IOException { return treeHash(file, DEFAULT_TREE_CHUNK_SIZE); }
+
+    /**
+     * Hash a large file using all threads. The file is split into chunks of chunkSize, each chunk is hashed
+     * in parallel, and the result is the hash of the chunk hashes concatenated in order.
+     * This is NOT the same value as hash(file), and it changes with chunkSize; compare tree hashes only with
+     * tree hashes made with the same chunkSize.
+     * Do not call this from a task running on this engine's pool.
+     */
+    public byte[] treeHash (File file, long chunkSize) throws IOException {
+        if (chunkSize <= 0) throw new IllegalArgumentException("treeHash: chunkSize must be positive");
+        try (FileChannel channel = FileChannel.open(file.toPath(), READ)) {
+            final long size = channel.size();
+            final int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+            final List<CompletableFuture<byte[]>> leaves = new ArrayList<>(chunks);
+            for (int i = 0; i < chunks; i++) {
+                final long position = i * chunkSize;
+                final long len = Math.min(chunkSize, size - position);
+                leaves.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        final MessageDigest md = threadDigest(algorithm);
+                        update(md, channel, position, len);
+                        return md.digest();
+                    } catch (IOException e) {
+                        return die("treeHash: error hashing "+abs(file)+" at "+position+": "+e, e);
+                    }
+                }, pool()));
+            }
+            final MessageDigest root = newDigest(algorithm);
+            for (CompletableFuture<byte[]> leaf : leaves) root.update(leaf.get());
+            return root.digest();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("treeHash: interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("treeHash: "+e.getCause(), e.getCause());
+        }
+    }
+
+    @Override public synchronized void close () {
+        if (pool != null) pool.shutdownNow();
+        pool = null;
+    }
+
+}
@@ -9,6 +9,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.security.HashEngine.MD5;
 
 public class MD5Util {
 
@@ -18,32 +19,11 @@ public class MD5Util {
         return getMD5(bytes, 0, bytes.length);
     }
     public static byte[] getMD5 ( byte[] bytes, int start, int len ) {
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update( bytes, start, len );
-            return md5.digest();
-        } catch (NoSuchAlgorithmException e) {
-            return die("Error calculating MD5: " + e);
-        }
+        return HashEngine.hash(MD5, bytes, start, len);
     }
 
     public static String md5hex (Logger log, File file) throws IOException {
-        int BUFSIZ = 4096;
-        try (FileInputStream fin = new FileInputStream(file)) {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            BufferedInputStream in = new BufferedInputStream(fin);
-            byte[] buf = new byte[BUFSIZ];
-            int bytesRead = in.read(buf);
-            while (bytesRead != -1) {
-                md5.update(buf, 0, bytesRead);
-                bytesRead = in.read(buf);
-            }
-            return StringUtil.tohex(md5.digest());
-
-        } catch (NoSuchAlgorithmException e) {
-            return die("Error calculating MD5: " + e);
-        }
-
+        return HashEngine.md5().hex(file);
     }
 
     public static String md5hex ( String s ) {
@@ -80,7 +60,7 @@ public class MD5Util {
     public static final class MD5InputStream extends DigestInputStream {
 
         public MD5InputStream(InputStream stream) throws NoSuchAlgorithmException {
-            super(stream, MessageDigest.getInstance("MD5"));
+            super(stream, HashEngine.newDigest(MD5));
         }
 
         public String md5hex () {
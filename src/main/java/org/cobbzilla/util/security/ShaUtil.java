@@ -1,13 +1,10 @@
 package org.cobbzilla.util.security;
 
 import lombok.Cleanup;
-import org.apache.commons.exec.CommandLine;
 import org.cobbzilla.util.string.Base64;
 import org.cobbzilla.util.string.StringUtil;
-import org.cobbzilla.util.system.CommandResult;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -17,17 +14,16 @@ import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import static org.apache.commons.lang3.SystemUtils.IS_OS_MAC;
 import static org.cobbzilla.util.daemon.ZillaRuntime.die;
 import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.security.HashEngine.SHA256;
 import static org.cobbzilla.util.string.StringUtil.UTF8cs;
-import static org.cobbzilla.util.string.StringUtil.split;
+import static org.cobbzilla.util.system.Bytes.KB;
 import static org.cobbzilla.util.system.Bytes.MB;
-import static org.cobbzilla.util.system.CommandShell.exec;
 
 public class ShaUtil {
 
-    private static MessageDigest md() throws NoSuchAlgorithmException { return MessageDigest.getInstance("SHA-256"); }
+    private static MessageDigest md() { return HashEngine.newDigest(SHA256); }
 
     public static byte[] sha256 (String data) {
         try {
@@ -40,7 +36,7 @@ public class ShaUtil {
     public static byte[] sha256 (byte[] data) {
         if (data == null) throw new NullPointerException("sha256: null argument");
         try {
-            return md().digest(data);
+            return HashEngine.hash(SHA256, data);
         } catch (Exception e) {
             return die("sha256: bad data: "+e, e);
         }
@@ -62,38 +58,16 @@ public class ShaUtil {
         }
     }
 
+    // no longer used: files of any size are hashed in the JVM
     public static final long SHA256_FILE_USE_SHELL_THRESHHOLD = 10*MB;
 
     public static String sha256_file (String file) { return sha256_file(new File(file)); }
 
-    public static String sha256_file (File file) {
-        final CommandResult result;
-        try {
-            if (file.length() < SHA256_FILE_USE_SHELL_THRESHHOLD) return sha256_file_java(file);
-            result = exec(shaCommand().addArgument(abs(file), false));
-            if (result.isZeroExitStatus()) return split(result.getStdout(), " ").get(0);
-
-        } catch (Exception e) {
-            // if we tried the shell command, it may have failed, try the pure java version
-            if (file.length() > SHA256_FILE_USE_SHELL_THRESHHOLD) return sha256_file_java(file);
-            return die("sha256sum_file: Error calculating sha256 on " + abs(file) + ": " + e);
-        }
-        return die("sha256sum_file: sha256sum "+abs(file)+" exited with status "+result.getExitStatus()+", stderr="+result.getStderr()+", exception="+result.getExceptionString());
-    }
-
-    private static CommandLine shaCommand() {
-        if (IS_OS_MAC) {
-            return new CommandLine("shasum").addArgument("-a").addArgument("256");
-        } else {
-            return new CommandLine("sha256sum");
-        }
-    }
+    public static String sha256_file (File file) { return sha256_file_java(file); }
 
     public static String sha256_file_java(File file) {
         try {
-            @Cleanup final InputStream input = new FileInputStream(file);
-            final MessageDigest md = getMessageDigest(input);
-            return StringUtil.tohex(md.digest());
+            return HashEngine.sha256().hex(file);
         } catch (Exception e) {
             return die("Error calculating sha256 on " + abs(file) + ": " + e);
         }
@@ -110,7 +84,7 @@ public class ShaUtil {
     }
 
     public static MessageDigest getMessageDigest(InputStream input) throws NoSuchAlgorithmException, IOException, DigestException {
-        final byte[] buf = new byte[4096];
+        final byte[] buf = new byte[(int) (64 * KB)];
         final MessageDigest md = md();
         while (true) {
             int read = input.read(buf, 0, buf.length);
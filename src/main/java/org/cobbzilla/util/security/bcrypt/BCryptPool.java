@@ -0,0 +1,79 @@
+package org.cobbzilla.util.security.bcrypt;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs bcrypt hashing and verification on a dedicated, bounded pool, so that a burst of logins cannot
+ * tie up every request thread on key stretching.
+ *
+ * At most `threads` hashes run at once and at most `queueLimit` wait. Anything beyond that is rejected at once:
+ * the returned future fails with a RejectedExecutionException, which callers can turn into a "try again later".
+ */
+@Slf4j
+public class BCryptPool implements Closeable {
+
+    @Getter private final int threads;
+    @Getter private final int queueLimit;
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BCryptPool (int threads, int queueLimit) {
+        this.threads = threads;
+        this.queueLimit = queueLimit;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS,
+                                           new ArrayBlockingQueue<>(queueLimit),
+                                           new DaemonThreadFactory(getClass().getSimpleName()),
+                                           new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public CompletableFuture<String> hashAsync (String password) {
+        return submit(() -> BCryptUtil.hash(password));
+    }
+
+    public CompletableFuture<String> hashAsync (String password, int logRounds) {
+        return submit(() -> BCryptUtil.hash(password, logRounds));
+    }
+
+    public CompletableFuture<Boolean> checkAsync (String plaintext, String hashed) {
+        return submit(() -> BCrypt.checkpw(plaintext, hashed));
+    }
+
+    private <T> CompletableFuture<T> submit (Supplier<T> task) {
+        submitted.incrementAndGet();
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            final long count = rejected.incrementAndGet();
+            if (count == 1 || count % 1000 == 0) log.warn("submit: pool is full ("+threads+" running, "+queueLimit+" queued), rejected "+count+" so far");
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /** @return the number of tasks submitted, including those rejected */
+    public long getSubmittedCount () { return submitted.get(); }
+
+    /** @return the number of tasks rejected because the queue was full */
+    public long getRejectedCount () { return rejected.get(); }
+
+    public long getCompletedCount () { return pool.getCompletedTaskCount(); }
+
+    public int getActiveCount () { return pool.getActiveCount(); }
+
+    public int getQueuedCount () { return pool.getQueue().size(); }
+
+    @Override public void close () { pool.shutdownNow(); }
+
+}
@@ -2,7 +2,12 @@ package org.cobbzilla.util.security.bcrypt;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.cobbzilla.util.daemon.ZillaRuntime.RANDOM;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.daemon.ZillaRuntime.processorCount;
 
 @Slf4j
 public class BCryptUtil {
@@ -20,10 +25,97 @@ public class BCryptUtil {
 
     public static Integer getBcryptRounds() { return bcryptRounds; }
 
+    public static final int MIN_ROUNDS = 4;
+    public static final int MAX_ROUNDS = 31;
+
     public static String hash(String password) {
         return BCrypt.hashpw(password, BCrypt.gensalt(getBcryptRounds(), RANDOM));
     }
 
+    public static String hash(String password, int logRounds) {
+        return BCrypt.hashpw(password, BCrypt.gensalt(logRounds, RANDOM));
+    }
+
+    /**
+     * @param hashed a bcrypt hash, like $2a$12$...
+     * @return the log2 rounds it was hashed with, or -1 if it is not a bcrypt hash
+     */
+    public static int logRounds(String hashed) {
+        if (hashed == null || !hashed.startsWith("$2")) return -1;
+        final int off = hashed.indexOf('$', 2) + 1;
+        if (off == 0 || hashed.length() < off + 3 || hashed.charAt(off + 2) != '$') return -1;
+        try {
+            return Integer.parseInt(hashed.substring(off, off + 2));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Call after a successful login: if this returns true, hash the password again and store the new hash.
+     * @return true if hashed used fewer rounds than are now configured, or is not a bcrypt hash
+     * @throws IllegalStateException if bcryptRounds has not been set
+     */
+    public static boolean needsRehash(String hashed) {
+        final Integer rounds = getBcryptRounds();
+        if (rounds == null) return die("needsRehash: bcryptRounds has not been set, call setBcryptRounds or calibrateBcryptRounds first");
+        return needsRehash(hashed, rounds);
+    }
+
+    public static boolean needsRehash(String hashed, int logRounds) { return logRounds(hashed) < logRounds; }
+
+    /**
+     * Find the cost that takes about targetMillis to hash on this host.
+     * Each extra round doubles the time, so this times hashes at increasing rounds and stops at the last
+     * one whose next step would take longer than the target.
+     * @return the log2 rounds to use, never less than MIN_ROUNDS
+     */
+    public static int calibrateRounds(long targetMillis) {
+        hash("warmup", MIN_ROUNDS);
+        int rounds = MIN_ROUNDS;
+        while (rounds < MAX_ROUNDS) {
+            final long start = System.nanoTime();
+            hash("calibrate", rounds);
+            final long elapsed = NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (elapsed * 2 > targetMillis) break;
+            rounds++;
+        }
+        log.info("calibrateRounds: "+rounds+" rounds for a target of "+targetMillis+"ms");
+        return rounds;
+    }
+
+    /**
+     * Set bcryptRounds to what calibrateRounds finds for targetMillis
+     * @return the rounds now in use
+     * @throws IllegalStateException if bcryptRounds was already set, since it can only be set once
+     */
+    public synchronized static int calibrateBcryptRounds(long targetMillis) {
+        if (bcryptRounds != null) return die("calibrateBcryptRounds: bcryptRounds already set to "+bcryptRounds);
+        setBcryptRounds(calibrateRounds(targetMillis));
+        return bcryptRounds;
+    }
+
+    // leave half the cores for everything else
+    public static final int DEFAULT_POOL_THREADS = Math.max(1, processorCount() / 2);
+    public static final int DEFAULT_POOL_QUEUE_LIMIT = 32 * DEFAULT_POOL_THREADS;
+
+    private static BCryptPool pool = null;
+
+    public synchronized static BCryptPool getPool() {
+        if (pool == null) pool = new BCryptPool(DEFAULT_POOL_THREADS, DEFAULT_POOL_QUEUE_LIMIT);
+        return pool;
+    }
+
+    /** Replace the pool used by hashAsync and checkAsync. The previous pool is closed. */
+    public synchronized static void setPool(BCryptPool newPool) {
+        if (pool != null && pool != newPool) pool.close();
+        pool = newPool;
+    }
+
+    public static CompletableFuture<String> hashAsync(String password) { return getPool().hashAsync(password); }
+
+    public static CompletableFuture<Boolean> checkAsync(String plaintext, String hashed) { return getPool().checkAsync(plaintext, hashed); }
+
     public static void main (String[] args) {
         int input = 0;
         int rounds = 16;
@@ -558,15 +558,7 @@ public class Base64
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
-        while( raw.hasRemaining() ){
-            int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            encoded.put(enc4);
-        }   // end input remaining
+        Base64Codec.encode( raw, encoded, NO_OPTIONS );
     }
 
 
@@ -905,6 +897,10 @@ public class Base64
                     String.format( "Cannot have offset of %d and length of %d with array of length %d", off,len,source.length));
         }   // end if: off < 0
 
+        // java.util.Base64 does the work, unless the options need the code below
+        if( Base64Codec.supports( options ) ){
+            return Base64Codec.encodeToBytes( source, off, len, options );
+        }   // end if: supported
 
 
         // Compress?
@@ -1167,6 +1163,12 @@ public class Base64
                     "Base64-encoded string must have at least four characters, but length specified was " + len );
         }   // end if
 
+        // Try java.util.Base64 first; it returns null for input that needs the code below
+        byte[] fast = Base64Codec.decodeFast( source, off, len, options );
+        if( fast != null ){
+            return fast;
+        }   // end if: decoded
+
         byte[] DECODABET = getDecodabet( options );
 
         int    len34   = len * 3 / 4;       // Estimate on array size
@@ -1551,38 +1553,7 @@ public class Base64
      * @throws java.io.IOException if there is an error
      */
     public static String encodeFromFile(java.io.File file) throws java.io.IOException {
-
-        String encodedData = null;
-        Base64.InputStream bis = null;
-        try
-        {
-            // Set up some useful variables
-            byte[] buffer = new byte[ Math.max((int)(file.length() * 1.4+1),40) ]; // Need max() for math on small files (v2.2.1); Need +1 for a few corner cases (v2.3.5)
-            int length   = 0;
-            int numBytes = 0;
-
-            // Open a stream
-            bis = new Base64.InputStream(
-                    new java.io.BufferedInputStream(
-                            new java.io.FileInputStream( file ) ), Base64.ENCODE );
-
-            // Read until done
-            while( ( numBytes = bis.read( buffer, length, 4096 ) ) >= 0 ) {
-                length += numBytes;
-            }   // end while
-
-            // Save in a variable to return
-            encodedData = new String( buffer, 0, length, Base64.PREFERRED_ENCODING );
-
-        }   // end try
-        catch( java.io.IOException e ) {
-            throw e; // Catch and release to execute finally{}
-        }   // end catch: java.io.IOException
-        finally {
-            try{ bis.close(); } catch( Exception e) {}
-        }   // end finally
-
-        return encodedData;
+        return Base64Codec.encode( java.nio.file.Files.readAllBytes( file.toPath() ) );
     }   // end encodeFromFile
 
     /**
@@ -0,0 +1,488 @@
+package org.cobbzilla.util.string;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.cobbzilla.util.string.Base64.DECODE;
+import static org.cobbzilla.util.string.Base64.DO_BREAK_LINES;
+import static org.cobbzilla.util.string.Base64.ENCODE;
+import static org.cobbzilla.util.string.Base64.GZIP;
+import static org.cobbzilla.util.string.Base64.NO_OPTIONS;
+import static org.cobbzilla.util.string.Base64.ORDERED;
+import static org.cobbzilla.util.string.Base64.URL_SAFE;
+
+/**
+ * Base64 on top of java.util.Base64, whose encoding and decoding loops the JVM compiles to vector instructions.
+ *
+ * The options and the results are the same as Base64's: URL_SAFE, DO_BREAK_LINES (a newline after every 76 chars,
+ * including a final full line), GZIP and DONT_GUNZIP. Decoding skips whitespace and ignores anything after the
+ * padding, and input that java.util.Base64 rejects is handed to Base64, so errors are reported the same way.
+ * The ORDERED alphabet, and URL_SAFE with DO_BREAK_LINES, are not available from java.util.Base64 and are handled by Base64.
+ *
+ * Data can be encoded and decoded into caller-provided arrays and ByteBuffers. These work through per-thread
+ * scratch buffers, a block at a time, rather than allocating arrays the size of the input.
+ */
+public class Base64Codec {
+
+    public static final int LINE_LENGTH = 76;
+    private static final int LINE_BYTES = LINE_LENGTH / 4 * 3;
+    private static final byte NEWLINE = '\n';
+    private static final byte EQUALS_SIGN = '=';
+
+    // a multiple of LINE_BYTES, so the encoding of a block ends at the end of a line
+    public static final int BLOCK_SIZE = 256 * LINE_BYTES;
+    private static final int ENCODED_BLOCK_SIZE = BLOCK_SIZE / 3 * 4 + BLOCK_SIZE / LINE_BYTES;
+    private static final int QUADS_SIZE = BLOCK_SIZE / 3 * 4;
+
+    private static final java.util.Base64.Encoder STANDARD_ENCODER = java.util.Base64.getEncoder();
+    private static final java.util.Base64.Encoder URL_SAFE_ENCODER = java.util.Base64.getUrlEncoder();
+    private static final java.util.Base64.Encoder LINES_ENCODER = java.util.Base64.getMimeEncoder(LINE_LENGTH, new byte[] {NEWLINE});
+    private static final java.util.Base64.Decoder STANDARD_DECODER = java.util.Base64.getDecoder();
+    private static final java.util.Base64.Decoder URL_SAFE_DECODER = java.util.Base64.getUrlDecoder();
+
+    private static class Scratch {
+        final byte[] bytes = new byte[BLOCK_SIZE];
+        final byte[] encoded = new byte[ENCODED_BLOCK_SIZE];
+        final byte[] quads = new byte[QUADS_SIZE];
+    }
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /** @return true if java.util.Base64 can encode with these options; if not, Base64 does the work */
+    public static boolean supports (int options) {
+        if ((options & URL_SAFE) != 0) return (options & DO_BREAK_LINES) == 0;
+        return (options & ORDERED) == 0;
+    }
+
+    private static java.util.Base64.Encoder encoder (int options) {
+        if ((options & URL_SAFE) != 0) return URL_SAFE_ENCODER;
+        return (options & DO_BREAK_LINES) != 0 ? LINES_ENCODER : STANDARD_ENCODER;
+    }
+
+    // null if the alphabet is not one java.util.Base64 has. URL_SAFE takes precedence over ORDERED, as in Base64
+    private static java.util.Base64.Decoder decoder (int options) {
+        if ((options & URL_SAFE) != 0) return URL_SAFE_DECODER;
+        return (options & ORDERED) == 0 ? STANDARD_DECODER : null;
+    }
+
+    /** @return the length of the encoding of len bytes, without GZIP */
+    public static int encodedLength (int len, int options) {
+        final long length = (len + 2L) / 3 * 4 + ((options & DO_BREAK_LINES) != 0 ? len / LINE_BYTES : 0);
+        if (length > Integer.MAX_VALUE) throw new IllegalArgumentException("encodedLength: too large: "+len);
+        return (int) length;
+    }
+
+    private static void checkRange (byte[] array, int off, int len) {
+        if (array == null) throw new NullPointerException("checkRange: null array");
+        if (off < 0 || len < 0 || off > array.length - len) {
+            throw new IllegalArgumentException("checkRange: invalid offset "+off+" and length "+len+" for array of length "+array.length);
+        }
+    }
+
+    public static String encode (byte[] data) {
+        try {
+            return encode(data, NO_OPTIONS);
+        } catch (IOException e) {
+            throw new IllegalStateException("encode: unexpected error: "+e, e);
+        }
+    }
+
+    public static String encode (byte[] data, int options) throws IOException {
+        return new String(encodeToBytes(data, 0, data.length, options), US_ASCII);
+    }
+
+    public static byte[] encodeToBytes (byte[] src, int off, int len, int options) throws IOException {
+        checkRange(src, off, len);
+        if (!supports(options)) return Base64.encodeBytesToBytes(src, off, len, options);
+        if ((options & GZIP) != 0) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (OutputStream gz = new GZIPOutputStream(encodingStream(out, options & ~GZIP))) {
+                gz.write(src, off, len);
+            }
+            return out.toByteArray();
+        }
+        final java.util.Base64.Encoder encoder = encoder(options);
+        if (off == 0 && len == src.length) {
+            final byte[] encoded = new byte[encodedLength(len, options)];
+            final int n = encoder.encode(src, encoded);
+            if (lineEndsAfter(len, options)) encoded[n] = NEWLINE;
+            return encoded;
+        }
+        final byte[] encoded = new byte[encodedLength(len, options)];
+        encode(src, off, len, encoded, 0, options);
+        return encoded;
+    }
+
+    // Base64 ends the last line with a newline when it is full, java.util.Base64 never does
+    private static boolean lineEndsAfter (int len, int options) {
+        return (options & DO_BREAK_LINES) != 0 && len > 0 && len % LINE_BYTES == 0;
+    }
+
+    // encode all of block into encoded, and return the length
+    private static int encodeBlock (byte[] block, byte[] encoded, int options) {
+        int n = encoder(options).encode(block, encoded);
+        if (lineEndsAfter(block.length, options)) encoded[n++] = NEWLINE;
+        return n;
+    }
+
+    /**
+     * Encode len bytes of src into dst, starting at dstOff, without GZIP.
+     * @return the number of bytes written to dst, which is encodedLength(len, options)
+     * @throws IllegalArgumentException if dst does not have room
+     */
+    public static int encode (byte[] src, int off, int len, byte[] dst, int dstOff, int options) {
+        checkRange(src, off, len);
+        if ((options & GZIP) != 0) throw new IllegalArgumentException("encode: GZIP cannot be encoded into a buffer");
+        final int encodedLength = encodedLength(len, options);
+        if (dstOff < 0 || dst.length - dstOff < encodedLength) throw new IllegalArgumentException("encode: need "+encodedLength+" bytes in dst");
+        if (!supports(options)) {
+            final byte[] encoded = legacyEncode(src, off, len, options);
+            System.arraycopy(encoded, 0, dst, dstOff, encoded.length);
+            return encoded.length;
+        }
+        final Scratch scratch = SCRATCH.get();
+        int pos = dstOff;
+        for (int done = 0; done < len; done += BLOCK_SIZE) {
+            final int n = Math.min(BLOCK_SIZE, len - done);
+            final byte[] block = n == BLOCK_SIZE ? scratch.bytes : new byte[n];
+            System.arraycopy(src, off + done, block, 0, n);
+            final int encoded = encodeBlock(block, scratch.encoded, options);
+            System.arraycopy(scratch.encoded, 0, dst, pos, encoded);
+            pos += encoded;
+        }
+        return pos - dstOff;
+    }
+
+    /**
+     * Encode the remaining bytes of src into dst, without GZIP. Both positions are advanced.
+     * @throws IllegalArgumentException if dst does not have room
+     */
+    public static void encode (ByteBuffer src, ByteBuffer dst, int options) {
+        if ((options & GZIP) != 0) throw new IllegalArgumentException("encode: GZIP cannot be encoded into a buffer");
+        final int encodedLength = encodedLength(src.remaining(), options);
+        if (dst.remaining() < encodedLength) throw new IllegalArgumentException("encode: need "+encodedLength+" bytes in dst");
+        if (src.hasArray() && dst.hasArray()) {
+            final int n = encode(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                                 dst.array(), dst.arrayOffset() + dst.position(), options);
+            src.position(src.limit());
+            dst.position(dst.position() + n);
+            return;
+        }
+        if (!supports(options)) {
+            final byte[] raw = new byte[src.remaining()];
+            src.get(raw);
+            dst.put(legacyEncode(raw, 0, raw.length, options));
+            return;
+        }
+        final Scratch scratch = SCRATCH.get();
+        while (src.hasRemaining()) {
+            final int n = Math.min(BLOCK_SIZE, src.remaining());
+            final byte[] block = n == BLOCK_SIZE ? scratch.bytes : new byte[n];
+            src.get(block);
+            dst.put(scratch.encoded, 0, encodeBlock(block, scratch.encoded, options));
+        }
+    }
+
+    private static byte[] legacyEncode (byte[] src, int off, int len, int options) {
+        try {
+            return Base64.encodeBytesToBytes(src, off, len, options);
+        } catch (IOException e) {
+            throw new IllegalStateException("legacyEncode: unexpected error: "+e, e);
+        }
+    }
+
+    public static byte[] decode (String s) throws IOException { return Base64.decode(s); }
+
+    /** Decodes s, and gunzips the result if it is gzipped, unless options include DONT_GUNZIP */
+    public static byte[] decode (String s, int options) throws IOException { return Base64.decode(s, options); }
+
+    public static byte[] decode (byte[] src, int off, int len, int options) throws IOException {
+        return Base64.decode(src, off, len, options);
+    }
+
+    /**
+     * Decode len bytes of src into dst, starting at dstOff. Like Base64.decode, this does not gunzip.
+     * @return the number of bytes written to dst
+     * @throws IOException if src contains a character that is not Base64 or whitespace
+     * @throws IllegalArgumentException if dst does not have room
+     */
+    public static int decode (byte[] src, int off, int len, byte[] dst, int dstOff, int options) throws IOException {
+        checkRange(src, off, len);
+        if (dstOff < 0 || dstOff > dst.length) throw new IllegalArgumentException("decode: invalid dstOff: "+dstOff);
+        final java.util.Base64.Decoder decoder = decoder(options);
+        if (decoder != null && len >= 4) {
+            final int n = decodeInto(decoder, src, off, len, dst, dstOff);
+            if (n >= 0) return n;
+        }
+        final byte[] decoded = Base64.decode(src, off, len, options);
+        if (dst.length - dstOff < decoded.length) throw new IllegalArgumentException("decode: need "+decoded.length+" bytes in dst");
+        System.arraycopy(decoded, 0, dst, dstOff, decoded.length);
+        return decoded.length;
+    }
+
+    /**
+     * Decode the remaining bytes of src into dst. Both positions are advanced. Like Base64.decode, this does not gunzip.
+     * @throws IOException if src contains a character that is not Base64 or whitespace
+     * @throws IllegalArgumentException if dst does not have room
+     */
+    public static void decode (ByteBuffer src, ByteBuffer dst, int options) throws IOException {
+        if (src.hasArray() && dst.hasArray()) {
+            final int n = decode(src.array(), src.arrayOffset() + src.position(), src.remaining(),
+                                 dst.array(), dst.arrayOffset() + dst.position(), options);
+            src.position(src.limit());
+            dst.position(dst.position() + n);
+            return;
+        }
+        final byte[] encoded = new byte[src.remaining()];
+        src.get(encoded);
+        final byte[] decoded = Base64.decode(encoded, 0, encoded.length, options);
+        if (dst.remaining() < decoded.length) throw new IllegalArgumentException("decode: need "+decoded.length+" bytes in dst");
+        dst.put(decoded);
+    }
+
+    /**
+     * Called by Base64.decode to try java.util.Base64 first
+     * @return the decoded bytes, or null if Base64 must decode src itself
+     */
+    static byte[] decodeFast (byte[] src, int off, int len, int options) {
+        final java.util.Base64.Decoder decoder = decoder(options);
+        if (decoder == null) return null;
+        if (off == 0 && len == src.length && len % 4 == 0) {
+            try {
+                return decoder.decode(src);
+            } catch (IllegalArgumentException e) {
+                // whitespace, or something Base64 handles differently: try the slower way
+            }
+        }
+        final byte[] decoded = new byte[len / 4 * 3];
+        final int n = decodeInto(decoder, src, off, len, decoded, 0);
+        if (n < 0) return null;
+        return n == decoded.length ? decoded : Arrays.copyOf(decoded, n);
+    }
+
+    private static boolean isWhitespace (byte b) { return b == ' ' || b == '\n' || b == '\r' || b == '\t'; }
+
+    // decode a block at a time, skipping whitespace. -1 if Base64 must decode src itself
+    private static int decodeInto (java.util.Base64.Decoder decoder, byte[] src, int off, int len, byte[] dst, int dstOff) {
+        final Scratch scratch = SCRATCH.get();
+        final byte[] quads = scratch.quads;
+        final int end = off + len;
+        int i = off;
+        int pos = dstOff;
+        boolean padded = false;
+        while (true) {
+            int n = 0;
+            while (i < end && n < quads.length) {
+                final byte b = src[i++];
+                // every whitespace char is <= ' ', and no Base64 char is
+                if (b > ' ' || !isWhitespace(b)) quads[n++] = b;
+            }
+            if (n == 0) return pos - dstOff;
+
+            // Base64 ignores anything after the padding, and a partial quad at the end
+            if (padded || n % 4 != 0) return -1;
+            padded = quads[n - 1] == EQUALS_SIGN;
+
+            final int decoded;
+            try {
+                decoded = decoder.decode(n == quads.length ? quads : Arrays.copyOf(quads, n), scratch.bytes);
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+            if (dst.length - pos < decoded) throw new IllegalArgumentException("decode: dst is too small");
+            System.arraycopy(scratch.bytes, 0, dst, pos, decoded);
+            pos += decoded;
+        }
+    }
+
+    /**
+     * Encode what is written to the returned stream, and write it to out. With GZIP, the data is gzipped first.
+     * Encoded data is written to out a block at a time; flush writes everything that can be encoded without padding.
+     * Closing the returned stream writes the padding and closes out.
+     */
+    public static OutputStream encodingStream (OutputStream out, int options) throws IOException {
+        if ((options & GZIP) != 0) return new GZIPOutputStream(encodingStream(out, options & ~GZIP));
+        if (!supports(options)) return new Base64.OutputStream(out, ENCODE | options);
+        return new EncodingOutputStream(out, options);
+    }
+
+    /**
+     * Decode what is read from in. It does not gunzip. Characters that are not Base64 are skipped.
+     * The decoded data ends with the first padded quad, as with Base64.InputStream, which decodes that quad and then
+     * returns -1 from every read. Unlike Base64.InputStream, this reads in blocks, so it may consume input after
+     * the padded quad, but none of it is decoded.
+     */
+    public static InputStream decodingStream (InputStream in, int options) {
+        final java.util.Base64.Decoder decoder = decoder(options);
+        if (decoder == null) return new Base64.InputStream(in, DECODE | options);
+        return new DecodingInputStream(in, decoder, (options & URL_SAFE) != 0);
+    }
+
+    private static class EncodingOutputStream extends FilterOutputStream {
+
+        private final int options;
+        // a whole number of these can be encoded without padding, and without breaking Base64's lines
+        private final int unit;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] encoded = new byte[ENCODED_BLOCK_SIZE];
+        private int count = 0;
+        private boolean closed = false;
+
+        EncodingOutputStream (OutputStream out, int options) {
+            super(out);
+            this.options = options;
+            this.unit = (options & DO_BREAK_LINES) != 0 ? LINE_BYTES : 3;
+        }
+
+        @Override public void write (int b) throws IOException {
+            block[count++] = (byte) b;
+            if (count == BLOCK_SIZE) writeEncoded(BLOCK_SIZE);
+        }
+
+        @Override public void write (byte[] b, int off, int len) throws IOException {
+            checkRange(b, off, len);
+            while (len > 0) {
+                final int n = Math.min(len, BLOCK_SIZE - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == BLOCK_SIZE) writeEncoded(BLOCK_SIZE);
+            }
+        }
+
+        // encode and write the first n buffered bytes
+        private void writeEncoded (int n) throws IOException {
+            if (n == 0) return;
+            out.write(encoded, 0, encodeBlock(n == BLOCK_SIZE ? block : Arrays.copyOf(block, n), encoded, options));
+            count -= n;
+            System.arraycopy(block, n, block, 0, count);
+        }
+
+        @Override public void flush () throws IOException {
+            writeEncoded(count / unit * unit);
+            out.flush();
+        }
+
+        @Override public void close () throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writeEncoded(count);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static class DecodingInputStream extends FilterInputStream {
+
+        private final java.util.Base64.Decoder decoder;
+        private final boolean urlSafe;
+        private final byte[] raw = new byte[QUADS_SIZE];
+        private final byte[] quads = new byte[QUADS_SIZE];
+        private final byte[] decoded = new byte[BLOCK_SIZE];
+        private int quadCount = 0;
+        private int decodedPos = 0;
+        private int decodedLen = 0;
+        private boolean done = false;
+
+        DecodingInputStream (InputStream in, java.util.Base64.Decoder decoder, boolean urlSafe) {
+            super(in);
+            this.decoder = decoder;
+            this.urlSafe = urlSafe;
+        }
+
+        private boolean isBase64 (byte b) {
+            return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == EQUALS_SIGN
+                    || (urlSafe ? b == '-' || b == '_' : b == '+' || b == '/');
+        }
+
+        // false at the end of the decoded data
+        private boolean fill () throws IOException {
+            while (decodedPos == decodedLen) {
+                if (done) return false;
+                decodedPos = decodedLen = 0;
+
+                // the first padding char, which may have been read last time
+                int padding = -1;
+                for (int i = 0; i < quadCount && padding == -1; i++) if (quads[i] == EQUALS_SIGN) padding = i;
+
+                // read until quads is full, or holds the whole padded quad
+                boolean eof = false;
+                while (quadCount < quads.length && (padding == -1 || quadCount < padding / 4 * 4 + 4)) {
+                    final int read = in.read(raw, 0, quads.length - quadCount);
+                    if (read == -1) {
+                        eof = true;
+                        break;
+                    }
+                    for (int i = 0; i < read; i++) {
+                        if (!isBase64(raw[i])) continue;
+                        if (raw[i] == EQUALS_SIGN && padding == -1) padding = quadCount;
+                        quads[quadCount++] = raw[i];
+                    }
+                }
+
+                int n = quadCount / 4 * 4;
+                if (padding != -1) {
+                    // the data ends with the padded quad. anything after it is ignored
+                    if (padding / 4 * 4 + 4 <= quadCount) {
+                        n = padding / 4 * 4 + 4;
+                        done = true;
+                    } else if (eof) {
+                        throw new IOException("Improperly padded Base64 input.");
+                    } else {
+                        // read the rest of the padded quad first
+                        n = padding / 4 * 4;
+                    }
+                } else if (eof) {
+                    if (n != quadCount) throw new IOException("Improperly padded Base64 input.");
+                    done = true;
+                }
+                if (n == 0) continue;
+
+                try {
+                    decodedLen = decoder.decode(n == quads.length ? quads : Arrays.copyOf(quads, n), decoded);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid Base64 input: "+e.getMessage(), e);
+                }
+                quadCount -= n;
+                System.arraycopy(quads, n, quads, 0, quadCount);
+            }
+            return true;
+        }
+
+        @Override public int read () throws IOException {
+            return fill() ? decoded[decodedPos++] & 0xff : -1;
+        }
+
+        @Override public int read (byte[] b, int off, int len) throws IOException {
+            checkRange(b, off, len);
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int n = Math.min(len, decodedLen - decodedPos);
+            System.arraycopy(decoded, decodedPos, b, off, n);
+            decodedPos += n;
+            return n;
+        }
+
+        @Override public long skip (long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && fill()) {
+                final int step = (int) Math.min(n - skipped, decodedLen - decodedPos);
+                decodedPos += step;
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override public int available () { return decodedLen - decodedPos; }
+
+        @Override public boolean markSupported () { return false; }
+        @Override public synchronized void mark (int readlimit) {}
+        @Override public synchronized void reset () throws IOException { throw new IOException("reset: mark is not supported"); }
+    }
+
+}
@@ -0,0 +1,228 @@
+package org.cobbzilla.util.string;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Parses and builds application/x-www-form-urlencoded query strings in a single pass, without regex or String.split.
+ * Encoding and decoding are compatible with URLEncoder/URLDecoder using UTF-8: unreserved characters are
+ * a-z A-Z 0-9 . - * _, a space is encoded as '+', and everything else is percent-encoded as UTF-8 bytes.
+ *
+ * Parsing reports each name/value pair to a QueryParamHandler, so callers that only look at a few parameters need not
+ * build a Map. A name with no '=' has a null value, and a name with nothing after the '=' has an empty value, so
+ * "a&b=" parses as a=null, b="" and builds back to "a&b=". Names and values that contain no
+ * '%' or '+' are returned as substrings of the input, without decoding.
+ */
+public class QueryStringCodec {
+
+    public interface QueryParamHandler {
+        void param (String name, String value);
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final boolean[] SAFE = new boolean[128];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) SAFE[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) SAFE[c] = true;
+        for (char c = '0'; c <= '9'; c++) SAFE[c] = true;
+        SAFE['.'] = SAFE['-'] = SAFE['*'] = SAFE['_'] = true;
+    }
+
+    /**
+     * Parse a query string. If the input contains a '?', everything up to and including the first '?' is skipped,
+     * so a full URL may be passed. A '#' fragment ends the query.
+     * @param query the query string
+     * @param handler called once for each name/value pair, in order
+     */
+    public static void parse (CharSequence query, QueryParamHandler handler) { parse(query, StandardCharsets.UTF_8, handler); }
+
+    public static void parse (CharSequence query, Charset charset, QueryParamHandler handler) {
+        if (query == null) return;
+        final int len = query.length();
+        for (int i=0; i<len; i++) {
+            if (query.charAt(i) == '?') { parse(query, i+1, charset, handler); return; }
+        }
+        parse(query, 0, charset, handler);
+    }
+
+    /**
+     * Parse a query string that has already been taken from its URL, such as URL.getQuery() returns.
+     * Unlike parse, a '?' is not treated as the start of the query, so it may appear in names and values.
+     * @param query the query string, without the leading '?'
+     * @param handler called once for each name/value pair, in order
+     */
+    public static void parseRaw (CharSequence query, QueryParamHandler handler) { parseRaw(query, StandardCharsets.UTF_8, handler); }
+
+    public static void parseRaw (CharSequence query, Charset charset, QueryParamHandler handler) {
+        if (query != null) parse(query, 0, charset, handler);
+    }
+
+    private static void parse (CharSequence query, int pos, Charset charset, QueryParamHandler handler) {
+        int len = query.length();
+        for (int i=pos; i<len; i++) {
+            if (query.charAt(i) == '#') { len = i; break; }
+        }
+        while (pos < len) {
+            int amp = pos;
+            int eq = -1;
+            for (; amp < len; amp++) {
+                final char c = query.charAt(amp);
+                if (c == '&') break;
+                if (c == '=' && eq == -1) eq = amp;
+            }
+            if (amp > pos) {
+                if (eq == -1) {
+                    handler.param(decode(query, pos, amp, charset), null);
+                } else {
+                    handler.param(decode(query, pos, eq, charset), decode(query, eq+1, amp, charset));
+                }
+            }
+            pos = amp + 1;
+        }
+    }
+
+    /** @return the parameters in order. If a name occurs more than once, the last value wins */
+    public static Map<String, String> parse (CharSequence query) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        parse(query, params::put);
+        return params;
+    }
+
+    /** @return the parameters of a raw query string in order. If a name occurs more than once, the last value wins */
+    public static Map<String, String> parseRaw (CharSequence query) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        parseRaw(query, params::put);
+        return params;
+    }
+
+    /** @return the parameters in order, with every value for each name */
+    public static Map<String, List<String>> parseMulti (CharSequence query) {
+        final Map<String, List<String>> params = new LinkedHashMap<>();
+        parse(query, (name, value) -> params.computeIfAbsent(name, k -> new ArrayList<>(1)).add(value));
+        return params;
+    }
+
+    public static String decode (CharSequence s) { return decode(s, 0, s.length(), StandardCharsets.UTF_8); }
+
+    public static String decode (CharSequence s, int start, int end, Charset charset) {
+        int i = start;
+        while (i < end) {
+            final char c = s.charAt(i);
+            if (c == '%' || c == '+') break;
+            i++;
+        }
+        if (i == end) return s.subSequence(start, end).toString();
+
+        final StringBuilder b = new StringBuilder(end - start);
+        b.append(s, start, i);
+        byte[] bytes = null;
+        while (i < end) {
+            final char c = s.charAt(i);
+            if (c == '+') {
+                b.append(' ');
+                i++;
+            } else if (c == '%') {
+                // decode a run of consecutive %XX escapes together, since a multi-byte character spans several
+                if (bytes == null) bytes = new byte[(end - i) / 3];
+                int n = 0;
+                while (i + 2 < end && s.charAt(i) == '%') {
+                    final int hi = Character.digit(s.charAt(i+1), 16);
+                    final int lo = Character.digit(s.charAt(i+2), 16);
+                    if (hi == -1 || lo == -1) throw new IllegalArgumentException("decode: illegal hex characters in escape (%) pattern at index "+i+": "+s);
+                    bytes[n++] = (byte) ((hi << 4) + lo);
+                    i += 3;
+                }
+                if (i < end && s.charAt(i) == '%') throw new IllegalArgumentException("decode: incomplete trailing escape (%) pattern: "+s);
+                b.append(new String(bytes, 0, n, charset));
+            } else {
+                b.append(c);
+                i++;
+            }
+        }
+        return b.toString();
+    }
+
+    public static String encode (CharSequence s) {
+        final int len = s.length();
+        for (int i=0; i<len; i++) {
+            final char c = s.charAt(i);
+            if (c >= 128 || !SAFE[c]) return encode(s, new StringBuilder(len + 16)).toString();
+        }
+        return s.toString();
+    }
+
+    /**
+     * Encode s and append the result to out
+     * @return out
+     */
+    public static StringBuilder encode (CharSequence s, StringBuilder out) {
+        final int len = s.length();
+        for (int i=0; i<len; i++) {
+            final char c = s.charAt(i);
+            if (c < 128) {
+                if (SAFE[c]) {
+                    out.append(c);
+                } else if (c == ' ') {
+                    out.append('+');
+                } else {
+                    escape(out, c);
+                }
+            } else if (c < 0x800) {
+                escape(out, 0xC0 | (c >> 6));
+                escape(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                escape(out, 0xF0 | (cp >> 18));
+                escape(out, 0x80 | ((cp >> 12) & 0x3F));
+                escape(out, 0x80 | ((cp >> 6) & 0x3F));
+                escape(out, 0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                escape(out, '?'); // unpaired surrogate, same as URLEncoder
+            } else {
+                escape(out, 0xE0 | (c >> 12));
+                escape(out, 0x80 | ((c >> 6) & 0x3F));
+                escape(out, 0x80 | (c & 0x3F));
+            }
+        }
+        return out;
+    }
+
+    private static void escape (StringBuilder out, int b) {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Append one encoded name=value pair to out, preceded by '&' unless out is empty or ends with '?' or '&'.
+     * If value is null, only the name is appended.
+     * @return out
+     */
+    public static StringBuilder append (StringBuilder out, CharSequence name, CharSequence value) {
+        final int len = out.length();
+        if (len > 0) {
+            final char last = out.charAt(len - 1);
+            if (last != '?' && last != '&') out.append('&');
+        }
+        encode(name, out);
+        if (value != null) encode(value, out.append('='));
+        return out;
+    }
+
+    public static StringBuilder build (Map<String, String> params, StringBuilder out) {
+        for (Map.Entry<String, String> param : params.entrySet()) append(out, param.getKey(), param.getValue());
+        return out;
+    }
+
+    public static StringBuilder buildMulti (Map<String, ? extends Collection<String>> params, StringBuilder out) {
+        for (Map.Entry<String, ? extends Collection<String>> param : params.entrySet()) {
+            for (String value : param.getValue()) append(out, param.getKey(), value);
+        }
+        return out;
+    }
+
+    public static String build (Map<String, String> params) { return build(params, new StringBuilder()).toString(); }
+
+    public static String buildMulti (Map<String, ? extends Collection<String>> params) { return buildMulti(params, new StringBuilder()).toString(); }
+
+}
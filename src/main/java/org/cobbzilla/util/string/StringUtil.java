@@ -14,11 +14,8 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormat;
 
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.NumberFormat;
@@ -181,25 +178,13 @@ public class StringUtil {
         return new String(new char[n*s.length()]).replace("\0", s);
     }
 
-    public static String urlEncode (String s) {
-        try {
-            return URLEncoder.encode(s, UTF8);
-        } catch (UnsupportedEncodingException e) {
-            return die("urlEncode: "+e, e);
-        }
-    }
+    public static String urlEncode (String s) { return QueryStringCodec.encode(s); }
 
     public static String simpleUrlEncode (String s) {
         return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
     }
 
-    public static String urlDecode (String s) {
-        try {
-            return URLDecoder.decode(s, UTF8);
-        } catch (UnsupportedEncodingException e) {
-            return die("urlDecode: "+e, e);
-        }
-    }
+    public static String urlDecode (String s) { return QueryStringCodec.decode(s); }
 
     public static URI uriOrDie (String s) {
         try {
@@ -209,16 +194,7 @@ public class StringUtil {
         }
     }
 
-    public static String urlParameterize(Map<String, String> params) {
-        final StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            if (sb.length() > 0) sb.append('&');
-            sb.append(urlEncode(entry.getKey()))
-                    .append('=')
-                    .append(urlEncode(entry.getValue()));
-        }
-        return sb.toString();
-    }
+    public static String urlParameterize(Map<String, String> params) { return QueryStringCodec.build(params); }
 
     public static String toString (Collection c) { return toString(c, ","); }
 
@@ -0,0 +1,91 @@
+package org.cobbzilla.util.daemon;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    public static final long TICK = 10;
+
+    private ExecutorService executor;
+    private TimerWheel wheel;
+
+    // a small wheel, so that longer delays go around it more than once
+    @Before public void createWheel () {
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("TimerWheelTest"));
+        wheel = new TimerWheel("TimerWheelTest", TICK, 8, executor);
+    }
+
+    @After public void closeWheel () {
+        wheel.close();
+        executor.shutdownNow();
+    }
+
+    private long elapsedMillis (long start) { return NANOSECONDS.toMillis(System.nanoTime() - start); }
+
+    @Test public void testFiresOnTime () throws Exception {
+        for (long delay : new long[] {0, 50, 250}) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicLong firedAfter = new AtomicLong();
+            final long start = System.nanoTime();
+            final TimerWheel.Timeout timeout = wheel.schedule(() -> {
+                firedAfter.set(elapsedMillis(start));
+                latch.countDown();
+            }, delay);
+
+            assertTrue("task with delay "+delay+" never ran", latch.await(5, SECONDS));
+            assertTrue("task with delay "+delay+" ran early, after "+firedAfter.get()+"ms", firedAfter.get() >= delay - TICK);
+            assertTrue("task with delay "+delay+" ran late, after "+firedAfter.get()+"ms", firedAfter.get() < delay + 1000);
+            assertTrue(timeout.isExpired());
+            assertFalse("expected cancel to fail after the task ran", timeout.cancel());
+        }
+    }
+
+    @Test public void testCancel () throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final TimerWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 100);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse("expected a second cancel to fail", timeout.cancel());
+
+        Thread.sleep(400);
+        assertEquals("cancelled task ran", 0, runs.get());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test public void testReschedule () throws Exception {
+        // reschedule by cancelling and scheduling again, as a debouncer does with each new event
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Runnable task = () -> { runs.incrementAndGet(); latch.countDown(); };
+        final long start = System.nanoTime();
+        TimerWheel.Timeout timeout = wheel.schedule(task, 100);
+        for (int i=0; i<5; i++) {
+            Thread.sleep(40);
+            assertTrue("expected pending task to be cancelled", timeout.cancel());
+            timeout = wheel.schedule(task, 100);
+        }
+
+        assertTrue("rescheduled task never ran", latch.await(5, SECONDS));
+        assertTrue("rescheduled task ran too early", elapsedMillis(start) >= 5 * 40 + 100 - TICK);
+        Thread.sleep(200);
+        assertEquals("expected only the last schedule to run", 1, runs.get());
+    }
+
+    @Test(expected=IllegalStateException.class) public void testScheduleAfterClose () throws Exception {
+        wheel.close();
+        wheel.schedule(() -> {}, 10);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.cobbzilla.util.http;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.cobbzilla.util.http.HttpMethods.POST;
+import static org.junit.Assert.*;
+
+public class HttpAsyncExecutorTest {
+
+    private static LoopbackHttpServer server;
+
+    @BeforeClass public static void startServer () throws Exception { server = new LoopbackHttpServer(); }
+    @AfterClass public static void stopServer () { if (server != null) server.close(); }
+
+    @Test public void testMaxPerHost () throws Exception {
+        final int maxPerHost = 3;
+        server.resetCounters();
+        final HttpAsyncExecutor executor = new HttpAsyncExecutor(maxPerHost);
+        final List<HttpRequestBean> requests = new ArrayList<>();
+        for (int i=0; i<20; i++) requests.add(new HttpRequestBean(server.url(1024)+"&delay=50"));
+
+        final Map<HttpRequestBean, HttpResponseBean> responses = executor.executeAll(requests).get(30, SECONDS);
+        assertEquals(requests.size(), responses.size());
+        for (HttpResponseBean response : responses.values()) {
+            assertNotNull("expected every request to succeed", response);
+            assertTrue(response.isOk());
+            assertArrayEquals(LoopbackHttpServer.payload(1024), response.getEntity());
+        }
+        assertTrue("expected at most "+maxPerHost+" requests in flight, saw "+server.getMaxInFlight(), server.getMaxInFlight() <= maxPerHost);
+        assertTrue("expected requests to run concurrently", server.getMaxInFlight() > 1);
+    }
+
+    @Test public void testFailedRequests () throws Exception {
+        // a slow request holds the only slot while many requests queue behind it. they all fail as soon as they
+        // start, and must be failed one after another, not by recursing once per request
+        final HttpAsyncExecutor executor = new HttpAsyncExecutor(1);
+        final CompletableFuture<HttpResponseBean> slow = executor.execute(new HttpRequestBean(server.url(1024)+"&delay=1000"));
+        final List<CompletableFuture<HttpResponseBean>> failures = new ArrayList<>();
+        for (int i=0; i<20000; i++) {
+            failures.add(executor.execute(new HttpRequestBean(server.url(1024)).setAuth(HttpAuthType.digest, "user", "password")));
+        }
+        assertTrue(slow.get(30, SECONDS).isOk());
+        for (CompletableFuture<HttpResponseBean> f : failures) {
+            try {
+                f.get(30, SECONDS);
+                fail("expected request with unsupported auth to fail");
+            } catch (ExecutionException e) {
+                assertTrue("unexpected error: "+e.getCause(), e.getCause() instanceof UnsupportedOperationException);
+            }
+        }
+
+        // a refused connection fails the request and frees its slot
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) { port = socket.getLocalPort(); }
+        try {
+            executor.execute(new HttpRequestBean("http://127.0.0.1:"+port+"/")).get(30, SECONDS);
+            fail("expected request to closed port to fail");
+        } catch (ExecutionException e) {
+            assertTrue("unexpected error: "+e.getCause(), e.getCause() instanceof ConnectException);
+        }
+        assertTrue(executor.execute(new HttpRequestBean(server.url(1024))).get(30, SECONDS).isOk());
+    }
+
+    @Test public void testStreamBodyIsNotResent () throws Exception {
+        // following a 307 would send the body again, but the stream has been read, so the redirect is returned as is
+        final byte[] body = LoopbackHttpServer.payload(5000);
+        final String redirect = server.url(1024)+"&status=307&location="+server.url(1024);
+        final HttpRequestBean request = new HttpRequestBean(POST, redirect)
+                .setEntityInputStream(new ByteArrayInputStream(body));
+        final HttpResponseBean response = new HttpAsyncExecutor().execute(request).get(30, SECONDS);
+        assertEquals(307, response.getStatus());
+        assertEquals(String.valueOf(body.length), response.getFirstHeaderValue(LoopbackHttpServer.REQUEST_BYTES_HEADER));
+    }
+
+}
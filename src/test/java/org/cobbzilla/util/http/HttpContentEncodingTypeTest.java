@@ -6,6 +6,9 @@ import org.cobbzilla.util.system.Bytes;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertArrayEquals;
 
@@ -17,6 +20,29 @@ public class HttpContentEncodingTypeTest {
         }
     }
 
+    @Test public void testGzipInteropWithJdk () throws Exception {
+        final byte[] expectedData = RandomUtils.nextBytes((int) (65*Bytes.KB));
+
+        // pooled encoder -> JDK decoder
+        final byte[] encoded = HttpContentEncodingType.gzip.encode(expectedData);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+            assertArrayEquals("JDK could not decode pooled gzip", expectedData, IOUtils.toByteArray(in));
+        }
+
+        // JDK encoder, two concatenated members -> pooled decoder
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i=0; i<2; i++) {
+            try (OutputStream gz = new GZIPOutputStream(out) { @Override public void close() throws IOException { finish(); } }) {
+                gz.write(expectedData);
+            }
+        }
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        HttpContentEncodingType.gzip.decode(new ByteArrayInputStream(out.toByteArray()), decoded);
+        final byte[] actual = decoded.toByteArray();
+        assertArrayEquals("first member was not the same", expectedData, Arrays.copyOfRange(actual, 0, expectedData.length));
+        assertArrayEquals("second member was not the same", expectedData, Arrays.copyOfRange(actual, expectedData.length, actual.length));
+    }
+
     private void testEncodingType(HttpContentEncodingType encoding) throws IOException {
         final byte[] expectedData = RandomUtils.nextBytes((int) (65*Bytes.KB));
         final ByteArrayInputStream in = new ByteArrayInputStream(expectedData);
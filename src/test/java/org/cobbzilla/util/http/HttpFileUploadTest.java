@@ -0,0 +1,165 @@
+package org.cobbzilla.util.http;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.cobbzilla.util.http.HttpContentTypes.APPLICATION_PDF;
+import static org.cobbzilla.util.http.HttpContentTypes.MULTIPART_FORM_DATA;
+import static org.cobbzilla.util.http.HttpMethods.PUT;
+import static org.cobbzilla.util.http.LoopbackHttpServer.REQUEST_BYTES_HEADER;
+import static org.cobbzilla.util.http.LoopbackHttpServer.REQUEST_CONTENT_LENGTH_HEADER;
+import static org.cobbzilla.util.string.StringUtil.CRLF;
+import static org.cobbzilla.util.system.Bytes.KB;
+import static org.junit.Assert.*;
+
+public class HttpFileUploadTest {
+
+    public static final int CHUNK_SIZE = (int) (64 * KB);
+
+    private static LoopbackHttpServer server;
+
+    @BeforeClass public static void startServer () throws Exception { server = new LoopbackHttpServer(); }
+    @AfterClass public static void stopServer () { if (server != null) server.close(); }
+
+    private File tempDir;
+
+    @Before public void createTempDir () throws Exception { tempDir = FileUtil.createTempDir(getClass().getSimpleName()); }
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    private String echoUrl () { return server.url("/upload?echo=true"); }
+
+    private File file (String name, int size) throws Exception {
+        final File f = new File(tempDir, name);
+        FileUtils.writeByteArrayToFile(f, RandomUtils.nextBytes(size));
+        return f;
+    }
+
+    // records each progress call, and checks that sent only grows and total never changes
+    private static class Progress implements HttpUploadProgressCallback {
+        final List<Long> sent = new ArrayList<>();
+        long total = -1;
+        @Override public void progress (long sent, long total) {
+            if (this.total == -1) this.total = total;
+            assertEquals("total changed during upload", this.total, total);
+            if (!this.sent.isEmpty()) assertTrue("sent went backwards", sent >= this.sent.get(this.sent.size()-1));
+            this.sent.add(sent);
+        }
+        long last () { return sent.get(sent.size()-1); }
+    }
+
+    // the server must have seen exactly the Content-Length that was declared up front
+    private static void assertContentLength (HttpResponseBean response, long expected) {
+        assertEquals(HttpStatusCodes.OK, response.getStatus());
+        assertEquals("wrong Content-Length sent", String.valueOf(expected), response.getFirstHeaderValue(REQUEST_CONTENT_LENGTH_HEADER));
+        assertEquals("wrong number of bytes received", String.valueOf(expected), response.getFirstHeaderValue(REQUEST_BYTES_HEADER));
+        assertEquals(expected, response.getEntity().length);
+    }
+
+    @Test public void testMultipartUpload () throws Exception {
+        final int size = 5 * CHUNK_SIZE + 123;
+        final File file = file("data.bin", size);
+        final Progress progress = new Progress();
+        final HttpResponseBean response = new HttpFileUpload(echoUrl(), file)
+                .setFieldName("upload")
+                .setFilename("report.pdf")
+                .setChunkSize(CHUNK_SIZE)
+                .setProgress(progress)
+                .upload();
+
+        assertContentLength(response, progress.total);
+        assertTrue(progress.total > size);
+        // the preamble, each chunk, then the epilogue
+        assertEquals(1 + 6 + 1, progress.sent.size());
+        assertEquals(progress.total, progress.last());
+
+        final Part part = parseMultipart(response);
+        assertEquals("upload", part.disposition.get("name"));
+        assertEquals("report.pdf", part.disposition.get("filename"));
+        assertEquals(APPLICATION_PDF, part.headers.get(CONTENT_TYPE));
+        assertArrayEquals(FileUtils.readFileToByteArray(file), part.content);
+    }
+
+    @Test public void testMultipartEmptyFile () throws Exception {
+        final File file = file("empty.txt", 0);
+        final Progress progress = new Progress();
+        final HttpResponseBean response = new HttpFileUpload(echoUrl(), file).setProgress(progress).upload();
+
+        assertContentLength(response, progress.total);
+        assertEquals(progress.total, progress.last());
+
+        final Part part = parseMultipart(response);
+        assertEquals(HttpFileUpload.DEFAULT_FIELD_NAME, part.disposition.get("name"));
+        assertEquals("empty.txt", part.disposition.get("filename"));
+        assertEquals(0, part.content.length);
+    }
+
+    @Test public void testRawUpload () throws Exception {
+        final int size = 3 * CHUNK_SIZE;
+        final File file = file("data.pdf", size);
+        final Progress progress = new Progress();
+        final HttpResponseBean response = new HttpFileUpload(echoUrl(), file)
+                .setMethod(PUT)
+                .setMultipart(false)
+                .setChunkSize(CHUNK_SIZE)
+                .setProgress(progress)
+                .upload();
+
+        assertContentLength(response, size);
+        assertEquals(size, progress.total);
+        assertEquals(size, progress.last());
+        assertEquals(APPLICATION_PDF, response.getFirstHeaderValue(CONTENT_TYPE));
+        assertArrayEquals(FileUtils.readFileToByteArray(file), response.getEntity());
+    }
+
+    private static class Part {
+        final Map<String, String> headers = new HashMap<>();
+        final Map<String, String> disposition = new HashMap<>();
+        byte[] content;
+    }
+
+    // parses a multipart body that must contain exactly one part. ISO-8859-1 maps each byte to one char, so binary content survives
+    private static Part parseMultipart (HttpResponseBean response) {
+        final String contentType = response.getFirstHeaderValue(CONTENT_TYPE);
+        assertTrue("not multipart: "+contentType, contentType.startsWith(MULTIPART_FORM_DATA+"; boundary="));
+        final String delimiter = "--" + contentType.substring((MULTIPART_FORM_DATA+"; boundary=").length());
+        final String body = new String(response.getEntity(), StandardCharsets.ISO_8859_1);
+
+        assertTrue("body does not start with the boundary", body.startsWith(delimiter+CRLF));
+        final String close = CRLF+delimiter+"--"+CRLF;
+        assertTrue("body does not end with the closing boundary", body.endsWith(close));
+        final int headersEnd = body.indexOf(CRLF+CRLF);
+        assertTrue("no end of part headers", headersEnd != -1);
+
+        final Part part = new Part();
+        for (String line : body.substring((delimiter+CRLF).length(), headersEnd).split(CRLF)) {
+            final int colon = line.indexOf(':');
+            part.headers.put(line.substring(0, colon).trim(), line.substring(colon+1).trim());
+        }
+        final String disposition = part.headers.get("Content-Disposition");
+        assertTrue("not form-data: "+disposition, disposition.startsWith("form-data;"));
+        for (String param : disposition.substring("form-data;".length()).split(";")) {
+            final String[] nv = param.trim().split("=", 2);
+            part.disposition.put(nv[0], nv[1].replaceAll("^\"|\"$", ""));
+        }
+
+        final String content = body.substring(headersEnd + (CRLF+CRLF).length(), body.length() - close.length());
+        assertFalse("expected only one part", content.contains(CRLF+delimiter));
+        part.content = content.getBytes(StandardCharsets.ISO_8859_1);
+        return part;
+    }
+
+}
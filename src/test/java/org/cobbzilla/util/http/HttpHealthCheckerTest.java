@@ -0,0 +1,74 @@
+package org.cobbzilla.util.http;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class HttpHealthCheckerTest {
+
+    private static LoopbackHttpServer server;
+
+    @BeforeClass public static void startServer () throws Exception { server = new LoopbackHttpServer(); }
+    @AfterClass public static void stopServer () { if (server != null) server.close(); }
+
+    private static String refusedUrl () throws Exception {
+        final int port;
+        try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+        return "http://127.0.0.1:"+port+"/";
+    }
+
+    @Test public void testIsOk () throws Exception {
+        try (HttpHealthChecker checker = new HttpHealthChecker(2, false)) {
+            assertTrue(checker.isOk(server.url(16), null));
+            assertTrue(checker.isOk(server.url(16), "example.com"));
+            assertFalse(checker.isOk(server.url(16)+"&status=503", null));
+            assertFalse(checker.isOk(refusedUrl(), null));
+        }
+    }
+
+    @Test public void testRetries () throws Exception {
+        try (HttpHealthChecker checker = new HttpHealthChecker(2, false)) {
+            server.resetCounters();
+            final long start = System.currentTimeMillis();
+            assertFalse(checker.check(server.url(16)+"&status=503", null, 3, 100).get(10, SECONDS));
+            assertTrue("expected backoff of 100ms then 200ms", System.currentTimeMillis() - start >= 300);
+            assertEquals(3, server.getRequestCount());
+
+            assertTrue(checker.check(server.url(16), null, 3, 100).get(10, SECONDS));
+        }
+    }
+
+    @Test public void testCheckAll () throws Exception {
+        final int threads = 3;
+        try (HttpHealthChecker checker = new HttpHealthChecker(threads, false)) {
+            server.resetCounters();
+            final List<HttpHealthChecker.Target> targets = new ArrayList<>();
+            for (int i=0; i<12; i++) {
+                targets.add(new HttpHealthChecker.Target(server.url(16)+"&delay=200"+(i % 4 == 0 ? "&status=500" : ""), null));
+            }
+
+            final long start = System.currentTimeMillis();
+            final Map<HttpHealthChecker.Target, Boolean> results = checker.checkAll(targets).get(30, SECONDS);
+            assertEquals(targets, new ArrayList<>(results.keySet()));
+            for (int i=0; i<targets.size(); i++) assertEquals("wrong result for target "+i, i % 4 != 0, results.get(targets.get(i)));
+            assertTrue("expected at most "+threads+" probes at once, saw "+server.getMaxInFlight(), server.getMaxInFlight() <= threads);
+            assertTrue("expected probes to run concurrently", server.getMaxInFlight() > 1);
+            assertTrue("expected probes to finish in about 4 rounds", System.currentTimeMillis() - start < SECONDS.toMillis(10));
+        }
+    }
+
+    @Test public void testCheckAfterClose () throws Exception {
+        final HttpHealthChecker checker = new HttpHealthChecker(1, false);
+        checker.close();
+        assertFalse(checker.check(server.url(16), null, 1, 100).get(10, SECONDS));
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.cobbzilla.util.http;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.cobbzilla.util.system.Bytes;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class HttpResponseBeanTest {
+
+    @Test public void testEntityBelowSpillThreshold () throws Exception {
+        final byte[] data = RandomUtils.nextBytes((int) (10 * Bytes.KB));
+        final HttpResponseBean response = new HttpResponseBean().setEntity(new ByteArrayInputStream(data), 16 * Bytes.KB);
+        assertFalse("expected entity to stay in memory", response.hasEntityFile());
+        assertArrayEquals(data, response.getEntity());
+    }
+
+    @Test public void testUnlimitedSpillThreshold () throws Exception {
+        final byte[] data = RandomUtils.nextBytes((int) (10 * Bytes.KB));
+        final HttpResponseBean response = new HttpResponseBean().setEntity(new ByteArrayInputStream(data), Long.MAX_VALUE);
+        assertFalse("expected entity to stay in memory", response.hasEntityFile());
+        assertArrayEquals(data, response.getEntity());
+    }
+
+    @Test public void testEntityAboveSpillThreshold () throws Exception {
+        final byte[] data = RandomUtils.nextBytes((int) (100 * Bytes.KB));
+        final HttpResponseBean response = new HttpResponseBean().setEntity(new ByteArrayInputStream(data), 16 * Bytes.KB);
+        assertTrue("expected entity to spill to a file", response.hasEntityFile());
+        final File spill = response.getEntityFile();
+        assertEquals(data.length, spill.length());
+        try (InputStream in = response.getEntityStream()) {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+        response.close();
+        assertFalse("expected spill file to be deleted on close", spill.exists());
+    }
+
+    @Test public void testStreamingEntity () throws Exception {
+        final byte[] data = RandomUtils.nextBytes((int) (20 * Bytes.KB));
+        final HttpResponseBean response = new HttpResponseBean()
+                .setEntityStream(HttpContentEncodingType.gzip.wrapInput(new ByteArrayInputStream(HttpContentEncodingType.gzip.encode(data))));
+        assertTrue(response.hasEntity());
+        assertArrayEquals(data, response.getEntity());
+        assertFalse("expected stream to be consumed", response.hasEntityStream());
+    }
+
+}
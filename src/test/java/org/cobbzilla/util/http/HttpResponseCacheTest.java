@@ -0,0 +1,128 @@
+package org.cobbzilla.util.http;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.apache.http.HttpHeaders.ACCEPT_LANGUAGE;
+import static org.cobbzilla.util.http.HttpStatusCodes.OK;
+import static org.junit.Assert.*;
+
+public class HttpResponseCacheTest {
+
+    public static final int SIZE = 1024;
+
+    private static LoopbackHttpServer server;
+
+    @BeforeClass public static void startServer () throws Exception { server = new LoopbackHttpServer(); }
+    @AfterClass public static void stopServer () { if (server != null) server.close(); }
+
+    private File dir;
+    private HttpResponseCache cache;
+
+    @Before public void setup () {
+        dir = Files.createTempDir();
+        cache = new HttpResponseCache(dir, 10 * SIZE);
+        server.resetCounters();
+    }
+
+    @After public void teardown () throws Exception { FileUtils.deleteDirectory(dir); }
+
+    private HttpResponseBean get (String url, String... headers) throws Exception {
+        final HttpRequestBean request = new HttpRequestBean(url).setResponseCache(cache);
+        for (int i=0; i<headers.length; i+=2) request.setHeader(headers[i], headers[i+1]);
+        final HttpResponseBean response = HttpUtil.getResponse(request);
+        assertEquals(OK, response.getStatus());
+        assertArrayEquals(LoopbackHttpServer.payload(SIZE), response.getEntity());
+        return response;
+    }
+
+    private String url (String params) { return server.url(SIZE)+"&"+params; }
+
+    @Test public void testRevalidateWithEtag () throws Exception {
+        final String url = url("etag=%22v1%22");
+        get(url);
+        assertEquals(1, cache.size());
+        assertEquals(SIZE, cache.getTotalBytes());
+
+        // no max-age, so each request is revalidated, and the 304 is answered from the cache
+        get(url);
+        get(url);
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, server.getNotModifiedCount());
+    }
+
+    @Test public void testMaxAge () throws Exception {
+        final String url = url("etag=%22v1%22&cacheControl=max-age%3D1");
+        get(url);
+        get(url);
+        assertEquals("expected fresh response to be served without a request", 1, server.getRequestCount());
+
+        Thread.sleep(1500);
+        get(url);
+        assertEquals("expected expired response to be revalidated", 2, server.getRequestCount());
+        assertEquals(1, server.getNotModifiedCount());
+    }
+
+    @Test public void testNoStore () throws Exception {
+        final String url = url("etag=%22v1%22&cacheControl=no-store");
+        get(url);
+        get(url);
+        assertEquals(0, cache.size());
+        assertEquals(2, server.getRequestCount());
+        assertEquals("expected no conditional request", 0, server.getNotModifiedCount());
+    }
+
+    @Test public void testLruEviction () throws Exception {
+        cache = new HttpResponseCache(dir, 3 * SIZE);
+        final String a = url("n=a&cacheControl=max-age%3D60");
+        final String b = url("n=b&cacheControl=max-age%3D60");
+        final String c = url("n=c&cacheControl=max-age%3D60");
+        final String d = url("n=d&cacheControl=max-age%3D60");
+        get(a);
+        get(b);
+        get(c);
+        get(a); // now b is the least recently used
+        assertEquals(3, server.getRequestCount());
+
+        get(d);
+        assertEquals(3, cache.size());
+        assertTrue(cache.getTotalBytes() <= 3 * SIZE);
+        assertEquals(4, server.getRequestCount());
+
+        get(a);
+        get(c);
+        get(d);
+        assertEquals("expected a, c and d to still be cached", 4, server.getRequestCount());
+        get(b);
+        assertEquals("expected b to have been evicted", 5, server.getRequestCount());
+    }
+
+    @Test public void testVary () throws Exception {
+        final String url = url("vary="+ACCEPT_LANGUAGE+"&cacheControl=max-age%3D60");
+        get(url, ACCEPT_LANGUAGE, "en");
+        get(url, ACCEPT_LANGUAGE, "en");
+        assertEquals(1, server.getRequestCount());
+
+        // a different value for the varied header is a different response
+        get(url, ACCEPT_LANGUAGE, "fr");
+        assertEquals(2, server.getRequestCount());
+        get(url);
+        assertEquals(3, server.getRequestCount());
+        get(url);
+        assertEquals(3, server.getRequestCount());
+
+        // Vary: * is never cached
+        final String star = url("vary=*&cacheControl=max-age%3D60");
+        get(star);
+        get(star);
+        assertEquals(5, server.getRequestCount());
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.cobbzilla.util.http;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.cobbzilla.util.collection.NameAndValue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.daemon.ZillaRuntime.die;
+import static org.cobbzilla.util.http.HttpMethods.HEAD;
+import static org.cobbzilla.util.http.HttpMethods.POST;
+import static org.cobbzilla.util.io.FileUtil.temp;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput harness for the HttpUtil entry points, run against a LoopbackHttpServer so it needs no network.
+ * For each scenario it reports requests/sec, bytes allocated per request, and p50/p99/max latency.
+ *
+ * Skipped during normal builds. To run it:
+ * <pre>
+ *   mvn test -Dtest=HttpThroughputBenchmark -Dhttp.benchmark=true
+ * </pre>
+ * Tunables, as system properties: http.benchmark.threads (default 8), http.benchmark.requests (per thread, default 500),
+ * http.benchmark.warmup (per scenario, default 200), http.benchmark.size (response bytes, default 16384),
+ * http.benchmark.scenarios (comma-separated names, default all)
+ *
+ * Allocation is measured on the benchmark threads only. Work done on other threads, such as the async
+ * client's pool or the server's handler threads, is not counted.
+ */
+@Slf4j
+public class HttpThroughputBenchmark {
+
+    public static final String ENABLE_PROPERTY = "http.benchmark";
+
+    private final int threads = Integer.getInteger(ENABLE_PROPERTY+".threads", 8);
+    private final int requests = Integer.getInteger(ENABLE_PROPERTY+".requests", 500);
+    private final int warmup = Integer.getInteger(ENABLE_PROPERTY+".warmup", 200);
+    private final int size = Integer.getInteger(ENABLE_PROPERTY+".size", 16384);
+    private final String only = System.getProperty(ENABLE_PROPERTY+".scenarios");
+
+    public interface Scenario { void run (int thread) throws Exception; }
+
+    @Test public void benchmark () throws Exception {
+        assumeTrue("set -D"+ENABLE_PROPERTY+"=true to run", Boolean.getBoolean(ENABLE_PROPERTY));
+        final List<Result> results = runAll();
+        log.info(Result.HEADER);
+        for (Result r : results) log.info(r.toString());
+    }
+
+    public static void main (String[] args) throws Exception {
+        for (Result r : new HttpThroughputBenchmark().runAll()) System.out.println(r);
+    }
+
+    public List<Result> runAll () throws Exception {
+        final List<Result> results = new ArrayList<>();
+        final File[] downloads = new File[threads];
+        for (int i=0; i<threads; i++) downloads[i] = temp(".download");
+        final File upload = temp(".upload");
+        FileUtils.writeByteArrayToFile(upload, LoopbackHttpServer.payload(size));
+
+        try (LoopbackHttpServer server = new LoopbackHttpServer(threads * 2);
+             CloseableHttpClient pooled = new PooledHttpClientFactory("127.0.0.1", threads).create()) {
+
+            final String url = server.url(size);
+            final String gzipUrl = url+"&encoding=gzip";
+            final String chunkedUrl = url+"&chunked=true";
+            final byte[] body = LoopbackHttpServer.payload(size);
+
+            final Map<String, Scenario> scenarios = new LinkedHashMap<>();
+            scenarios.put("get", t -> drain(HttpUtil.get(url)));
+            scenarios.put("get-chunked", t -> drain(HttpUtil.get(chunkedUrl)));
+            scenarios.put("url2string", t -> HttpUtil.url2string(url));
+            scenarios.put("getResponse(String)", t -> HttpUtil.getResponse(url));
+            scenarios.put("getResponse(bean)", t -> HttpUtil.getResponse(new HttpRequestBean(url)));
+            scenarios.put("getResponse(bean,pooled)", t -> HttpUtil.getResponse(new HttpRequestBean(url), pooled));
+            scenarios.put("getResponse(bean,pooled,gzip)", t -> HttpUtil.getResponse(new HttpRequestBean(gzipUrl).setDecodeResponseEntity(true), pooled));
+            scenarios.put("getResponse(bean,pooled,stream)", t -> {
+                try (HttpResponseBean response = HttpUtil.getResponse(new HttpRequestBean(url).setStreamResponseEntity(true), pooled)) {
+                    drain(response.getEntityStream());
+                }
+            });
+            scenarios.put("getResponseAsync", t -> HttpUtil.getResponseAsync(new HttpRequestBean(url)).get());
+            scenarios.put("getStreamResponse", t -> HttpUtil.getStreamResponse(new HttpRequestBean(POST, url, new ByteArrayInputStream(body), "upload.bin", new NameAndValue[0])));
+            scenarios.put("post", t -> drain(HttpUtil.post(url, new ByteArrayInputStream(body), null, null, null)));
+            scenarios.put("uploadFile", t -> HttpUtil.uploadFile(url, POST, upload, null, null));
+            scenarios.put("url2file", t -> HttpUtil.url2file(url, downloads[t]));
+            scenarios.put("url2fileParallel", t -> HttpUtil.url2fileParallel(url, downloads[t], 4));
+            scenarios.put("getHeadMetadata", t -> HttpUtil.getHeadMetadata(new HttpRequestBean(HEAD, url)));
+            scenarios.put("isOk", t -> { if (!HttpUtil.isOk(url)) die("isOk returned false"); });
+
+            final List<String> selected = only == null ? null : Arrays.asList(only.split("\\s*,\\s*"));
+            for (Map.Entry<String, Scenario> s : scenarios.entrySet()) {
+                if (selected != null && !selected.contains(s.getKey())) continue;
+                server.resetCounters();
+                final Result result = run(s.getKey(), s.getValue());
+                result.connections = server.getConnectionCount();
+                results.add(result);
+            }
+
+        } finally {
+            for (File f : downloads) FileUtils.deleteQuietly(f);
+            FileUtils.deleteQuietly(upload);
+        }
+        return results;
+    }
+
+    private Result run (String name, Scenario scenario) throws Exception {
+        for (int i=0; i<warmup; i++) scenario.run(0);
+
+        final long[][] latencies = new long[threads][requests];
+        final AtomicLong allocated = new AtomicLong(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService pool = fixedPool(threads, getClass().getSimpleName());
+        final List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t=0; t<threads; t++) {
+                final int thread = t;
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    final long before = allocatedBytes();
+                    for (int i=0; i<requests; i++) {
+                        final long t0 = System.nanoTime();
+                        scenario.run(thread);
+                        latencies[thread][i] = System.nanoTime() - t0;
+                    }
+                    allocated.addAndGet(allocatedBytes() - before);
+                    return null;
+                }));
+            }
+            final long t0 = System.nanoTime();
+            start.countDown();
+            for (Future<?> f : futures) f.get();
+            final long elapsed = System.nanoTime() - t0;
+
+            final long[] all = new long[threads * requests];
+            for (int t=0; t<threads; t++) System.arraycopy(latencies[t], 0, all, t * requests, requests);
+            Arrays.sort(all);
+            return new Result(name, all.length, elapsed, allocated.get(), all);
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void drain (InputStream in) throws Exception {
+        final byte[] buf = new byte[8192];
+        try (InputStream input = in) {
+            while (input.read(buf) != -1) { /* discard */ }
+        }
+    }
+
+    private static long allocatedBytes () {
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    @AllArgsConstructor
+    public static class Result {
+        public static final String HEADER = String.format("%-32s %10s %14s %10s %10s %10s %6s",
+                "scenario", "req/s", "alloc/req", "p50(ms)", "p99(ms)", "max(ms)", "conns");
+
+        public final String name;
+        public final int count;
+        public final long elapsedNanos;
+        public final long allocatedBytes;
+        public final long[] sortedLatencies;
+        public int connections;
+
+        public Result (String name, int count, long elapsedNanos, long allocatedBytes, long[] sortedLatencies) {
+            this(name, count, elapsedNanos, allocatedBytes, sortedLatencies, 0);
+        }
+
+        public double requestsPerSecond () { return count / (elapsedNanos / 1e9); }
+        public long allocatedPerRequest () { return allocatedBytes / count; }
+        public double percentileMillis (double p) {
+            final int index = Math.min(sortedLatencies.length - 1, (int) Math.ceil(p * sortedLatencies.length) - 1);
+            return sortedLatencies[Math.max(0, index)] / 1e6;
+        }
+
+        @Override public String toString() {
+            return String.format("%-32s %10.1f %14d %10.3f %10.3f %10.3f %6d",
+                    name, requestsPerSecond(), allocatedPerRequest(),
+                    percentileMillis(0.50), percentileMillis(0.99), percentileMillis(1.0), connections);
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.cobbzilla.util.http;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.cobbzilla.util.io.FileUtil.temp;
+import static org.cobbzilla.util.system.Bytes.KB;
+import static org.junit.Assert.*;
+
+public class HttpUtilLoopbackTest {
+
+    private static LoopbackHttpServer server;
+
+    @BeforeClass public static void startServer () throws Exception { server = new LoopbackHttpServer(); }
+    @AfterClass public static void stopServer () { if (server != null) server.close(); }
+
+    @Test public void testEncodingsAndChunking () throws Exception {
+        final int size = (int) (100 * KB);
+        final byte[] expected = LoopbackHttpServer.payload(size);
+        for (String encoding : new String[] {null, "gzip", "deflate", "br"}) {
+            for (boolean chunked : new boolean[] {false, true}) {
+                final String url = server.url(size)+"&chunked="+chunked+(encoding == null ? "" : "&encoding="+encoding);
+                final HttpResponseBean response = HttpUtil.getResponse(new HttpRequestBean(url).setDecodeResponseEntity(true));
+                assertTrue("bad status for "+url, response.isOk());
+                assertArrayEquals("wrong entity for "+url, expected, response.getEntity());
+                if (encoding != null) {
+                    assertFalse("expected no "+CONTENT_ENCODING+" on decoded entity for "+url, response.hasHeader(CONTENT_ENCODING));
+                    assertFalse("expected no "+CONTENT_LENGTH+" on decoded entity for "+url, response.hasHeader(CONTENT_LENGTH));
+                }
+
+                try (InputStream in = HttpUtil.get(url)) {
+                    final byte[] raw = IOUtils.toByteArray(in);
+                    final byte[] decoded = encoding == null ? raw : HttpContentEncodingType.fromString(encoding).decode(raw);
+                    assertArrayEquals("wrong stream for "+url, expected, decoded);
+                }
+            }
+        }
+    }
+
+    @Test public void testPooledClientReusesConnections () throws Exception {
+        final int maxConnections = 4;
+        final int requests = 50;
+        server.resetCounters();
+        try (CloseableHttpClient client = new PooledHttpClientFactory("127.0.0.1", maxConnections).create()) {
+            for (int i=0; i<requests; i++) {
+                assertTrue(HttpUtil.getResponse(new HttpRequestBean(server.url(1024)), client).isOk());
+            }
+        }
+        assertEquals(requests, server.getRequestCount());
+        assertTrue("expected connections to be reused, but saw "+server.getConnectionCount()+" connections for "+requests+" requests",
+                server.getConnectionCount() <= maxConnections);
+    }
+
+    @Test public void testRangedDownload () throws Exception {
+        final int size = (int) (1024 * KB);
+        final File file = temp(".download");
+        try {
+            new HttpRangeDownloader(server.url(size), file)
+                    .setParts(4)
+                    .setMinPartSize(64 * KB)
+                    .setExpectedLength((long) size)
+                    .download();
+            assertArrayEquals("downloaded file was not the same", LoopbackHttpServer.payload(size), FileUtils.readFileToByteArray(file));
+            assertFalse("expected state file to be removed", new File(file.getAbsolutePath()+HttpRangeDownloader.STATE_SUFFIX).exists());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private void assertRangedDownload (String url, int size) throws Exception {
+        final File file = temp(".download");
+        try {
+            new HttpRangeDownloader(url, file)
+                    .setParts(4)
+                    .setMinPartSize(64 * KB)
+                    .setRetries(1)
+                    .setExpectedLength((long) size)
+                    .download();
+            assertArrayEquals("downloaded file was not the same for "+url, LoopbackHttpServer.payload(size), FileUtils.readFileToByteArray(file));
+            assertFalse("expected state file to be removed", new File(file.getAbsolutePath()+HttpRangeDownloader.STATE_SUFFIX).exists());
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    @Test public void testRangedDownloadValidators () throws Exception {
+        final int size = (int) (512 * KB);
+
+        // a strong etag is sent as If-Range and matches, so ranges are used
+        server.resetCounters();
+        assertRangedDownload(server.url(size)+"&etag=%22v1%22", size);
+        assertEquals("expected a HEAD and 4 ranges", 5, server.getRequestCount());
+
+        // a weak etag must not be sent as If-Range, or the server would send the whole body for every range
+        server.resetCounters();
+        assertRangedDownload(server.url(size)+"&etag=W%2F%22v1%22", size);
+        assertEquals("expected a HEAD and 4 ranges", 5, server.getRequestCount());
+    }
+
+    @Test public void testRangedDownloadFallback () throws Exception {
+        final int size = (int) (512 * KB);
+        // ranges advertised but refused: the whole body comes back for the first range, so download it once instead
+        assertRangedDownload(server.url(size)+"&ranges=false", size);
+        // HEAD not allowed
+        assertRangedDownload(server.url(size)+"&headStatus=405", size);
+    }
+
+    @Test(expected=IllegalArgumentException.class) public void testRangedDownloadNeedsOneAttempt () throws Exception {
+        new HttpRangeDownloader(server.url(1024), new File("unused.download")).setRetries(0);
+    }
+
+}
@@ -0,0 +1,237 @@
+package org.cobbzilla.util.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.http.HttpHeaders.*;
+import static org.cobbzilla.util.daemon.DaemonThreadFactory.fixedPool;
+import static org.cobbzilla.util.http.HttpMethods.HEAD;
+import static org.cobbzilla.util.http.HttpStatusCodes.NOT_MODIFIED;
+import static org.cobbzilla.util.http.HttpStatusCodes.OK;
+import static org.cobbzilla.util.http.HttpStatusCodes.PARTIAL_CONTENT;
+import static org.cobbzilla.util.string.StringUtil.UTF8;
+
+/**
+ * An HTTP server bound to the loopback interface, for exercising the http package without a network.
+ *
+ * Every path is served by the same handler, and the response is controlled by query parameters:
+ * <ul>
+ *     <li>size: number of bytes in the response body, default 1024. Bodies are deterministic, see payload(int)</li>
+ *     <li>delay: milliseconds to wait before responding, default 0</li>
+ *     <li>chunked: if true, send the body with chunked transfer encoding instead of a Content-Length</li>
+ *     <li>encoding: a content encoding to apply to the body (see HttpContentEncodingType)</li>
+ *     <li>status: the response status, default 200</li>
+ *     <li>location: a value for the Location header, for answering with a redirect</li>
+ *     <li>etag: a value for the ETag header. A GET with a matching If-None-Match is answered with 304</li>
+ *     <li>cacheControl: a value for the Cache-Control header</li>
+ *     <li>vary: a value for the Vary header</li>
+ *     <li>ranges: if false, ignore Range headers and always send the whole body, default true</li>
+ *     <li>headStatus: the response status for HEAD requests, default is the same as status</li>
+ *     <li>echo: if true, the response body and Content-Type are the request body and Content-Type, and size is ignored</li>
+ * </ul>
+ * Request bodies are read and discarded unless echoed; the number of bytes read is returned in the X-Request-Bytes header,
+ * and the request's Content-Length header, if any, in the X-Request-Content-Length header.
+ * A single-range Range header (bytes=start-end) is answered with 206, so ranged downloads can be tested. As RFC 7233
+ * requires, the range is ignored if an If-Range header does not match a strong etag.
+ */
+@Slf4j
+public class LoopbackHttpServer implements Closeable {
+
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_SIZE = 1024;
+    public static final String REQUEST_BYTES_HEADER = "X-Request-Bytes";
+    public static final String REQUEST_CONTENT_LENGTH_HEADER = "X-Request-Content-Length";
+
+    private final HttpServer server;
+    private final ExecutorService pool;
+
+    private final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger maxInFlight = new AtomicInteger(0);
+    private final AtomicInteger notModified = new AtomicInteger(0);
+
+    @Getter private final int port;
+
+    public LoopbackHttpServer () throws IOException { this(DEFAULT_THREADS); }
+
+    public LoopbackHttpServer (int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        pool = fixedPool(threads, getClass().getSimpleName());
+        server.setExecutor(pool);
+        server.createContext("/", this::handle);
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    public String getBaseUri () { return "http://127.0.0.1:"+port; }
+
+    public String url (String path) { return getBaseUri()+(path.startsWith("/") ? path : "/"+path); }
+
+    public String url (int size) { return url("/payload?size="+size); }
+
+    /** @return total number of requests handled */
+    public long getRequestCount () { return requests.get(); }
+
+    /** @return number of distinct client connections seen. With keep-alive this should stay far below getRequestCount */
+    public int getConnectionCount () { return connections.size(); }
+
+    /** @return the most requests that were being handled at the same time, before their responses started */
+    public int getMaxInFlight () { return maxInFlight.get(); }
+
+    /** @return number of requests answered with 304 Not Modified */
+    public int getNotModifiedCount () { return notModified.get(); }
+
+    public void resetCounters () {
+        requests.set(0);
+        notModified.set(0);
+        connections.clear();
+        maxInFlight.set(0);
+    }
+
+    /** @return the body served for the given size, without any encoding applied */
+    public static byte[] payload (int size) {
+        final byte[] data = new byte[size];
+        // compressible but not trivially so
+        for (int i=0; i<size; i++) data[i] = (byte) ('a' + ((i * 31) ^ (i >> 7)) % 26);
+        return data;
+    }
+
+    private byte[] body (int size, HttpContentEncodingType encoding) throws IOException {
+        final String key = size+"/"+(encoding == null ? "" : encoding.name());
+        final byte[] cached = bodies.get(key);
+        if (cached != null) return cached;
+        final byte[] plain = payload(size);
+        final byte[] body = encoding == null ? plain : encoding.encode(plain);
+        bodies.put(key, body);
+        return body;
+    }
+
+    private void handle (HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            connections.add(exchange.getRemoteAddress());
+
+            final Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            final int size = Integer.parseInt(params.getOrDefault("size", String.valueOf(DEFAULT_SIZE)));
+            final long delay = Long.parseLong(params.getOrDefault("delay", "0"));
+            final boolean chunked = Boolean.parseBoolean(params.getOrDefault("chunked", "false"));
+            final HttpContentEncodingType encoding = params.containsKey("encoding") ? HttpContentEncodingType.fromString(params.get("encoding")) : null;
+            final boolean echo = Boolean.parseBoolean(params.getOrDefault("echo", "false"));
+            int status = Integer.parseInt(params.getOrDefault("status", String.valueOf(OK)));
+
+            // counted until the response starts, so the client cannot see a response from a request still counted
+            long requestBytes = 0;
+            final ByteArrayOutputStream requestBody = echo ? new ByteArrayOutputStream() : null;
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try (InputStream in = exchange.getRequestBody()) {
+                final byte[] buf = new byte[8192];
+                int read;
+                while ((read = in.read(buf)) != -1) {
+                    requestBytes += read;
+                    if (echo) requestBody.write(buf, 0, read);
+                }
+                if (delay > 0) Thread.sleep(delay);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+
+            byte[] body = echo ? requestBody.toByteArray() : body(size, encoding);
+            int offset = 0;
+            int length = body.length;
+            final String range = exchange.getRequestHeaders().getFirst(RANGE);
+            final String etag = params.get("etag");
+            final String ifRange = exchange.getRequestHeaders().getFirst(IF_RANGE);
+            final boolean rangeAllowed = Boolean.parseBoolean(params.getOrDefault("ranges", "true"))
+                    && (ifRange == null || (etag != null && !etag.startsWith("W/") && etag.equals(ifRange)));
+            if (range != null && rangeAllowed && encoding == null && status == OK && range.startsWith("bytes=") && !range.contains(",")) {
+                final String[] parts = range.substring("bytes=".length()).split("-", 2);
+                final int start = Integer.parseInt(parts[0].trim());
+                final int end = parts[1].trim().isEmpty() ? body.length - 1 : Math.min(body.length - 1, Integer.parseInt(parts[1].trim()));
+                offset = start;
+                length = end - start + 1;
+                status = PARTIAL_CONTENT;
+                exchange.getResponseHeaders().set(CONTENT_RANGE, "bytes "+start+"-"+end+"/"+body.length);
+            }
+
+            final String requestContentType = exchange.getRequestHeaders().getFirst(CONTENT_TYPE);
+            exchange.getResponseHeaders().set(CONTENT_TYPE, echo && requestContentType != null ? requestContentType : "application/octet-stream");
+            exchange.getResponseHeaders().set(ACCEPT_RANGES, "bytes");
+            exchange.getResponseHeaders().set(REQUEST_BYTES_HEADER, String.valueOf(requestBytes));
+            final String requestContentLength = exchange.getRequestHeaders().getFirst(CONTENT_LENGTH);
+            if (requestContentLength != null) exchange.getResponseHeaders().set(REQUEST_CONTENT_LENGTH_HEADER, requestContentLength);
+            if (encoding != null) exchange.getResponseHeaders().set(CONTENT_ENCODING, encoding.name());
+            if (etag != null) exchange.getResponseHeaders().set(ETAG, etag);
+            if (params.containsKey("cacheControl")) exchange.getResponseHeaders().set(CACHE_CONTROL, params.get("cacheControl"));
+            if (params.containsKey("vary")) exchange.getResponseHeaders().set(VARY, params.get("vary"));
+            if (etag != null && status == OK && etag.equals(exchange.getRequestHeaders().getFirst(IF_NONE_MATCH))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(NOT_MODIFIED, -1);
+                return;
+            }
+            if (params.containsKey("location")) exchange.getResponseHeaders().set(LOCATION, params.get("location"));
+
+            if (exchange.getRequestMethod().equalsIgnoreCase(HEAD)) {
+                exchange.getResponseHeaders().set(CONTENT_LENGTH, String.valueOf(length));
+                exchange.sendResponseHeaders(Integer.parseInt(params.getOrDefault("headStatus", String.valueOf(status))), -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, chunked ? 0 : length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (chunked) {
+                    // several writes, so the client sees more than one chunk
+                    final int chunk = Math.max(1, length / 4);
+                    for (int pos = 0; pos < length; pos += chunk) out.write(body, offset + pos, Math.min(chunk, length - pos));
+                } else {
+                    out.write(body, offset, length);
+                }
+            }
+
+        } catch (Exception e) {
+            log.warn("handle: "+exchange.getRequestURI()+": "+e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> params (String query) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            final int eq = pair.indexOf('=');
+            if (eq == -1) {
+                params.put(URLDecoder.decode(pair, UTF8), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, eq), UTF8), URLDecoder.decode(pair.substring(eq+1), UTF8));
+            }
+        }
+        return params;
+    }
+
+    @Override public void close () {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+}
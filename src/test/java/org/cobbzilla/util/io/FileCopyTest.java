@@ -0,0 +1,133 @@
+package org.cobbzilla.util.io;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+
+import static org.cobbzilla.util.io.StreamUtil.DEFAULT_BUFFER_SIZE;
+import static org.junit.Assert.*;
+
+public class FileCopyTest {
+
+    // an empty file, a file spanning several buffers, and a file spanning many transfers to a slow channel
+    public static final int[] SIZES = {0, 3 * DEFAULT_BUFFER_SIZE + 17, 20 * DEFAULT_BUFFER_SIZE + 1};
+
+    // accepts at most this many bytes per write, so each FileChannel.transferTo moves only part of the file
+    public static final int CHUNK = 1000;
+
+    private File tempDir;
+
+    @Before public void createTempDir () throws Exception { tempDir = FileUtil.createTempDir(getClass().getSimpleName()); }
+
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    private File file (String name, byte[] data) throws IOException {
+        final File f = new File(tempDir, name);
+        FileUtils.writeByteArrayToFile(f, data);
+        return f;
+    }
+
+    @Test public void testToBytes () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            assertArrayEquals("wrong bytes for size "+size, data, FileUtil.toBytes(file("in"+size, data)));
+        }
+        // files in /proc report a size of zero but still have contents
+        final File cmdline = new File("/proc/self/cmdline");
+        if (cmdline.exists()) assertArrayEquals(Files.readAllBytes(cmdline.toPath()), FileUtil.toBytes(cmdline));
+    }
+
+    @Test public void testCopyFile () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            final File in = file("in"+size, data);
+            final File out = new File(tempDir, "sub/out"+size);
+            FileUtil.copyFile(in, out);
+            assertArrayEquals("wrong bytes for size "+size, data, FileUtils.readFileToByteArray(out));
+            assertEquals(in.lastModified(), out.lastModified());
+
+            // copying over a larger file truncates it
+            FileUtil.copyFile(file("big"+size, RandomUtils.nextBytes(size + DEFAULT_BUFFER_SIZE)), out);
+            FileUtil.copyFile(in, out);
+            assertArrayEquals("wrong bytes after overwrite for size "+size, data, FileUtils.readFileToByteArray(out));
+        }
+    }
+
+    @Test public void testCopyLarge () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            final File in = file("in"+size, data);
+
+            // file to file, through FileChannel transfer
+            final File out = new File(tempDir, "out"+size);
+            try (InputStream i = new FileInputStream(in); OutputStream o = new FileOutputStream(out)) {
+                assertEquals(size, StreamUtil.copyLarge(i, o));
+            }
+            assertArrayEquals("wrong bytes for file copy of size "+size, data, FileUtils.readFileToByteArray(out));
+
+            // file to stream and stream to file, through the buffer
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream i = new FileInputStream(in)) {
+                assertEquals(size, StreamUtil.copyLarge(i, bytes));
+            }
+            assertArrayEquals("wrong bytes for stream copy of size "+size, data, bytes.toByteArray());
+            try (OutputStream o = new FileOutputStream(out)) {
+                assertEquals(size, StreamUtil.copyLarge(new ByteArrayInputStream(data), o));
+            }
+            assertArrayEquals("wrong bytes for buffered file copy of size "+size, data, FileUtils.readFileToByteArray(out));
+
+            // only what follows the current position is copied
+            if (size > 0) {
+                try (FileInputStream i = new FileInputStream(in); OutputStream o = new FileOutputStream(out)) {
+                    assertEquals(1, i.skip(1));
+                    assertEquals(size - 1, StreamUtil.copyLarge(i, o));
+                }
+                assertEquals(size - 1, out.length());
+            }
+        }
+    }
+
+    @Test public void testTransfer () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            final File in = file("in"+size, data);
+            final ChunkedChannel out = new ChunkedChannel();
+            assertEquals(size, StreamUtil.transfer(in, out));
+            assertArrayEquals("wrong bytes for size "+size, data, out.bytes.toByteArray());
+            assertTrue("expected "+size+" bytes to take more than one transfer", size <= CHUNK || out.writes > 1);
+
+            // the position of the source channel ends up past the bytes copied
+            try (FileChannel channel = FileChannel.open(in.toPath())) {
+                assertEquals(size, StreamUtil.transfer(channel, new ChunkedChannel()));
+                assertEquals(size, channel.position());
+                assertEquals(0, StreamUtil.transfer(channel, new ChunkedChannel()));
+            }
+        }
+    }
+
+    private static class ChunkedChannel implements WritableByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int writes = 0;
+
+        @Override public int write (ByteBuffer src) {
+            final int n = Math.min(src.remaining(), CHUNK);
+            final byte[] buf = new byte[n];
+            src.get(buf);
+            bytes.write(buf, 0, n);
+            writes++;
+            return n;
+        }
+
+        @Override public boolean isOpen () { return true; }
+        @Override public void close () {}
+    }
+
+}
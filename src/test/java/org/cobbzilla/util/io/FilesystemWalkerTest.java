@@ -0,0 +1,70 @@
+package org.cobbzilla.util.io;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.daemon.AwaitResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FilesystemWalkerTest {
+
+    private File tempDir;
+    private int numFiles = 0;
+
+    @Before public void createTree () throws Exception {
+        tempDir = Files.createTempDir();
+        for (int i=0; i<20; i++) {
+            final File dir = new File(tempDir, "dir"+i+"/a/b");
+            for (int j=0; j<30; j++) {
+                FileUtils.writeStringToFile(new File(dir, "file"+j+".txt"), "file"+j, "UTF-8");
+                numFiles++;
+            }
+            FileUtils.writeStringToFile(new File(tempDir, "dir"+i+"/skip.log"), "skip", "UTF-8");
+        }
+        FileUtils.writeStringToFile(new File(tempDir, "node_modules/pkg/index.txt"), "pruned", "UTF-8");
+    }
+
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    @Test public void testWalkWithExcludeIncludeAndBatches () throws Exception {
+        final Set<File> visited = ConcurrentHashMap.newKeySet();
+        final AtomicInteger batched = new AtomicInteger();
+        final AtomicInteger maxBatch = new AtomicInteger();
+        final AwaitResult result = new FilesystemWalker()
+                .withDir(tempDir)
+                .withExcludeGlob("**/node_modules")
+                .withIncludeGlob("**.txt")
+                .setBatchSize(7)
+                .withVisitor(visited::add)
+                .withBatchVisitor(files -> {
+                    batched.addAndGet(files.size());
+                    maxBatch.accumulateAndGet(files.size(), Math::max);
+                })
+                .walk();
+
+        assertTrue("walk failed: "+result, result.allSucceeded());
+        assertEquals(numFiles, visited.size());
+        assertEquals(numFiles, batched.get());
+        assertTrue("batch too large: "+maxBatch.get(), maxBatch.get() <= 7);
+        for (File f : visited) assertTrue("unexpected file: "+f, f.getName().endsWith(".txt") && !f.getPath().contains("node_modules"));
+    }
+
+    @Test public void testVisitorFailuresAreCollected () throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        final AwaitResult result = new FilesystemWalker()
+                .withDir(tempDir)
+                .withVisitor(f -> { if (count.incrementAndGet() % 100 == 0) throw new IllegalStateException("visit failed"); })
+                .walkAsync().get();
+        assertEquals(numFiles + 20 + 1, count.get());
+        assertEquals(count.get() / 100, result.numFails());
+    }
+
+}
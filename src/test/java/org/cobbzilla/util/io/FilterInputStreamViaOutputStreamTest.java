@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
@@ -15,6 +16,7 @@ import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 @Slf4j
 public class FilterInputStreamViaOutputStreamTest {
@@ -55,4 +57,27 @@ public class FilterInputStreamViaOutputStreamTest {
         assertEquals("testData was not preserved", testData, new String(finalCheck.toByteArray()));
     }
 
+    @Test public void testSmallPipeBuffer () throws Exception {
+        final byte[] testData = RandomStringUtils.random((int) (256 * Bytes.KB)).getBytes();
+        try (InputStream filter = new FilterInputStreamViaOutputStream(new ByteArrayInputStream(testData), out -> out, 7)) {
+            assertArrayEquals("identity filter did not preserve data", testData, IOUtils.toByteArray(filter));
+        }
+    }
+
+    @Test public void testReadErrorIsPropagated () throws Exception {
+        final InputStream failing = new InputStream() {
+            private int count = 0;
+            @Override public int read() throws IOException {
+                if (count++ == 1000) throw new IOException("read failed");
+                return 'x';
+            }
+        };
+        try (InputStream filter = new FilterInputStreamViaOutputStream(failing, GZIPOutputStream.class)) {
+            IOUtils.toByteArray(filter);
+            fail("expected an IOException from the failed input");
+        } catch (IOException e) {
+            log.info("got expected exception: "+e);
+        }
+    }
+
 }
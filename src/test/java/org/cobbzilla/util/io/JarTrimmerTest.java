@@ -0,0 +1,123 @@
+package org.cobbzilla.util.io;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.*;
+
+public class JarTrimmerTest {
+
+    // Root refers to Used; nothing refers to Unused; ServiceImpl is only named in a META-INF/services file
+    public static class Used {}
+    public static class Unused {}
+    public static class ServiceImpl {}
+    public static class Root { private final Used used = new Used(); }
+
+    // long and double constants take two constant pool slots each, so a parser that miscounts loses what follows
+    public static class WideConstants {
+        private long l1 = 1234567890123L;
+        private double d1 = 3.25d;
+        private long l2 = -9876543210L;
+        private double d2 = 1e300;
+        private Used used = new Used();
+    }
+
+    public static final String PKG = "org/cobbzilla/util/io/";
+    public static final String ROOT = entry(Root.class);
+    public static final String USED = entry(Used.class);
+    public static final String UNUSED = entry(Unused.class);
+    public static final String SERVICE_IMPL = entry(ServiceImpl.class);
+    public static final String ORPHAN = "other/Orphan.class";
+    public static final String SERVICES = JarTrimmer.SERVICES_PREFIX+"com.example.Service";
+    public static final String USED_V11 = JarTrimmer.VERSIONS_PREFIX+"11/"+USED;
+    public static final String UNUSED_V11 = JarTrimmer.VERSIONS_PREFIX+"11/"+UNUSED;
+
+    private static String entry (Class<?> c) { return c.getName().replace('.', '/')+".class"; }
+
+    private static byte[] classBytes (Class<?> c) throws Exception {
+        try (InputStream in = c.getResourceAsStream("/"+entry(c))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private File tempDir;
+    private File jar;
+
+    @Before public void buildJar () throws Exception {
+        tempDir = FileUtil.createTempDir(getClass().getSimpleName());
+        jar = new File(tempDir, "in.jar");
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(ROOT, classBytes(Root.class));
+        entries.put(USED, classBytes(Used.class));
+        entries.put(UNUSED, classBytes(Unused.class));
+        entries.put(SERVICE_IMPL, classBytes(ServiceImpl.class));
+        entries.put(ORPHAN, classBytes(Unused.class));
+        entries.put(SERVICES, ("# a comment\n"+ServiceImpl.class.getName()+"\n").getBytes(UTF8cs));
+        entries.put(USED_V11, classBytes(Used.class));
+        entries.put(UNUSED_V11, classBytes(Unused.class));
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(e.getKey()));
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    private Set<String> trim (boolean followReferences, String... prefixes) throws Exception {
+        final File out = new File(tempDir, "out.jar");
+        new JarTrimmer().trim(new JarTrimmerConfig()
+                .setInJar(jar)
+                .setOutJar(out)
+                .setRequiredClasses(new String[] {Root.class.getName()})
+                .setRequiredPrefixes(prefixes)
+                .setFollowReferences(followReferences)
+                .setThreads(2));
+        final Set<String> names = new TreeSet<>();
+        try (ZipFile zip = new ZipFile(out)) {
+            for (ZipEntry e : Collections.list(zip.entries())) if (!e.isDirectory()) names.add(e.getName());
+        }
+        return names;
+    }
+
+    private static Set<String> set (String... names) { return new TreeSet<>(Arrays.asList(names)); }
+
+    @Test public void testTrimByPackage () throws Exception {
+        // every class in a package with a required class is kept; other packages are dropped
+        assertEquals(set(ROOT, USED, UNUSED, SERVICE_IMPL), trim(false));
+        assertEquals(set(ROOT, USED, UNUSED, SERVICE_IMPL, SERVICES, USED_V11, UNUSED_V11), trim(false, "META-INF"));
+    }
+
+    @Test public void testTrimFollowingReferences () throws Exception {
+        // only what is reachable from Root and the services file is kept, including versions of kept classes
+        assertEquals(set(ROOT, USED, SERVICE_IMPL, USED_V11), trim(true));
+        // a required version of a class makes the class itself required
+        assertEquals(set(ROOT, USED, UNUSED, SERVICE_IMPL, SERVICES, USED_V11, UNUSED_V11), trim(true, "META-INF"));
+    }
+
+    @Test public void testReferencesAfterWideConstants () throws Exception {
+        final Set<String> refs = ClassReferenceParser.references(classBytes(WideConstants.class));
+        assertTrue(refs.contains(PKG+"JarTrimmerTest$Used"));
+        assertTrue(refs.contains(PKG+"JarTrimmerTest$WideConstants"));
+        assertTrue(refs.contains("java/lang/Object"));
+    }
+
+    @Test(expected=java.io.IOException.class) public void testNotAClass () throws Exception {
+        ClassReferenceParser.references("not a class".getBytes(UTF8cs));
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.cobbzilla.util.io;
+
+import com.google.common.io.Files;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.*;
+
+public class ParallelZipExtractorTest {
+
+    private File tempDir;
+    private File zipfile;
+    private final Map<String, byte[]> contents = new LinkedHashMap<>();
+
+    @Before public void createZip () throws Exception {
+        tempDir = Files.createTempDir();
+        zipfile = new File(tempDir, "test.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipfile))) {
+            for (int i=0; i<50; i++) {
+                final String name = (i % 2 == 0 ? "docs/" : "lib/sub/") + "file" + i + (i % 3 == 0 ? ".xml" : ".bin");
+                final byte[] data = RandomUtils.nextBytes(RandomUtils.nextInt(0, 100_000));
+                contents.put(name, data);
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    @Test public void testExtractAll () throws Exception {
+        final File outdir = new File(tempDir, "all");
+        assertEquals(contents.size(), Decompressors.extractParallel(zipfile, outdir));
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            assertArrayEquals("wrong contents for "+entry.getKey(), entry.getValue(), FileUtils.readFileToByteArray(new File(outdir, entry.getKey())));
+        }
+    }
+
+    @Test public void testExtractGlob () throws Exception {
+        final File outdir = new File(tempDir, "xml");
+        final long expected = contents.keySet().stream().filter(n -> n.startsWith("docs/") && n.endsWith(".xml")).count();
+        assertEquals(expected, Decompressors.extract(zipfile, outdir, "docs/*.xml"));
+        assertFalse("lib should not have been extracted", new File(outdir, "lib").exists());
+    }
+
+    @Test public void testMaxEntrySize () throws Exception {
+        try {
+            new ParallelZipExtractor(zipfile, new File(tempDir, "limited")).setMaxEntrySize(10).extract();
+            fail("expected maxEntrySize to be enforced");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    @Test public void testDuplicateEntries () throws Exception {
+        // java.util.zip refuses to write duplicate names, commons-compress does not
+        final File dupes = new File(tempDir, "dupes.zip");
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(dupes)) {
+            for (int i=0; i<20; i++) {
+                zip.putArchiveEntry(new ZipArchiveEntry(i % 2 == 0 ? "dup.txt" : "other"+i+".txt"));
+                zip.write(("version "+i).getBytes(UTF8cs));
+                // the last copy is the smallest, so the largest-first schedule would start it last if earlier copies were kept
+                if (i < 18) zip.write(RandomUtils.nextBytes(100_000));
+                zip.closeArchiveEntry();
+            }
+        }
+        final File outdir = new File(tempDir, "dupes");
+        assertEquals(11, Decompressors.extractParallel(dupes, outdir));
+        assertEquals("version 18", FileUtils.readFileToString(new File(outdir, "dup.txt"), UTF8cs));
+    }
+
+}
@@ -1,17 +1,23 @@
 package org.cobbzilla.util.io;
 
 import com.google.common.io.Files;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomUtils;
 import org.cobbzilla.util.string.StringUtil;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import static org.cobbzilla.util.io.FileUtil.getDefaultTempDir;
 import static org.cobbzilla.util.security.ShaUtil.sha256;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -34,15 +40,54 @@ public class TarballTest {
         // list files in tempDir, we expect file1 and subdir
         validateUnrolledTarball(tempDir);
 
-        final File newTar = File.createTempFile("temp", ".tar", getDefaultTempDir());
+        // make one file executable, the mode should survive the round trip
+        final File file1 = new File(tempDir, "file1.txt");
+        assertTrue(file1.setExecutable(true, true));
+
+        final File newTar = File.createTempFile("temp", ".tar.gz", getDefaultTempDir());
         Tarball.roll(newTar, this.tempDir);
 
         // reset tempdir
         deleteTempDir(); createTempDir();
-        Tarball.unroll(tarball, tempDir);
+        Tarball.unroll(newTar, tempDir);
 
         // re-validate, should still pass
         validateUnrolledTarball(tempDir);
+        assertTrue("expected file1.txt to be executable", new File(tempDir, "file1.txt").canExecute());
+        assertTrue(newTar.delete());
+    }
+
+    @Test public void testDuplicateEntries () throws Exception {
+        // like a tarball appended to with "tar -r": the last entry for a path must win, whatever its size
+        final byte[] small1 = RandomUtils.nextBytes(1000);
+        final byte[] small2 = RandomUtils.nextBytes(2000);
+        final byte[] large = RandomUtils.nextBytes((int) Tarball.MAX_BUFFERED_ENTRY + 1000);
+        final byte[] last = RandomUtils.nextBytes(3000);
+
+        final File tarball = File.createTempFile("temp", ".tar.gz", getDefaultTempDir());
+        try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(new GzipCompressorOutputStream(new FileOutputStream(tarball)))) {
+            for (int i=0; i<50; i++) {
+                addEntry(tarOut, "./dup.txt", i % 2 == 0 ? small1 : small2);
+                addEntry(tarOut, "other"+i+".txt", small1);
+            }
+            addEntry(tarOut, "./dup.txt", large);
+            addEntry(tarOut, "big.txt", small1);
+            addEntry(tarOut, "big.txt", large);
+            addEntry(tarOut, "./dup.txt", last);
+        }
+
+        Tarball.unroll(tarball, tempDir, 4);
+        assertArrayEquals("wrong contents for dup.txt", last, FileUtil.toBytes(new File(tempDir, "dup.txt")));
+        assertArrayEquals("wrong contents for big.txt", large, FileUtil.toBytes(new File(tempDir, "big.txt")));
+        assertTrue(tarball.delete());
+    }
+
+    private void addEntry(TarArchiveOutputStream tarOut, String name, byte[] data) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tarOut.putArchiveEntry(entry);
+        tarOut.write(data);
+        tarOut.closeArchiveEntry();
     }
 
     protected void validateUnrolledTarball(File unrolledDir) throws IOException {
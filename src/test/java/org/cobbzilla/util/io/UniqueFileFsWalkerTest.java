@@ -0,0 +1,104 @@
+package org.cobbzilla.util.io;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static org.cobbzilla.util.io.FileUtil.abs;
+import static org.cobbzilla.util.string.StringUtil.tohex;
+import static org.junit.Assert.*;
+
+public class UniqueFileFsWalkerTest {
+
+    private File tempDir;
+    private UniqueFileFsWalker walker;
+    private final Map<String, List<String>> reported = new HashMap<>();
+    private int calls;
+
+    @Before public void setup () throws Exception {
+        tempDir = Files.createTempDir();
+        walker = new UniqueFileFsWalker(100).setThreads(3);
+    }
+
+    @After public void deleteTempDir () throws Exception { FileUtils.deleteDirectory(tempDir); }
+
+    private File file (String name, byte[] data) throws Exception {
+        final File f = new File(tempDir, name);
+        FileUtils.writeByteArrayToFile(f, data);
+        walker.visit(f);
+        return f;
+    }
+
+    private int findDuplicates () {
+        return walker.findDuplicates((hash, size, paths) -> {
+            calls++;
+            assertNull("group reported twice: "+hash, reported.put(hash, new ArrayList<>(paths)));
+        });
+    }
+
+    private Set<String> paths (File... files) {
+        final Set<String> paths = new HashSet<>();
+        for (File f : files) paths.add(abs(f));
+        return paths;
+    }
+
+    @Test public void testDifferentOnlyInTheMiddle () throws Exception {
+        // same size, same first and last samples: only the full hash can tell them apart
+        final byte[] data = RandomUtils.nextBytes(100_000);
+        final byte[] changed = data.clone();
+        changed[data.length / 2] ^= 1;
+        final File a = file("a", data);
+        final File b = file("b", data);
+        file("c", changed);
+
+        assertEquals(1, findDuplicates());
+        final String sha = tohex(MessageDigest.getInstance("SHA-256").digest(data));
+        assertEquals(paths(a, b), new HashSet<>(reported.get(sha)));
+        assertEquals(Collections.singleton(sha), walker.getHash().keySet());
+    }
+
+    @Test public void testSmallFiles () throws Exception {
+        // no larger than two samples, so the sample hash is the full hash
+        final byte[] data = RandomUtils.nextBytes(2 * UniqueFileFsWalker.SAMPLE_SIZE);
+        final byte[] other = RandomUtils.nextBytes(data.length);
+        final File a = file("a", data);
+        final File b = file("b", data);
+        file("c", other);
+        file("unique-size", RandomUtils.nextBytes(10));
+
+        assertEquals(1, findDuplicates());
+        final String sha = tohex(MessageDigest.getInstance("SHA-256").digest(data));
+        assertEquals(paths(a, b), new HashSet<>(reported.get(sha)));
+    }
+
+    @Test public void testEmptyFiles () throws Exception {
+        final File a = file("a", new byte[0]);
+        final File b = file("b", new byte[0]);
+        final File c = file("c", new byte[0]);
+
+        assertEquals(1, findDuplicates());
+        assertEquals(paths(a, b, c), new HashSet<>(reported.get(UniqueFileFsWalker.EMPTY_SHA256)));
+    }
+
+    @Test public void testGroupReportedOnce () throws Exception {
+        final byte[] data = RandomUtils.nextBytes(50_000);
+        final File[] copies = new File[4];
+        for (int i=0; i<copies.length; i++) copies[i] = file("copy"+i, data);
+        file("other", RandomUtils.nextBytes(data.length));
+
+        assertEquals(1, findDuplicates());
+        assertEquals(1, calls);
+        final String sha = tohex(MessageDigest.getInstance("SHA-256").digest(data));
+        assertEquals(copies.length, reported.get(sha).size());
+        assertEquals(paths(copies), new HashSet<>(reported.get(sha)));
+        assertEquals(paths(copies), walker.getHash().get(sha));
+    }
+
+}
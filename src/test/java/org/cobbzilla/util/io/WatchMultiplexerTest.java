@@ -0,0 +1,128 @@
+package org.cobbzilla.util.io;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.cobbzilla.util.daemon.DaemonThreadFactory;
+import org.cobbzilla.util.daemon.TimerWheel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public class WatchMultiplexerTest {
+
+    private File tempDir;
+    private ExecutorService executor;
+    private TimerWheel wheel;
+    private WatchMultiplexer multiplexer;
+
+    @Before public void setup () {
+        tempDir = Files.createTempDir();
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("WatchMultiplexerTest"));
+        wheel = new TimerWheel("WatchMultiplexerTest", 10, 64, executor);
+        multiplexer = new WatchMultiplexer(wheel);
+    }
+
+    @After public void teardown () throws Exception {
+        wheel.close();
+        executor.shutdownNow();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    // collects the names of created files, and counts down once per name it is waiting for
+    private static class Collector implements WatchMultiplexer.WatchListener {
+        final Set<String> created = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch latch;
+        volatile String waitingFor;
+
+        CountDownLatch expect (String name) {
+            waitingFor = name;
+            return latch = new CountDownLatch(1);
+        }
+
+        @Override public void onEvents (Path dir, List<WatchEvent<?>> events) {
+            for (WatchEvent<?> e : events) {
+                final String name = e.context().toString();
+                created.add(name);
+                if (name.equals(waitingFor)) latch.countDown();
+            }
+        }
+    }
+
+    @Test public void testTwoWatchersOfOneDirectory () throws Exception {
+        final Collector c1 = new Collector();
+        final Collector c2 = new Collector();
+        final WatchMultiplexer.Registration r1 = multiplexer.register(tempDir.toPath(), c1);
+        final WatchMultiplexer.Registration r2 = multiplexer.register(tempDir.toPath(), c2);
+        assertTrue(r1.isActive());
+        assertTrue(r2.isActive());
+        assertEquals("expected registrations to share one key", 1, multiplexer.numWatchedDirectories());
+
+        final CountDownLatch l1 = c1.expect("first");
+        final CountDownLatch l2 = c2.expect("first");
+        assertTrue(new File(tempDir, "first").createNewFile());
+        assertTrue("first watcher did not see the event", l1.await(10, SECONDS));
+        assertTrue("second watcher did not see the event", l2.await(10, SECONDS));
+
+        // once one is closed, only the other receives events
+        r1.close();
+        assertEquals(1, multiplexer.numWatchedDirectories());
+        final CountDownLatch l3 = c2.expect("second");
+        assertTrue(new File(tempDir, "second").createNewFile());
+        assertTrue("second watcher did not see the event", l3.await(10, SECONDS));
+        assertFalse("closed watcher saw an event", c1.created.contains("second"));
+
+        r2.close();
+        assertEquals(0, multiplexer.numWatchedDirectories());
+    }
+
+    @Test public void testBufferedWatcherFlushesOnceAfterBurst () throws Exception {
+        final long timeout = 1000;
+        final BlockingQueue<List<WatchEvent<?>>> fired = new LinkedBlockingQueue<>();
+        final BufferedFilesystemWatcher watcher = new BufferedFilesystemWatcher(tempDir, timeout, 1000) {
+            @Override protected WatchMultiplexer getMultiplexer() { return multiplexer; }
+            @Override protected TimerWheel getTimerWheel() { return wheel; }
+            @Override protected void fire(List<WatchEvent<?>> events) { fired.add(new ArrayList<>(events)); }
+        };
+        try {
+            watcher.start();
+
+            // nothing has fired yet, so the first event is flushed at once. after that, flushes wait for the timeout
+            assertTrue(new File(tempDir, "warmup").createNewFile());
+            assertNotNull("warmup event never fired", fired.poll(10, SECONDS));
+
+            final Set<String> burst = new HashSet<>();
+            for (int i=0; i<20; i++) {
+                final String name = "burst"+i;
+                assertTrue(new File(tempDir, name).createNewFile());
+                burst.add(name);
+            }
+
+            final List<WatchEvent<?>> events = fired.poll(10, SECONDS);
+            assertNotNull("burst never fired", events);
+            final Set<String> names = new HashSet<>();
+            for (WatchEvent<?> e : events) names.add(e.context().toString());
+            assertTrue("expected one flush with every event, missing: "+difference(burst, names), names.containsAll(burst));
+
+            Thread.sleep(2 * timeout);
+            assertNull("expected only one flush after the burst", fired.poll());
+        } finally {
+            watcher.close();
+        }
+    }
+
+    private static Set<String> difference (Set<String> a, Set<String> b) {
+        final Set<String> d = new TreeSet<>(a);
+        d.removeAll(b);
+        return d;
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.cobbzilla.util.io.multi;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.cobbzilla.util.string.StringUtil.UTF8cs;
+import static org.junit.Assert.*;
+
+public class MultiStreamTest {
+
+    private ExecutorService pool;
+
+    @Before public void createPool () { pool = Executors.newCachedThreadPool(); }
+    @After public void shutdownPool () { pool.shutdownNow(); }
+
+    private static InputStream stream (String s) { return new ByteArrayInputStream(s.getBytes(UTF8cs)); }
+
+    private Future<String> readAll (MultiStream in) {
+        return pool.submit(() -> new String(IOUtils.toByteArray(in), UTF8cs));
+    }
+
+    // wait until a thread blocks, so the test knows it is waiting for room or for data
+    private static void awaitBlocked (Thread t) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+        while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+            if (System.currentTimeMillis() > deadline) fail("thread never blocked: "+t.getState());
+            Thread.sleep(10);
+        }
+    }
+
+    @Test public void testAddStreamWakesReader () throws Exception {
+        final MultiStream in = new MultiStream(stream("first,"), "testAddStreamWakesReader");
+        final Future<String> result = readAll(in);
+
+        // let the reader run out of data and wait
+        Thread.sleep(300);
+        assertFalse(result.isDone());
+        assertTrue("expected reader to be waiting", in.getUnderflow().getUnderflowCount() > 0);
+
+        final long start = System.currentTimeMillis();
+        in.addStream(stream("second,"));
+        in.addLastStream(stream("last"));
+        assertEquals("first,second,last", result.get(10, SECONDS));
+        assertTrue("reader was not woken promptly", System.currentTimeMillis() - start < SECONDS.toMillis(5));
+    }
+
+    @Test public void testMaxPendingBlocksProducer () throws Exception {
+        final MultiStream in = new MultiStream(stream("0"), "testMaxPendingBlocksProducer").setMaxPendingStreams(2);
+        final Thread producer = new Thread(() -> {
+            for (int i=1; i<10; i++) in.addStream(stream(String.valueOf(i)));
+            in.addLastStream(stream("."));
+        });
+        producer.start();
+        awaitBlocked(producer);
+        assertEquals("expected producer to stop at maxPendingStreams", 1 + 2, in.pendingStreamCount());
+
+        assertEquals("0123456789.", readAll(in).get(10, SECONDS));
+        producer.join(SECONDS.toMillis(10));
+        assertFalse(producer.isAlive());
+        assertTrue(in.getUnderflow().getBackpressureCount() > 0);
+    }
+
+    @Test public void testNoStreamAfterLast () throws Exception {
+        final MultiStream in = new MultiStream(stream("a"), "testNoStreamAfterLast").setMaxPendingStreams(1);
+        in.addStream(stream("b"));
+
+        // both wait for room. the last stream is added first, so the other must then be refused
+        final Thread last = new Thread(() -> in.addLastStream(stream("c")));
+        last.start();
+        awaitBlocked(last);
+        final Thread late = new Thread(() -> in.addStream(stream("x")));
+        late.start();
+        awaitBlocked(late);
+
+        assertEquals("abc", readAll(in).get(10, SECONDS));
+        late.join(SECONDS.toMillis(10));
+        assertFalse(late.isAlive());
+        assertEquals(1, in.pendingStreamCount());
+    }
+
+    @Test public void testNoStreamAfterClose () throws Exception {
+        final MultiStream in = new MultiStream(stream("a"), "testNoStreamAfterClose").setMaxPendingStreams(1);
+        in.addStream(stream("b"));
+        final Thread producer = new Thread(() -> in.addStream(stream("c")));
+        producer.start();
+        awaitBlocked(producer);
+
+        in.close();
+        producer.join(SECONDS.toMillis(10));
+        assertFalse("expected producer to give up when the reader closed", producer.isAlive());
+        assertEquals(2, in.pendingStreamCount());
+    }
+
+}
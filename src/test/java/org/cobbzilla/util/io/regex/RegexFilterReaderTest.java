@@ -69,6 +69,17 @@ public class RegexFilterReaderTest {
         assertEquals("multi reader failed to get expected output", EXPECTED_STRING_INCLUDE_MATCH_MIDDLE, result.toString());
     }
 
+    @Test public void testLongInputWithSmallWindow() throws Exception {
+        // long runs without a match used to grow the buffer until the reader gave up
+        final String input = ("x".repeat(100_000) + " barbecue").repeat(20);
+        final RegexStreamFilter regexStreamFilter = new RegexReplacementFilter(" barbecue", " BBQ");
+        final RegexFilterReader regexFilterReader = new RegexFilterReader(new StringReader(input), 8, regexStreamFilter)
+                .setMaxWindow(16);
+        final StringWriter result = new StringWriter();
+        IOUtils.copyLarge(regexFilterReader, result);
+        assertEquals("small window failed to get expected output", input.replace(" barbecue", " BBQ"), result.toString());
+    }
+
     public static final String MULTI_TEST_STRING_1 = "this is a multi-stream test string\nthat should has a lot of stuff";
     public static final String MULTI_TEST_STRING_2 = "in it but why should that matter?\nit is a bad thing to have multiple streams?";
     public static final String MULTI_TEST_STRING_3 = "maybe some people think so\nbut a good person would never say that";
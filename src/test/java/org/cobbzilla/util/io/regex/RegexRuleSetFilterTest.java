@@ -0,0 +1,51 @@
+package org.cobbzilla.util.io.regex;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.cobbzilla.util.io.regex.RegexReplacementFilter.DEFAULT_PREFIX_REPLACEMENT_WITH_MATCH;
+import static org.junit.Assert.assertEquals;
+
+public class RegexRuleSetFilterTest {
+
+    public static final String TEST_STRING
+            = "<html lang=\"en\"><head><title>barbecue</title></head>\n"
+            + "<body>a BARBECUE at noon, beer42 and more beer7. barbecues for all, zzq xyzq</body></html>";
+
+    private RegexRule[] rules() {
+        return new RegexRule[] {
+                new RegexInsertionFilter().setPattern("(<head>)").setAfter("<script/>"),
+                new RegexReplacementFilter("barbecue", "BBQ"),
+                new RegexReplacementFilter("beer(\\d+)", 1, "#"+DEFAULT_PREFIX_REPLACEMENT_WITH_MATCH),
+                new RegexReplacementFilter("[xyz]+q", "Q"),
+                new RegexReplacementFilter("noon", "midday")
+        };
+    }
+
+    private String applySequentially(String input) {
+        String result = input;
+        for (RegexRule rule : rules()) {
+            result = ((RegexStreamFilter) rule).apply(new StringBuilder(result), true).buffer.toString();
+        }
+        return result;
+    }
+
+    @Test public void testSameAsSequential() throws Exception {
+        final RegexRuleSetFilter filter = new RegexRuleSetFilter(rules());
+        final RegexFilterResult result = filter.apply(new StringBuilder(TEST_STRING), true);
+        assertEquals("rule set output differs from applying each rule in turn", applySequentially(TEST_STRING), result.buffer.toString());
+        assertEquals("wrong match count", 9, result.matchCount);
+    }
+
+    @Test public void testRuleSetInReader() throws Exception {
+        final String input = TEST_STRING.repeat(200);
+        final RegexFilterReader reader = new RegexFilterReader(new StringReader(input), 8, new RegexRuleSetFilter(rules()));
+        final StringWriter result = new StringWriter();
+        IOUtils.copyLarge(reader, result);
+        assertEquals("rule set output differs when streamed", applySequentially(input), result.toString());
+    }
+
+}
@@ -6,12 +6,13 @@ import org.cobbzilla.util.io.FileUtil;
 import org.junit.Test;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import static org.apache.commons.lang3.RandomStringUtils.randomAlphanumeric;
 import static org.cobbzilla.util.io.FileUtil.abs;
 import static org.cobbzilla.util.system.CommandShell.execScript;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
 
 public class CryptoUtilTest {
 
@@ -22,6 +23,49 @@ public class CryptoUtilTest {
         assertEquals(plaintext, CryptoUtil.string_decrypt(ciphertext, key));
     }
 
+    @Test public void testStreamingEncryption () throws Exception {
+        final byte[] data = RandomUtils.nextBytes(3 * CryptoUtil.MIN_CHUNK_SIZE * 100 + 17);
+        final String key = randomAlphanumeric(20);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        CryptoUtil.encrypt(new ByteArrayInputStream(data), encrypted, key);
+        assertArrayEquals("streamed output differs", CryptoUtil.encrypt(data, key), encrypted.toByteArray());
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        CryptoUtil.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, key);
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test public void testChunkedEncryption () throws Exception {
+        final byte[] data = RandomUtils.nextBytes(3 * CryptoUtil.MIN_CHUNK_SIZE * 100 + 17);
+        final String key = randomAlphanumeric(20);
+
+        final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        CryptoUtil.encryptChunked(new ByteArrayInputStream(data), encrypted, key, CryptoUtil.MIN_CHUNK_SIZE);
+        final byte[] ciphertext = encrypted.toByteArray();
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        CryptoUtil.decryptChunked(new ByteArrayInputStream(ciphertext), decrypted, key);
+        assertArrayEquals(data, decrypted.toByteArray());
+
+        // a corrupt chunk is detected, and nothing after it is written
+        ciphertext[ciphertext.length/2] ^= 1;
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        try {
+            CryptoUtil.decryptChunked(new ByteArrayInputStream(ciphertext), partial, key);
+            fail("expected corrupt chunk to be detected");
+        } catch (IllegalStateException expected) {
+            assertTrue("wrote past the corrupt chunk", partial.size() < data.length/2);
+        }
+
+        // so is a stream truncated at a chunk boundary
+        final byte[] truncated = Arrays.copyOf(encrypted.toByteArray(), ciphertext.length - (CryptoUtil.MIN_CHUNK_SIZE + CryptoUtil.GCM_TAG_BYTES) - 17 - CryptoUtil.GCM_TAG_BYTES);
+        try {
+            CryptoUtil.decryptChunked(new ByteArrayInputStream(truncated), new ByteArrayOutputStream(), key);
+            fail("expected truncation to be detected");
+        } catch (IllegalStateException expected) {}
+    }
+
     @Test public void testRsa () throws Exception {
         final RsaKeyPair pair1 = RsaKeyPair.newRsaKeyPair();
         final RsaKeyPair pair2 = RsaKeyPair.newRsaKeyPair();
@@ -74,4 +118,39 @@ public class CryptoUtilTest {
         assertEquals("expected no diff", "", result);
     }
 
+    @Test public void testSegmentedStream () throws Exception {
+        final CryptStream stream = new CryptStream(randomAlphanumeric(30));
+        final byte[] salt = RandomUtils.nextBytes(32);
+        final String aad = randomAlphanumeric(100);
+        final int segmentSize = CryptoUtil.MIN_CHUNK_SIZE;
+        final byte[] data = RandomUtils.nextBytes(segmentSize * 200 + 33);
+
+        final File enc = FileUtil.temp(".enc");
+        try (OutputStream out = new FileOutputStream(enc)) {
+            stream.encryptSegmented(new ByteArrayInputStream(data), out, salt, aad, segmentSize);
+        }
+
+        final ByteArrayOutputStream dec = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(enc)) {
+            stream.decryptSegmented(in, dec, salt, aad);
+        }
+        assertArrayEquals(data, dec.toByteArray());
+
+        // any segment can be decrypted on its own
+        try (FileChannel channel = FileChannel.open(enc.toPath())) {
+            assertEquals(201, stream.segmentCount(channel));
+            for (long i : new long[] {200, 0, 117}) {
+                final int start = (int) i * segmentSize;
+                assertArrayEquals("wrong segment "+i, Arrays.copyOfRange(data, start, Math.min(data.length, start + segmentSize)),
+                                  stream.decryptSegment(channel, salt, aad, i));
+            }
+            try {
+                stream.decryptSegment(channel, salt, aad+"x", 1);
+                fail("expected wrong aad to be detected");
+            } catch (IllegalStateException expected) {}
+        } finally {
+            enc.delete();
+        }
+    }
+
 }
@@ -0,0 +1,65 @@
+package org.cobbzilla.util.security;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.cobbzilla.util.io.FileUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.cobbzilla.util.string.StringUtil.tohex;
+import static org.junit.Assert.assertEquals;
+
+public class HashEngineTest {
+
+    private File randomFile (int size) throws Exception {
+        final File file = FileUtil.temp(".tmp");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(RandomUtils.nextBytes(size));
+        }
+        return file;
+    }
+
+    private String expected (String algorithm, File file) throws Exception {
+        return tohex(MessageDigest.getInstance(algorithm).digest(FileUtil.toBytes(file)));
+    }
+
+    @Test public void testHashFiles () throws Exception {
+        final List<File> files = new ArrayList<>();
+        for (int i=0; i<10; i++) files.add(randomFile(RandomUtils.nextInt(0, 100000)));
+        files.add(randomFile(3_000_000));
+
+        // a small buffer so that larger files take many reads
+        try (HashEngine engine = new HashEngine(HashEngine.SHA256).setThreads(3).setBufferSize(50000)) {
+            final Map<File, String> hashes = engine.hashFiles(files);
+            assertEquals(files, new ArrayList<>(hashes.keySet()));
+            for (File f : files) {
+                assertEquals("wrong hash for "+f.length()+" byte file", expected("SHA-256", f), hashes.get(f));
+                assertEquals(expected("SHA-256", f), ShaUtil.sha256_file(f));
+                assertEquals(expected("MD5", f), MD5Util.md5hex(null, f));
+            }
+        }
+    }
+
+    @Test public void testTreeHash () throws Exception {
+        final int chunkSize = 100000;
+        final File file = randomFile(chunkSize * 7 + 123);
+        final byte[] data = FileUtil.toBytes(file);
+
+        final MessageDigest root = MessageDigest.getInstance("SHA-256");
+        for (int pos=0; pos<data.length; pos+=chunkSize) {
+            root.update(HashEngine.hash(HashEngine.SHA256, data, pos, Math.min(chunkSize, data.length - pos)));
+        }
+        // a buffer smaller than a chunk, and not a divisor of it
+        try (HashEngine engine = new HashEngine(HashEngine.SHA256).setThreads(4).setBufferSize(30000)) {
+            assertEquals(tohex(root.digest()), tohex(engine.treeHash(file, chunkSize)));
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.cobbzilla.util.security.bcrypt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class BCryptUtilTest {
+
+    @Test public void testNeedsRehash () throws Exception {
+        final String hashed = BCryptUtil.hash("secret", 5);
+        assertEquals(5, BCryptUtil.logRounds(hashed));
+        assertTrue(BCryptUtil.needsRehash(hashed, 6));
+        assertFalse(BCryptUtil.needsRehash(hashed, 5));
+        assertTrue("expected non-bcrypt value to need rehash", BCryptUtil.needsRehash("plaintext", 4));
+    }
+
+    @Test(expected=IllegalStateException.class) public void testNeedsRehashWithoutRounds () throws Exception {
+        assumeTrue("bcryptRounds already set", BCryptUtil.getBcryptRounds() == null);
+        BCryptUtil.needsRehash(BCryptUtil.hash("secret", 5));
+    }
+
+    @Test public void testPool () throws Exception {
+        final String hashed = BCryptUtil.hash("secret", 6);
+        try (BCryptPool pool = new BCryptPool(1, 2)) {
+            final List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+            for (int i=0; i<20; i++) checks.add(pool.checkAsync(i % 2 == 0 ? "secret" : "wrong", hashed));
+
+            int rejected = 0;
+            for (int i=0; i<checks.size(); i++) {
+                try {
+                    assertEquals("wrong result for check "+i, i % 2 == 0, checks.get(i).get());
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            assertTrue("expected some checks to be rejected", rejected > 0);
+            assertEquals(rejected, pool.getRejectedCount());
+            assertEquals(checks.size(), pool.getSubmittedCount());
+        }
+    }
+
+}
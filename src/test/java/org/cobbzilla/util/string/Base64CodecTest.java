@@ -0,0 +1,239 @@
+package org.cobbzilla.util.string;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.cobbzilla.util.string.Base64.*;
+import static org.junit.Assert.*;
+
+public class Base64CodecTest {
+
+    public static final int[] SIZES = {0, 1, 2, 3, 56, 57, 58, 114, 1000, Base64Codec.BLOCK_SIZE + 7, 100000};
+
+    // every combination of the options that change the encoded alphabet or layout
+    public static final int[] OPTIONS = {NO_OPTIONS, URL_SAFE, ORDERED, DO_BREAK_LINES, URL_SAFE | DO_BREAK_LINES, ORDERED | DO_BREAK_LINES};
+
+    // Base64.OutputStream and Base64.InputStream still encode and decode with the original code, a quad at a time
+    private static String legacyEncode (byte[] data, int options) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (OutputStream out = new Base64.OutputStream(buf, ENCODE | options)) {
+            out.write(data);
+        }
+        return buf.toString("US-ASCII");
+    }
+
+    private static byte[] legacyDecode (String encoded, int options) throws IOException {
+        try (InputStream in = new Base64.InputStream(new ByteArrayInputStream(encoded.getBytes(US_ASCII)), DECODE | options)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test public void testRoundTrip () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            final String encoded = Base64Codec.encode(data);
+            assertEquals("wrong encoding for "+size+" bytes", java.util.Base64.getEncoder().encodeToString(data), encoded);
+            assertArrayEquals(data, Base64.decode(encoded));
+
+            final String urlSafe = Base64Codec.encode(data, URL_SAFE);
+            assertEquals(java.util.Base64.getUrlEncoder().encodeToString(data), urlSafe);
+            assertArrayEquals(data, Base64.decode(urlSafe, URL_SAFE));
+
+            final String broken = Base64Codec.encode(data, DO_BREAK_LINES);
+            assertArrayEquals("wrong decoding of line-broken "+size+" bytes", data, Base64.decode(broken));
+
+            final String gzipped = Base64Codec.encode(data, GZIP);
+            assertArrayEquals(data, Base64.decode(gzipped));
+        }
+    }
+
+    @Test public void testLineBreaks () throws Exception {
+        // like the original encoder, output ends with a newline when the input fills its last line exactly
+        final byte[] data = RandomUtils.nextBytes(57 * 2);
+        final String encoded = Base64Codec.encode(data, DO_BREAK_LINES);
+        assertEquals(java.util.Base64.getMimeEncoder().encodeToString(data).replace("\r\n", "\n")+"\n", encoded);
+        assertEquals(Base64Codec.encodedLength(data.length, DO_BREAK_LINES), encoded.length());
+    }
+
+    @Test public void testDecodeIntoBuffer () throws Exception {
+        final byte[] data = RandomUtils.nextBytes(5000);
+        final byte[] encoded = Base64Codec.encode(data, DO_BREAK_LINES).getBytes();
+        final byte[] dst = new byte[data.length + 10];
+        final int len = Base64Codec.decode(encoded, 0, encoded.length, dst, 10, NO_OPTIONS);
+        assertEquals(data.length, len);
+        for (int i=0; i<data.length; i++) assertEquals("wrong byte at "+i, data[i], dst[i+10]);
+    }
+
+    @Test public void testStreams () throws Exception {
+        for (int size : SIZES) {
+            final byte[] data = RandomUtils.nextBytes(size);
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (OutputStream out = Base64Codec.encodingStream(buf, DO_BREAK_LINES)) {
+                // write in odd-sized pieces to exercise partial groups
+                for (int pos=0; pos<size; pos+=100) out.write(data, pos, Math.min(100, size - pos));
+            }
+            assertEquals(Base64Codec.encode(data, DO_BREAK_LINES), buf.toString());
+
+            try (InputStream in = Base64Codec.decodingStream(new ByteArrayInputStream(buf.toByteArray()), NO_OPTIONS)) {
+                assertArrayEquals("wrong stream decoding of "+size+" bytes", data, IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    @Test public void testLegacyCompatibility () throws Exception {
+        for (int options : OPTIONS) {
+            for (int size : SIZES) {
+                final byte[] data = RandomUtils.nextBytes(size);
+                final String encoded = Base64Codec.encode(data, options);
+                assertEquals("encoding differs from legacy for "+size+" bytes with options "+options, legacyEncode(data, options), encoded);
+                assertArrayEquals(data, legacyDecode(encoded, options));
+                assertArrayEquals("wrong decoding of "+size+" bytes with options "+options, data, Base64.decode(encoded, options | DONT_GUNZIP));
+
+                final byte[] dst = new byte[size];
+                final byte[] src = encoded.getBytes(US_ASCII);
+                assertEquals(size, Base64Codec.decode(src, 0, src.length, dst, 0, options));
+                assertArrayEquals(data, dst);
+
+                try (InputStream in = Base64Codec.decodingStream(new ByteArrayInputStream(src), options)) {
+                    assertArrayEquals("wrong stream decoding of "+size+" bytes with options "+options, data, IOUtils.toByteArray(in));
+                }
+            }
+        }
+    }
+
+    @Test public void testOrdered () throws Exception {
+        // the ORDERED alphabet sorts like the data it encodes
+        final byte[] low = {0, 0, 1};
+        final byte[] high = {0, 0, 2};
+        final String encodedLow = Base64Codec.encode(low, ORDERED);
+        final String encodedHigh = Base64Codec.encode(high, ORDERED);
+        assertTrue(encodedLow.compareTo(encodedHigh) < 0);
+        assertEquals("---0", encodedLow);
+        assertArrayEquals(low, Base64.decode(encodedLow, ORDERED));
+        assertArrayEquals(high, Base64Codec.decode(encodedHigh, ORDERED));
+    }
+
+    @Test public void testUrlSafeWithLineBreaks () throws Exception {
+        // URL_SAFE with DO_BREAK_LINES is not available from java.util.Base64
+        final byte[] data = RandomUtils.nextBytes(57 * 3 + 10);
+        final String encoded = Base64Codec.encode(data, URL_SAFE | DO_BREAK_LINES);
+        assertEquals(java.util.Base64.getMimeEncoder().encodeToString(data).replace("\r\n", "\n").replace('+', '-').replace('/', '_'), encoded);
+        assertArrayEquals(data, Base64.decode(encoded, URL_SAFE | DONT_GUNZIP));
+        assertArrayEquals(data, Base64.decode(encoded, URL_SAFE | DO_BREAK_LINES | DONT_GUNZIP));
+    }
+
+    @Test public void testMalformedInput () throws Exception {
+        // these fall back from java.util.Base64 to Base64, which reports them the same way as before
+        for (String bad : new String[] {"AB$D", "QUJD$UJD", "QU*D\nQUJD", "QUJD QU#D"}) {
+            try {
+                Base64.decode(bad);
+                fail("expected IOException from Base64.decode for "+bad);
+            } catch (IOException expected) {
+                // expected
+            }
+            final byte[] src = bad.getBytes(US_ASCII);
+            try {
+                Base64Codec.decode(src, 0, src.length, new byte[src.length], 0, NO_OPTIONS);
+                fail("expected IOException from Base64Codec.decode for "+bad);
+            } catch (IOException expected) {
+                // expected
+            }
+            try {
+                Base64Codec.decode(ByteBuffer.allocateDirect(src.length).put(src).flip(), ByteBuffer.allocateDirect(src.length), NO_OPTIONS);
+                fail("expected IOException from Base64Codec.decode(ByteBuffer) for "+bad);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+
+        // Base64 is lenient about a partial quad at the end and anything after the padding, and still is
+        final String[][] lenient = {{"QUJDQ", "ABC"}, {"QQ==QQ", "A"}, {"QQ==\nQUJD", "A"}};
+        for (String[] test : lenient) {
+            assertEquals(test[1], new String(Base64.decode(test[0]), US_ASCII));
+            final byte[] src = test[0].getBytes(US_ASCII);
+            final byte[] dst = new byte[src.length];
+            assertEquals(test[1], new String(dst, 0, Base64Codec.decode(src, 0, src.length, dst, 0, NO_OPTIONS), US_ASCII));
+        }
+    }
+
+    @Test public void testDecodingStreamEndsAfterPadding () throws Exception {
+        // like Base64.InputStream, nothing after the first padded quad is decoded
+        for (String encoded : new String[] {"QQ==QUJD", "QUI=\nQUJD", "QUJD\nQQ==\nQUJD"}) {
+            try (InputStream in = Base64Codec.decodingStream(new ByteArrayInputStream(encoded.getBytes(US_ASCII)), NO_OPTIONS)) {
+                assertArrayEquals("wrong stream decoding of "+encoded, legacyDecode(encoded, NO_OPTIONS), IOUtils.toByteArray(in));
+            }
+        }
+    }
+
+    @Test public void testByteBuffers () throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            for (int options : OPTIONS) {
+                final byte[] data = RandomUtils.nextBytes(Base64Codec.BLOCK_SIZE + 100);
+                final String expected = Base64Codec.encode(data, options);
+
+                // start past the beginning of each buffer, to check that positions are honoured
+                final ByteBuffer src = buffer(data.length + 3, direct);
+                src.position(3);
+                src.put(data).flip().position(3);
+                final ByteBuffer encoded = buffer(expected.length() + 5, direct);
+                encoded.position(5);
+                Base64Codec.encode(src, encoded, options);
+                assertFalse(src.hasRemaining());
+                assertEquals(expected.length() + 5, encoded.position());
+                encoded.flip().position(5);
+                final byte[] encodedBytes = new byte[encoded.remaining()];
+                encoded.duplicate().get(encodedBytes);
+                assertEquals("wrong encoding into "+(direct ? "direct" : "heap")+" buffer with options "+options, expected, new String(encodedBytes, US_ASCII));
+
+                final ByteBuffer decoded = buffer(data.length + 7, direct);
+                decoded.position(7);
+                Base64Codec.decode(encoded, decoded, options);
+                assertFalse(encoded.hasRemaining());
+                assertEquals(data.length + 7, decoded.position());
+                decoded.flip().position(7);
+                final byte[] decodedBytes = new byte[decoded.remaining()];
+                decoded.get(decodedBytes);
+                assertArrayEquals(data, decodedBytes);
+            }
+        }
+    }
+
+    @Test public void testByteBuffersTooSmall () throws Exception {
+        final byte[] data = RandomUtils.nextBytes(1000);
+        final byte[] encoded = Base64Codec.encode(data).getBytes(US_ASCII);
+        for (boolean direct : new boolean[] {false, true}) {
+            try {
+                Base64Codec.encode(ByteBuffer.wrap(data), buffer(encoded.length - 1, direct), NO_OPTIONS);
+                fail("expected encode into a small "+(direct ? "direct" : "heap")+" buffer to fail");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            try {
+                Base64Codec.decode(ByteBuffer.wrap(encoded), buffer(data.length - 1, direct), NO_OPTIONS);
+                fail("expected decode into a small "+(direct ? "direct" : "heap")+" buffer to fail");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        try {
+            Base64Codec.decode(encoded, 0, encoded.length, new byte[data.length], 1, NO_OPTIONS);
+            fail("expected decode into a small array to fail");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private static ByteBuffer buffer (int size, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.cobbzilla.util.string;
+
+import org.cobbzilla.util.http.HttpUtil;
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryStringCodecTest {
+
+    public static final String[] STRINGS = {
+            "", "simple", "two words", "a&b=c", "100%", "a+b", "~!@#$%^&*()_+`-={}|[]\\:\";'<>?,./",
+            "caf\u00e9", "\u20ac5", "\uD83D\uDE00 smile", "lone \uD83D surrogate"
+    };
+
+    @Test public void testEncodeMatchesUrlEncoder () throws Exception {
+        for (String s : STRINGS) {
+            final String expected = URLEncoder.encode(s, StringUtil.UTF8);
+            assertEquals("wrong encoding for "+s, expected, QueryStringCodec.encode(s));
+            assertEquals("wrong decoding for "+expected, URLDecoder.decode(expected, StringUtil.UTF8), QueryStringCodec.decode(expected));
+        }
+    }
+
+    @Test public void testParse () throws Exception {
+        final Map<String, List<String>> params = QueryStringCodec.parseMulti("http://example.com/path?a=1&b=x+y%21&a=2&flag&empty=&&eq=1=2#fragment");
+        assertEquals(asList("a", "b", "flag", "empty", "eq"), new ArrayList<>(params.keySet()));
+        assertEquals(asList("1", "2"), params.get("a"));
+        assertEquals(asList("x y!"), params.get("b"));
+        assertNull(params.get("flag").get(0));
+        assertEquals(asList(""), params.get("empty"));
+        assertEquals(asList("1=2"), params.get("eq"));
+
+        assertEquals("2", QueryStringCodec.parse("a=1&a=2").get("a"));
+    }
+
+    @Test public void testEmptyAndMissingValues () throws Exception {
+        final Map<String, String> params = QueryStringCodec.parse("?a=&b&c=1");
+        assertEquals("", params.get("a"));
+        assertTrue(params.containsKey("b"));
+        assertNull(params.get("b"));
+        assertEquals("a=&b&c=1", QueryStringCodec.build(params));
+        assertEquals("http://example.com/?a=&b&c=1", HttpUtil.cleanParams("http://example.com/?a=&b&c=1&cid=2"));
+    }
+
+    @Test public void testQuestionMarkInValue () throws Exception {
+        final Map<String, String> params = HttpUtil.queryParams(new URL("http://example.com/path?a=1?b=2&next=/x?y=z"));
+        assertEquals(asList("a", "next"), new ArrayList<>(params.keySet()));
+        assertEquals("1?b=2", params.get("a"));
+        assertEquals("/x?y=z", params.get("next"));
+
+        assertEquals("1?b=2", QueryStringCodec.parseRaw("a=1?b=2").get("a"));
+        assertEquals("1?b=2", QueryStringCodec.parse("http://example.com/?a=1?b=2").get("a"));
+    }
+
+    @Test public void testBuild () throws Exception {
+        final Map<String, List<String>> params = new LinkedHashMap<>();
+        params.put("a b", asList("1", "2"));
+        params.put("c", Collections.singletonList("x&y"));
+        final StringBuilder b = new StringBuilder("http://example.com/?");
+        assertEquals("http://example.com/?a+b=1&a+b=2&c=x%26y", QueryStringCodec.buildMulti(params, b).toString());
+        assertEquals(params, QueryStringCodec.parseMulti(b));
+    }
+
+}